@@ -0,0 +1,265 @@
+package edu.uw.danco.broker;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountException;
+import edu.uw.ext.framework.account.AccountManager;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/15/13
+ * Time: 3:40 PM
+ *
+ * Holds accounts fetched ahead of need, so an order whose trigger is about to be crossed doesn't wait on the account
+ * store when it executes. Accounts are fetched in the background by prefetch and handed out, at most once, by take.
+ *
+ * Each account has a version which is advanced by invalidate, called whenever the account is changed through the
+ * broker. A fetched account is only cached, and only handed out, if the version is unchanged since the fetch began, so
+ * a cached copy never predates a change made through the broker. Copies older than the time to live are discarded to
+ * bound the staleness of changes made elsewhere.
+ *
+ * A version is only kept while its account is cached or being fetched, so the versions don't accumulate for every
+ * account the broker has ever changed. Versions are drawn from a single clock, so an account whose version was dropped
+ * starts again from a version it has never had, and an older copy can never match it.
+ */
+public final class AccountCache {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(AccountCache.class.getName());
+
+    /** The number of prefetches between sweeps of the expired copies */
+    private static final int SWEEP_INTERVAL = 1024;
+
+    /** The account manager accounts are fetched from */
+    private final AccountManager accountManager;
+
+    /** Runs the background fetches */
+    private final Executor fetcher;
+
+    /** How long a fetched account may be used, in nanoseconds */
+    private final long timeToLive;
+
+    /** The fetched accounts, by account name */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** The version of each account cached or being fetched, by account name */
+    private final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Issues the versions, no two versions are the same */
+    private final AtomicLong clock = new AtomicLong();
+
+    /** The number of prefetches, used to schedule the sweeps */
+    private final AtomicLong prefetches = new AtomicLong();
+
+    /** The accounts with a fetch in progress */
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** The number of accounts handed out from the cache */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of accounts fetched on demand */
+    private final AtomicLong misses = new AtomicLong();
+
+
+    /**
+     * A fetched account and the version it was fetched at.
+     */
+    private static final class Entry {
+        /** The account */
+        private final Account account;
+
+        /** The version of the account when the fetch began */
+        private final long version;
+
+        /** When the account was fetched, in nanoseconds */
+        private final long fetchedAt;
+
+
+        /**
+         * Constructor
+         * @param account - the account
+         * @param version - the version of the account when the fetch began
+         * @param fetchedAt - when the account was fetched
+         */
+        private Entry(final Account account, final long version, final long fetchedAt) {
+            this.account = account;
+            this.version = version;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+
+    /**
+     * Constructor
+     * @param accountManager - the account manager accounts are fetched from
+     * @param fetcher - runs the background fetches
+     * @param timeToLive - how long a fetched account may be used
+     * @param unit - the unit of the time to live
+     */
+    public AccountCache(final AccountManager accountManager, final Executor fetcher,
+                        final long timeToLive, final TimeUnit unit) {
+        this.accountManager = accountManager;
+        this.fetcher = fetcher;
+        this.timeToLive = unit.toNanos(timeToLive);
+    }
+
+
+    /**
+     * Fetches an account in the background, unless a usable copy is already cached or being fetched.
+     * @param accountName - the name of the account
+     */
+    public void prefetch(final String accountName) {
+        if (prefetches.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep();
+        }
+        final Entry entry = entries.get(accountName);
+        if (entry != null && isUsable(accountName, entry)) {
+            return;
+        }
+        if (!pending.add(accountName)) {
+            return;
+        }
+        try {
+            fetcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final long version = version(accountName).get();
+                        final Account account = accountManager.getAccount(accountName);
+                        if (account != null && version(accountName).get() == version) {
+                            entries.put(accountName, new Entry(account, version, System.nanoTime()));
+                        }
+                    } catch (final AccountException e) {
+                        LOGGER.log(Level.FINE, "Unable to prefetch account " + accountName, e);
+                    } finally {
+                        pending.remove(accountName);
+                        release(accountName);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            pending.remove(accountName);
+            release(accountName);
+        }
+    }
+
+
+    /**
+     * Gets an account for use, from the cache if a usable copy has been fetched, otherwise from the account manager.
+     * A cached copy is handed out only once.
+     * @param accountName - the name of the account
+     * @return - the account, or null if there is no such account
+     * @throws AccountException - if the account can't be fetched
+     */
+    public Account take(final String accountName) throws AccountException {
+        final Entry entry = entries.remove(accountName);
+        final boolean usable = entry != null && isUsable(accountName, entry);
+        release(accountName);
+        if (usable) {
+            hits.incrementAndGet();
+            return entry.account;
+        }
+        misses.incrementAndGet();
+        return accountManager.getAccount(accountName);
+    }
+
+
+    /**
+     * Advances the version of an account, discarding any cached copy and any fetch in progress. Called whenever the
+     * account is changed.
+     * @param accountName - the name of the account
+     */
+    public void invalidate(final String accountName) {
+        version(accountName).set(clock.incrementAndGet());
+        entries.remove(accountName);
+        release(accountName);
+    }
+
+
+    /**
+     * Gets the number of accounts handed out from the cache.
+     * @return - the hit count
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+
+    /**
+     * Gets the number of accounts fetched on demand.
+     * @return - the miss count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+
+    /**
+     * Determines if a cached copy is current and within its time to live.
+     * @param accountName - the name of the account
+     * @param entry - the cached copy
+     * @return - true if the copy may be used
+     */
+    private boolean isUsable(final String accountName, final Entry entry) {
+        final AtomicLong version = versions.get(accountName);
+        return version != null && entry.version == version.get() && System.nanoTime() - entry.fetchedAt < timeToLive;
+    }
+
+
+    /**
+     * Discards the cached copies which can no longer be used, and the versions of their accounts.
+     */
+    private void sweep() {
+        for (final Map.Entry<String, Entry> cached : entries.entrySet()) {
+            if (!isUsable(cached.getKey(), cached.getValue()) && entries.remove(cached.getKey(), cached.getValue())) {
+                release(cached.getKey());
+            }
+        }
+    }
+
+
+    /**
+     * Drops the version of an account which is neither cached nor being fetched. A fetch which begins meanwhile may
+     * find its version dropped, its copy is then discarded, never handed out.
+     * @param accountName - the name of the account
+     */
+    private void release(final String accountName) {
+        if (pending.contains(accountName) || entries.containsKey(accountName)) {
+            return;
+        }
+        final AtomicLong version = versions.get(accountName);
+        if (version != null) {
+            versions.remove(accountName, version);
+        }
+    }
+
+
+    /**
+     * Gets the version counter of an account, creating it at a new version if necessary.
+     * @param accountName - the name of the account
+     * @return - the version counter
+     */
+    private AtomicLong version(final String accountName) {
+        AtomicLong version = versions.get(accountName);
+        if (version == null) {
+            final AtomicLong created = new AtomicLong(clock.incrementAndGet());
+            version = versions.putIfAbsent(accountName, created);
+            if (version == null) {
+                version = created;
+            }
+        }
+        return version;
+    }
+}
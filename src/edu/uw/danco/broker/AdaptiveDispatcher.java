@@ -0,0 +1,317 @@
+package edu.uw.danco.broker;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/13/13
+ * Time: 7:25 PM
+ *
+ * A thread pool which sizes itself between configured bounds. At a fixed interval the pool samples the number of
+ * orders held by the monitored order queues waiting for a thread, the number of tasks waiting for a thread, and the
+ * fraction of task time spent blocked (wall clock time not spent on the CPU, e.g. waiting on the exchange). When there
+ * is a backlog the pool grows toward the size that keeps the CPUs busy given the blocked ratio, cpus / (1 - blocked),
+ * when the pool is mostly idle it shrinks by a quarter.
+ *
+ * The samples and the resize decisions are exposed through the AdaptiveDispatcherMXBean interface.
+ */
+public final class AdaptiveDispatcher extends ThreadPoolExecutor implements AdaptiveDispatcherMXBean {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveDispatcher.class.getName());
+
+    /** The most orders counted per queue when sampling */
+    private static final int BACKLOG_SAMPLE_LIMIT = 256;
+
+    /** The largest blocked ratio used in sizing, bounds the computed size when tasks are almost always blocked */
+    private static final double MAX_BLOCKED_RATIO = 0.95;
+
+    /** Distinguishes the management names of multiple dispatchers */
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    /** Used to measure task CPU time */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /** The lower bound on the number of threads */
+    private final int minThreads;
+
+    /** The upper bound on the number of threads */
+    private final int maxThreads;
+
+    /** The order queues whose backlog drives sizing */
+    private final List<OrderQueueImpl<?>> monitored = new CopyOnWriteArrayList<OrderQueueImpl<?>>();
+
+    /** Samples the load and resizes the pool */
+    private final ScheduledExecutorService sampler;
+
+    /** Wall clock time of the tasks completed since the last sample, in nanoseconds */
+    private final AtomicLong wallTime = new AtomicLong();
+
+    /** CPU time of the tasks completed since the last sample, in nanoseconds */
+    private final AtomicLong cpuTime = new AtomicLong();
+
+    /** The start times of the running task of each thread, wall clock and CPU */
+    private final ThreadLocal<long[]> taskStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    /** The management name, null if not registered */
+    private ObjectName mbeanName;
+
+    /** The dispatchable orders at the last sample */
+    private volatile int lastOrderBacklog;
+
+    /** The waiting tasks at the last sample */
+    private volatile int lastTaskBacklog;
+
+    /** The blocked ratio over the last sample interval */
+    private volatile double lastBlockedRatio;
+
+    /** The number of times the pool has grown */
+    private final AtomicLong growCount = new AtomicLong();
+
+    /** The number of times the pool has shrunk */
+    private final AtomicLong shrinkCount = new AtomicLong();
+
+    /** The most recent resize decision */
+    private volatile String lastDecision = "none";
+
+
+    /**
+     * Constructor, starts the pool at its lower bound.
+     * @param minThreads - the lower bound on the number of threads
+     * @param maxThreads - the upper bound on the number of threads
+     * @param sampleInterval - the interval between load samples
+     * @param unit - the unit of the sample interval
+     */
+    public AdaptiveDispatcher(final int minThreads, final int maxThreads,
+                              final long sampleInterval, final TimeUnit unit) {
+        super(checkArguments(minThreads, maxThreads, sampleInterval), maxThreads, 0L, TimeUnit.MILLISECONDS,
+              new LinkedBlockingQueue<Runnable>());
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+
+        sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "AdaptiveDispatcherSampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sampler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                resize();
+            }
+        }, sampleInterval, sampleInterval, unit);
+    }
+
+
+    /**
+     * Validates the constructor's arguments before the pool is created.
+     * @param minThreads - the lower bound on the number of threads
+     * @param maxThreads - the upper bound on the number of threads
+     * @param sampleInterval - the interval between load samples
+     * @return - the lower bound on the number of threads
+     * @throws IllegalArgumentException - if the bounds are invalid or the interval isn't positive
+     */
+    private static int checkArguments(final int minThreads, final int maxThreads, final long sampleInterval) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException(String.format("Invalid bounds [%d, %d]", minThreads, maxThreads));
+        }
+        if (sampleInterval <= 0L) {
+            throw new IllegalArgumentException("Sample interval must be positive: " + sampleInterval);
+        }
+        return minThreads;
+    }
+
+
+    /**
+     * Adds an order queue to the queues whose backlog drives sizing. The backlog of a queue is every order it holds
+     * while it is waiting for a thread, so only queues whose orders are all dispatchable by then are monitored.
+     * @param queue - the queue
+     */
+    public void monitor(final OrderQueueImpl<?> queue) {
+        monitored.add(queue);
+    }
+
+
+    /**
+     * Removes an order queue from the queues whose backlog drives sizing.
+     * @param queue - the queue
+     */
+    public void unmonitor(final OrderQueueImpl<?> queue) {
+        monitored.remove(queue);
+    }
+
+
+    /**
+     * Registers the dispatcher's metrics with the platform MBean server.
+     * @param name - the name to register under, typically the broker name
+     */
+    public void registerMBean(final String name) {
+        try {
+            final ObjectName objectName = new ObjectName(String.format(
+                    "edu.uw.danco.broker:type=AdaptiveDispatcher,name=%s,id=%d",
+                    ObjectName.quote(name), INSTANCES.incrementAndGet()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            mbeanName = objectName;
+        } catch (final JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to register dispatcher metrics for " + name, e);
+        }
+    }
+
+
+    @Override
+    protected void beforeExecute(final Thread t, final Runnable r) {
+        final long[] start = taskStart.get();
+        start[0] = System.nanoTime();
+        start[1] = THREADS.getCurrentThreadCpuTime();
+    }
+
+
+    @Override
+    protected void afterExecute(final Runnable r, final Throwable t) {
+        final long[] start = taskStart.get();
+        wallTime.addAndGet(System.nanoTime() - start[0]);
+        cpuTime.addAndGet(THREADS.getCurrentThreadCpuTime() - start[1]);
+    }
+
+
+    @Override
+    protected void terminated() {
+        sampler.shutdownNow();
+        if (mbeanName != null) {
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.unregisterMBean(mbeanName);
+            } catch (final JMException e) {
+                LOGGER.log(Level.FINE, "Unable to unregister dispatcher metrics", e);
+            }
+        }
+    }
+
+
+    /**
+     * Samples the load and adjusts the target number of threads.
+     */
+    private void resize() {
+        int orderBacklog = 0;
+        for (final OrderQueueImpl<?> queue : monitored) {
+            orderBacklog += queue.backlog(BACKLOG_SAMPLE_LIMIT);
+        }
+        final int taskBacklog = getQueue().size();
+        final long wall = wallTime.getAndSet(0L);
+        final long cpu = cpuTime.getAndSet(0L);
+        final double blocked = wall > 0L ? Math.max(0.0, Math.min(MAX_BLOCKED_RATIO, 1.0 - (double) cpu / wall)) : 0.0;
+
+        lastOrderBacklog = orderBacklog;
+        lastTaskBacklog = taskBacklog;
+        lastBlockedRatio = blocked;
+
+        final int current = getCorePoolSize();
+        final int active = getActiveCount();
+        int target = current;
+        if (taskBacklog > 0 || orderBacklog > active) {
+            final int cpus = Runtime.getRuntime().availableProcessors();
+            final int desired = (int) Math.ceil(cpus / (1.0 - blocked));
+            target = Math.min(maxThreads, Math.max(current + 1, Math.min(desired, current * 2)));
+        } else if (active < current / 2) {
+            target = Math.max(minThreads, current - Math.max(1, current / 4));
+        }
+
+        if (target != current) {
+            lastDecision = String.format("%s %d -> %d threads (orders=%d, tasks=%d, active=%d, blocked=%.2f)",
+                                         target > current ? "grow" : "shrink", current, target,
+                                         orderBacklog, taskBacklog, active, blocked);
+            setCorePoolSize(target);
+            if (target > current) {
+                growCount.incrementAndGet();
+            } else {
+                shrinkCount.incrementAndGet();
+            }
+            LOGGER.log(Level.FINE, lastDecision);
+        }
+    }
+
+
+    @Override
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+
+    @Override
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+
+    @Override
+    public int getTargetThreads() {
+        return getCorePoolSize();
+    }
+
+
+    @Override
+    public int getActiveThreads() {
+        return getActiveCount();
+    }
+
+
+    @Override
+    public int getLastOrderBacklog() {
+        return lastOrderBacklog;
+    }
+
+
+    @Override
+    public int getLastTaskBacklog() {
+        return lastTaskBacklog;
+    }
+
+
+    @Override
+    public double getLastBlockedRatio() {
+        return lastBlockedRatio;
+    }
+
+
+    @Override
+    public long getGrowCount() {
+        return growCount.get();
+    }
+
+
+    @Override
+    public long getShrinkCount() {
+        return shrinkCount.get();
+    }
+
+
+    @Override
+    public String getLastDecision() {
+        return lastDecision;
+    }
+}
@@ -0,0 +1,72 @@
+package edu.uw.danco.broker;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/13/13
+ * Time: 7:10 PM
+ *
+ * Management interface exposing the sizing metrics and decisions of an AdaptiveDispatcher.
+ */
+public interface AdaptiveDispatcherMXBean {
+
+    /**
+     * Gets the lower bound on the number of threads.
+     * @return - the minimum number of threads
+     */
+    int getMinThreads();
+
+    /**
+     * Gets the upper bound on the number of threads.
+     * @return - the maximum number of threads
+     */
+    int getMaxThreads();
+
+    /**
+     * Gets the current target number of threads.
+     * @return - the core pool size
+     */
+    int getTargetThreads();
+
+    /**
+     * Gets the number of threads currently running tasks.
+     * @return - the number of active threads
+     */
+    int getActiveThreads();
+
+    /**
+     * Gets the number of dispatchable orders, across the monitored order queues, at the last sample.
+     * @return - the order backlog
+     */
+    int getLastOrderBacklog();
+
+    /**
+     * Gets the number of tasks waiting for a thread at the last sample.
+     * @return - the task backlog
+     */
+    int getLastTaskBacklog();
+
+    /**
+     * Gets the fraction of task time spent blocked, rather than on the CPU, over the last sample interval.
+     * @return - the blocked ratio, between 0 and 1
+     */
+    double getLastBlockedRatio();
+
+    /**
+     * Gets the number of times the pool has been grown.
+     * @return - the grow count
+     */
+    long getGrowCount();
+
+    /**
+     * Gets the number of times the pool has been shrunk.
+     * @return - the shrink count
+     */
+    long getShrinkCount();
+
+    /**
+     * Gets a description of the most recent resize decision.
+     * @return - the last decision
+     */
+    String getLastDecision();
+}
@@ -0,0 +1,24 @@
+package edu.uw.danco.broker;
+
+import edu.uw.ext.framework.broker.OrderProcessor;
+import edu.uw.ext.framework.order.Order;
+
+import java.util.List;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/14/13
+ * Time: 6:40 PM
+ *
+ * An order processor which can accept a batch of orders at once. Queues dispatching to a batch processor remove all of
+ * their dispatchable orders under a single lock acquisition and hand them over together.
+ */
+public interface BatchOrderProcessor extends OrderProcessor {
+
+    /**
+     * Processes a batch of orders, in the order given.
+     * @param orders - the orders to process
+     */
+    void processAll(List<? extends Order> orders);
+}
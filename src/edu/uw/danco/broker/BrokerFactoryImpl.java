@@ -5,17 +5,92 @@ import edu.uw.ext.framework.broker.Broker;
 import edu.uw.ext.framework.broker.BrokerFactory;
 import edu.uw.ext.framework.exchange.StockExchange;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Created with IntelliJ IDEA.
  * User: dcostinett
  * Date: 4/28/13
  * Time: 2:14 PM
+ *
+ * Creates brokers. By default each broker has its own dispatcher threads and exchange listener. With shared hosting
+ * enabled all the brokers created for an exchange run on a single BrokerHost, sharing its threads and its exchange
+ * subscription, the hosts are shut down by close. With warm-up enabled the order handling code is exercised with
+ * synthetic orders before the first broker is handed out.
  */
 public class BrokerFactoryImpl implements BrokerFactory {
 
+    /** True if the order handling code is to be warmed up before the first broker is handed out */
+    private boolean warmUp;
+
+    /** True if brokers on the same exchange are to share a host */
+    private boolean sharedHosting;
+
+    /** The shared hosts, by exchange */
+    private final Map<StockExchange, BrokerHost> hosts = new IdentityHashMap<StockExchange, BrokerHost>();
+
+
     @Override
     public Broker newBroker(String name, AccountManager acctMngr, StockExchange exch) {
+        if (warmUp) {
+            BrokerWarmUp.warmUpOnce();
+        }
+        if (sharedHosting) {
+            return new BrokerImpl(name, acctMngr, exch, getHost(exch));
+        }
         BrokerImpl broker = new BrokerImpl(name, acctMngr, exch);
         return broker;
     }
+
+
+    /**
+     * Enables or disables warm-up, when enabled the first broker is only handed out once synthetic orders have been
+     * run through the order handling code until it reaches steady state.
+     * @param warmUp - true if warm-up is to be run
+     */
+    public void setWarmUp(final boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+
+    /**
+     * Enables or disables shared hosting of brokers created for the same exchange.
+     * @param sharedHosting - true if brokers are to share a host
+     */
+    public void setSharedHosting(final boolean sharedHosting) {
+        this.sharedHosting = sharedHosting;
+    }
+
+
+    /**
+     * Gets the shared host for an exchange, creating it if necessary.
+     * @param exch - the exchange
+     * @return - the host
+     */
+    private synchronized BrokerHost getHost(final StockExchange exch) {
+        BrokerHost host = hosts.get(exch);
+        if (host == null) {
+            host = new BrokerHost("BrokerHost-" + (hosts.size() + 1), exch);
+            hosts.put(exch, host);
+        }
+        return host;
+    }
+
+
+    /**
+     * Shuts down the shared hosts, the brokers on them should be closed first.
+     */
+    public void close() {
+        final List<BrokerHost> closing;
+        synchronized (this) {
+            closing = new ArrayList<BrokerHost>(hosts.values());
+            hosts.clear();
+        }
+        for (final BrokerHost host : closing) {
+            host.close();
+        }
+    }
 }
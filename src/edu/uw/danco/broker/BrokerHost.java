@@ -0,0 +1,433 @@
+package edu.uw.danco.broker;
+
+import edu.uw.danco.exchange.ExchangeSnapshot;
+import edu.uw.danco.exchange.SequencedStockExchange;
+import edu.uw.ext.framework.exchange.ExchangeEvent;
+import edu.uw.ext.framework.exchange.ExchangeListener;
+import edu.uw.ext.framework.exchange.StockExchange;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/15/13
+ * Time: 10:05 AM
+ *
+ * Hosts one or more brokers trading on the same exchange. The brokers share the host's dispatcher, fair scheduler and
+ * expiry wheel, so the number of threads does not grow with the number of brokers, and the host is the only listener
+ * registered with the exchange. Price changes are recorded by the host and forwarded only to the brokers which have
+ * subscribed to the ticker, a broker subscribes while it has orders waiting for the ticker's price. Exchange opened and
+ * closed events are forwarded to every broker.
+ *
+ * Each price recorded by the host is numbered, and forwarded with its number. A broker which subscribes brings its
+ * order manager up to date with the last price recorded, the numbers let the manager ignore whichever of that price and
+ * the forwarded price changes arrives out of order, so the manager's price never moves backwards.
+ *
+ * The host tracks whether the exchange is open and, when the exchange numbers its events, seeds the last prices from a
+ * single snapshot of the market, so starting a broker doesn't cost a round trip per ticker. The host registers with the
+ * exchange before taking the snapshot and holds back the events received meanwhile, once the snapshot is applied only
+ * the events numbered after it are applied, so no event is lost and none is applied over a later snapshot.
+ */
+public final class BrokerHost implements ExchangeListener {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(BrokerHost.class.getName());
+
+    /** The fewest threads the dispatcher runs with */
+    private static final int MIN_DISPATCHER_THREADS = 4;
+
+    /** The most threads the dispatcher may grow to */
+    private static final int MAX_DISPATCHER_THREADS = 64;
+
+    /** The interval, in milliseconds, at which the dispatcher samples its load */
+    private static final long DISPATCHER_SAMPLE_MILLIS = 250L;
+
+    /** The processing time each queue is credited per scheduling round, in microseconds */
+    private static final long SCHEDULER_QUANTUM_MICROS = 500L;
+
+    /** The resolution, in milliseconds, of the good-till-time order expiry wheel */
+    private static final long EXPIRY_TICK_MILLIS = 100L;
+
+    /** The exchange the hosted brokers trade on */
+    private final StockExchange exchange;
+
+    /** The ExecutorService that will process the dispatched orders, sized by the order backlog */
+    private final AdaptiveDispatcher dispatcher = new AdaptiveDispatcher(MIN_DISPATCHER_THREADS,
+                                                                         MAX_DISPATCHER_THREADS,
+                                                                         DISPATCHER_SAMPLE_MILLIS,
+                                                                         TimeUnit.MILLISECONDS);
+
+    /** Shares the dispatcher fairly between the order queues of all the hosted brokers */
+    private final FairOrderScheduler scheduler =
+            new FairOrderScheduler(dispatcher, SCHEDULER_QUANTUM_MICROS, TimeUnit.MICROSECONDS);
+
+    /** Expires good-till-time orders on a single timer thread */
+    private final OrderExpiryWheel expiryWheel = new OrderExpiryWheel(EXPIRY_TICK_MILLIS);
+
+    /** The last price seen for each ticker */
+    private final ConcurrentMap<String, PriceChange> lastPrices = new ConcurrentHashMap<String, PriceChange>();
+
+    /** Numbers the prices recorded, in the order they are recorded */
+    private final AtomicLong priceSequence = new AtomicLong();
+
+    /** True while the exchange is open */
+    private volatile boolean exchangeOpen;
+
+    /** The hosted brokers */
+    private final List<BrokerImpl> brokers = new CopyOnWriteArrayList<BrokerImpl>();
+
+    /** The brokers subscribed to each ticker */
+    private final ConcurrentMap<String, List<BrokerImpl>> subscribers =
+            new ConcurrentHashMap<String, List<BrokerImpl>>();
+
+    /** Guards the events held back while the host is seeded from a snapshot */
+    private final Object seedLock = new Object();
+
+    /** The events held back while the host is seeded from a snapshot, null once it has been seeded */
+    private volatile List<HeldEvent> held;
+
+
+    /**
+     * Constructor, registers the host as a listener with the exchange.
+     * @param name - the name of the host, used to name its management beans
+     * @param exchange - the exchange the hosted brokers trade on
+     */
+    public BrokerHost(final String name, final StockExchange exchange) {
+        this.exchange = exchange;
+        dispatcher.registerMBean(name);
+
+        if (exchange instanceof SequencedStockExchange) {
+            seed((SequencedStockExchange) exchange);
+        } else {
+            exchangeOpen = exchange.isOpen();
+            exchange.addExchangeListener(this);     //when adding self as listener, always do it as the last thing.
+        }
+    }
+
+
+    /**
+     * Registers the host with the exchange, then seeds the exchange's state and the last prices from a snapshot. The
+     * events received until the snapshot has been applied are held back, and only those numbered after the snapshot
+     * are applied. The events are applied under the seed lock, so events arriving meanwhile wait for them.
+     * @param sequenced - the exchange the hosted brokers trade on
+     */
+    private void seed(final SequencedStockExchange sequenced) {
+        held = new ArrayList<HeldEvent>();
+        sequenced.addExchangeListener(this);
+
+        final ExchangeSnapshot snapshot = sequenced.getSnapshot();
+        final boolean open = snapshot != null ? snapshot.isOpen() : sequenced.isOpen();
+        synchronized (seedLock) {
+            exchangeOpen = open;
+            if (snapshot != null) {
+                for (final Map.Entry<String, Integer> price : snapshot.getPrices().entrySet()) {
+                    record(price.getKey(), price.getValue());
+                }
+            } else {
+                LOGGER.warning("Exchange snapshot unavailable, prices will be seeded by the exchange's events");
+            }
+
+            final List<HeldEvent> events = held;
+            held = null;
+            for (final HeldEvent heldEvent : events) {
+                if (snapshot == null || heldEvent.sequence > snapshot.getSequence()) {
+                    apply(heldEvent.event);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Holds back an event while the host is seeded from a snapshot.
+     * @param event - the event
+     * @return - true if the event was held back, false if it is to be applied now
+     */
+    private boolean hold(final ExchangeEvent event) {
+        if (held == null) {
+            return false;
+        }
+        synchronized (seedLock) {
+            final List<HeldEvent> events = held;
+            if (events == null) {
+                return false;
+            }
+            events.add(new HeldEvent(((SequencedStockExchange) exchange).getEventSequence(), event));
+            return true;
+        }
+    }
+
+
+    /**
+     * Applies an event held back while the host was seeded.
+     * @param event - the event
+     */
+    private void apply(final ExchangeEvent event) {
+        switch (event.getEventType()) {
+            case OPENED:
+                exchangeOpened(event);
+                break;
+
+            case CLOSED:
+                exchangeClosed(event);
+                break;
+
+            case PRICE_CHANGED:
+                priceChanged(event);
+                break;
+
+            default:
+                LOGGER.log(Level.WARNING, "Unable to determine event type: " + event.getEventType());
+        }
+    }
+
+
+    /**
+     * Adds a broker to the brokers receiving exchange events.
+     * @param broker - the broker
+     */
+    void attach(final BrokerImpl broker) {
+        brokers.add(broker);
+    }
+
+
+    /**
+     * Removes a broker and its ticker subscriptions.
+     * @param broker - the broker
+     */
+    void detach(final BrokerImpl broker) {
+        brokers.remove(broker);
+        for (final List<BrokerImpl> subscribed : subscribers.values()) {
+            subscribed.remove(broker);
+        }
+    }
+
+
+    /**
+     * Subscribes a broker to the price changes of a ticker.
+     * @param ticker - the stock symbol
+     * @param broker - the broker
+     */
+    void subscribe(final String ticker, final BrokerImpl broker) {
+        List<BrokerImpl> subscribed = subscribers.get(ticker);
+        if (subscribed == null) {
+            final List<BrokerImpl> created = new CopyOnWriteArrayList<BrokerImpl>();
+            subscribed = subscribers.putIfAbsent(ticker, created);
+            if (subscribed == null) {
+                subscribed = created;
+            }
+        }
+        subscribed.add(broker);
+    }
+
+
+    /**
+     * Unsubscribes a broker from the price changes of a ticker.
+     * @param ticker - the stock symbol
+     * @param broker - the broker
+     */
+    void unsubscribe(final String ticker, final BrokerImpl broker) {
+        final List<BrokerImpl> subscribed = subscribers.get(ticker);
+        if (subscribed != null) {
+            subscribed.remove(broker);
+        }
+    }
+
+
+    /**
+     * Gets the dispatcher shared by the hosted brokers.
+     * @return - the dispatcher
+     */
+    AdaptiveDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+
+    /**
+     * Gets the scheduler shared by the hosted brokers.
+     * @return - the scheduler
+     */
+    FairOrderScheduler getScheduler() {
+        return scheduler;
+    }
+
+
+    /**
+     * Gets the expiry wheel shared by the hosted brokers.
+     * @return - the expiry wheel
+     */
+    OrderExpiryWheel getExpiryWheel() {
+        return expiryWheel;
+    }
+
+
+    /**
+     * Gets the last price seen for a ticker.
+     * @param ticker - the stock symbol
+     * @return - the last price, or null if no price has been seen for the ticker
+     */
+    Integer getLastPrice(final String ticker) {
+        final PriceChange last = lastPrices.get(ticker);
+        return last == null ? null : last.price;
+    }
+
+
+    /**
+     * Gets the last price seen for a ticker, with its number.
+     * @param ticker - the stock symbol
+     * @return - the last price, or null if no price has been seen for the ticker
+     */
+    PriceChange getLastPriceChange(final String ticker) {
+        return lastPrices.get(ticker);
+    }
+
+
+    /**
+     * Numbers and records the last price of a ticker. A price numbered before the one already recorded, by an event
+     * delivered concurrently, is not recorded.
+     * @param ticker - the stock symbol
+     * @param price - the price
+     * @return - the numbered price
+     */
+    private PriceChange record(final String ticker, final int price) {
+        final PriceChange change = new PriceChange(price, priceSequence.incrementAndGet());
+        PriceChange last = lastPrices.putIfAbsent(ticker, change);
+        while (last != null && last.sequence < change.sequence && !lastPrices.replace(ticker, last, change)) {
+            last = lastPrices.putIfAbsent(ticker, change);
+        }
+        return change;
+    }
+
+
+    /**
+     * Checks whether the exchange is open.
+     * @return - true if the exchange is open
+     */
+    boolean isExchangeOpen() {
+        return exchangeOpen;
+    }
+
+
+    /**
+     * Stops listening to the exchange and shuts down the shared threads.
+     */
+    public void close() {
+        exchange.removeExchangeListener(this);
+        dispatcher.shutdown();
+        expiryWheel.close();
+        try {
+            dispatcher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Queue was not shutdown within 1 second.", e);
+        }
+    }
+
+
+    /**
+     * Event handler for opening the exchange, forwarded to every broker.
+     * @param event - the exchange opened event
+     */
+    @Override
+    public void exchangeOpened(final ExchangeEvent event) {
+        if (hold(event)) {
+            return;
+        }
+        exchangeOpen = true;
+        for (final BrokerImpl broker : brokers) {
+            broker.exchangeOpened(event);
+        }
+    }
+
+
+    /**
+     * Event handler for closing the exchange, forwarded to every broker.
+     * @param event - the exchange closed event
+     */
+    @Override
+    public void exchangeClosed(final ExchangeEvent event) {
+        if (hold(event)) {
+            return;
+        }
+        exchangeOpen = false;
+        for (final BrokerImpl broker : brokers) {
+            broker.exchangeClosed(event);
+        }
+    }
+
+
+    /**
+     * Event handler for a change in price, the price is recorded and forwarded to the brokers subscribed to the ticker.
+     * @param event - the change for a specific stock
+     */
+    @Override
+    public void priceChanged(final ExchangeEvent event) {
+        if (hold(event)) {
+            return;
+        }
+        final PriceChange change = record(event.getTicker(), event.getPrice());
+        final List<BrokerImpl> subscribed = subscribers.get(event.getTicker());
+        if (subscribed != null) {
+            for (final BrokerImpl broker : subscribed) {
+                broker.priceChanged(event, change.sequence);
+            }
+        }
+    }
+
+
+    /**
+     * A price recorded by the host, with its number.
+     */
+    static final class PriceChange {
+
+        /** The price */
+        final int price;
+
+        /** The number of the price, later prices have higher numbers */
+        final long sequence;
+
+
+        /**
+         * Constructor
+         * @param price - the price
+         * @param sequence - the number of the price
+         */
+        PriceChange(final int price, final long sequence) {
+            this.price = price;
+            this.sequence = sequence;
+        }
+    }
+
+
+    /**
+     * An event held back while the host is seeded, with the sequence number it was delivered under.
+     */
+    private static final class HeldEvent {
+
+        /** The sequence number of the event */
+        private final long sequence;
+
+        /** The event */
+        private final ExchangeEvent event;
+
+
+        /**
+         * Constructor
+         * @param sequence - the sequence number of the event
+         * @param event - the event
+         */
+        HeldEvent(final long sequence, final ExchangeEvent event) {
+            this.sequence = sequence;
+            this.event = event;
+        }
+    }
+}
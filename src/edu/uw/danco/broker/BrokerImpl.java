@@ -12,10 +12,15 @@ import edu.uw.ext.framework.order.*;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,21 +44,48 @@ public class BrokerImpl implements Broker, ExchangeListener {
     /** The stock exchange used by this broker */
     private StockExchange exchange;
 
-    /** The collection of OrderManagers */
-    Map<String, OrderManager> orderManagers;
+    /** The collection of OrderManagers, created on demand by the first stop order for a ticker */
+    Map<String, OrderManagerImpl> orderManagers;
 
-    /** The Dispatch Filter for market orders */
-    private MarketDispatchFilter marketDispatchFilter;
+    /** The tickers whose price changes the broker is subscribed to, those with orders waiting for the price */
+    private final Set<String> subscribedTickers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    /** The market order queue */
-    private OrderQueue<Order> marketOrders;
+    /** Guards subscribing to and unsubscribing from the host */
+    private final Object subscriptionLock = new Object();
 
-    /** The ExecutorService that will process the dispatched orders */
-    final ExecutorService dispatcher = Executors.newFixedThreadPool(32);
+    /** The market order queue, with a lane for each latency class, triggered stop orders are moved to it */
+    private MarketOrderLanes marketOrders;
+
+    /** The scheduling weight of each stop order queue */
+    private static final int STOP_QUEUE_WEIGHT = 1;
+
+    /** The default distance, in cents, from a stop order's trigger at which its account is prefetched */
+    private static final int DEFAULT_PREFETCH_DISTANCE = 10;
+
+    /** How long a prefetched account may be used, in milliseconds */
+    private static final long ACCOUNT_CACHE_TTL_MILLIS = 1000L;
+
+    /** Holds the accounts prefetched for stop orders close to triggering */
+    private AccountCache accountCache;
+
+    /** The distance, in cents, from a stop order's trigger at which its account is prefetched, 0 disables */
+    private volatile int prefetchDistance = DEFAULT_PREFETCH_DISTANCE;
+
+    /** Executes the market orders */
+    private StockTraderOrderProcessor traderProcessor;
+
+    /** Receives the changes to the order book and the accounts for replication to a standby, may be null */
+    private volatile ReplicationLog replicationLog;
+
+    /** The host providing the dispatcher and the exchange events */
+    private BrokerHost host;
+
+    /** True if the host was created for, and is closed with, this broker */
+    private boolean ownsHost;
 
 
     /**
-     * Constructor for sub classes
+     * Constructor for sub classes, which set the name, account manager and stock exchange and then the host.
      */
     protected BrokerImpl() {
     }
@@ -66,28 +98,72 @@ public class BrokerImpl implements Broker, ExchangeListener {
      * @param exchange - the stock exchange used by this broker
      */
     public BrokerImpl(final String brokerName, final AccountManager acctManager, final StockExchange exchange) {
+        this(brokerName, acctManager, exchange, new BrokerHost(brokerName, exchange), true);
+    }
+
+
+    /**
+     * Constructor for a broker sharing a host with other brokers on the same exchange.
+     * @param brokerName - name of the broker
+     * @param acctManager - the account manager used by this broker
+     * @param exchange - the stock exchange used by this broker
+     * @param host - the host providing the dispatcher and the exchange events
+     */
+    public BrokerImpl(final String brokerName, final AccountManager acctManager, final StockExchange exchange,
+                      final BrokerHost host) {
+        this(brokerName, acctManager, exchange, host, false);
+    }
+
+
+    /**
+     * Constructor
+     * @param brokerName - name of the broker
+     * @param acctManager - the account manager used by this broker
+     * @param exchange - the stock exchange used by this broker
+     * @param host - the host providing the dispatcher and the exchange events
+     * @param ownsHost - true if the host is to be closed with this broker
+     */
+    private BrokerImpl(final String brokerName, final AccountManager acctManager, final StockExchange exchange,
+                       final BrokerHost host, final boolean ownsHost) {
         this.brokerName = brokerName;
         this.acctManager = acctManager;
         this.exchange = exchange;
+        attach(host, ownsHost);
+    }
 
-        final OrderProcessor processor = new StockTraderOrderProcessor(acctManager, exchange);
-        marketDispatchFilter = new MarketDispatchFilter(exchange.isOpen());
-        marketOrders = new OrderQueueImpl<Order>(marketDispatchFilter, dispatcher);
-        marketOrders.setOrderProcessor(processor);
-
-        String[] stockTickers = exchange.getTickers();
-        orderManagers = new TreeMap<String, OrderManager>();
 
-        final OrderProcessor orderProc = new MoveToMarketQueueProcessor(marketOrders);
-        for (String stockTicker : stockTickers) {
-            StockQuote quote = exchange.getQuote(stockTicker);
-            OrderManager orderManager = new OrderManagerImpl(quote.getTicker(), quote.getPrice(), dispatcher);
-            orderManager.setOrderProcessor(orderProc);
-            orderManagers.put(stockTicker, orderManager);
+    /**
+     * Sets the host of a broker created by a sub class, once its account manager and stock exchange have been set.
+     * Creates the market order queue and starts receiving the exchange events, so it is called last.
+     * @param host - the host providing the dispatcher and the exchange events
+     */
+    protected void setHost(final BrokerHost host) {
+        if (this.host != null) {
+            throw new IllegalStateException("Broker already has a host");
+        }
+        if (acctManager == null || exchange == null) {
+            throw new IllegalStateException("The account manager and stock exchange must be set before the host");
         }
-        // think about making a view of the HashMap an immutable map?
+        attach(host, false);
+    }
+
+
+    /**
+     * Creates the parts of the broker which depend on its host, and attaches the broker to the host.
+     * @param host - the host providing the dispatcher and the exchange events
+     * @param ownsHost - true if the host is to be closed with this broker
+     */
+    private void attach(final BrokerHost host, final boolean ownsHost) {
+        this.host = host;
+        this.ownsHost = ownsHost;
+
+        accountCache = new AccountCache(acctManager, host.getDispatcher(),
+                                        ACCOUNT_CACHE_TTL_MILLIS, TimeUnit.MILLISECONDS);
+        traderProcessor = new StockTraderOrderProcessor(acctManager, exchange, accountCache, host.getDispatcher());
+        marketOrders = new MarketOrderLanes(traderProcessor, host.isExchangeOpen(), host);
+        orderManagers = new ConcurrentHashMap<String, OrderManagerImpl>();
 
-        exchange.addExchangeListener(this);     //when adding self as listener, always do it as the last thing.
+        host.attach(this);     //when adding self as listener, always do it as the last thing.
     }
 
     /**
@@ -123,6 +199,13 @@ public class BrokerImpl implements Broker, ExchangeListener {
         Account account = null;
         try {
             account = acctManager.createAccount(username, password, balance);
+            if (accountCache != null) {
+                accountCache.invalidate(username);
+            }
+            final ReplicationLog log = replicationLog;
+            if (log != null) {
+                log.accountCreated(account);
+            }
         } catch (final AccountException e) {
             LOGGER.log(Level.SEVERE, "Unable to create account for " + username, e);
             throw new BrokerException(e);
@@ -141,6 +224,13 @@ public class BrokerImpl implements Broker, ExchangeListener {
     public void deleteAccount(String username) throws BrokerException {
         try {
             acctManager.deleteAccount(username);
+            if (accountCache != null) {
+                accountCache.invalidate(username);
+            }
+            final ReplicationLog log = replicationLog;
+            if (log != null) {
+                log.accountDeleted(username);
+            }
         } catch (AccountException e) {
             LOGGER.log(Level.SEVERE, "Unable to delete account " + username, e);
             throw new BrokerException(e);
@@ -191,6 +281,7 @@ public class BrokerImpl implements Broker, ExchangeListener {
      */
     @Override
     public void placeOrder(MarketBuyOrder order) throws BrokerException {
+        logPlaced(order, 0L, 0);
         marketOrders.enqueue(order);
     }
 
@@ -202,6 +293,7 @@ public class BrokerImpl implements Broker, ExchangeListener {
      */
     @Override
     public void placeOrder(MarketSellOrder order) throws BrokerException {
+        logPlaced(order, 0L, 0);
         marketOrders.enqueue(order);
     }
 
@@ -213,11 +305,18 @@ public class BrokerImpl implements Broker, ExchangeListener {
      */
     @Override
     public void placeOrder(StopBuyOrder order) throws BrokerException {
-        OrderManager manager = orderManagers.get(order.getStockTicker());
+        OrderManagerImpl manager = getOrderManager(order.getStockTicker());
         if (manager == null) {
             LOGGER.log(Level.SEVERE, "Unable to retrieve order manager for ticker: " + order.getStockTicker());
         } else {
-            manager.queueOrder(order);
+            logPlaced(order, 0L, 0);
+            manager.beginPlacement();
+            try {
+                subscribe(manager);
+                manager.queueOrder(order);
+            } finally {
+                manager.endPlacement();
+            }
         }
     }
 
@@ -229,11 +328,211 @@ public class BrokerImpl implements Broker, ExchangeListener {
      */
     @Override
     public void placeOrder(StopSellOrder order) throws BrokerException {
-        OrderManager manager = orderManagers.get(order.getStockTicker());
+        OrderManagerImpl manager = getOrderManager(order.getStockTicker());
+        if (manager == null) {
+            LOGGER.log(Level.SEVERE, "Unable to retrieve order manager for ticker: " + order.getStockTicker());
+        } else {
+            logPlaced(order, 0L, 0);
+            manager.beginPlacement();
+            try {
+                subscribe(manager);
+                manager.queueOrder(order);
+            } finally {
+                manager.endPlacement();
+            }
+        }
+    }
+
+
+    /**
+     * Place a group of orders, such as the orders of a portfolio rebalance. The orders are grouped by the queue they
+     * are destined for, each group is added to its queue under a single lock acquisition and each queue is dispatched
+     * once. Stop orders for a ticker which isn't traded on the exchange are logged and dropped, as with placeOrder.
+     * @param orders - the market and stop orders to place
+     * @throws BrokerException
+     */
+    public void placeOrders(final Collection<? extends Order> orders) throws BrokerException {
+        final List<Order> marketGroup = new ArrayList<Order>();
+        final Map<String, List<StopBuyOrder>> stopBuyGroups = new HashMap<String, List<StopBuyOrder>>();
+        final Map<String, List<StopSellOrder>> stopSellGroups = new HashMap<String, List<StopSellOrder>>();
+        for (final Order order : orders) {
+            if (order instanceof StopBuyOrder) {
+                group(stopBuyGroups, order.getStockTicker()).add((StopBuyOrder) order);
+            } else if (order instanceof StopSellOrder) {
+                group(stopSellGroups, order.getStockTicker()).add((StopSellOrder) order);
+            } else {
+                marketGroup.add(order);
+            }
+        }
+
+        logPlaced(marketGroup);
+        marketOrders.enqueueAll(marketGroup);
+
+        final Set<String> tickers = new HashSet<String>(stopBuyGroups.keySet());
+        tickers.addAll(stopSellGroups.keySet());
+        for (final String ticker : tickers) {
+            final OrderManagerImpl manager = getOrderManager(ticker);
+            if (manager == null) {
+                LOGGER.log(Level.SEVERE, "Unable to retrieve order manager for ticker: " + ticker);
+            } else {
+                final List<StopBuyOrder> buys = stopBuyGroups.get(ticker);
+                final List<StopSellOrder> sells = stopSellGroups.get(ticker);
+                if (buys != null) {
+                    logPlaced(buys);
+                }
+                if (sells != null) {
+                    logPlaced(sells);
+                }
+                manager.beginPlacement();
+                try {
+                    subscribe(manager);
+                    manager.queueOrders(buys == null ? Collections.<StopBuyOrder>emptyList() : buys,
+                                        sells == null ? Collections.<StopSellOrder>emptyList() : sells);
+                } finally {
+                    manager.endPlacement();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Gets the group of orders for a ticker, creating it if necessary.
+     * @param groups - the groups of orders by ticker
+     * @param ticker - the stock symbol
+     * @return - the group for the ticker
+     */
+    private static <T extends Order> List<T> group(final Map<String, List<T>> groups, final String ticker) {
+        List<T> group = groups.get(ticker);
+        if (group == null) {
+            group = new ArrayList<T>();
+            groups.put(ticker, group);
+        }
+        return group;
+    }
+
+
+    /**
+     * Records a group of orders with the replication log, if there is one.
+     * @param orders - the orders being placed
+     */
+    private void logPlaced(final Collection<? extends Order> orders) {
+        final ReplicationLog log = replicationLog;
+        if (log != null) {
+            for (final Order order : orders) {
+                log.orderPlaced(order, 0L, 0);
+            }
+        }
+    }
+
+
+    /**
+     * Records an order with the replication log, if there is one. Orders are recorded before they are queued, so the
+     * order is always recorded before it is executed.
+     * @param order - the order being placed
+     * @param expiresAt - the expiration time, 0 if the order does not expire
+     * @param trailingOffset - the trailing stop offset, or 0
+     */
+    private void logPlaced(final Order order, final long expiresAt, final int trailingOffset) {
+        final ReplicationLog log = replicationLog;
+        if (log != null) {
+            log.orderPlaced(order, expiresAt, trailingOffset);
+        }
+    }
+
+
+    /**
+     * Place a trailing stop buy order, the order is executed once the price rises by the offset above the lowest price
+     * seen since it was placed.
+     * @param order - the order to execute when the trailing stop triggers
+     * @param offset - the distance above the low at which the order triggers
+     * @throws BrokerException
+     */
+    public void placeTrailingStopOrder(final MarketBuyOrder order, final int offset) throws BrokerException {
+        OrderManagerImpl manager = getOrderManager(order.getStockTicker());
         if (manager == null) {
             LOGGER.log(Level.SEVERE, "Unable to retrieve order manager for ticker: " + order.getStockTicker());
         } else {
-            manager.queueOrder(order);
+            logPlaced(order, 0L, offset);
+            manager.beginPlacement();
+            try {
+                subscribe(manager);
+                manager.queueTrailingStop(order, offset);
+            } finally {
+                manager.endPlacement();
+            }
+        }
+    }
+
+
+    /**
+     * Place a trailing stop sell order, the order is executed once the price falls by the offset below the highest
+     * price seen since it was placed.
+     * @param order - the order to execute when the trailing stop triggers
+     * @param offset - the distance below the high at which the order triggers
+     * @throws BrokerException
+     */
+    public void placeTrailingStopOrder(final MarketSellOrder order, final int offset) throws BrokerException {
+        OrderManagerImpl manager = getOrderManager(order.getStockTicker());
+        if (manager == null) {
+            LOGGER.log(Level.SEVERE, "Unable to retrieve order manager for ticker: " + order.getStockTicker());
+        } else {
+            logPlaced(order, 0L, offset);
+            manager.beginPlacement();
+            try {
+                subscribe(manager);
+                manager.queueTrailingStop(order, offset);
+            } finally {
+                manager.endPlacement();
+            }
+        }
+    }
+
+
+    /**
+     * Place a good-till-time StopBuy order, the order is removed if it has not been triggered by the expiration time.
+     * A day order is placed by specifying the end of the trading day as the expiration time.
+     * @param order - the order to place for a specific stock at a specific price
+     * @param expiresAt - the wall clock time, in milliseconds, at which the order expires
+     * @throws BrokerException
+     */
+    public void placeOrder(final StopBuyOrder order, final long expiresAt) throws BrokerException {
+        OrderManagerImpl manager = getOrderManager(order.getStockTicker());
+        if (manager == null) {
+            LOGGER.log(Level.SEVERE, "Unable to retrieve order manager for ticker: " + order.getStockTicker());
+        } else {
+            logPlaced(order, expiresAt, 0);
+            manager.beginPlacement();
+            try {
+                subscribe(manager);
+                manager.queueOrder(order, expiresAt);
+            } finally {
+                manager.endPlacement();
+            }
+        }
+    }
+
+
+    /**
+     * Place a good-till-time StopSell order, the order is removed if it has not been triggered by the expiration
+     * time. A day order is placed by specifying the end of the trading day as the expiration time.
+     * @param order - the order to place for a specific stock at a specified price
+     * @param expiresAt - the wall clock time, in milliseconds, at which the order expires
+     * @throws BrokerException
+     */
+    public void placeOrder(final StopSellOrder order, final long expiresAt) throws BrokerException {
+        OrderManagerImpl manager = getOrderManager(order.getStockTicker());
+        if (manager == null) {
+            LOGGER.log(Level.SEVERE, "Unable to retrieve order manager for ticker: " + order.getStockTicker());
+        } else {
+            logPlaced(order, expiresAt, 0);
+            manager.beginPlacement();
+            try {
+                subscribe(manager);
+                manager.queueOrder(order, expiresAt);
+            } finally {
+                manager.endPlacement();
+            }
         }
     }
 
@@ -245,13 +544,13 @@ public class BrokerImpl implements Broker, ExchangeListener {
     @Override
     public void close() throws BrokerException {
         try {
-            dispatcher.shutdown();
-            try {
-                dispatcher.awaitTermination(1, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                LOGGER.log(Level.WARNING, "Queue was not shutdown within 1 econd.", e);
+            if (host != null) {
+                host.detach(this);
+                marketOrders.close();
+                if (ownsHost) {
+                    host.close();
+                }
             }
-            exchange.removeExchangeListener(this);
             acctManager.close();
             orderManagers = null;
         } catch (AccountException e) {
@@ -267,8 +566,7 @@ public class BrokerImpl implements Broker, ExchangeListener {
     @Override
     public void exchangeOpened(ExchangeEvent event) {
         LOGGER.info("Exchange opened");
-        marketDispatchFilter.setThreshold(Boolean.TRUE);
-        marketOrders.dispatchOrders();
+        marketOrders.setOpen(true);
     }
 
 
@@ -279,47 +577,199 @@ public class BrokerImpl implements Broker, ExchangeListener {
     @Override
     public void exchangeClosed(ExchangeEvent event) {
         LOGGER.info("Exchange closed");
-        marketDispatchFilter.setThreshold(Boolean.FALSE);
+        marketOrders.setOpen(false);
     }
 
 
     /**
-     * Event handler for a change in price
+     * Event handler for a change in price, the price is applied as is. The host forwards its price changes numbered.
      * @param event - the change for a specific stock
      */
     @Override
     public void priceChanged(ExchangeEvent event) {
-        OrderManager manager = orderManagers.get(event.getTicker());
-        if (manager == null) {
-            LOGGER.log(Level.SEVERE, "Unable to retrieve order manager for ticker: " + event.getTicker());
-        } else {
+        OrderManagerImpl manager = orderManagers.get(event.getTicker());
+        if (manager != null) {
             manager.adjustPrice(event.getPrice());
+            if (manager.isIdle()) {
+                unsubscribe(manager);
+            }
         }
     }
 
+
     /**
-     * Sets the account manager.
-     * @param accountManager - the account manager
+     * Event handler for a change in price forwarded by the host, with the number the host gave the price. A price
+     * older than one the manager has already been brought up to date with is ignored.
+     * @param event - the change for a specific stock
+     * @param sequence - the number of the price
      */
-    protected void setAccountManager(final AccountManager accountManager) {
-        this.acctManager = accountManager;
+    void priceChanged(final ExchangeEvent event, final long sequence) {
+        final OrderManagerImpl manager = orderManagers.get(event.getTicker());
+        if (manager != null) {
+            manager.adjustPrice(event.getPrice(), sequence);
+            if (manager.isIdle()) {
+                unsubscribe(manager);
+            }
+        }
     }
 
 
     /**
-     * Sets the market order queue's dispatch filter.
-     * @param marketDispatchFilter - the market dispatch filter
+     * Gets the order manager for a ticker, creating it if this is the first order for the ticker. A new manager is
+     * seeded with the last price seen by the host for the ticker, if no price has been seen yet the exchange is asked
+     * for a quote. The broker subscribes to the ticker's price changes once an order has been queued with the manager.
+     * @param ticker - the stock symbol
+     * @return - the order manager, or null if the ticker is not traded on the exchange
      */
-    protected void setMarketDispatchFilter(final MarketDispatchFilter marketDispatchFilter) {
-        this.marketDispatchFilter = marketDispatchFilter;
+    private OrderManagerImpl getOrderManager(final String ticker) {
+        OrderManagerImpl manager = orderManagers.get(ticker);
+        if (manager != null) {
+            return manager;
+        }
+
+        synchronized (orderManagers) {
+            manager = orderManagers.get(ticker);
+            if (manager == null) {
+                Integer price = host.getLastPrice(ticker);
+                if (price == null) {
+                    final StockQuote quote = exchange.getQuote(ticker);
+                    if (quote == null) {
+                        return null;
+                    }
+                    price = quote.getPrice();
+                }
+                manager = new OrderManagerImpl(ticker, price, host.getDispatcher());
+                manager.setOrderProcessor(marketOrders);
+                manager.setExpiryWheel(host.getExpiryWheel());
+                manager.setReplicationLog(replicationLog);
+                manager.setScheduler(host.getScheduler(), STOP_QUEUE_WEIGHT);
+                if (prefetchDistance > 0) {
+                    manager.setAccountPrefetch(accountCache, prefetchDistance);
+                }
+                orderManagers.put(ticker, manager);
+            }
+        }
+        return manager;
+    }
+
+
+    /**
+     * Subscribes to the price changes of a manager's ticker, called before an order is queued with the manager, while
+     * the order is being placed. The manager is brought up to date with the last price seen by the host, as it has
+     * missed the price changes since it was created or since the broker unsubscribed, so the order is checked against
+     * the current price. The price is numbered, so a price change forwarded meanwhile isn't overwritten by an older
+     * price.
+     * @param manager - the order manager
+     */
+    private void subscribe(final OrderManagerImpl manager) {
+        final String ticker = manager.getSymbol();
+        if (subscribedTickers.contains(ticker)) {
+            return;
+        }
+        synchronized (subscriptionLock) {
+            if (subscribedTickers.add(ticker)) {
+                host.subscribe(ticker, this);
+                final BrokerHost.PriceChange latest = host.getLastPriceChange(ticker);
+                if (latest != null) {
+                    manager.adjustPrice(latest.price, latest.sequence);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Unsubscribes from the price changes of a manager's ticker once it has no orders waiting for the price, so the
+     * host stops forwarding the ticker's price changes to the broker.
+     * @param manager - the order manager
+     */
+    private void unsubscribe(final OrderManagerImpl manager) {
+        final String ticker = manager.getSymbol();
+        synchronized (subscriptionLock) {
+            if (!manager.isIdle() || !subscribedTickers.remove(ticker)) {
+                return;
+            }
+            host.unsubscribe(ticker, this);
+            // an order placed meanwhile may have found the broker still subscribed
+            if (!manager.isIdle()) {
+                subscribe(manager);
+            }
+        }
+    }
+
+    /**
+     * Assigns an account to a latency class, its market orders, and its stop orders once triggered, are queued in
+     * the class' lane of the market order queue.
+     * @param accountName - the account name
+     * @param latencyClass - the latency class
+     */
+    public void setLatencyClass(final String accountName, final LatencyClass latencyClass) {
+        marketOrders.setLatencyClass(accountName, latencyClass);
+    }
+
+
+    /**
+     * Chooses how the market order lanes share the dispatcher, strict priority or weighted by class.
+     * @param strict - true for strict priority, false for weighted scheduling
+     */
+    public void setStrictLatencyPriority(final boolean strict) {
+        marketOrders.setStrictPriority(strict);
+    }
+
+
+    /**
+     * Gets the time the market orders of a latency class have waited to be executed.
+     * @param latencyClass - the latency class
+     * @return - the class' wait times
+     */
+    public LatencyMetrics getMarketOrderLatency(final LatencyClass latencyClass) {
+        return marketOrders.getLatencyMetrics(latencyClass);
+    }
+
+
+    /**
+     * Sets how close the price must come to a stop order's trigger for the order's account to be prefetched.
+     * @param distance - the distance in cents, 0 disables prefetching
+     */
+    public void setPrefetchDistance(final int distance) {
+        prefetchDistance = distance;
+        for (final OrderManagerImpl manager : orderManagers.values()) {
+            manager.setAccountPrefetch(distance > 0 ? accountCache : null, distance);
+        }
+    }
+
+
+    /**
+     * Sets the log receiving the changes to the order book and the accounts, such as a LogShipper replicating them to
+     * a standby broker. The log should be set before any orders are placed.
+     * @param replicationLog - the log, or null
+     */
+    public void setReplicationLog(final ReplicationLog replicationLog) {
+        this.replicationLog = replicationLog;
+        traderProcessor.setReplicationLog(replicationLog);
+        synchronized (orderManagers) {
+            for (final OrderManagerImpl manager : orderManagers.values()) {
+                manager.setReplicationLog(replicationLog);
+            }
+        }
+    }
+
+
+    /**
+     * Sets the account manager.
+     * @param accountManager - the account manager
+     */
+    protected void setAccountManager(final AccountManager accountManager) {
+        this.acctManager = accountManager;
     }
 
 
     /**
-     * Sets the market order queue.
-     * @param marketOrders - queue for market orders
+     * Sets the market order queue, replacing the one created with the host. The lanes replaced the single market
+     * order queue, so there is no longer a separate market dispatch filter to set.
+     * @param marketOrders - the market order lanes
      */
-    protected void setMarketOrderQueue(final OrderQueue<Order> marketOrders) {
+    protected void setMarketOrderLanes(final MarketOrderLanes marketOrders) {
         this.marketOrders = marketOrders;
     }
 
@@ -0,0 +1,351 @@
+package edu.uw.danco.broker;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.broker.Broker;
+import edu.uw.ext.framework.broker.BrokerException;
+import edu.uw.ext.framework.exchange.StockQuote;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.MarketSellOrder;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/17/13
+ * Time: 7:45 PM
+ *
+ * Serves one partition of a partitioned brokerage. The server listens on a loopback port and executes the requests of
+ * PartitionedBrokerRouters against its broker, which owns the accounts, and the orders of those accounts, assigned to
+ * the partition. Each router connection is served by its own thread.
+ *
+ * Orders are placed on the broker as new orders with the fields of the router's orders, so they have new order ids.
+ * Good-till-time and trailing stop orders are only accepted if the broker is a BrokerImpl.
+ */
+public final class BrokerPartitionServer {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(BrokerPartitionServer.class.getName());
+
+    /** The character set used to encode text fields */
+    private static final String CHARSET = "UTF-8";
+
+    /** Splits a line into its fields */
+    static final Pattern FIELDS = Pattern.compile(PartitionProtocol.ELEMENT_DELIMITER.toString());
+
+    /** The broker owning this partition */
+    private final Broker broker;
+
+    /** The listening socket */
+    private final ServerSocket serverSocket;
+
+    /** Serves the router connections */
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+
+    /** True once the server has been closed */
+    private volatile boolean closed;
+
+
+    /**
+     * Constructor, binds the loopback port.
+     * @param broker - the broker owning this partition
+     * @param port - the loopback port to listen on
+     * @throws IOException - if the port can't be bound
+     */
+    public BrokerPartitionServer(final Broker broker, final int port) throws IOException {
+        this.broker = broker;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+    }
+
+
+    /**
+     * Starts accepting router connections.
+     */
+    public void start() {
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "BrokerPartitionServer-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+
+    /**
+     * Stops accepting connections and closes the served connections, the broker is not closed.
+     */
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to close partition server socket", e);
+        }
+        connections.shutdownNow();
+    }
+
+
+    /**
+     * Accepts router connections until closed.
+     */
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (final SocketException e) {
+                if (!closed) {
+                    LOGGER.log(Level.SEVERE, "Partition server socket failed", e);
+                }
+                return;
+            } catch (final IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to accept router connection", e);
+            }
+        }
+    }
+
+
+    /**
+     * Answers the requests on a router connection until the router disconnects.
+     * @param socket - the router connection
+     */
+    private void serve(final Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+            final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            String request;
+            while ((request = in.readLine()) != null) {
+                out.println(execute(request));
+            }
+        } catch (final IOException e) {
+            if (!closed) {
+                LOGGER.log(Level.WARNING, "Router connection failed", e);
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close router connection", e);
+            }
+        }
+    }
+
+
+    /**
+     * Executes a request against the broker.
+     * @param request - the request line
+     * @return - the response line
+     */
+    String execute(final String request) {
+        final String[] fields = FIELDS.split(request, -1);
+        try {
+            final String cmd = fields[0];
+            if (cmd.equals(PartitionProtocol.PLACE_ORDER_CMD.toString())) {
+                placeOrder(fields);
+                return PartitionProtocol.OK_RESPONSE.toString();
+            } else if (cmd.equals(PartitionProtocol.GET_ACCOUNT_CMD.toString())) {
+                return ok(encodeAccount(broker.getAccount(decode(fields[1]), decode(fields[2]))));
+            } else if (cmd.equals(PartitionProtocol.REQUEST_QUOTE_CMD.toString())) {
+                final StockQuote quote = broker.requestQuote(decode(fields[1]));
+                return ok(encode(quote.getTicker()) + PartitionProtocol.ELEMENT_DELIMITER + quote.getPrice());
+            } else if (cmd.equals(PartitionProtocol.CREATE_ACCOUNT_CMD.toString())) {
+                return ok(encodeAccount(broker.createAccount(decode(fields[1]), decode(fields[2]),
+                                                             Integer.parseInt(fields[3]))));
+            } else if (cmd.equals(PartitionProtocol.DELETE_ACCOUNT_CMD.toString())) {
+                broker.deleteAccount(decode(fields[1]));
+                return PartitionProtocol.OK_RESPONSE.toString();
+            }
+            return error("Unknown command: " + cmd);
+        } catch (final BrokerException e) {
+            return error(e.getMessage());
+        } catch (final RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Unable to execute request: " + request, e);
+            return error(e.toString());
+        }
+    }
+
+
+    /**
+     * Places the order described by a place order request.
+     * @param fields - the fields of the request
+     * @throws BrokerException - if the broker rejects the order
+     */
+    private void placeOrder(final String[] fields) throws BrokerException {
+        final String type = fields[1];
+        final String account = decode(fields[2]);
+        final String ticker = decode(fields[3]);
+        final int shares = Integer.parseInt(fields[4]);
+        if (type.equals(PartitionProtocol.MARKET_BUY.toString())) {
+            broker.placeOrder(new MarketBuyOrder(account, shares, ticker));
+        } else if (type.equals(PartitionProtocol.MARKET_SELL.toString())) {
+            broker.placeOrder(new MarketSellOrder(account, shares, ticker));
+        } else if (type.equals(PartitionProtocol.STOP_BUY.toString())) {
+            final StopBuyOrder order = new StopBuyOrder(account, shares, ticker, Integer.parseInt(fields[5]));
+            if (fields.length > 6) {
+                extendedBroker().placeOrder(order, Long.parseLong(fields[6]));
+            } else {
+                broker.placeOrder(order);
+            }
+        } else if (type.equals(PartitionProtocol.STOP_SELL.toString())) {
+            final StopSellOrder order = new StopSellOrder(account, shares, ticker, Integer.parseInt(fields[5]));
+            if (fields.length > 6) {
+                extendedBroker().placeOrder(order, Long.parseLong(fields[6]));
+            } else {
+                broker.placeOrder(order);
+            }
+        } else if (type.equals(PartitionProtocol.TRAILING_BUY.toString())) {
+            extendedBroker().placeTrailingStopOrder(new MarketBuyOrder(account, shares, ticker),
+                                                    Integer.parseInt(fields[5]));
+        } else if (type.equals(PartitionProtocol.TRAILING_SELL.toString())) {
+            extendedBroker().placeTrailingStopOrder(new MarketSellOrder(account, shares, ticker),
+                                                    Integer.parseInt(fields[5]));
+        } else {
+            throw new BrokerException("Unknown order type: " + type);
+        }
+    }
+
+
+    /**
+     * Gets the partition's broker for the order types only a BrokerImpl supports, good-till-time and trailing stops.
+     * @return - the broker
+     * @throws BrokerException - if the broker is not a BrokerImpl
+     */
+    private BrokerImpl extendedBroker() throws BrokerException {
+        if (!(broker instanceof BrokerImpl)) {
+            throw new BrokerException("Partition broker doesn't support good-till-time or trailing stop orders");
+        }
+        return (BrokerImpl) broker;
+    }
+
+
+    /**
+     * Encodes an account as the fields of a response.
+     * @param account - the account
+     * @return - the encoded account
+     */
+    private static String encodeAccount(final Account account) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(encode(account.getName()));
+        sb.append(PartitionProtocol.ELEMENT_DELIMITER);
+        sb.append(account.getBalance());
+        sb.append(PartitionProtocol.ELEMENT_DELIMITER);
+        sb.append(toHex(account.getPasswordHash()));
+        sb.append(PartitionProtocol.ELEMENT_DELIMITER);
+        sb.append(encode(account.getFullName()));
+        sb.append(PartitionProtocol.ELEMENT_DELIMITER);
+        sb.append(encode(account.getPhone()));
+        sb.append(PartitionProtocol.ELEMENT_DELIMITER);
+        sb.append(encode(account.getEmail()));
+        return sb.toString();
+    }
+
+
+    /**
+     * Builds a successful response.
+     * @param body - the response fields
+     * @return - the response line
+     */
+    private static String ok(final String body) {
+        return PartitionProtocol.OK_RESPONSE.toString() + PartitionProtocol.ELEMENT_DELIMITER + body;
+    }
+
+
+    /**
+     * Builds an error response.
+     * @param message - the error message
+     * @return - the response line
+     */
+    private static String error(final String message) {
+        return PartitionProtocol.ERROR_RESPONSE.toString() + PartitionProtocol.ELEMENT_DELIMITER + encode(message);
+    }
+
+
+    /**
+     * Encodes a text field, null is encoded as the empty string.
+     * @param text - the text
+     * @return - the encoded field
+     */
+    static String encode(final String text) {
+        if (text == null) {
+            return "";
+        }
+        try {
+            return URLEncoder.encode(text, CHARSET);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Decodes a text field, the empty string is decoded as null.
+     * @param field - the encoded field
+     * @return - the text
+     */
+    static String decode(final String field) {
+        if (field.isEmpty()) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(field, CHARSET);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Encodes bytes as hexadecimal, null is encoded as the empty string.
+     * @param bytes - the bytes
+     * @return - the hexadecimal field
+     */
+    static String toHex(final byte[] bytes) {
+        if (bytes == null) {
+            return "";
+        }
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Decodes a hexadecimal field.
+     * @param hex - the hexadecimal field
+     * @return - the bytes
+     */
+    static byte[] fromHex(final String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
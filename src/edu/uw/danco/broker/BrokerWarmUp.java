@@ -0,0 +1,520 @@
+package edu.uw.danco.broker;
+
+import edu.uw.danco.exchange.CommandExecutor;
+import edu.uw.danco.exchange.CommandServer;
+import edu.uw.danco.exchange.EventRing;
+import edu.uw.danco.exchange.ExchangeCallback;
+import edu.uw.danco.exchange.ExchangeFuture;
+import edu.uw.danco.exchange.ExchangeSnapshot;
+import edu.uw.danco.exchange.MultiplexedConnection;
+import edu.uw.danco.exchange.NetEventProcessor;
+import edu.uw.danco.exchange.ProtocolConstants;
+import edu.uw.danco.exchange.SequencedStockExchange;
+import edu.uw.ext.framework.broker.OrderProcessor;
+import edu.uw.ext.framework.exchange.ExchangeEvent;
+import edu.uw.ext.framework.exchange.ExchangeListener;
+import edu.uw.ext.framework.exchange.StockQuote;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.MarketSellOrder;
+import edu.uw.ext.framework.order.Order;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+
+import javax.swing.event.EventListenerList;
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/16/13
+ * Time: 11:15 AM
+ *
+ * Exercises the order handling code paths with synthetic orders and price ticks so they are compiled before the first
+ * real orders arrive. The orders flow through a broker host of their own, with its adaptive dispatcher, fair scheduler
+ * and expiry wheel, stop order managers and the market order lanes, just as a broker's orders do. The orders are
+ * executed on a synthetic exchange over the multiplexed binary protocol, through a command server on the loopback
+ * interface, and the exchange's price changes are numbered and delivered in batched datagrams through the network
+ * event processor, so the exchange codecs are compiled along with the order handling.
+ *
+ * Each round places stop and market orders for a few synthetic tickers, moves the price across every trigger and
+ * back, and reads the quotes, a snapshot and the round's events back over the binary protocol. Rounds are run until
+ * the code has reached steady state, that is the recent round times agree and the JIT compiler has stopped spending
+ * time on them, or until the round limit. Warm-up runs at most once per JVM.
+ */
+public final class BrokerWarmUp {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(BrokerWarmUp.class.getName());
+
+    /** Set once warm-up has run in this JVM */
+    private static final AtomicBoolean WARMED = new AtomicBoolean();
+
+    /** The accounts the synthetic orders are placed for, one in each latency class */
+    private static final String[] ACCOUNTS = {"warm-up-priority", "warm-up", "warm-up-bulk"};
+
+    /** The synthetic tickers */
+    private static final String[] TICKERS = {"WU1", "WU2", "WU3", "WU4"};
+
+    /** The synthetic base price, in cents */
+    private static final int BASE_PRICE = 10000;
+
+    /** The stop orders placed on each side of each ticker per round */
+    private static final int STOPS_PER_SIDE = 100;
+
+    /** The market orders placed per round */
+    private static final int MARKET_ORDERS = 200;
+
+    /** The stop order queues' share of the scheduler, as in a broker */
+    private static final int STOP_QUEUE_WEIGHT = 1;
+
+    /** The number of recent rounds whose times must agree for steady state */
+    private static final int STABLE_ROUNDS = 3;
+
+    /** How far, as a fraction, the recent round times may differ from their mean at steady state */
+    private static final double STABLE_TOLERANCE = 0.15;
+
+    /** The most compilation time, in milliseconds, a round may add at steady state */
+    private static final long STABLE_COMPILE_MILLIS = 5L;
+
+    /** The most rounds run before giving up on steady state */
+    private static final int MAX_ROUNDS = 200;
+
+    /** How long to wait for a round's orders to be processed, in milliseconds */
+    private static final long ROUND_TIMEOUT_MILLIS = 5000L;
+
+    /** The number of orders executed on the synthetic exchange */
+    private final AtomicLong processed = new AtomicLong();
+
+    /** Set if an order could not be executed */
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    /** Counted down as each order the current phase of a round is waiting for is executed */
+    private volatile CountDownLatch outstanding = new CountDownLatch(0);
+
+    /** The connection orders are executed on */
+    private volatile MultiplexedConnection connection;
+
+    /** The order managers of the synthetic tickers, by ticker */
+    private final Map<String, OrderManagerImpl> managers = new HashMap<String, OrderManagerImpl>();
+
+    /** The number of rounds run */
+    private int rounds;
+
+    /** The duration of each round, in nanoseconds */
+    private final List<Long> roundTimes = new ArrayList<Long>();
+
+    /** Counts each order as its execution completes */
+    private final ExchangeCallback<Integer> executed = new ExchangeCallback<Integer>() {
+        @Override
+        public void succeeded(final Integer price) {
+            processed.incrementAndGet();
+            outstanding.countDown();
+        }
+
+        @Override
+        public void failed(final Throwable cause) {
+            if (failed.compareAndSet(false, true)) {
+                LOGGER.log(Level.WARNING, "Unable to execute warm-up order", cause);
+            }
+            outstanding.countDown();
+        }
+    };
+
+    /** Executes the orders leaving the market order lanes on the synthetic exchange, without waiting for them */
+    private final OrderProcessor trader = new OrderProcessor() {
+        @Override
+        public void process(final Order order) {
+            connection.executeTrade(order).addCallback(executed);
+        }
+    };
+
+    /** Passes the synthetic exchange's price changes to the order managers */
+    private final ExchangeListener pricer = new ExchangeListener() {
+        @Override
+        public void exchangeOpened(final ExchangeEvent event) {
+            // the synthetic exchange is always open
+        }
+
+        @Override
+        public void exchangeClosed(final ExchangeEvent event) {
+            // the synthetic exchange is always open
+        }
+
+        @Override
+        public void priceChanged(final ExchangeEvent event) {
+            final OrderManagerImpl manager = managers.get(event.getTicker());
+            if (manager != null) {
+                manager.adjustPrice(event.getPrice());
+            }
+        }
+    };
+
+
+    /**
+     * An exchange which is always open, trades the synthetic tickers at their current price and numbers its price
+     * changes, delivering them in batches through a network event processor as if they had been multicast.
+     */
+    private static final class SyntheticExchange implements SequencedStockExchange {
+        /** Numbers the events and keeps them for GET_EVENTS_CMD */
+        private final EventRing events = new EventRing(EventRing.DEFAULT_CAPACITY);
+
+        /** The registered listeners */
+        private final EventListenerList listeners = new EventListenerList();
+
+        /** Delivers the numbered events to the listeners */
+        private final NetEventProcessor processor = new NetEventProcessor(listeners, this);
+
+        /** The current price of each ticker */
+        private final Map<String, Integer> prices = new ConcurrentHashMap<String, Integer>();
+
+        /** The numbered events waiting to be delivered in the next datagram */
+        private final StringBuilder datagram = new StringBuilder();
+
+
+        /**
+         * Constructor, every ticker starts at the base price.
+         */
+        private SyntheticExchange() {
+            for (final String ticker : TICKERS) {
+                prices.put(ticker, BASE_PRICE);
+            }
+        }
+
+
+        /**
+         * Changes a price and numbers the event, it is delivered with the next datagram.
+         * @param ticker - the ticker symbol
+         * @param price - the new price
+         */
+        private void changePrice(final String ticker, final int price) {
+            prices.put(ticker, price);
+            final String event = NetEventProcessor.GetEventString(
+                    ExchangeEvent.newPriceChangedEvent(this, ticker, price));
+            if (datagram.length() > 0) {
+                datagram.append(ProtocolConstants.EVENT_DELIMITER.toString());
+            }
+            datagram.append(events.append(event));
+        }
+
+
+        /**
+         * Delivers the events numbered since the last datagram, as a single datagram.
+         */
+        private void flush() {
+            if (datagram.length() > 0) {
+                processor.deliver(datagram.toString());
+                datagram.setLength(0);
+            }
+        }
+
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+
+        @Override
+        public String[] getTickers() {
+            return TICKERS.clone();
+        }
+
+
+        @Override
+        public StockQuote getQuote(final String ticker) {
+            final Integer price = prices.get(ticker);
+            return price == null ? null : new StockQuote(ticker, price);
+        }
+
+
+        @Override
+        public void addExchangeListener(final ExchangeListener listener) {
+            listeners.add(ExchangeListener.class, listener);
+        }
+
+
+        @Override
+        public void removeExchangeListener(final ExchangeListener listener) {
+            listeners.remove(ExchangeListener.class, listener);
+        }
+
+
+        @Override
+        public int executeTrade(final Order order) {
+            final Integer price = prices.get(order.getStockTicker());
+            return price == null ? 0 : price;
+        }
+
+
+        @Override
+        public ExchangeSnapshot getSnapshot() {
+            final long sequence = events.getLastSequence();
+            final int[] current = new int[TICKERS.length];
+            for (int i = 0; i < TICKERS.length; i++) {
+                current[i] = prices.get(TICKERS[i]);
+            }
+            processor.synchronize(sequence);
+            return new ExchangeSnapshot(sequence, true, TICKERS.clone(), current);
+        }
+
+
+        @Override
+        public List<String> getEvents(final long from, final long to) {
+            return events.get(from, to);
+        }
+
+
+        @Override
+        public long getEventSequence() {
+            return processor.getLastSequence();
+        }
+    }
+
+
+    /**
+     * Runs warm-up, unless it has already run in this JVM.
+     * @return - true if warm-up ran and reached steady state
+     */
+    public static boolean warmUpOnce() {
+        if (!WARMED.compareAndSet(false, true)) {
+            return false;
+        }
+        return new BrokerWarmUp().run();
+    }
+
+
+    /**
+     * Runs warm-up rounds until steady state or the round limit.
+     * @return - true if steady state was reached
+     */
+    public boolean run() {
+        final CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        final boolean timed = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+
+        final SyntheticExchange exchange = new SyntheticExchange();
+        final CommandServer server;
+        try {
+            server = new CommandServer(new CommandExecutor(exchange, exchange.events), 0, 1, 1);
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to start the warm-up command server, abandoning warm-up", e);
+            return false;
+        }
+        server.start();
+
+        final long start = System.nanoTime();
+        boolean steady = false;
+        BrokerHost host = null;
+        MarketOrderLanes lanes = null;
+        try {
+            connection = new MultiplexedConnection("localhost", server.getPort());
+            host = new BrokerHost("warm-up", exchange);
+            lanes = new MarketOrderLanes(trader, host.isExchangeOpen(), host);
+            lanes.setLatencyClass(ACCOUNTS[0], LatencyClass.PRIORITY);
+            lanes.setLatencyClass(ACCOUNTS[2], LatencyClass.BULK);
+            for (final String ticker : TICKERS) {
+                final OrderManagerImpl manager = new OrderManagerImpl(ticker, host.getLastPrice(ticker),
+                                                                      host.getDispatcher());
+                manager.setOrderProcessor(lanes);
+                manager.setExpiryWheel(host.getExpiryWheel());
+                manager.setScheduler(host.getScheduler(), STOP_QUEUE_WEIGHT);
+                managers.put(ticker, manager);
+            }
+            exchange.addExchangeListener(pricer);
+
+            long compileTime = timed ? compiler.getTotalCompilationTime() : 0L;
+            while (!steady && rounds < MAX_ROUNDS) {
+                final long roundStart = System.nanoTime();
+                if (!round(exchange, lanes)) {
+                    LOGGER.warning("Warm-up round failed or timed out, abandoning warm-up");
+                    break;
+                }
+                roundTimes.add(System.nanoTime() - roundStart);
+                rounds++;
+
+                long compiled = 0L;
+                if (timed) {
+                    final long total = compiler.getTotalCompilationTime();
+                    compiled = total - compileTime;
+                    compileTime = total;
+                }
+                steady = isStable() && compiled <= STABLE_COMPILE_MILLIS;
+            }
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to connect to the warm-up command server, abandoning warm-up", e);
+        } finally {
+            exchange.removeExchangeListener(pricer);
+            if (host != null) {
+                if (lanes != null) {
+                    lanes.close();
+                }
+                host.close();
+            }
+            if (connection != null) {
+                connection.close();
+            }
+            server.close();
+        }
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        final long lastRound = roundTimes.isEmpty() ? 0L : roundTimes.get(roundTimes.size() - 1);
+        LOGGER.log(Level.INFO, String.format(
+                "Warm-up %s after %d rounds, %d orders in %d ms, last round %.2f ms (first %.2f ms)",
+                steady ? "reached steady state" : "stopped before steady state", rounds, processed.get(),
+                elapsed, lastRound / 1e6, roundTimes.isEmpty() ? 0.0 : roundTimes.get(0) / 1e6));
+        return steady;
+    }
+
+
+    /**
+     * Places a round of orders, moves the prices across all of the triggers and back, waits for every order to be
+     * executed, then reads the prices and the round's events back from the exchange. The price is only moved back once
+     * the orders it triggered have been executed, a stop order is not dispatched if the price has moved back across its
+     * trigger by the time it reaches the head of its queue.
+     * @param exchange - the synthetic exchange
+     * @param lanes - the market order lanes
+     * @return - true if all of the orders were executed and the exchange answered
+     */
+    private boolean round(final SyntheticExchange exchange, final MarketOrderLanes lanes) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ROUND_TIMEOUT_MILLIS);
+        final long firstEvent = exchange.events.getLastSequence() + 1L;
+
+        expect(MARKET_ORDERS + STOPS_PER_SIDE * TICKERS.length);
+        final List<Order> batch = new ArrayList<Order>();
+        for (int i = 0; i < MARKET_ORDERS; i++) {
+            final String account = ACCOUNTS[i % ACCOUNTS.length];
+            final String ticker = TICKERS[i % TICKERS.length];
+            if (i % 2 == 0) {
+                lanes.enqueue(new MarketBuyOrder(account, 1 + i % 7, ticker));
+            } else {
+                batch.add(new MarketSellOrder(account, 1 + i % 7, ticker));
+            }
+        }
+        lanes.enqueueAll(batch);
+
+        for (final OrderManagerImpl manager : managers.values()) {
+            for (int i = 1; i <= STOPS_PER_SIDE; i++) {
+                final String account = ACCOUNTS[i % ACCOUNTS.length];
+                manager.queueOrder(new StopBuyOrder(account, 1 + i % 5, manager.getSymbol(), BASE_PRICE + i));
+                manager.queueOrder(new StopSellOrder(account, 1 + i % 5, manager.getSymbol(), BASE_PRICE - i));
+            }
+        }
+
+        for (int step = 0; step <= STOPS_PER_SIDE; step += 10) {
+            for (final String ticker : TICKERS) {
+                exchange.changePrice(ticker, BASE_PRICE + step);
+            }
+            exchange.flush();
+        }
+        if (!awaitProcessed(deadline)) {
+            return false;
+        }
+
+        expect(STOPS_PER_SIDE * TICKERS.length);
+        for (int step = 0; step <= STOPS_PER_SIDE; step += 10) {
+            for (final String ticker : TICKERS) {
+                exchange.changePrice(ticker, BASE_PRICE - step);
+            }
+            exchange.flush();
+        }
+        if (!awaitProcessed(deadline)) {
+            return false;
+        }
+
+        for (final String ticker : TICKERS) {
+            exchange.changePrice(ticker, BASE_PRICE);
+        }
+        exchange.flush();
+
+        final ExchangeFuture<int[]> quotes = connection.getQuotes(TICKERS);
+        final ExchangeFuture<ExchangeSnapshot> snapshot = connection.getSnapshot();
+        final ExchangeFuture<String[]> events = connection.getEvents(firstEvent, exchange.events.getLastSequence());
+        return await(quotes, deadline) && await(snapshot, deadline) && await(events, deadline);
+    }
+
+
+    /**
+     * Starts a phase of a round.
+     * @param orders - the number of orders the phase waits to be executed
+     */
+    private void expect(final int orders) {
+        outstanding = new CountDownLatch(orders);
+    }
+
+
+    /**
+     * Waits for the orders of the current phase to be executed.
+     * @param deadline - the time, in nanoseconds, to stop waiting
+     * @return - true if the orders were executed before the deadline
+     */
+    private boolean awaitProcessed(final long deadline) {
+        try {
+            if (!outstanding.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !failed.get();
+    }
+
+
+    /**
+     * Waits for a command sent to the exchange to complete.
+     * @param future - the command's pending result
+     * @param deadline - the time, in nanoseconds, to stop waiting
+     * @return - true if the command succeeded before the deadline
+     */
+    private static boolean await(final ExchangeFuture<?> future, final long deadline) {
+        try {
+            future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Warm-up exchange command failed", e.getCause());
+            return false;
+        } catch (final TimeoutException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Determines if the recent round times agree within the tolerance.
+     * @return - true if the last STABLE_ROUNDS round times are all within the tolerance of their mean
+     */
+    private boolean isStable() {
+        if (roundTimes.size() < STABLE_ROUNDS) {
+            return false;
+        }
+        final List<Long> recent = roundTimes.subList(roundTimes.size() - STABLE_ROUNDS, roundTimes.size());
+        double mean = 0.0;
+        for (final long time : recent) {
+            mean += time;
+        }
+        mean /= recent.size();
+        for (final long time : recent) {
+            if (Math.abs(time - mean) > mean * STABLE_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
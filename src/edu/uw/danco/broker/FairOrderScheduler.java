@@ -0,0 +1,102 @@
+package edu.uw.danco.broker;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/12/13
+ * Time: 8:30 PM
+ *
+ * Shares the dispatcher threads fairly between order queues using deficit round-robin, with processing time as the
+ * cost. Queues with dispatchable orders wait their turn in a single round-robin list. On its turn a queue is credited
+ * its quantum, the base quantum scaled by the queue's weight, and processes orders until the credit is used up. A queue
+ * which runs over carries the debt into its next turn, a queue which empties gives up any remaining credit. A queue
+ * with thousands of triggered orders therefore gets its share of a round and then goes to the back of the line, rather
+ * than holding a thread until it has drained while quiet queues wait.
+ *
+ * Each turn is run as a separate task on the dispatcher, so the threads of the dispatcher serve the round-robin list
+ * in parallel, a queue is never served by more than one thread at a time.
+ */
+public final class FairOrderScheduler {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(FairOrderScheduler.class.getName());
+
+    /** The threads that serve the queues */
+    private final ExecutorService workers;
+
+    /** The base quantum, in nanoseconds of processing time per round */
+    private final long quantum;
+
+    /** The queues waiting for a turn */
+    private final Queue<OrderQueueImpl<?>> active = new ConcurrentLinkedQueue<OrderQueueImpl<?>>();
+
+    /** Serves the queue at the head of the round-robin list */
+    private final Runnable turn = new Runnable() {
+        @Override
+        public void run() {
+            serveNext();
+        }
+    };
+
+
+    /**
+     * Constructor
+     * @param workers - the threads that serve the queues
+     * @param quantum - the processing time a queue of weight one is credited each round
+     * @param unit - the unit of the quantum
+     */
+    public FairOrderScheduler(final ExecutorService workers, final long quantum, final TimeUnit unit) {
+        this.workers = workers;
+        this.quantum = unit.toNanos(quantum);
+    }
+
+
+    /**
+     * Adds a queue with dispatchable orders to the end of the round-robin list. Called by the queue when it has orders
+     * to dispatch and is not already waiting for, or taking, a turn. Once the workers have been shut down the queue
+     * is no longer served.
+     * @param queue - the queue
+     */
+    void activate(final OrderQueueImpl<?> queue) {
+        active.add(queue);
+        try {
+            workers.execute(turn);
+        } catch (final RejectedExecutionException e) {
+            if (!workers.isShutdown()) {
+                throw e;
+            }
+            active.remove(queue);
+            LOGGER.log(Level.FINE, "Workers shut down, queue no longer served");
+        }
+    }
+
+
+    /**
+     * Gives the queue at the head of the round-robin list its turn.
+     */
+    private void serveNext() {
+        final OrderQueueImpl<?> queue = active.poll();
+        if (queue == null) {
+            return;
+        }
+
+        queue.deficit += quantum * queue.getWeight();
+        if (queue.deficit > 0) {
+            final long start = System.nanoTime();
+            if (!queue.drain(queue.deficit)) {
+                // the queue gave up its credit when it ran out of orders, it may already be waiting for another turn
+                return;
+            }
+            queue.deficit -= System.nanoTime() - start;
+        }
+        activate(queue);
+    }
+}
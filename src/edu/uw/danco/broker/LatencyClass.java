@@ -0,0 +1,39 @@
+package edu.uw.danco.broker;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/19/13
+ * Time: 6:10 PM
+ *
+ * The latency classes of accounts. Each class has its own lane in a broker's market order queue, in declaration order
+ * of priority. With weighted scheduling each lane's share of the dispatcher is given by its weight, with strict
+ * priority a lane's orders are only dispatched once the lanes before it are empty.
+ */
+public enum LatencyClass {
+    /** Latency sensitive accounts */
+    PRIORITY(8),
+
+    /** The class of accounts which haven't been assigned one */
+    STANDARD(4),
+
+    /** Accounts whose orders can wait, such as scheduled rebalancing */
+    BULK(1);
+
+
+    /** The lane's share of the dispatcher under weighted scheduling */
+    private final int weight;
+
+    private LatencyClass(final int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * Gets the lane's share of the dispatcher under weighted scheduling, relative to the other lanes and the stop
+     * order queues.
+     * @return - the weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,103 @@
+package edu.uw.danco.broker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/19/13
+ * Time: 6:25 PM
+ *
+ * Records the time orders wait in a queue before they are processed. Waits are counted in power of two microsecond
+ * buckets, so percentiles are reported as the upper bound of the bucket they fall in. Recording is lock free.
+ */
+public final class LatencyMetrics {
+
+    /** The number of buckets, the last bucket holds every wait of over about half an hour */
+    private static final int BUCKETS = 32;
+
+    /** The number of waits recorded */
+    private final AtomicLong count = new AtomicLong();
+
+    /** The total of the waits, in nanoseconds */
+    private final AtomicLong total = new AtomicLong();
+
+    /** The longest wait, in nanoseconds */
+    private final AtomicLong max = new AtomicLong();
+
+    /** The number of waits in each bucket, bucket i holds waits of under 2^i microseconds */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+
+    /**
+     * Records a wait.
+     * @param nanos - the wait, in nanoseconds
+     */
+    public void record(final long nanos) {
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long longest;
+        while (nanos > (longest = max.get()) && !max.compareAndSet(longest, nanos)) {
+            // retry, another thread recorded a longer wait
+        }
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+    }
+
+
+    /**
+     * Gets the number of waits recorded.
+     * @return - the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+
+    /**
+     * Gets the mean wait.
+     * @return - the mean wait in microseconds, 0 if none have been recorded
+     */
+    public double getMeanMicros() {
+        final long n = count.get();
+        return n == 0 ? 0.0 : total.get() / 1e3 / n;
+    }
+
+
+    /**
+     * Gets the longest wait.
+     * @return - the longest wait in microseconds
+     */
+    public long getMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(max.get());
+    }
+
+
+    /**
+     * Gets the wait which the given fraction of the waits did not exceed.
+     * @param fraction - the fraction, such as 0.99
+     * @return - the upper bound, in microseconds, of the bucket holding the percentile, 0 if none have been recorded
+     */
+    public long getPercentileMicros(final double fraction) {
+        long remaining = (long) Math.ceil(count.get() * fraction);
+        if (remaining == 0) {
+            return 0L;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            remaining -= buckets.get(i);
+            if (remaining <= 0) {
+                return (1L << i) - 1;
+            }
+        }
+        return getMaxMicros();
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("count %d, mean %.1f us, p99 <= %d us, max %d us", getCount(), getMeanMicros(),
+                             getPercentileMicros(0.99), getMaxMicros());
+    }
+}
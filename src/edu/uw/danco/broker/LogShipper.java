@@ -0,0 +1,478 @@
+package edu.uw.danco.broker;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.order.Order;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/18/13
+ * Time: 7:40 PM
+ *
+ * Ships a primary broker's replication log to a StandbyBroker over a local socket. The broker's threads only append
+ * the changes to an in-memory queue, the changes are numbered, encoded and sent in batches by the shipper's own
+ * thread. Each batch is acknowledged by the standby before the next is sent, so the changes made while a batch is in
+ * flight make up the next batch and batches grow with the load.
+ *
+ * A batch which is not acknowledged is resent after reconnecting, the standby ignores records it has already applied.
+ * If the standby has fallen further behind, for example it has been restarted, it is sent the primary's open orders in
+ * place of the records it missed. Account changes can't be recovered that way, the standby's accounts must then be
+ * refreshed from the primary's account store.
+ *
+ * While the standby can't be reached the changes are held for it, up to MAX_BACKLOG of them. Beyond that the shipper
+ * stops holding them: each change is encoded only to keep track of the open orders and then dropped, and the standby
+ * is reset to the open orders once it is reached again. The memory used while the standby is down is therefore
+ * bounded by the backlog and the open orders.
+ */
+public final class LogShipper implements ReplicationLog {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(LogShipper.class.getName());
+
+    /** The character set of the log */
+    private static final String CHARSET = "UTF-8";
+
+    /** The most records shipped in one batch */
+    private static final int MAX_BATCH = 1024;
+
+    /** How long to wait before reconnecting to the standby, in milliseconds */
+    private static final long RECONNECT_DELAY_MILLIS = 500L;
+
+    /** The most changes held for a standby which can't be reached, beyond that it will be reset */
+    private static final int MAX_BACKLOG = 64 * 1024;
+
+    /** How often the backlog is checked while waiting to reconnect, in milliseconds */
+    private static final long BACKLOG_CHECK_MILLIS = 50L;
+
+    /** The standby's address */
+    private final InetSocketAddress standby;
+
+    /** The changes not yet encoded */
+    private final BlockingQueue<Record> records = new LinkedBlockingQueue<Record>();
+
+    /** The encoded records of the batch awaiting acknowledgement, only accessed by the shipper thread */
+    private final List<String> batch = new ArrayList<String>();
+
+    /** The encoded order placed records of the open orders by order id, only accessed by the shipper thread */
+    private final Map<Integer, String> openOrders = new LinkedHashMap<Integer, String>();
+
+    /** The sequence number of the last record encoded, only written by the shipper thread */
+    private volatile long sequence;
+
+    /** The sequence number of the last record acknowledged by the standby */
+    private volatile long acknowledged;
+
+    /** True once changes have been dropped, the standby must be reset when reached, only used by the shipper thread */
+    private boolean resetRequired;
+
+    /** The shipper thread */
+    private final Thread shipper;
+
+    /** True once the shipper has been closed */
+    private volatile boolean closed;
+
+    /** The connection to the standby, null if not connected */
+    private volatile Socket socket;
+
+    /** Reads acknowledgements */
+    private BufferedReader in;
+
+    /** Writes batches */
+    private Writer out;
+
+
+    /**
+     * A change waiting to be encoded.
+     */
+    private static final class Record {
+        /** The type of change */
+        private final ReplicationProtocol type;
+
+        /** The order placed or closed, or null */
+        private final Order order;
+
+        /** The account name */
+        private final String accountName;
+
+        /** The balance change, or the initial balance of a created account */
+        private final int amount;
+
+        /** The expiration time of a placed order */
+        private final long expiresAt;
+
+        /** The trailing offset of a placed order */
+        private final int trailingOffset;
+
+        /** The password hash of a created account */
+        private final byte[] passwordHash;
+
+
+        /**
+         * Constructor
+         * @param type - the type of change
+         * @param order - the order placed or closed, or null
+         * @param accountName - the account name
+         * @param amount - the balance change, or the initial balance of a created account
+         * @param expiresAt - the expiration time of a placed order
+         * @param trailingOffset - the trailing offset of a placed order
+         * @param passwordHash - the password hash of a created account
+         */
+        private Record(final ReplicationProtocol type, final Order order, final String accountName, final int amount,
+                       final long expiresAt, final int trailingOffset, final byte[] passwordHash) {
+            this.type = type;
+            this.order = order;
+            this.accountName = accountName;
+            this.amount = amount;
+            this.expiresAt = expiresAt;
+            this.trailingOffset = trailingOffset;
+            this.passwordHash = passwordHash;
+        }
+    }
+
+
+    /**
+     * Constructor
+     * @param standby - the address of the standby broker
+     */
+    public LogShipper(final InetSocketAddress standby) {
+        this.standby = standby;
+        shipper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ship();
+            }
+        }, "LogShipper-" + standby.getPort());
+        shipper.setDaemon(true);
+    }
+
+
+    /**
+     * Starts shipping the log.
+     */
+    public void start() {
+        shipper.start();
+    }
+
+
+    /**
+     * Stops shipping the log, records not yet acknowledged by the standby are discarded.
+     */
+    public void close() {
+        closed = true;
+        shipper.interrupt();
+        disconnect();
+    }
+
+
+    /**
+     * Gets the sequence number of the last record encoded.
+     * @return - the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+
+    /**
+     * Gets the sequence number of the last record applied by the standby, the difference from getSequence is the
+     * standby's lag.
+     * @return - the sequence number
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+
+    @Override
+    public void orderPlaced(final Order order, final long expiresAt, final int trailingOffset) {
+        records.add(new Record(ReplicationProtocol.ORDER_PLACED, order, null, 0, expiresAt, trailingOffset, null));
+    }
+
+
+    @Override
+    public void orderClosed(final Order order) {
+        records.add(new Record(ReplicationProtocol.ORDER_CLOSED, order, null, 0, 0L, 0, null));
+    }
+
+
+    @Override
+    public void balanceChanged(final String accountName, final int delta) {
+        records.add(new Record(ReplicationProtocol.BALANCE_CHANGED, null, accountName, delta, 0L, 0, null));
+    }
+
+
+    @Override
+    public void accountCreated(final Account account) {
+        records.add(new Record(ReplicationProtocol.ACCOUNT_CREATED, null, account.getName(), account.getBalance(),
+                               0L, 0, account.getPasswordHash()));
+    }
+
+
+    @Override
+    public void accountDeleted(final String accountName) {
+        records.add(new Record(ReplicationProtocol.ACCOUNT_DELETED, null, accountName, 0, 0L, 0, null));
+    }
+
+
+    /**
+     * Ships batches until closed, reconnecting to the standby as necessary.
+     */
+    private void ship() {
+        while (!closed) {
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                if (batch.isEmpty()) {
+                    nextBatch();
+                }
+                send();
+            } catch (final InterruptedException e) {
+                return;
+            } catch (final IOException e) {
+                disconnect();
+                if (!closed) {
+                    LOGGER.log(Level.WARNING, "No connection to standby " + standby + ", retrying: " + e.getMessage());
+                    try {
+                        awaitReconnect();
+                    } catch (final InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Waits before reconnecting to the standby, keeping the changes held for it within MAX_BACKLOG. Once the backlog
+     * is exceeded the batch awaiting acknowledgement is dropped, and the changes arriving are encoded to keep track of
+     * the open orders and dropped, until the standby is reached and reset.
+     * @throws InterruptedException - if the shipper is closed while waiting
+     */
+    private void awaitReconnect() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY_MILLIS);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0L) {
+            if (!resetRequired && records.size() + batch.size() > MAX_BACKLOG) {
+                LOGGER.warning(String.format("More than %d changes held for standby %s, it will be reset to the open "
+                                             + "orders when reached", MAX_BACKLOG, standby));
+                resetRequired = true;
+                batch.clear();
+            }
+            if (resetRequired) {
+                final Record record = records.poll(remaining, TimeUnit.NANOSECONDS);
+                if (record != null) {
+                    encode(record);
+                }
+            } else {
+                Thread.sleep(Math.min(BACKLOG_CHECK_MILLIS, TimeUnit.NANOSECONDS.toMillis(remaining) + 1L));
+            }
+        }
+    }
+
+
+    /**
+     * Connects to the standby and brings it up to date. The standby reports the last record it applied, if that is
+     * before the batch awaiting acknowledgement, or after the last record encoded because this primary has been
+     * restarted, or changes have been dropped while the standby couldn't be reached, the batch is replaced by a reset
+     * to the open orders.
+     * @throws IOException - if the standby can't be reached
+     */
+    private void connect() throws IOException {
+        final Socket s = new Socket(standby.getAddress(), standby.getPort());
+        s.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(s.getInputStream(), CHARSET));
+        out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), CHARSET));
+        socket = s;
+
+        final long applied = readSequence(ReplicationProtocol.HELLO);
+        acknowledged = applied;
+        final long firstPending = batch.isEmpty() ? sequence + 1 : sequenceOf(batch.get(0));
+        if (resetRequired || applied + 1 < firstPending || applied > sequence) {
+            LOGGER.warning(String.format("Standby has applied up to %d, the log resumes at %d; resending the %d open "
+                                         + "orders, account changes since %d must be restored from the account store",
+                                         applied, firstPending, openOrders.size(), applied));
+            batch.clear();
+            batch.add(sequence + ReplicationProtocol.ELEMENT_DELIMITER.toString() + ReplicationProtocol.RESET);
+            for (final String placed : openOrders.values()) {
+                batch.add(sequence + placed.substring(placed.indexOf(ReplicationProtocol.ELEMENT_DELIMITER.toString())));
+            }
+            resetRequired = false;
+        }
+    }
+
+
+    /**
+     * Closes the connection to the standby, if open.
+     */
+    private synchronized void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close standby connection", e);
+            }
+            socket = null;
+        }
+    }
+
+
+    /**
+     * Waits for changes, then encodes up to MAX_BATCH of them as the next batch.
+     * @throws InterruptedException - if the shipper is closed while waiting
+     */
+    private void nextBatch() throws InterruptedException {
+        final List<Record> pending = new ArrayList<Record>();
+        pending.add(records.take());
+        records.drainTo(pending, MAX_BATCH - 1);
+        for (final Record record : pending) {
+            batch.add(encode(record));
+        }
+    }
+
+
+    /**
+     * Sends the batch awaiting acknowledgement and waits for the standby to acknowledge it.
+     * @throws IOException - if the connection fails
+     */
+    private void send() throws IOException {
+        for (final String line : batch) {
+            out.write(line);
+            out.write('\n');
+        }
+        out.write(ReplicationProtocol.END.toString());
+        out.write('\n');
+        out.flush();
+
+        final long applied = readSequence(ReplicationProtocol.ACK);
+        if (applied < sequenceOf(batch.get(batch.size() - 1))) {
+            throw new IOException("Standby acknowledged " + applied + ", expected "
+                                  + sequenceOf(batch.get(batch.size() - 1)));
+        }
+        acknowledged = applied;
+        batch.clear();
+    }
+
+
+    /**
+     * Reads a sequence number sent by the standby.
+     * @param expected - the expected message type
+     * @return - the sequence number
+     * @throws IOException - if the connection fails or the message is not the expected type
+     */
+    private long readSequence(final ReplicationProtocol expected) throws IOException {
+        final String line = in.readLine();
+        if (line == null) {
+            throw new IOException("Standby closed the connection");
+        }
+        final String[] fields = BrokerPartitionServer.FIELDS.split(line, -1);
+        if (fields.length != 2 || !fields[0].equals(expected.toString())) {
+            throw new IOException("Unexpected message from standby: " + line);
+        }
+        return Long.parseLong(fields[1]);
+    }
+
+
+    /**
+     * Numbers and encodes a record, and tracks the open orders.
+     * @param record - the record
+     * @return - the encoded record
+     */
+    private String encode(final Record record) {
+        final long seq = ++sequence;
+        final StringBuilder sb = new StringBuilder();
+        sb.append(seq);
+        sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+        sb.append(record.type);
+        sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+        switch (record.type) {
+            case ORDER_PLACED:
+                final Order order = record.order;
+                sb.append(order.getOrderId());
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(orderType(order));
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(BrokerPartitionServer.encode(order.getAccountId()));
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(BrokerPartitionServer.encode(order.getStockTicker()));
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(order.getNumberOfShares());
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(order instanceof StopBuyOrder ? ((StopBuyOrder) order).getPrice()
+                          : order instanceof StopSellOrder ? ((StopSellOrder) order).getPrice() : 0);
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(record.expiresAt);
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(record.trailingOffset);
+                final String placed = sb.toString();
+                openOrders.put(order.getOrderId(), placed);
+                return placed;
+            case ORDER_CLOSED:
+                sb.append(record.order.getOrderId());
+                openOrders.remove(record.order.getOrderId());
+                break;
+            case BALANCE_CHANGED:
+                sb.append(BrokerPartitionServer.encode(record.accountName));
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(record.amount);
+                break;
+            case ACCOUNT_CREATED:
+                sb.append(BrokerPartitionServer.encode(record.accountName));
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(BrokerPartitionServer.toHex(record.passwordHash));
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+                sb.append(record.amount);
+                break;
+            default:
+                sb.append(BrokerPartitionServer.encode(record.accountName));
+                break;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Gets the protocol type of an order.
+     * @param order - the order
+     * @return - the order type
+     */
+    private static ReplicationProtocol orderType(final Order order) {
+        if (order instanceof StopBuyOrder) {
+            return ReplicationProtocol.STOP_BUY;
+        } else if (order instanceof StopSellOrder) {
+            return ReplicationProtocol.STOP_SELL;
+        }
+        return order.isBuyOrder() ? ReplicationProtocol.MARKET_BUY : ReplicationProtocol.MARKET_SELL;
+    }
+
+
+    /**
+     * Gets the sequence number of an encoded record.
+     * @param line - the encoded record
+     * @return - the sequence number
+     */
+    private static long sequenceOf(final String line) {
+        return Long.parseLong(line.substring(0, line.indexOf(ReplicationProtocol.ELEMENT_DELIMITER.toString())));
+    }
+}
@@ -0,0 +1,389 @@
+package edu.uw.danco.broker;
+
+import edu.uw.ext.framework.broker.OrderProcessor;
+import edu.uw.ext.framework.order.Order;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/19/13
+ * Time: 7:00 PM
+ *
+ * A broker's market order queue, divided into a lane for each latency class. Orders are routed to the lane of their
+ * account's class, accounts which haven't been assigned a class are STANDARD.
+ *
+ * With weighted scheduling, the default, each lane is a separate queue on the host's fair scheduler with its class'
+ * weight, so a busy BULK lane can't hold up the PRIORITY lane but still gets its share of the dispatcher. With strict
+ * priority the lanes share a single queue ordered by class first, so an order is only dispatched once there are no
+ * orders of a higher class waiting.
+ *
+ * The time each order waits before it is processed is recorded for its class.
+ */
+public final class MarketOrderLanes implements BatchOrderProcessor {
+
+    /** The latency classes, by ordinal */
+    private static final LatencyClass[] CLASSES = LatencyClass.values();
+
+    /** Executes the orders */
+    private final OrderProcessor processor;
+
+    /** The host providing the dispatcher and scheduler */
+    private final BrokerHost host;
+
+    /** The latency class of each account which has been assigned one */
+    private final Map<String, LatencyClass> accountClasses = new ConcurrentHashMap<String, LatencyClass>();
+
+    /** The class and enqueue time of each queued order, by order id */
+    private final Map<Integer, Stamp> stamps = new ConcurrentHashMap<Integer, Stamp>();
+
+    /** The wait times of each class, by ordinal */
+    private final LatencyMetrics[] metrics = new LatencyMetrics[CLASSES.length];
+
+    /** The current lanes */
+    private volatile Lanes lanes;
+
+    /** True if the market is open */
+    private boolean open;
+
+    /** Records the wait of each order as it is processed, then executes it */
+    private final OrderProcessor timedProcessor = new OrderProcessor() {
+        @Override
+        public void process(final Order order) {
+            final Stamp stamp = stamps.remove(order.getOrderId());
+            if (stamp != null) {
+                metrics[stamp.latencyClass.ordinal()].record(System.nanoTime() - stamp.enqueued);
+            }
+            processor.process(order);
+        }
+    };
+
+    /** Orders by latency class, then by the natural order of orders, for strict priority */
+    private final Comparator<Order> classFirst = new Comparator<Order>() {
+        @Override
+        public int compare(final Order o1, final Order o2) {
+            final int diff = classOf(o1).ordinal() - classOf(o2).ordinal();
+            return diff != 0 ? diff : o1.compareTo(o2);
+        }
+    };
+
+
+    /**
+     * The latency class of a queued order and the time it was queued. The class is fixed when the order is queued, so
+     * reassigning an account doesn't reorder a queue.
+     */
+    private static final class Stamp {
+        /** The order's class */
+        private final LatencyClass latencyClass;
+
+        /** The time the order was queued, in nanoseconds */
+        private final long enqueued;
+
+
+        /**
+         * Constructor
+         * @param latencyClass - the order's class
+         * @param enqueued - the time the order was queued
+         */
+        private Stamp(final LatencyClass latencyClass, final long enqueued) {
+            this.latencyClass = latencyClass;
+            this.enqueued = enqueued;
+        }
+    }
+
+
+    /**
+     * The queues and dispatch filters of one scheduling mode.
+     */
+    private static final class Lanes {
+        /** True if the lanes share a single queue ordered by class */
+        private final boolean strict;
+
+        /** The queues, a single queue for strict priority otherwise one for each class by ordinal */
+        private final List<OrderQueueImpl<Order>> queues = new ArrayList<OrderQueueImpl<Order>>();
+
+        /** The dispatch filters of the queues */
+        private final List<MarketDispatchFilter> filters = new ArrayList<MarketDispatchFilter>();
+
+
+        /**
+         * Constructor
+         * @param strict - true if the lanes share a single queue ordered by class
+         */
+        private Lanes(final boolean strict) {
+            this.strict = strict;
+        }
+
+
+        /**
+         * Gets the queue of a class.
+         * @param latencyClass - the class
+         * @return - the queue
+         */
+        private OrderQueueImpl<Order> queueFor(final LatencyClass latencyClass) {
+            return strict ? queues.get(0) : queues.get(latencyClass.ordinal());
+        }
+    }
+
+
+    /**
+     * Constructor, the lanes start with weighted scheduling.
+     * @param processor - executes the orders
+     * @param open - true if the market is open
+     * @param host - the host providing the dispatcher and scheduler
+     */
+    public MarketOrderLanes(final OrderProcessor processor, final boolean open, final BrokerHost host) {
+        this.processor = processor;
+        this.host = host;
+        this.open = open;
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = new LatencyMetrics();
+        }
+        lanes = createLanes(false);
+    }
+
+
+    /**
+     * Assigns an account to a latency class, orders already queued keep their class.
+     * @param accountName - the account name
+     * @param latencyClass - the class
+     */
+    public void setLatencyClass(final String accountName, final LatencyClass latencyClass) {
+        if (latencyClass == LatencyClass.STANDARD) {
+            accountClasses.remove(accountName);
+        } else {
+            accountClasses.put(accountName, latencyClass);
+        }
+    }
+
+
+    /**
+     * Gets an account's latency class.
+     * @param accountName - the account name
+     * @return - the class
+     */
+    public LatencyClass getLatencyClass(final String accountName) {
+        final LatencyClass latencyClass = accountClasses.get(accountName);
+        return latencyClass == null ? LatencyClass.STANDARD : latencyClass;
+    }
+
+
+    /**
+     * Gets the wait times of a class.
+     * @param latencyClass - the class
+     * @return - the class' metrics
+     */
+    public LatencyMetrics getLatencyMetrics(final LatencyClass latencyClass) {
+        return metrics[latencyClass.ordinal()];
+    }
+
+
+    /**
+     * Switches between strict priority and weighted scheduling, the queued orders are moved to the new lanes.
+     * @param strict - true for strict priority
+     */
+    public synchronized void setStrictPriority(final boolean strict) {
+        final Lanes previous = lanes;
+        if (previous.strict == strict) {
+            return;
+        }
+        lanes = createLanes(strict);
+        for (final MarketDispatchFilter filter : previous.filters) {
+            filter.setThreshold(Boolean.FALSE);
+        }
+        retire(previous);
+    }
+
+
+    /**
+     * Sets the state of the market, the orders are only dispatched while it is open.
+     * @param open - true if the market is open
+     */
+    public synchronized void setOpen(final boolean open) {
+        this.open = open;
+        final Lanes current = lanes;
+        for (final MarketDispatchFilter filter : current.filters) {
+            filter.setThreshold(open);
+        }
+        if (open) {
+            for (final OrderQueueImpl<Order> queue : current.queues) {
+                queue.dispatchOrders();
+            }
+        }
+    }
+
+
+    /**
+     * Queues a market order in its account's lane.
+     * @param order - the order
+     */
+    public void enqueue(final Order order) {
+        final LatencyClass latencyClass = getLatencyClass(order.getAccountId());
+        stamps.put(order.getOrderId(), new Stamp(latencyClass, System.nanoTime()));
+        final Lanes current = lanes;
+        current.queueFor(latencyClass).enqueue(order);
+        if (lanes != current) {
+            retire(current);
+        }
+    }
+
+
+    /**
+     * Queues a group of market orders, each lane's orders are added under a single lock acquisition.
+     * @param orders - the orders
+     */
+    public void enqueueAll(final Collection<? extends Order> orders) {
+        add(orders);
+    }
+
+
+    /**
+     * Queues an order moved from a stop order queue.
+     * @param order - the order to process
+     */
+    @Override
+    public void process(final Order order) {
+        enqueue(order);
+    }
+
+
+    /**
+     * Queues a batch of orders moved from a stop order queue, the orders are processed by the dispatcher and never
+     * on the calling thread.
+     * @param orders - the orders to process
+     */
+    @Override
+    public void processAll(final List<? extends Order> orders) {
+        add(orders);
+    }
+
+
+    /**
+     * Stops the dispatcher monitoring the queues, when the broker is closed.
+     */
+    public void close() {
+        for (final OrderQueueImpl<Order> queue : lanes.queues) {
+            host.getDispatcher().unmonitor(queue);
+        }
+    }
+
+
+    /**
+     * Stamps a group of orders and adds them to their lanes.
+     * @param orders - the orders
+     */
+    private void add(final Collection<? extends Order> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        for (final Order order : orders) {
+            stamps.put(order.getOrderId(), new Stamp(getLatencyClass(order.getAccountId()), now));
+        }
+        final Lanes current = lanes;
+        route(current, orders);
+        if (lanes != current) {
+            retire(current);
+        }
+    }
+
+
+    /**
+     * Adds stamped orders to the queues of a set of lanes.
+     * @param target - the lanes
+     * @param orders - the orders
+     */
+    private void route(final Lanes target, final Collection<? extends Order> orders) {
+        final Map<LatencyClass, List<Order>> groups;
+        if (target.strict) {
+            groups = Collections.<LatencyClass, List<Order>>singletonMap(LatencyClass.STANDARD,
+                                                                         new ArrayList<Order>(orders));
+        } else {
+            groups = new EnumMap<LatencyClass, List<Order>>(LatencyClass.class);
+            for (final Order order : orders) {
+                final LatencyClass latencyClass = classOf(order);
+                List<Order> group = groups.get(latencyClass);
+                if (group == null) {
+                    group = new ArrayList<Order>();
+                    groups.put(latencyClass, group);
+                }
+                group.add(order);
+            }
+        }
+        for (final Map.Entry<LatencyClass, List<Order>> group : groups.entrySet()) {
+            target.queueFor(group.getKey()).enqueueAll(group.getValue());
+        }
+    }
+
+
+    /**
+     * Moves any orders left in lanes which have been replaced to the current lanes. Called by the thread replacing the
+     * lanes, and by any thread which queued orders to the lanes while they were being replaced.
+     * @param previous - the replaced lanes
+     */
+    private void retire(final Lanes previous) {
+        for (final OrderQueueImpl<Order> queue : previous.queues) {
+            host.getDispatcher().unmonitor(queue);
+            final List<Order> orders = queue.removeAll();
+            if (!orders.isEmpty()) {
+                route(lanes, orders);
+            }
+        }
+    }
+
+
+    /**
+     * Creates the queues for a scheduling mode.
+     * @param strict - true for strict priority
+     * @return - the lanes
+     */
+    private Lanes createLanes(final boolean strict) {
+        final Lanes created = new Lanes(strict);
+        if (strict) {
+            addQueue(created, classFirst, LatencyClass.STANDARD.getWeight());
+        } else {
+            for (final LatencyClass latencyClass : CLASSES) {
+                addQueue(created, null, latencyClass.getWeight());
+            }
+        }
+        return created;
+    }
+
+
+    /**
+     * Adds a queue to a set of lanes.
+     * @param target - the lanes
+     * @param comparator - the queue's order, null for the natural order of orders
+     * @param weight - the queue's share of the scheduler
+     */
+    private void addQueue(final Lanes target, final Comparator<Order> comparator, final int weight) {
+        final MarketDispatchFilter filter = new MarketDispatchFilter(open);
+        final OrderQueueImpl<Order> queue = comparator == null
+                ? new OrderQueueImpl<Order>(filter, host.getDispatcher())
+                : new OrderQueueImpl<Order>(comparator, filter, host.getDispatcher());
+        queue.setOrderProcessor(timedProcessor);
+        queue.setScheduler(host.getScheduler(), weight);
+        host.getDispatcher().monitor(queue);
+        target.queues.add(queue);
+        target.filters.add(filter);
+    }
+
+
+    /**
+     * Gets the class a queued order was stamped with.
+     * @param order - the order
+     * @return - the class
+     */
+    private LatencyClass classOf(final Order order) {
+        final Stamp stamp = stamps.get(order.getOrderId());
+        return stamp == null ? LatencyClass.STANDARD : stamp.latencyClass;
+    }
+}
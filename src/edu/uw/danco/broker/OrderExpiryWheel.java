@@ -0,0 +1,305 @@
+package edu.uw.danco.broker;
+
+import edu.uw.ext.framework.broker.OrderProcessor;
+import edu.uw.ext.framework.order.Order;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/8/13
+ * Time: 10:12 AM
+ *
+ * A hierarchical timing wheel used to expire good-till-time (and day) orders. Each wheel has 64 slots, a slot on the
+ * lowest wheel covers a single tick and a slot on each higher wheel covers all of the slots of the wheel below it.
+ * Scheduling an expiration is a constant time insert into the slot matching its deadline, cancelling is a constant
+ * time unlink, and a tick only visits the current slot of the lowest wheel, plus the current slot of a higher wheel
+ * each time the wheel below it wraps, when its entries are cascaded down. Deadlines beyond the range of the highest
+ * wheel are held in an overflow list and re-examined each time the highest wheel wraps.
+ *
+ * The wheel is advanced by a single timer thread, expiration callbacks are run on that thread so they should be short.
+ */
+public final class OrderExpiryWheel {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(OrderExpiryWheel.class.getName());
+
+    /** Number of bits of the tick count addressed by each wheel */
+    private static final int WHEEL_BITS = 6;
+
+    /** The number of slots on each wheel */
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    /** Mask used to find a slot within a wheel */
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /** The number of wheels in the hierarchy */
+    private static final int LEVELS = 4;
+
+    /** Duration of a single tick in milliseconds */
+    private final long tickMillis;
+
+    /** The wall clock time of tick zero */
+    private final long startMillis;
+
+    /** The wheels, each slot is the sentinel of a circular doubly linked list of entries */
+    private final Timeout[][] wheels = new Timeout[LEVELS][WHEEL_SIZE];
+
+    /** Entries whose deadline is beyond the range of the highest wheel */
+    private final Timeout overflow = new Timeout(null, 0L, null);
+
+    /** The number of ticks processed, only modified on the timer thread while holding the lock */
+    private long currentTick;
+
+    /** The number of entries currently scheduled */
+    private int size;
+
+    /** The entries expired on a tick, reused every tick and only used on the timer thread */
+    private final List<Timeout> expired = new ArrayList<Timeout>();
+
+    /** The entries of a slot being cascaded, reused for every slot and only used while holding the lock */
+    private final List<Timeout> cascading = new ArrayList<Timeout>();
+
+    /** The single timer thread */
+    private final ScheduledExecutorService timer;
+
+
+    /**
+     * Constructor, starts the timer thread.
+     * @param tickMillis - the resolution of the wheel in milliseconds
+     */
+    public OrderExpiryWheel(final long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        startMillis = System.currentTimeMillis();
+
+        for (final Timeout[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new Timeout(null, 0L, null);
+            }
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "OrderExpiryWheel");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                advance(System.currentTimeMillis());
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Schedules the expiration of an order.
+     * @param order - the order to expire
+     * @param expiresAt - the wall clock time, in milliseconds, at which the order expires
+     * @param onExpiry - the processor to be passed the order when it expires
+     * @return - the handle for the scheduled expiration, may be used to cancel it
+     */
+    public Timeout schedule(final Order order, final long expiresAt, final OrderProcessor onExpiry) {
+        final long deadline = Math.max(0L, (expiresAt - startMillis + tickMillis - 1) / tickMillis);
+        final Timeout timeout = new Timeout(order, deadline, onExpiry);
+        synchronized (this) {
+            place(timeout, Math.max(deadline, currentTick + 1));
+            size++;
+        }
+        return timeout;
+    }
+
+
+    /**
+     * Gets the number of scheduled expirations.
+     * @return - the number of scheduled expirations
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+
+    /**
+     * Stops the timer thread, outstanding expirations will not be processed.
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+
+
+    /**
+     * Processes every tick which has elapsed as of the specified time.
+     * @param now - the current wall clock time in milliseconds
+     */
+    private void advance(final long now) {
+        final long targetTick = (now - startMillis) / tickMillis;
+        while (true) {
+            synchronized (this) {
+                if (currentTick >= targetTick) {
+                    break;
+                }
+                currentTick++;
+                cascade();
+                final Timeout slot = wheels[0][(int) (currentTick & WHEEL_MASK)];
+                while (slot.next != slot) {
+                    final Timeout timeout = slot.next;
+                    timeout.unlink();
+                    expired.add(timeout);
+                    size--;
+                }
+            }
+
+            for (final Timeout timeout : expired) {
+                try {
+                    timeout.onExpiry.process(timeout.order);
+                } catch (final RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Unable to expire order id: " + timeout.order.getOrderId(), e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+
+    /**
+     * Moves the entries of any higher wheel slot which has come due down the hierarchy, highest wheel first so entries
+     * may cascade through several wheels on a single tick. Must be called holding the lock.
+     */
+    private void cascade() {
+        int level = 0;
+        while (level < LEVELS && (currentTick & ((1L << (WHEEL_BITS * (level + 1))) - 1)) == 0) {
+            level++;
+        }
+
+        if (level == LEVELS) {
+            replace(overflow);
+            level--;
+        }
+        for (; level > 0; level--) {
+            replace(wheels[level][(int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK)]);
+        }
+    }
+
+
+    /**
+     * Re-places every entry of a slot based on the current tick. Must be called holding the lock.
+     * @param slot - the sentinel of the slot to empty
+     */
+    private void replace(final Timeout slot) {
+        while (slot.next != slot) {
+            final Timeout timeout = slot.next;
+            timeout.unlink();
+            cascading.add(timeout);
+        }
+        for (final Timeout timeout : cascading) {
+            place(timeout, Math.max(timeout.deadline, currentTick));
+        }
+        cascading.clear();
+    }
+
+
+    /**
+     * Links an entry into the slot covering its deadline, the lowest wheel whose range, relative to the current tick,
+     * includes the deadline. Must be called holding the lock.
+     * @param timeout - the entry to place
+     * @param deadline - the tick at which the entry is due, no earlier than the current tick
+     */
+    private void place(final Timeout timeout, final long deadline) {
+        for (int level = 0; level < LEVELS; level++) {
+            final int shift = WHEEL_BITS * (level + 1);
+            if ((deadline >>> shift) == (currentTick >>> shift)) {
+                timeout.linkBefore(wheels[level][(int) ((deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK)]);
+                return;
+            }
+        }
+        timeout.linkBefore(overflow);
+    }
+
+
+    /**
+     * A scheduled expiration, a node in the doubly linked list of a wheel slot.
+     */
+    public final class Timeout {
+
+        /** The order to expire */
+        private final Order order;
+
+        /** The tick on which the order expires */
+        private final long deadline;
+
+        /** The processor to be passed the order on expiration */
+        private final OrderProcessor onExpiry;
+
+        /** The previous entry in the slot */
+        private Timeout prev = this;
+
+        /** The next entry in the slot */
+        private Timeout next = this;
+
+
+        /**
+         * Constructor
+         * @param order - the order to expire
+         * @param deadline - the tick on which the order expires
+         * @param onExpiry - the processor to be passed the order on expiration
+         */
+        private Timeout(final Order order, final long deadline, final OrderProcessor onExpiry) {
+            this.order = order;
+            this.deadline = deadline;
+            this.onExpiry = onExpiry;
+        }
+
+
+        /**
+         * Cancels the expiration.
+         * @return - true if the expiration was cancelled, false if it has already expired or been cancelled
+         */
+        public boolean cancel() {
+            synchronized (OrderExpiryWheel.this) {
+                if (next == this) {
+                    return false;
+                }
+                unlink();
+                size--;
+                return true;
+            }
+        }
+
+
+        /**
+         * Links this entry at the tail of a slot.
+         * @param sentinel - the sentinel of the slot
+         */
+        private void linkBefore(final Timeout sentinel) {
+            prev = sentinel.prev;
+            next = sentinel;
+            sentinel.prev.next = this;
+            sentinel.prev = this;
+        }
+
+
+        /**
+         * Unlinks this entry from its slot.
+         */
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+    }
+}
@@ -3,12 +3,18 @@ package edu.uw.danco.broker;
 import edu.uw.ext.framework.broker.OrderDispatchFilter;
 import edu.uw.ext.framework.broker.OrderManager;
 import edu.uw.ext.framework.broker.OrderProcessor;
-import edu.uw.ext.framework.broker.OrderQueue;
+import edu.uw.ext.framework.order.Order;
 import edu.uw.ext.framework.order.StopBuyOrder;
 import edu.uw.ext.framework.order.StopSellOrder;
 
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Created with IntelliJ IDEA.
@@ -21,14 +27,17 @@ import java.util.concurrent.ExecutorService;
  */
 public class OrderManagerImpl implements OrderManager {
 
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(OrderManagerImpl.class.getName());
+
     /** The stock ticker symbol being managed by this instance */
     private String symbol;
 
     /** The OrderQueue in which to place stop buy orders */
-    private OrderQueue<StopBuyOrder> stopBuyOrderQueue;
+    private OrderQueueImpl<StopBuyOrder> stopBuyOrderQueue;
 
     /** The OrderQueue in which to place stop sell orders */
-    private OrderQueue<StopSellOrder> stopSellOrderQueue;
+    private OrderQueueImpl<StopSellOrder> stopSellOrderQueue;
 
     /** The StopBuyOrder filter */
     private OrderDispatchFilter<Integer, StopBuyOrder> stopBuyOrderFilter;
@@ -36,6 +45,83 @@ public class OrderManagerImpl implements OrderManager {
     /** The StopSellOrder filter */
     private OrderDispatchFilter<Integer, StopSellOrder> stopSellOrderFilter;
 
+    /** The trailing stop buy orders */
+    private TrailingStopBook trailingStopBuys = new TrailingStopBook(false, 0);
+
+    /** The trailing stop sell orders */
+    private TrailingStopBook trailingStopSells = new TrailingStopBook(true, 0);
+
+    /** Guards the price changes, so they are applied one at a time */
+    private final Object priceLock = new Object();
+
+    /** The number of the last numbered price applied, guarded by priceLock */
+    private long priceSequence;
+
+    /** The number of orders being placed, which the manager counts as waiting for the price until they are queued */
+    private final AtomicInteger placing = new AtomicInteger();
+
+    /** The processor triggered orders are passed to */
+    private OrderProcessor orderProcessor;
+
+    /** The most resting orders on each side checked for prefetching on a price change */
+    private static final int PREFETCH_LIMIT = 16;
+
+    /** Prefetches the accounts of orders close to triggering, may be null */
+    private AccountCache accountCache;
+
+    /** How close the price must be to an order's trigger for the order's account to be prefetched */
+    private int prefetchDistance;
+
+    /** Receives the expired orders, may be null */
+    private volatile ReplicationLog replicationLog;
+
+    /** The timing wheel used to expire good-till-time orders, may be null if orders do not expire */
+    private OrderExpiryWheel expiryWheel;
+
+    /** The scheduled expirations of resting good-till-time orders, by order id */
+    private final Map<Integer, OrderExpiryWheel.Timeout> expirations =
+            new ConcurrentHashMap<Integer, OrderExpiryWheel.Timeout>();
+
+    /** Cancels the expiration of each triggered stop order, then passes it to the order processor */
+    private final BatchOrderProcessor triggerProcessor = new BatchOrderProcessor() {
+        @Override
+        public void process(final Order order) {
+            cancelExpiry(order);
+            final OrderProcessor op = orderProcessor;
+            if (op != null) {
+                op.process(order);
+            }
+        }
+
+        @Override
+        public void processAll(final List<? extends Order> orders) {
+            for (final Order order : orders) {
+                cancelExpiry(order);
+            }
+            release(orders);
+        }
+    };
+
+    /** Removes expired orders from their queue */
+    private final OrderProcessor expiryProcessor = new OrderProcessor() {
+        @Override
+        public void process(final Order order) {
+            final boolean removed;
+            if (order instanceof StopBuyOrder) {
+                removed = cancelOrder((StopBuyOrder) order);
+            } else {
+                removed = cancelOrder((StopSellOrder) order);
+            }
+            if (removed) {
+                LOGGER.log(Level.FINE, "Expired order id: " + order.getOrderId());
+                final ReplicationLog log = replicationLog;
+                if (log != null) {
+                    log.orderClosed(order);
+                }
+            }
+        }
+    };
+
 
     /**
      * Constructor to be used by sub classes to finish initialization.
@@ -51,6 +137,9 @@ public class OrderManagerImpl implements OrderManager {
     public OrderManagerImpl(final String symbol, final int price, final ExecutorService dispatcher) {
         this.symbol = symbol;
 
+        trailingStopBuys = new TrailingStopBook(false, price);
+        trailingStopSells = new TrailingStopBook(true, price);
+
         stopBuyOrderFilter = new StopBuyOrderDispatchFilter(price);
         stopSellOrderFilter = new StopSellOrderDispatchFilter(price);
 
@@ -74,13 +163,82 @@ public class OrderManagerImpl implements OrderManager {
 
 
     /**
-     * Respond to a stock price adjustment by setting threshold on dispatch filters.
+     * Respond to a stock price adjustment by setting threshold on dispatch filters, and releasing any trailing stop
+     * orders the price change has triggered.
      * @param price - the new price
      */
     @Override
     public void adjustPrice(final int price) {
-        stopBuyOrderFilter.setThreshold(price);
-        stopSellOrderFilter.setThreshold(price);
+        synchronized (priceLock) {
+            stopBuyOrderFilter.setThreshold(price);
+            stopSellOrderFilter.setThreshold(price);
+
+            release(trailingStopBuys.adjustPrice(price));
+            release(trailingStopSells.adjustPrice(price));
+
+            if (accountCache != null) {
+                prefetchNearTriggers(price);
+            }
+        }
+    }
+
+
+    /**
+     * Respond to a numbered price adjustment, as adjustPrice, unless a price numbered after it has already been
+     * applied. The same price may arrive both as a price change and as the catch up when the broker subscribes, in
+     * either order, the price never moves backwards.
+     * @param price - the new price
+     * @param sequence - the number of the price, later prices have higher numbers
+     */
+    public void adjustPrice(final int price, final long sequence) {
+        synchronized (priceLock) {
+            if (sequence > priceSequence) {
+                priceSequence = sequence;
+                adjustPrice(price);
+            }
+        }
+    }
+
+
+    /**
+     * Marks the start of placing an order, until endPlacement the manager isn't idle, so the broker stays subscribed
+     * to the price changes while the order is queued.
+     */
+    public void beginPlacement() {
+        placing.incrementAndGet();
+    }
+
+
+    /**
+     * Marks the end of placing an order, once it has been queued.
+     */
+    public void endPlacement() {
+        placing.decrementAndGet();
+    }
+
+
+    /**
+     * Prefetches the accounts of resting stop orders whose trigger is within the prefetch distance of the price, but
+     * not yet crossed. The queues are in trigger order, so only their heads need to be examined.
+     * @param price - the current price
+     */
+    private void prefetchNearTriggers(final int price) {
+        for (final StopBuyOrder order : stopBuyOrderQueue.head(PREFETCH_LIMIT)) {
+            if (order.getPrice() - price > prefetchDistance) {
+                break;
+            }
+            if (order.getPrice() > price) {
+                accountCache.prefetch(order.getAccountId());
+            }
+        }
+        for (final StopSellOrder order : stopSellOrderQueue.head(PREFETCH_LIMIT)) {
+            if (price - order.getPrice() > prefetchDistance) {
+                break;
+            }
+            if (order.getPrice() < price) {
+                accountCache.prefetch(order.getAccountId());
+            }
+        }
     }
 
 
@@ -105,14 +263,180 @@ public class OrderManagerImpl implements OrderManager {
 
 
     /**
-     * Registers the processor to be used during order processing. This will be passed on to the order queues as the
-     * dispatch callback.
+     * Queue a group of stop orders, each side is added to its queue under a single lock acquisition.
+     * @param buys - the stop buy orders to queue
+     * @param sells - the stop sell orders to queue
+     */
+    public void queueOrders(final Collection<StopBuyOrder> buys, final Collection<StopSellOrder> sells) {
+        stopBuyOrderQueue.enqueueAll(buys);
+        stopSellOrderQueue.enqueueAll(sells);
+    }
+
+
+    /**
+     * Queue a trailing stop order. The order is held until the price retraces by the offset from the best price seen
+     * since it was queued - the high for a sell, the low for a buy - and is then passed to the order processor.
+     * @param order - the (market) order to be released when the trailing stop triggers
+     * @param offset - the distance the price must retrace from the best price to trigger the order
+     */
+    public void queueTrailingStop(final Order order, final int offset) {
+        if (order.isBuyOrder()) {
+            trailingStopBuys.add(order, offset);
+        } else {
+            trailingStopSells.add(order, offset);
+        }
+    }
+
+
+    /**
+     * Checks whether the manager holds any orders waiting for the price, stop orders or trailing stops. Triggered
+     * orders which have already been passed to the order processor aren't counted, orders being placed are.
+     * @return - true if no orders are waiting for the price
+     */
+    public boolean isIdle() {
+        return placing.get() == 0 && stopBuyOrderQueue.isEmpty() && stopSellOrderQueue.isEmpty()
+                && trailingStopBuys.size() == 0 && trailingStopSells.size() == 0;
+    }
+
+
+    /**
+     * Queue a stop buy order which expires if it has not been dispatched by the specified time.
+     * @param order - the order to queue
+     * @param expiresAt - the wall clock time, in milliseconds, at which the order expires
+     */
+    public void queueOrder(final StopBuyOrder order, final long expiresAt) {
+        queueOrder(order);
+        scheduleExpiry(order, expiresAt);
+    }
+
+
+    /**
+     * Queue a stop sell order which expires if it has not been dispatched by the specified time.
+     * @param order - the order to queue
+     * @param expiresAt - the wall clock time, in milliseconds, at which the order expires
+     */
+    public void queueOrder(final StopSellOrder order, final long expiresAt) {
+        queueOrder(order);
+        scheduleExpiry(order, expiresAt);
+    }
+
+
+    /**
+     * Removes a resting stop buy order, and cancels its expiration.
+     * @param order - the order to remove
+     * @return - true if the order was removed, false if it was not queued or has already been dispatched
+     */
+    public boolean cancelOrder(final StopBuyOrder order) {
+        cancelExpiry(order);
+        return stopBuyOrderQueue.remove(order);
+    }
+
+
+    /**
+     * Removes a resting stop sell order, and cancels its expiration.
+     * @param order - the order to remove
+     * @return - true if the order was removed, false if it was not queued or has already been dispatched
+     */
+    public boolean cancelOrder(final StopSellOrder order) {
+        cancelExpiry(order);
+        return stopSellOrderQueue.remove(order);
+    }
+
+
+    /**
+     * Shares the dispatcher between the stop order queues and the other queues of the broker through a fair scheduler.
+     * @param scheduler - the scheduler
+     * @param weight - the share of the scheduler's rounds given to each of the stop order queues
+     */
+    public void setScheduler(final FairOrderScheduler scheduler, final int weight) {
+        stopBuyOrderQueue.setScheduler(scheduler, weight);
+        stopSellOrderQueue.setScheduler(scheduler, weight);
+    }
+
+
+    /**
+     * Enables prefetching of the accounts of stop orders close to triggering.
+     * @param accountCache - the cache the accounts are prefetched into
+     * @param distance - how close, in cents, the price must come to an order's trigger
+     */
+    public void setAccountPrefetch(final AccountCache accountCache, final int distance) {
+        this.accountCache = accountCache;
+        this.prefetchDistance = distance;
+    }
+
+
+    /**
+     * Sets the timing wheel used to expire good-till-time orders.
+     * @param expiryWheel - the timing wheel
+     */
+    public void setExpiryWheel(final OrderExpiryWheel expiryWheel) {
+        this.expiryWheel = expiryWheel;
+    }
+
+
+    /**
+     * Sets the log receiving the orders removed when they expire.
+     * @param replicationLog - the log, or null
+     */
+    public void setReplicationLog(final ReplicationLog replicationLog) {
+        this.replicationLog = replicationLog;
+    }
+
+
+    /**
+     * Schedules the removal of an order from its queue at the expiration time. The expiration is cancelled when the
+     * order is triggered or cancelled, so the wheel only holds resting orders. An order triggered before its
+     * expiration has been recorded is simply not found in the queue when the expiration is processed.
+     * @param order - the order
+     * @param expiresAt - the wall clock time, in milliseconds, at which the order expires
+     */
+    private void scheduleExpiry(final Order order, final long expiresAt) {
+        if (expiryWheel == null) {
+            LOGGER.log(Level.WARNING, "No expiry wheel, order id " + order.getOrderId() + " will not expire");
+        } else {
+            expirations.put(order.getOrderId(), expiryWheel.schedule(order, expiresAt, expiryProcessor));
+        }
+    }
+
+
+    /**
+     * Cancels the scheduled expiration of an order, if it has one.
+     * @param order - the order
+     */
+    private void cancelExpiry(final Order order) {
+        final OrderExpiryWheel.Timeout timeout = expirations.remove(order.getOrderId());
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+
+    /**
+     * Registers the processor to be used during order processing. The order queues dispatch to it once the
+     * expiration of each triggered order has been cancelled.
      * @param processor - the callback to be registered
      */
     @Override
     public void setOrderProcessor(final OrderProcessor processor) {
-        stopBuyOrderQueue.setOrderProcessor(processor);
-        stopSellOrderQueue.setOrderProcessor(processor);
+        orderProcessor = processor;
+        stopBuyOrderQueue.setOrderProcessor(triggerProcessor);
+        stopSellOrderQueue.setOrderProcessor(triggerProcessor);
+    }
+
+
+    /**
+     * Passes triggered trailing stop orders to the order processor.
+     * @param triggered - the triggered orders
+     */
+    private void release(final List<? extends Order> triggered) {
+        final OrderProcessor op = orderProcessor;
+        if (op instanceof BatchOrderProcessor) {
+            ((BatchOrderProcessor) op).processAll(triggered);
+        } else if (op != null) {
+            for (final Order order : triggered) {
+                op.process(order);
+            }
+        }
     }
 
 
@@ -138,7 +462,7 @@ public class OrderManagerImpl implements OrderManager {
      * Set the StopBuyOrder Queue
      * @param stopBuyOrderQueue the queue
      */
-    protected void setStopBuyOrderQueue(final OrderQueue<StopBuyOrder> stopBuyOrderQueue) {
+    protected void setStopBuyOrderQueue(final OrderQueueImpl<StopBuyOrder> stopBuyOrderQueue) {
         this.stopBuyOrderQueue = stopBuyOrderQueue;
     }
 
@@ -156,7 +480,7 @@ public class OrderManagerImpl implements OrderManager {
      * THe StopSellOrderQueue
      * @param stopSellOrderQueue - the queue
      */
-    protected void setStopSellOrderQueue(final OrderQueue<StopSellOrder> stopSellOrderQueue) {
+    protected void setStopSellOrderQueue(final OrderQueueImpl<StopSellOrder> stopSellOrderQueue) {
         this.stopSellOrderQueue = stopSellOrderQueue;
     }
 }
@@ -5,12 +5,15 @@ import edu.uw.ext.framework.broker.OrderProcessor;
 import edu.uw.ext.framework.broker.OrderQueue;
 import edu.uw.ext.framework.order.Order;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.concurrent.*;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -19,7 +22,8 @@ import java.util.logging.Logger;
  * Date: 4/28/13
  * Time: 3:05 PM
  *
- * A simple OrderQueue implementation backed by a BlockingQueue.
+ * A simple OrderQueue implementation backed by a sorted set, which keeps the highest priority order at the head and
+ * allows an arbitrary order to be removed in logarithmic time.
  *
  */
 public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Runnable {
@@ -27,9 +31,14 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
     /** The logger for this class */
     private static final Logger LOGGER = Logger.getLogger(OrderQueueImpl.class.getName());
 
-    /** Backing store for orders */
-    private BlockingQueue<E> queue;
-    // can continue to use a TreeSt
+    /** The most orders removed under one lock acquisition when dispatching to a batch processor */
+    private static final int MAX_BATCH = 64;
+
+    /** Backing store for orders, only accessed while holding the queue lock */
+    private final TreeSet<E> queue;
+
+    /** The number of orders in the queue, written under the queue lock so the dispatcher can sample it without it */
+    private volatile int size;
 
     /** The processor used during order processing */
     private OrderProcessor orderProcessor;
@@ -46,6 +55,19 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
     /** Boolean to determine if the order getting processed has been queued to the active pool */
     private AtomicBoolean isQueuedToPool = new AtomicBoolean(false);
 
+    /** The scheduler sharing the dispatcher between queues, if null the queue is run directly on the dispatcher */
+    private FairOrderScheduler scheduler;
+
+    /** The share of the scheduler's rounds given to this queue */
+    private int weight = 1;
+
+    /**
+     * The processing time credit, in nanoseconds, maintained by the scheduler. The queue resets it when it runs out
+     * of dispatchable orders, before it may be queued to the dispatcher again, so a turn of the scheduler never sees
+     * the credit of an earlier turn being written.
+     */
+    long deficit;
+
     /**
      * Constructor
      * @param orderComparator - Comparator to be used for ordering
@@ -54,7 +76,7 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
     public OrderQueueImpl(final Comparator<E> orderComparator,
                           final OrderDispatchFilter<?, E> filter,
                           final ExecutorService dispatcher) {
-        queue = new PriorityBlockingQueue<E>(20, orderComparator);
+        queue = new TreeSet<E>(orderComparator);
         this.filter = filter;
         this.dispatcher = dispatcher;
         this.filter.setOrderQueue(this);
@@ -66,7 +88,7 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
      * @param filter - the dispatch filter used to control dispatching from this queue
      */
     public OrderQueueImpl(final OrderDispatchFilter<?, E> filter, final ExecutorService dispatcher) {
-        queue = new PriorityBlockingQueue<E>();
+        queue = new TreeSet<E>();
         this.filter = filter;
         this.dispatcher = dispatcher;
         this.filter.setOrderQueue(this);
@@ -81,9 +103,29 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
     public void enqueue(final E order) {
         queuelock.lock();
         try {
-            if (!queue.contains(order)) {
-                queue.add(order);
-            }
+            queue.add(order);
+            size = queue.size();
+        } finally {
+            queuelock.unlock();
+        }
+        dispatchOrders();
+    }
+
+
+    /**
+     * Adds a group of orders to the queue under a single lock acquisition. Subsequent to adding the orders dispatches
+     * any dispatchable orders. The orders are never processed on the calling thread, which is often the exchange's
+     * event thread, they wait for the dispatcher like any other orders.
+     * @param orders - the orders to be added to the queue
+     */
+    public void enqueueAll(final Collection<? extends E> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        queuelock.lock();
+        try {
+            queue.addAll(orders);
+            size = queue.size();
         } finally {
             queuelock.unlock();
         }
@@ -102,12 +144,9 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
         queuelock.lock();
         try {
             if (!queue.isEmpty()) {
-                if (filter != null && filter.check(queue.peek())) {
-                    try {
-                        order = queue.take();
-                    } catch (InterruptedException e) {
-                        LOGGER.log(Level.WARNING, "Interrupted waiting for queue element", e);
-                    }
+                if (filter != null && filter.check(queue.first())) {
+                    order = queue.pollFirst();
+                    size = queue.size();
                 }
             }
         } finally {
@@ -117,6 +156,86 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
     }
 
 
+    /**
+     * Removes the specified order from the queue without dispatching it, used to cancel or expire resting orders.
+     * Removal is a logarithmic operation on the sorted backing store, no scan of the queue is required.
+     * @param order - the order to be removed
+     * @return - true if the order was in the queue and has been removed, false if it was not queued (or has already
+     * been dispatched)
+     */
+    public boolean remove(final E order) {
+        queuelock.lock();
+        try {
+            final boolean removed = queue.remove(order);
+            size = queue.size();
+            return removed;
+        } finally {
+            queuelock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes all of the orders from the queue without dispatching them, used to move the orders to another queue.
+     * @return - the orders, in priority order
+     */
+    public List<E> removeAll() {
+        queuelock.lock();
+        try {
+            final List<E> orders = new ArrayList<E>(queue);
+            queue.clear();
+            size = 0;
+            return orders;
+        } finally {
+            queuelock.unlock();
+        }
+    }
+
+
+    /**
+     * Gets the highest priority orders in the queue without removing them.
+     * @param max - the most orders to return
+     * @return - up to max orders, in priority order
+     */
+    public List<E> head(final int max) {
+        final List<E> orders = new ArrayList<E>(Math.min(max, 16));
+        queuelock.lock();
+        try {
+            for (final E order : queue) {
+                if (orders.size() >= max) {
+                    break;
+                }
+                orders.add(order);
+            }
+        } finally {
+            queuelock.unlock();
+        }
+        return orders;
+    }
+
+
+    /**
+     * Checks whether the queue holds any orders, without taking the queue lock.
+     * @return - true if the queue is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+
+    /**
+     * Counts the orders waiting in the queue, used to size the dispatcher. Orders are only counted while the queue is
+     * queued to the dispatcher, a queue which is not waiting for a thread has no backlog. Every order is counted,
+     * dispatchable or not, from a count kept as the queue changes so sampling neither takes the lock nor walks the
+     * queue.
+     * @param limit - the most orders to count
+     * @return - the number of orders, at most limit
+     */
+    int backlog(final int limit) {
+        return isQueuedToPool.get() ? Math.min(size, limit) : 0;
+    }
+
+
     /**
      * Executes the orderProcessor for each dispatchable order. Each dispatchable order is in turn removed from the
      * queue and passed to the callback. If no callback is registered the order is simply removed from the queue.
@@ -126,7 +245,7 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
         queuelock.lock();
         try {
             if (isQueuedToPool.compareAndSet(false, true)) {
-                dispatcher.execute(this);
+                schedule();
             }
         } finally {
             queuelock.unlock();
@@ -134,6 +253,18 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
     }
 
 
+    /**
+     * Queues this queue to the dispatcher, through the scheduler if there is one.
+     */
+    private void schedule() {
+        if (scheduler != null) {
+            scheduler.activate(this);
+        } else {
+            dispatcher.execute(this);
+        }
+    }
+
+
     /**
      * Registers the callback to be used during order processing.
      * @param proc - the callback to be registered
@@ -144,27 +275,122 @@ public final class OrderQueueImpl<E extends Order> implements OrderQueue<E>, Run
     }
 
 
+    /**
+     * Shares the dispatcher with other queues through a fair scheduler, rather than draining the queue in a single
+     * dispatcher task.
+     * @param scheduler - the scheduler
+     * @param weight - the share of the scheduler's rounds to be given to this queue, relative to other queues
+     */
+    public void setScheduler(final FairOrderScheduler scheduler, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least one: " + weight);
+        }
+        this.scheduler = scheduler;
+        this.weight = weight;
+    }
+
+
+    /**
+     * Gets the share of the scheduler's rounds given to this queue.
+     * @return - the weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+
     /**
      * Dispatcher process
      */
     @Override
     public void run() {
-        while (true) {
-            queuelock.lock();
-            Order order;
-            try {
-                order = dequeue();
-                if (order == null) {
-                    isQueuedToPool.set(false);
-                    break;
+        drain(Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Processes dispatchable orders until the queue has no more dispatchable orders or the time budget is used up, at
+     * least one order is processed if one is dispatchable.
+     * @param budget - the processing time budget in nanoseconds
+     * @return - true if the budget was used up and more orders may be dispatchable, false if the queue ran out of
+     * dispatchable orders
+     */
+    boolean drain(final long budget) {
+        final long start = System.nanoTime();
+        final OrderProcessor op = orderProcessor;
+        if (op instanceof BatchOrderProcessor) {
+            List<E> batch;
+            while (!(batch = nextBatch()).isEmpty()) {
+                ((BatchOrderProcessor) op).processAll(batch);
+                if (System.nanoTime() - start >= budget) {
+                    return true;
+                }
+            }
+        } else {
+            E order;
+            while ((order = next()) != null) {
+                process(order);
+                if (System.nanoTime() - start >= budget) {
+                    return true;
                 }
-            } finally {
-                queuelock.unlock();
             }
-            OrderProcessor op = orderProcessor;
-            if (op != null) {
-                op.process(order);
+        }
+        return false;
+    }
+
+
+    /**
+     * Removes the next dispatchable order, if there is none the queue's scheduling credit is given up and the queue is
+     * marked as no longer queued to the dispatcher.
+     * @return - the next dispatchable order, or null if there are no dispatchable orders
+     */
+    private E next() {
+        queuelock.lock();
+        try {
+            final E order = dequeue();
+            if (order == null) {
+                deficit = 0L;
+                isQueuedToPool.set(false);
             }
+            return order;
+        } finally {
+            queuelock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes up to MAX_BATCH dispatchable orders under a single lock acquisition, if there are none the queue's
+     * scheduling credit is given up and the queue is marked as no longer queued to the dispatcher.
+     * @return - the dispatchable orders, in priority order, empty if there are none
+     */
+    private List<E> nextBatch() {
+        final List<E> batch = new ArrayList<E>();
+        queuelock.lock();
+        try {
+            E order;
+            while (batch.size() < MAX_BATCH && (order = dequeue()) != null) {
+                batch.add(order);
+            }
+            if (batch.isEmpty()) {
+                deficit = 0L;
+                isQueuedToPool.set(false);
+            }
+        } finally {
+            queuelock.unlock();
+        }
+        return batch;
+    }
+
+
+    /**
+     * Passes an order to the registered processor.
+     * @param order - the order
+     */
+    private void process(final E order) {
+        OrderProcessor op = orderProcessor;
+        if (op != null) {
+            op.process(order);
         }
     }
 }
@@ -0,0 +1,75 @@
+package edu.uw.danco.broker;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/17/13
+ * Time: 7:20 PM
+ *
+ * Constants for the command strings composing the protocol between a PartitionedBrokerRouter and its
+ * BrokerPartitionServers. Every request is a single line, and is answered by a single line. Text fields are URL
+ * encoded, so they never contain the delimiter or a newline.
+ *
+ * The protocol supports the following commands:
+ * Request:  [CREATE_ACCOUNT_CMD][ELEMENT_DELIMITER]name[ELEMENT_DELIMITER]password[ELEMENT_DELIMITER]balance
+ * Response: [OK_RESPONSE][ELEMENT_DELIMITER]account
+ * -
+ * Request:  [DELETE_ACCOUNT_CMD][ELEMENT_DELIMITER]name
+ * Response: [OK_RESPONSE]
+ * -
+ * Request:  [GET_ACCOUNT_CMD][ELEMENT_DELIMITER]name[ELEMENT_DELIMITER]password
+ * Response: [OK_RESPONSE][ELEMENT_DELIMITER]account
+ * -
+ * Request:  [REQUEST_QUOTE_CMD][ELEMENT_DELIMITER]symbol
+ * Response: [OK_RESPONSE][ELEMENT_DELIMITER]symbol[ELEMENT_DELIMITER]price
+ * -
+ * Request:  [PLACE_ORDER_CMD][ELEMENT_DELIMITER][MARKET_BUY]|[MARKET_SELL]
+ *           [ELEMENT_DELIMITER]account_id[ELEMENT_DELIMITER]symbol[ELEMENT_DELIMITER]shares
+ * Response: [OK_RESPONSE]
+ * -
+ * Request:  [PLACE_ORDER_CMD][ELEMENT_DELIMITER][STOP_BUY]|[STOP_SELL]
+ *           [ELEMENT_DELIMITER]account_id[ELEMENT_DELIMITER]symbol[ELEMENT_DELIMITER]shares
+ *           [ELEMENT_DELIMITER]price[[ELEMENT_DELIMITER]expires_at]
+ * Response: [OK_RESPONSE]
+ * -
+ * Request:  [PLACE_ORDER_CMD][ELEMENT_DELIMITER][TRAILING_BUY]|[TRAILING_SELL]
+ *           [ELEMENT_DELIMITER]account_id[ELEMENT_DELIMITER]symbol[ELEMENT_DELIMITER]shares
+ *           [ELEMENT_DELIMITER]offset
+ * Response: [OK_RESPONSE]
+ *
+ * An account is sent as name, balance, hex password hash, full name, phone and email, separated by
+ * [ELEMENT_DELIMITER]. A good-till-time order's expires_at is the wall clock time, in milliseconds, at which it
+ * expires, the router and the partitions share a host and so a clock. Any request may instead be answered with
+ * [ERROR_RESPONSE][ELEMENT_DELIMITER]message.
+ */
+public enum PartitionProtocol {
+    CREATE_ACCOUNT_CMD("CREATE_ACCOUNT_CMD"),
+    DELETE_ACCOUNT_CMD("DELETE_ACCOUNT_CMD"),
+    GET_ACCOUNT_CMD("GET_ACCOUNT_CMD"),
+    REQUEST_QUOTE_CMD("REQUEST_QUOTE_CMD"),
+    PLACE_ORDER_CMD("PLACE_ORDER_CMD"),
+
+    MARKET_BUY("MARKET_BUY"),
+    MARKET_SELL("MARKET_SELL"),
+    STOP_BUY("STOP_BUY"),
+    STOP_SELL("STOP_SELL"),
+    TRAILING_BUY("TRAILING_BUY"),
+    TRAILING_SELL("TRAILING_SELL"),
+
+    OK_RESPONSE("OK"),
+    ERROR_RESPONSE("ERROR"),
+
+    ELEMENT_DELIMITER(":");
+
+
+    private final String value;
+
+    private PartitionProtocol(String value) {
+        this.value = value;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
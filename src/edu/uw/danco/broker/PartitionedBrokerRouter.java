@@ -0,0 +1,415 @@
+package edu.uw.danco.broker;
+
+import edu.uw.danco.account.AccountImpl;
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountException;
+import edu.uw.ext.framework.broker.Broker;
+import edu.uw.ext.framework.broker.BrokerException;
+import edu.uw.ext.framework.exchange.StockQuote;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.MarketSellOrder;
+import edu.uw.ext.framework.order.Order;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/17/13
+ * Time: 8:30 PM
+ *
+ * A broker whose accounts are partitioned across several broker processes on the same host. Each account is owned by
+ * one partition, chosen by hashing the account name, and the account calls and orders for the account are forwarded
+ * to the owning partition's BrokerPartitionServer over a loopback connection. Quotes, which every partition can
+ * answer, are spread across the partitions by ticker.
+ *
+ * Each partition has a small pool of connections, so requests from several threads to the same partition are served
+ * in parallel rather than waiting for each other's round trips.
+ *
+ * The accounts returned are snapshots of the account held by the partition, changes to them are not sent back. An
+ * order is placed on the partition as a new order with the same fields, so it has its own order id there.
+ */
+public final class PartitionedBrokerRouter implements Broker {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(PartitionedBrokerRouter.class.getName());
+
+    /** The character set of the partition connections */
+    private static final String CHARSET = "UTF-8";
+
+    /** The most connections open to a partition at once */
+    private static final int CONNECTIONS_PER_PARTITION = 4;
+
+    /** The name of the brokerage */
+    private final String name;
+
+    /** The connections to the partitions, indexed by partition */
+    private final Partition[] partitions;
+
+
+    /**
+     * A connection to a partition server, requests on the connection are made one at a time.
+     */
+    private static final class Connection {
+        /** The connection */
+        private final Socket socket;
+
+        /** Reads responses */
+        private final BufferedReader in;
+
+        /** Writes requests */
+        private final PrintWriter out;
+
+
+        /**
+         * Constructor, opens the connection.
+         * @param address - the partition server's address
+         * @throws IOException - if the connection can't be opened
+         */
+        private Connection(final InetSocketAddress address) throws IOException {
+            socket = new Socket(address.getAddress(), address.getPort());
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), CHARSET), true);
+        }
+
+
+        /**
+         * Sends a request and waits for its response.
+         * @param request - the request line
+         * @return - the response line
+         * @throws IOException - if the request can't be sent or the response read
+         */
+        private String call(final String request) throws IOException {
+            out.println(request);
+            if (out.checkError()) {
+                throw new IOException("Unable to send request to partition " + socket.getRemoteSocketAddress());
+            }
+            final String response = in.readLine();
+            if (response == null) {
+                throw new IOException("Partition " + socket.getRemoteSocketAddress() + " closed the connection");
+            }
+            return response;
+        }
+
+
+        /**
+         * Closes the connection.
+         */
+        private void close() {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close partition connection", e);
+            }
+        }
+    }
+
+
+    /**
+     * The pool of connections to a partition server. Each request takes an idle connection, or opens one if fewer
+     * than CONNECTIONS_PER_PARTITION are in use, and waits for one to be returned otherwise.
+     */
+    private static final class Partition {
+        /** The partition server's address */
+        private final InetSocketAddress address;
+
+        /** The connections not in use */
+        private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+
+        /** Limits the connections in use */
+        private final Semaphore permits = new Semaphore(CONNECTIONS_PER_PARTITION);
+
+        /** True once the router has been closed, connections are then closed once used */
+        private volatile boolean closed;
+
+
+        /**
+         * Constructor
+         * @param address - the partition server's address
+         */
+        private Partition(final InetSocketAddress address) {
+            this.address = address;
+        }
+
+
+        /**
+         * Sends a request and waits for its response, connecting if necessary. A failed connection is closed, the
+         * failed request is not retried as it may already have been executed.
+         * @param request - the request line
+         * @return - the response line
+         * @throws BrokerException - if the partition can't be reached
+         */
+        private String call(final String request) throws BrokerException {
+            try {
+                permits.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BrokerException("Interrupted waiting for a connection to partition " + address, e);
+            }
+            Connection connection = idle.poll();
+            try {
+                if (connection == null) {
+                    connection = new Connection(address);
+                }
+                final String response = connection.call(request);
+                idle.add(connection);
+                if (closed) {
+                    disconnect();
+                }
+                return response;
+            } catch (final IOException e) {
+                if (connection != null) {
+                    connection.close();
+                }
+                throw new BrokerException("Unable to reach partition " + address, e);
+            } finally {
+                permits.release();
+            }
+        }
+
+
+        /**
+         * Closes the idle connections, and those in use once their requests complete.
+         */
+        private void close() {
+            closed = true;
+            disconnect();
+        }
+
+
+        /**
+         * Closes the idle connections.
+         */
+        private void disconnect() {
+            Connection connection;
+            while ((connection = idle.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+
+    /**
+     * Constructor, connections are opened when first used.
+     * @param name - the name of the brokerage
+     * @param partitionAddresses - the addresses of the partition servers, in partition order
+     */
+    public PartitionedBrokerRouter(final String name, final List<InetSocketAddress> partitionAddresses) {
+        if (partitionAddresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one partition is required");
+        }
+        this.name = name;
+        partitions = new Partition[partitionAddresses.size()];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(partitionAddresses.get(i));
+        }
+    }
+
+
+    /**
+     * Gets the partition owning a key.
+     * @param key - the account name, or ticker
+     * @return - the index of the owning partition
+     */
+    public int partitionOf(final String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % partitions.length;
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+
+    @Override
+    public Account createAccount(final String username, final String password, final int balance)
+            throws BrokerException {
+        return decodeAccount(call(username, PartitionProtocol.CREATE_ACCOUNT_CMD,
+                                  BrokerPartitionServer.encode(username), BrokerPartitionServer.encode(password),
+                                  Integer.toString(balance)));
+    }
+
+
+    @Override
+    public void deleteAccount(final String username) throws BrokerException {
+        call(username, PartitionProtocol.DELETE_ACCOUNT_CMD, BrokerPartitionServer.encode(username));
+    }
+
+
+    @Override
+    public Account getAccount(final String username, final String password) throws BrokerException {
+        return decodeAccount(call(username, PartitionProtocol.GET_ACCOUNT_CMD,
+                                  BrokerPartitionServer.encode(username), BrokerPartitionServer.encode(password)));
+    }
+
+
+    @Override
+    public StockQuote requestQuote(final String ticker) throws BrokerException {
+        final String[] fields = call(ticker, PartitionProtocol.REQUEST_QUOTE_CMD, BrokerPartitionServer.encode(ticker));
+        return new StockQuote(BrokerPartitionServer.decode(fields[1]), Integer.parseInt(fields[2]));
+    }
+
+
+    @Override
+    public void placeOrder(final MarketBuyOrder order) throws BrokerException {
+        placeOrder(PartitionProtocol.MARKET_BUY, order);
+    }
+
+
+    @Override
+    public void placeOrder(final MarketSellOrder order) throws BrokerException {
+        placeOrder(PartitionProtocol.MARKET_SELL, order);
+    }
+
+
+    @Override
+    public void placeOrder(final StopBuyOrder order) throws BrokerException {
+        placeOrder(PartitionProtocol.STOP_BUY, order, Integer.toString(order.getPrice()));
+    }
+
+
+    @Override
+    public void placeOrder(final StopSellOrder order) throws BrokerException {
+        placeOrder(PartitionProtocol.STOP_SELL, order, Integer.toString(order.getPrice()));
+    }
+
+
+    /**
+     * Place a trailing stop buy order, the order is executed once the price rises by the offset above the lowest price
+     * seen since it was placed. The partition's broker must be a BrokerImpl.
+     * @param order - the order to execute when the trailing stop triggers
+     * @param offset - the distance above the low at which the order triggers
+     * @throws BrokerException - if the partition rejects the order or can't be reached
+     */
+    public void placeTrailingStopOrder(final MarketBuyOrder order, final int offset) throws BrokerException {
+        placeOrder(PartitionProtocol.TRAILING_BUY, order, Integer.toString(offset));
+    }
+
+
+    /**
+     * Place a trailing stop sell order, the order is executed once the price falls by the offset below the highest
+     * price seen since it was placed. The partition's broker must be a BrokerImpl.
+     * @param order - the order to execute when the trailing stop triggers
+     * @param offset - the distance below the high at which the order triggers
+     * @throws BrokerException - if the partition rejects the order or can't be reached
+     */
+    public void placeTrailingStopOrder(final MarketSellOrder order, final int offset) throws BrokerException {
+        placeOrder(PartitionProtocol.TRAILING_SELL, order, Integer.toString(offset));
+    }
+
+
+    /**
+     * Place a good-till-time StopBuy order, the order is removed if it has not been triggered by the expiration time.
+     * The partition's broker must be a BrokerImpl.
+     * @param order - the order to place for a specific stock at a specific price
+     * @param expiresAt - the wall clock time, in milliseconds, at which the order expires
+     * @throws BrokerException - if the partition rejects the order or can't be reached
+     */
+    public void placeOrder(final StopBuyOrder order, final long expiresAt) throws BrokerException {
+        placeOrder(PartitionProtocol.STOP_BUY, order, Integer.toString(order.getPrice()), Long.toString(expiresAt));
+    }
+
+
+    /**
+     * Place a good-till-time StopSell order, the order is removed if it has not been triggered by the expiration
+     * time. The partition's broker must be a BrokerImpl.
+     * @param order - the order to place for a specific stock at a specified price
+     * @param expiresAt - the wall clock time, in milliseconds, at which the order expires
+     * @throws BrokerException - if the partition rejects the order or can't be reached
+     */
+    public void placeOrder(final StopSellOrder order, final long expiresAt) throws BrokerException {
+        placeOrder(PartitionProtocol.STOP_SELL, order, Integer.toString(order.getPrice()), Long.toString(expiresAt));
+    }
+
+
+    /**
+     * Closes the connections to the partitions, the partitions themselves keep running.
+     * @throws BrokerException
+     */
+    @Override
+    public void close() throws BrokerException {
+        for (final Partition partition : partitions) {
+            partition.close();
+        }
+    }
+
+
+    /**
+     * Forwards an order to the partition owning its account.
+     * @param type - the order type
+     * @param order - the order
+     * @param extra - any fields following the number of shares
+     * @throws BrokerException - if the partition rejects the order or can't be reached
+     */
+    private void placeOrder(final PartitionProtocol type, final Order order, final String... extra)
+            throws BrokerException {
+        final String[] fields = new String[4 + extra.length];
+        fields[0] = type.toString();
+        fields[1] = BrokerPartitionServer.encode(order.getAccountId());
+        fields[2] = BrokerPartitionServer.encode(order.getStockTicker());
+        fields[3] = Integer.toString(order.getNumberOfShares());
+        System.arraycopy(extra, 0, fields, 4, extra.length);
+        call(order.getAccountId(), PartitionProtocol.PLACE_ORDER_CMD, fields);
+    }
+
+
+    /**
+     * Sends a request to the partition owning a key.
+     * @param key - the account name or ticker the request concerns
+     * @param cmd - the command
+     * @param args - the encoded arguments
+     * @return - the fields of the successful response
+     * @throws BrokerException - if the partition returns an error or can't be reached
+     */
+    private String[] call(final String key, final PartitionProtocol cmd, final String... args)
+            throws BrokerException {
+        final StringBuilder sb = new StringBuilder(cmd.toString());
+        for (final String arg : args) {
+            sb.append(PartitionProtocol.ELEMENT_DELIMITER);
+            sb.append(arg);
+        }
+        final String[] fields = BrokerPartitionServer.FIELDS.split(partitions[partitionOf(key)].call(sb.toString()), -1);
+        if (!fields[0].equals(PartitionProtocol.OK_RESPONSE.toString())) {
+            throw new BrokerException(fields.length > 1 ? BrokerPartitionServer.decode(fields[1]) : "Request failed");
+        }
+        return fields;
+    }
+
+
+    /**
+     * Builds an account snapshot from the fields of a response.
+     * @param fields - the response fields, the account starting with the second field
+     * @return - the account
+     * @throws BrokerException - if the account is invalid
+     */
+    private static Account decodeAccount(final String[] fields) throws BrokerException {
+        try {
+            final AccountImpl account = new AccountImpl();
+            account.setName(BrokerPartitionServer.decode(fields[1]));
+            account.setBalance(Integer.parseInt(fields[2]));
+            account.setPasswordHash(BrokerPartitionServer.fromHex(fields[3]));
+            account.setFullName(BrokerPartitionServer.decode(fields[4]));
+            account.setPhone(BrokerPartitionServer.decode(fields[5]));
+            account.setEmail(BrokerPartitionServer.decode(fields[6]));
+            return account;
+        } catch (final AccountException e) {
+            throw new BrokerException(e);
+        }
+    }
+}
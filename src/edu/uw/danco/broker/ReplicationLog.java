@@ -0,0 +1,53 @@
+package edu.uw.danco.broker;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.order.Order;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/18/13
+ * Time: 7:05 PM
+ *
+ * Receives the changes to a broker's in-memory order book and to its accounts, so they can be replicated. The methods
+ * are called on the broker's order handling threads and must return without blocking.
+ */
+public interface ReplicationLog {
+
+    /**
+     * Records an order which has been accepted by the broker, called before the order is queued.
+     * @param order - the order
+     * @param expiresAt - the wall clock time, in milliseconds, at which the order expires, 0 if it does not expire
+     * @param trailingOffset - the trailing stop offset for a trailing stop order, otherwise 0
+     */
+    void orderPlaced(Order order, long expiresAt, int trailingOffset);
+
+
+    /**
+     * Records an order which has left the order book, either executed or expired.
+     * @param order - the order
+     */
+    void orderClosed(Order order);
+
+
+    /**
+     * Records a change to an account's balance.
+     * @param accountName - the account name
+     * @param delta - the change to the balance, in cents
+     */
+    void balanceChanged(String accountName, int delta);
+
+
+    /**
+     * Records the creation of an account.
+     * @param account - the new account
+     */
+    void accountCreated(Account account);
+
+
+    /**
+     * Records the deletion of an account.
+     * @param accountName - the account name
+     */
+    void accountDeleted(String accountName);
+}
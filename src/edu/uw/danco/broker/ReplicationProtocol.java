@@ -0,0 +1,63 @@
+package edu.uw.danco.broker;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/18/13
+ * Time: 7:20 PM
+ *
+ * Constants for the replication log shipped from a primary broker's LogShipper to a StandbyBroker. The log is a
+ * sequence of records, one per line, each prefixed by its sequence number. Records are shipped in batches terminated
+ * by an END line, the standby applies a batch once it has been received in full and acknowledges it with the sequence
+ * number of its last record. Text fields are URL encoded, so they never contain the delimiter or a newline.
+ *
+ * On connection the standby sends:
+ *           [HELLO][ELEMENT_DELIMITER]last_applied_sequence
+ * The primary then sends batches of records:
+ *           sequence[ELEMENT_DELIMITER][ORDER_PLACED][ELEMENT_DELIMITER]order_id[ELEMENT_DELIMITER]
+ *              [MARKET_BUY]|[MARKET_SELL]|[STOP_BUY]|[STOP_SELL][ELEMENT_DELIMITER]account_id[ELEMENT_DELIMITER]
+ *              symbol[ELEMENT_DELIMITER]shares[ELEMENT_DELIMITER]price[ELEMENT_DELIMITER]expires_at
+ *              [ELEMENT_DELIMITER]trailing_offset
+ *           sequence[ELEMENT_DELIMITER][ORDER_CLOSED][ELEMENT_DELIMITER]order_id
+ *           sequence[ELEMENT_DELIMITER][BALANCE_CHANGED][ELEMENT_DELIMITER]account_id[ELEMENT_DELIMITER]delta
+ *           sequence[ELEMENT_DELIMITER][ACCOUNT_CREATED][ELEMENT_DELIMITER]account_id[ELEMENT_DELIMITER]
+ *              hex_password_hash[ELEMENT_DELIMITER]balance
+ *           sequence[ELEMENT_DELIMITER][ACCOUNT_DELETED][ELEMENT_DELIMITER]account_id
+ *           [END]
+ * and the standby answers each batch with:
+ *           [ACK][ELEMENT_DELIMITER]last_applied_sequence
+ *
+ * A batch starting with a sequence[ELEMENT_DELIMITER][RESET] record replaces the standby's orders with the orders
+ * placed records following it, all of which carry the reset's sequence number.
+ */
+public enum ReplicationProtocol {
+    HELLO("HELLO"),
+    ACK("ACK"),
+    END("END"),
+    RESET("RESET"),
+
+    ORDER_PLACED("ORDER_PLACED"),
+    ORDER_CLOSED("ORDER_CLOSED"),
+    BALANCE_CHANGED("BALANCE_CHANGED"),
+    ACCOUNT_CREATED("ACCOUNT_CREATED"),
+    ACCOUNT_DELETED("ACCOUNT_DELETED"),
+
+    MARKET_BUY("MARKET_BUY"),
+    MARKET_SELL("MARKET_SELL"),
+    STOP_BUY("STOP_BUY"),
+    STOP_SELL("STOP_SELL"),
+
+    ELEMENT_DELIMITER(":");
+
+
+    private final String value;
+
+    private ReplicationProtocol(String value) {
+        this.value = value;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,346 @@
+package edu.uw.danco.broker;
+
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountException;
+import edu.uw.ext.framework.account.AccountManager;
+import edu.uw.ext.framework.broker.BrokerException;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.MarketSellOrder;
+import edu.uw.ext.framework.order.Order;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/18/13
+ * Time: 8:30 PM
+ *
+ * The standby for a primary broker. The standby listens on a loopback port for the primary's LogShipper and applies
+ * the shipped log as it arrives: account changes are applied to the standby's account manager, which must have its
+ * own copy of the primary's account store, and the primary's open orders are held ready to be placed. The standby's
+ * broker holds no orders until takeOver is called, which stops applying the log and places the open orders with the
+ * broker in one batch.
+ *
+ * The log carries each trailing stop's offset but not the best price the primary had seen for it, a trailing stop
+ * recreated at takeover starts tracking from the price at takeover. A move in the stop's favour while no broker was
+ * following the price is therefore not reflected, the stop triggers at the offset from the price at takeover.
+ */
+public final class StandbyBroker {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(StandbyBroker.class.getName());
+
+    /** The character set of the log */
+    private static final String CHARSET = "UTF-8";
+
+    /** The broker which takes over from the primary */
+    private final BrokerImpl broker;
+
+    /** The account manager the account changes are applied to */
+    private final AccountManager accountManager;
+
+    /** The listening socket */
+    private final ServerSocket serverSocket;
+
+    /** The primary's open orders, and their placement details, by the primary's order id */
+    private final Map<Integer, OpenOrder> openOrders = new LinkedHashMap<Integer, OpenOrder>();
+
+    /** The sequence number of the last record applied */
+    private long applied;
+
+    /** The connection from the primary, null if not connected */
+    private volatile Socket connection;
+
+    /** True once the standby has taken over, or has been closed */
+    private volatile boolean stopped;
+
+
+    /**
+     * An order placed with the primary, recreated on the standby.
+     */
+    private static final class OpenOrder {
+        /** The order */
+        private final Order order;
+
+        /** The wall clock time, in milliseconds, at which the order expires, 0 if it does not expire */
+        private final long expiresAt;
+
+        /** The trailing stop offset for a trailing stop order, otherwise 0 */
+        private final int trailingOffset;
+
+
+        /**
+         * Constructor
+         * @param order - the order
+         * @param expiresAt - the expiration time, 0 if the order does not expire
+         * @param trailingOffset - the trailing stop offset, or 0
+         */
+        private OpenOrder(final Order order, final long expiresAt, final int trailingOffset) {
+            this.order = order;
+            this.expiresAt = expiresAt;
+            this.trailingOffset = trailingOffset;
+        }
+    }
+
+
+    /**
+     * Constructor, binds the loopback port.
+     * @param broker - the broker which takes over from the primary
+     * @param accountManager - the account manager of the broker
+     * @param port - the loopback port the primary ships its log to
+     * @throws IOException - if the port can't be bound
+     */
+    public StandbyBroker(final BrokerImpl broker, final AccountManager accountManager, final int port)
+            throws IOException {
+        this.broker = broker;
+        this.accountManager = accountManager;
+        serverSocket = new ServerSocket(port, 1, InetAddress.getByName(null));
+    }
+
+
+    /**
+     * Starts accepting the primary's log.
+     */
+    public void start() {
+        final Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "StandbyBroker-" + serverSocket.getLocalPort());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+
+    /**
+     * Gets the sequence number of the last record applied.
+     * @return - the sequence number
+     */
+    public synchronized long getAppliedSequence() {
+        return applied;
+    }
+
+
+    /**
+     * Gets the number of the primary's open orders held by the standby.
+     * @return - the number of open orders
+     */
+    public synchronized int getOpenOrderCount() {
+        return openOrders.size();
+    }
+
+
+    /**
+     * Takes over from the primary. The log is no longer applied, the primary should already have failed or been
+     * stopped, and the open orders are placed with the broker. Good-till-time orders which have expired since they
+     * were placed are dropped.
+     * @return - the broker, now holding the primary's open orders
+     * @throws BrokerException - if the orders can't be placed
+     */
+    public synchronized BrokerImpl takeOver() throws BrokerException {
+        final long start = System.nanoTime();
+        close();
+
+        final long now = System.currentTimeMillis();
+        final List<Order> orders = new ArrayList<Order>();
+        for (final OpenOrder open : openOrders.values()) {
+            if (open.trailingOffset > 0) {
+                if (open.order instanceof MarketBuyOrder) {
+                    broker.placeTrailingStopOrder((MarketBuyOrder) open.order, open.trailingOffset);
+                } else {
+                    broker.placeTrailingStopOrder((MarketSellOrder) open.order, open.trailingOffset);
+                }
+            } else if (open.expiresAt == 0L) {
+                orders.add(open.order);
+            } else if (open.expiresAt > now) {
+                if (open.order instanceof StopBuyOrder) {
+                    broker.placeOrder((StopBuyOrder) open.order, open.expiresAt);
+                } else {
+                    broker.placeOrder((StopSellOrder) open.order, open.expiresAt);
+                }
+            }
+        }
+        broker.placeOrders(orders);
+
+        LOGGER.info(String.format("Took over at sequence %d with %d open orders in %.2f ms", applied,
+                                  openOrders.size(), (System.nanoTime() - start) / 1e6));
+        openOrders.clear();
+        return broker;
+    }
+
+
+    /**
+     * Stops applying the log, without taking over.
+     */
+    public void close() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to close standby server socket", e);
+        }
+        final Socket s = connection;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (final IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close primary connection", e);
+            }
+        }
+    }
+
+
+    /**
+     * Accepts the primary's connections until stopped, the primary reconnects if its connection fails.
+     */
+    private void receive() {
+        while (!stopped) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connection = socket;
+                serve(socket);
+            } catch (final SocketException e) {
+                if (!stopped) {
+                    LOGGER.log(Level.SEVERE, "Standby server socket failed", e);
+                }
+                return;
+            } catch (final IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to accept primary connection", e);
+            }
+        }
+    }
+
+
+    /**
+     * Applies the batches shipped on a connection until the primary disconnects.
+     * @param socket - the primary's connection
+     */
+    private void serve(final Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+            final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), CHARSET), true);
+            out.println(ReplicationProtocol.HELLO.toString() + ReplicationProtocol.ELEMENT_DELIMITER
+                        + getAppliedSequence());
+
+            final List<String> batch = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.equals(ReplicationProtocol.END.toString())) {
+                    batch.add(line);
+                    continue;
+                }
+                out.println(ReplicationProtocol.ACK.toString() + ReplicationProtocol.ELEMENT_DELIMITER + apply(batch));
+                batch.clear();
+            }
+        } catch (final IOException e) {
+            if (!stopped) {
+                LOGGER.log(Level.WARNING, "Primary connection failed", e);
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close primary connection", e);
+            }
+        }
+    }
+
+
+    /**
+     * Applies a complete batch, records which have already been applied are skipped.
+     * @param batch - the encoded records
+     * @return - the sequence number of the last record applied
+     * @throws IOException - if the standby has taken over
+     */
+    private synchronized long apply(final List<String> batch) throws IOException {
+        if (stopped) {
+            throw new IOException("Standby has stopped applying the log");
+        }
+        boolean reset = false;
+        for (final String line : batch) {
+            final String[] fields = BrokerPartitionServer.FIELDS.split(line, -1);
+            final long seq = Long.parseLong(fields[0]);
+            final String type = fields[1];
+            if (type.equals(ReplicationProtocol.RESET.toString())) {
+                LOGGER.warning("Primary reset the open orders at sequence " + seq);
+                openOrders.clear();
+                reset = true;
+            } else if (reset || seq > applied) {
+                apply(type, fields);
+            }
+            applied = reset ? seq : Math.max(applied, seq);
+        }
+        return applied;
+    }
+
+
+    /**
+     * Applies a record.
+     * @param type - the record type
+     * @param fields - the record's fields
+     */
+    private void apply(final String type, final String[] fields) {
+        if (type.equals(ReplicationProtocol.ORDER_PLACED.toString())) {
+            final int orderId = Integer.parseInt(fields[2]);
+            final String orderType = fields[3];
+            final String account = BrokerPartitionServer.decode(fields[4]);
+            final String ticker = BrokerPartitionServer.decode(fields[5]);
+            final int shares = Integer.parseInt(fields[6]);
+            final int price = Integer.parseInt(fields[7]);
+            final Order order;
+            if (orderType.equals(ReplicationProtocol.STOP_BUY.toString())) {
+                order = new StopBuyOrder(account, shares, ticker, price);
+            } else if (orderType.equals(ReplicationProtocol.STOP_SELL.toString())) {
+                order = new StopSellOrder(account, shares, ticker, price);
+            } else if (orderType.equals(ReplicationProtocol.MARKET_BUY.toString())) {
+                order = new MarketBuyOrder(account, shares, ticker);
+            } else {
+                order = new MarketSellOrder(account, shares, ticker);
+            }
+            openOrders.put(orderId, new OpenOrder(order, Long.parseLong(fields[8]), Integer.parseInt(fields[9])));
+        } else if (type.equals(ReplicationProtocol.ORDER_CLOSED.toString())) {
+            openOrders.remove(Integer.parseInt(fields[2]));
+        } else {
+            final String accountName = BrokerPartitionServer.decode(fields[2]);
+            try {
+                if (type.equals(ReplicationProtocol.BALANCE_CHANGED.toString())) {
+                    final Account account = accountManager.getAccount(accountName);
+                    if (account == null) {
+                        LOGGER.warning("Balance change for unknown account " + accountName);
+                    } else {
+                        account.setBalance(account.getBalance() + Integer.parseInt(fields[3]));
+                        accountManager.persist(account);
+                    }
+                } else if (type.equals(ReplicationProtocol.ACCOUNT_CREATED.toString())) {
+                    final Account account = accountManager.createAccount(accountName, "",
+                                                                         Integer.parseInt(fields[4]));
+                    account.setPasswordHash(BrokerPartitionServer.fromHex(fields[3]));
+                    accountManager.persist(account);
+                } else if (type.equals(ReplicationProtocol.ACCOUNT_DELETED.toString())) {
+                    accountManager.deleteAccount(accountName);
+                }
+            } catch (final AccountException e) {
+                LOGGER.log(Level.SEVERE, "Unable to apply " + type + " for account " + accountName, e);
+            }
+        }
+    }
+}
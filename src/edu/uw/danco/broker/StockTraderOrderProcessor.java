@@ -1,12 +1,19 @@
 package edu.uw.danco.broker;
 
+import edu.uw.danco.exchange.AsyncStockExchange;
+import edu.uw.danco.exchange.ExchangeCallback;
+import edu.uw.ext.framework.account.Account;
 import edu.uw.ext.framework.account.AccountException;
 import edu.uw.ext.framework.account.AccountManager;
 import edu.uw.ext.framework.broker.OrderProcessor;
 import edu.uw.ext.framework.exchange.StockExchange;
+import edu.uw.ext.framework.exchange.StockQuote;
 import edu.uw.ext.framework.order.Order;
 import org.springframework.jmx.export.UnableToRegisterMBeanException;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,6 +24,13 @@ import java.util.logging.Logger;
  * Time: 4:31 PM
  *
  * OrderProcessor implementation that executes orders through the broker.
+ *
+ * When the exchange is an AsyncStockExchange, and the processor has an executor, no thread waits on the exchange: the
+ * processor asks for the exchange's state and the stock's price together and returns. Once both have arrived the
+ * account is adjusted and the trade sent, on the executor, as the responses arrive on the thread reading the
+ * exchange's connection, which mustn't block on the account store. The order is recorded as closed once the trade
+ * has completed. If the trade fails the account's adjustment is reversed, and the failure is logged. If the exchange
+ * stops responding the order waits, without holding a thread, until its connection fails.
  */
 public class StockTraderOrderProcessor implements OrderProcessor {
 
@@ -29,6 +43,15 @@ public class StockTraderOrderProcessor implements OrderProcessor {
     /** The exchange used for the execution of orders */
     private StockExchange exchange;
 
+    /** Supplies accounts which have been prefetched, may be null */
+    private AccountCache accountCache;
+
+    /** Runs the steps which follow an exchange response, null to execute orders synchronously */
+    private Executor executor;
+
+    /** Receives the balance changes and the executed orders, may be null */
+    private volatile ReplicationLog replicationLog;
+
 
     /**
      * Constructor
@@ -41,20 +64,288 @@ public class StockTraderOrderProcessor implements OrderProcessor {
     }
 
 
+    /**
+     * Constructor
+     * @param accountManager  - the account manager to be used to update account balances.
+     * @param exchange - the exchange to be used for the execution of orders
+     * @param accountCache - supplies accounts which have been prefetched
+     */
+    public StockTraderOrderProcessor(final AccountManager accountManager, final StockExchange exchange,
+                                     final AccountCache accountCache) {
+        this(accountManager, exchange);
+        this.accountCache = accountCache;
+    }
+
+
+    /**
+     * Constructor
+     * @param accountManager  - the account manager to be used to update account balances.
+     * @param exchange - the exchange to be used for the execution of orders
+     * @param accountCache - supplies accounts which have been prefetched
+     * @param executor - runs the steps which follow an exchange response, when the exchange is asynchronous
+     */
+    public StockTraderOrderProcessor(final AccountManager accountManager, final StockExchange exchange,
+                                     final AccountCache accountCache, final Executor executor) {
+        this(accountManager, exchange, accountCache);
+        this.executor = executor;
+    }
+
+
+    /**
+     * Sets the log receiving the balance changes and the orders which have left the broker.
+     * @param replicationLog - the log, or null
+     */
+    public void setReplicationLog(final ReplicationLog replicationLog) {
+        this.replicationLog = replicationLog;
+    }
+
+
     /**
      * Executes for order using the exchange
      * @param order - the order to process
      */
     @Override
     public void process(final Order order) {
+        final ReplicationLog log = replicationLog;
+        if (exchange instanceof AsyncStockExchange && executor != null) {
+            new PendingTrade(order, (AsyncStockExchange) exchange, log).start();
+            return;
+        }
         if (exchange.isOpen()) {
             try {
-                accountManager.getAccount(order.getAccountId())
-                        .reflectOrder(order, exchange.getQuote(order.getStockTicker()).getPrice());
+                final Account account = getAccount(order.getAccountId());
+                reflectOrder(order, account, exchange.getQuote(order.getStockTicker()).getPrice(), log);
                 exchange.executeTrade(order);
             } catch (AccountException e) {
                 LOGGER.log(Level.SEVERE, "Unable to get account for " + order.getAccountId(), e);
             }
         }
+        if (log != null) {
+            log.orderClosed(order);
+        }
+    }
+
+
+    /**
+     * Gets an account, from the cache if there is one.
+     * @param accountId - the account's id
+     * @return - the account
+     * @throws AccountException - if the account can't be fetched
+     */
+    private Account getAccount(final String accountId) throws AccountException {
+        if (accountCache == null) {
+            return accountManager.getAccount(accountId);
+        }
+        return accountCache.take(accountId);
+    }
+
+
+    /**
+     * Adjusts an account's balance for an order and records the change.
+     * @param order - the order
+     * @param account - the order's account
+     * @param price - the stock's price
+     * @param log - receives the balance change, may be null
+     * @return - the change in the balance
+     */
+    private int reflectOrder(final Order order, final Account account, final int price, final ReplicationLog log) {
+        final int balance = account.getBalance();
+        account.reflectOrder(order, price);
+        final int delta = account.getBalance() - balance;
+        if (accountCache != null) {
+            accountCache.invalidate(order.getAccountId());
+        }
+        if (log != null) {
+            log.balanceChanged(order.getAccountId(), delta);
+        }
+        return delta;
+    }
+
+
+    /**
+     * Reverses the adjustment of an account's balance for an order whose trade failed, and records the change.
+     * @param order - the order
+     * @param delta - the change in the balance to be reversed
+     * @param log - receives the balance change, may be null
+     */
+    private void reverseOrder(final Order order, final int delta, final ReplicationLog log) {
+        try {
+            final Account account = accountManager.getAccount(order.getAccountId());
+            if (account == null) {
+                LOGGER.severe("Unable to reverse order id: " + order.getOrderId() + ", no account "
+                              + order.getAccountId());
+                return;
+            }
+            account.setBalance(account.getBalance() - delta);
+            accountManager.persist(account);
+            if (accountCache != null) {
+                accountCache.invalidate(order.getAccountId());
+            }
+            if (log != null) {
+                log.balanceChanged(order.getAccountId(), -delta);
+            }
+        } catch (final AccountException e) {
+            LOGGER.log(Level.SEVERE, "Unable to reverse order id: " + order.getOrderId(), e);
+        }
+    }
+
+
+    /**
+     * An order being executed through an AsyncStockExchange. Each step is started by the response to the previous
+     * one: the exchange's state and the stock's quote, then the account's adjustment and the trade, then the order's
+     * close.
+     */
+    private final class PendingTrade implements Runnable {
+
+        /** The order */
+        private final Order order;
+
+        /** The exchange */
+        private final AsyncStockExchange async;
+
+        /** Receives the balance change and the order's close, may be null */
+        private final ReplicationLog log;
+
+        /** The number of responses still awaited before the trade is sent */
+        private final AtomicInteger awaited = new AtomicInteger(2);
+
+        /** True if the exchange is open */
+        private volatile boolean open;
+
+        /** The stock's quote */
+        private volatile StockQuote quote;
+
+
+        /**
+         * Constructor
+         * @param order - the order
+         * @param async - the exchange
+         * @param log - receives the balance change and the order's close, may be null
+         */
+        private PendingTrade(final Order order, final AsyncStockExchange async, final ReplicationLog log) {
+            this.order = order;
+            this.async = async;
+            this.log = log;
+        }
+
+
+        /**
+         * Asks for the exchange's state and the stock's quote together.
+         */
+        private void start() {
+            async.isOpenAsync().addCallback(new ExchangeCallback<Boolean>() {
+                @Override
+                public void succeeded(final Boolean result) {
+                    open = Boolean.TRUE.equals(result);
+                    responded();
+                }
+
+                @Override
+                public void failed(final Throwable cause) {
+                    abandon(cause);
+                }
+            });
+            async.getQuoteAsync(order.getStockTicker()).addCallback(new ExchangeCallback<StockQuote>() {
+                @Override
+                public void succeeded(final StockQuote result) {
+                    quote = result;
+                    responded();
+                }
+
+                @Override
+                public void failed(final Throwable cause) {
+                    abandon(cause);
+                }
+            });
+        }
+
+
+        /**
+         * Counts a response, once both have arrived the trade is handed to the executor.
+         */
+        private void responded() {
+            if (awaited.decrementAndGet() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (final RejectedExecutionException e) {
+                    LOGGER.log(Level.SEVERE, "Unable to execute order id: " + order.getOrderId(), e);
+                    closed();
+                }
+            }
+        }
+
+
+        /**
+         * Abandons the order if the exchange couldn't be reached, only the first failure is reported.
+         * @param cause - the reason
+         */
+        private void abandon(final Throwable cause) {
+            if (awaited.getAndSet(0) > 0) {
+                LOGGER.log(Level.SEVERE, "Unable to reach the exchange for order id: " + order.getOrderId(), cause);
+                closed();
+            }
+        }
+
+
+        /**
+         * Adjusts the account and sends the trade, if the exchange is open.
+         */
+        @Override
+        public void run() {
+            if (!open || quote == null) {
+                closed();
+                return;
+            }
+            final int delta;
+            try {
+                delta = reflectOrder(order, getAccount(order.getAccountId()), quote.getPrice(), log);
+            } catch (final AccountException e) {
+                LOGGER.log(Level.SEVERE, "Unable to get account for " + order.getAccountId(), e);
+                closed();
+                return;
+            }
+            async.executeTradeAsync(order).addCallback(new ExchangeCallback<Integer>() {
+                @Override
+                public void succeeded(final Integer executionPrice) {
+                    closed();
+                }
+
+                @Override
+                public void failed(final Throwable cause) {
+                    LOGGER.log(Level.SEVERE, "Exception executing order id: " + order.getOrderId(), cause);
+                    reverse(delta);
+                }
+            });
+        }
+
+
+        /**
+         * Reverses the account's adjustment on the executor, then closes the order.
+         * @param delta - the change in the balance to be reversed
+         */
+        private void reverse(final int delta) {
+            final Runnable reversal = new Runnable() {
+                @Override
+                public void run() {
+                    reverseOrder(order, delta, log);
+                    closed();
+                }
+            };
+            try {
+                executor.execute(reversal);
+            } catch (final RejectedExecutionException e) {
+                reversal.run();
+            }
+        }
+
+
+        /**
+         * Records the order as closed, once it has left the broker.
+         */
+        private void closed() {
+            if (log != null) {
+                log.orderClosed(order);
+            }
+        }
     }
 }
@@ -0,0 +1,258 @@
+package edu.uw.danco.broker;
+
+import edu.uw.ext.framework.order.Order;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/9/13
+ * Time: 2:40 PM
+ *
+ * Holds the trailing stop orders for one side of a stock. A trailing stop sell order triggers when the price falls
+ * its offset below the highest price seen since the order was placed, a trailing stop buy order triggers when the
+ * price rises its offset above the lowest price seen since the order was placed.
+ *
+ * Orders are never re-priced individually. Each order is stored by its offset relative to the high-water mark (the
+ * low-water mark for buys) of the cohort it is riding, where a cohort is the set of orders sharing a water mark. A new
+ * best price moves a single water mark, merging any cohorts it passes, and only the orders whose trigger has been
+ * crossed are visited. Cohorts are merged smaller into larger, so an order is moved at most a logarithmic number of
+ * times over its life.
+ *
+ * Prices are normalized so both sides are handled as a sell: buy prices are negated, turning the low-water mark into
+ * a high-water mark.
+ */
+public final class TrailingStopBook {
+
+    /** Orders cohorts by their highest trigger, highest first */
+    private static final Comparator<Cohort> TRIGGER_ORDER = new Comparator<Cohort>() {
+        @Override
+        public int compare(final Cohort c1, final Cohort c2) {
+            final int t1 = c1.topTrigger();
+            final int t2 = c2.topTrigger();
+            int result = t1 > t2 ? -1 : t1 < t2 ? 1 : 0;
+            if (result == 0) {
+                result = c1.mark > c2.mark ? -1 : c1.mark < c2.mark ? 1 : 0;
+            }
+            return result;
+        }
+    };
+
+    /** Orders entries by offset, smallest (the first to trigger) first, then by arrival */
+    private static final Comparator<Entry> OFFSET_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry e1, final Entry e2) {
+            int result = e1.offset < e2.offset ? -1 : e1.offset > e2.offset ? 1 : 0;
+            if (result == 0) {
+                result = e1.sequence < e2.sequence ? -1 : e1.sequence > e2.sequence ? 1 : 0;
+            }
+            return result;
+        }
+    };
+
+    /** True if this book holds trailing stop sell orders, false for trailing stop buy orders */
+    private final boolean sellSide;
+
+    /** The cohorts, keyed by their (normalized) water mark */
+    private final TreeMap<Integer, Cohort> cohorts = new TreeMap<Integer, Cohort>();
+
+    /** The non-empty cohorts, ordered by their highest trigger */
+    private final TreeSet<Cohort> triggers = new TreeSet<Cohort>(TRIGGER_ORDER);
+
+    /** The last (normalized) price */
+    private int lastPrice;
+
+    /** Arrival sequence used to order entries with equal offsets */
+    private long sequence;
+
+    /** The number of orders in the book */
+    private int size;
+
+
+    /**
+     * Constructor
+     * @param sellSide - true if the book is to hold trailing stop sell orders, false for trailing stop buy orders
+     * @param initPrice - the current price of the stock
+     */
+    public TrailingStopBook(final boolean sellSide, final int initPrice) {
+        this.sellSide = sellSide;
+        lastPrice = normalize(initPrice);
+    }
+
+
+    /**
+     * Adds an order, the order's water mark starts at the current price.
+     * @param order - the order to be released when the trailing stop triggers
+     * @param offset - the distance the price must retrace from the water mark to trigger the order, must be positive
+     */
+    public synchronized void add(final Order order, final int offset) {
+        if (offset <= 0) {
+            throw new IllegalArgumentException("Trailing offset must be positive: " + offset);
+        }
+
+        Cohort cohort = cohorts.get(lastPrice);
+        if (cohort == null) {
+            cohort = new Cohort(lastPrice);
+            cohorts.put(lastPrice, cohort);
+        } else {
+            triggers.remove(cohort);
+        }
+        cohort.entries.add(new Entry(order, offset, sequence++));
+        triggers.add(cohort);
+        size++;
+    }
+
+
+    /**
+     * Responds to a price change, advancing the water marks and removing any orders whose trigger has been crossed.
+     * @param price - the new price
+     * @return - the triggered orders, in trigger priority
+     */
+    public synchronized List<Order> adjustPrice(final int price) {
+        final int normalized = normalize(price);
+        raiseMarks(normalized);
+        lastPrice = normalized;
+
+        final List<Order> triggered = new ArrayList<Order>();
+        while (!triggers.isEmpty() && triggers.first().topTrigger() >= normalized) {
+            final Cohort cohort = triggers.pollFirst();
+            while (!cohort.entries.isEmpty() && cohort.mark - cohort.entries.peek().offset >= normalized) {
+                triggered.add(cohort.entries.poll().order);
+                size--;
+            }
+            if (cohort.entries.isEmpty()) {
+                cohorts.remove(cohort.mark);
+            } else {
+                triggers.add(cohort);
+            }
+        }
+        return triggered;
+    }
+
+
+    /**
+     * Gets the number of orders in the book.
+     * @return - the number of orders
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+
+    /**
+     * Moves every cohort whose water mark is below the price up to the price, merging them into a single cohort.
+     * @param normalized - the normalized price
+     */
+    private void raiseMarks(final int normalized) {
+        final Map<Integer, Cohort> passed = cohorts.headMap(normalized, true);
+        if (passed.isEmpty() || (passed.size() == 1 && cohorts.firstKey() == normalized)) {
+            return;
+        }
+
+        Cohort merged = null;
+        for (final Cohort cohort : passed.values()) {
+            triggers.remove(cohort);
+            if (merged == null) {
+                merged = cohort;
+            } else {
+                merged = merge(merged, cohort);
+            }
+        }
+        passed.clear();
+
+        merged.mark = normalized;
+        cohorts.put(normalized, merged);
+        triggers.add(merged);
+    }
+
+
+    /**
+     * Merges the smaller of two cohorts into the larger.
+     * @param c1 - a cohort
+     * @param c2 - another cohort
+     * @return - the cohort holding the entries of both
+     */
+    private static Cohort merge(final Cohort c1, final Cohort c2) {
+        final Cohort larger = c1.entries.size() >= c2.entries.size() ? c1 : c2;
+        final Cohort smaller = larger == c1 ? c2 : c1;
+        larger.entries.addAll(smaller.entries);
+        return larger;
+    }
+
+
+    /**
+     * Normalizes a price so both sides of the book may be handled as a sell.
+     * @param price - the price
+     * @return - the normalized price
+     */
+    private int normalize(final int price) {
+        return sellSide ? price : -price;
+    }
+
+
+    /**
+     * A set of orders sharing a water mark.
+     */
+    private static final class Cohort {
+
+        /** The (normalized) water mark */
+        private int mark;
+
+        /** The orders, by offset */
+        private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>(11, OFFSET_ORDER);
+
+
+        /**
+         * Constructor
+         * @param mark - the initial water mark
+         */
+        private Cohort(final int mark) {
+            this.mark = mark;
+        }
+
+
+        /**
+         * Gets the highest (normalized) trigger price of the cohort, the trigger of the order with the smallest offset.
+         * @return - the highest trigger price
+         */
+        private int topTrigger() {
+            return mark - entries.peek().offset;
+        }
+    }
+
+
+    /**
+     * A trailing stop order.
+     */
+    private static final class Entry {
+
+        /** The order to release when triggered */
+        private final Order order;
+
+        /** The distance from the water mark at which the order triggers */
+        private final int offset;
+
+        /** The arrival sequence */
+        private final long sequence;
+
+
+        /**
+         * Constructor
+         * @param order - the order to release when triggered
+         * @param offset - the distance from the water mark at which the order triggers
+         * @param sequence - the arrival sequence
+         */
+        private Entry(final Order order, final int offset, final long sequence) {
+            this.order = order;
+            this.offset = offset;
+            this.sequence = sequence;
+        }
+    }
+}
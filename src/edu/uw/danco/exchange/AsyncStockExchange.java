@@ -0,0 +1,47 @@
+package edu.uw.danco.exchange;
+
+import edu.uw.ext.framework.exchange.StockExchange;
+import edu.uw.ext.framework.exchange.StockQuote;
+import edu.uw.ext.framework.order.Order;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/22/13
+ * Time: 9:20 AM
+ *
+ * A stock exchange whose operations can also be started without waiting for their results, so a caller can have
+ * several requests outstanding at once, or do other work while they are in progress.
+ */
+public interface AsyncStockExchange extends StockExchange {
+
+    /**
+     * Starts getting the state of the exchange.
+     * @return - the pending state, true if the exchange is open
+     */
+    ExchangeFuture<Boolean> isOpenAsync();
+
+
+    /**
+     * Starts getting a stock's current price.
+     * @param ticker - the ticker symbol for the stock
+     * @return - the pending quote
+     */
+    ExchangeFuture<StockQuote> getQuoteAsync(String ticker);
+
+
+    /**
+     * Starts getting the current prices of several stocks, in a single request.
+     * @param tickers - the ticker symbols
+     * @return - the pending quotes, in the order of the tickers, null for a stock with no quote
+     */
+    ExchangeFuture<StockQuote[]> getQuotesAsync(String... tickers);
+
+
+    /**
+     * Starts executing a trade.
+     * @param order - the order to execute
+     * @return - the pending execution price, 0 if the exchange is closed
+     */
+    ExchangeFuture<Integer> executeTradeAsync(Order order);
+}
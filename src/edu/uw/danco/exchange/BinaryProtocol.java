@@ -0,0 +1,172 @@
+package edu.uw.danco.exchange;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/20/13
+ * Time: 2:15 PM
+ *
+ * Opcodes and constants of the binary command protocol, a compact alternative to the text protocol described in
+ * ProtocolConstants. The commands are the same, only their encoding differs.
+ *
+ * A client selects the binary protocol by sending [MAGIC][version] as the first two bytes on the connection, a text
+ * command never starts with MAGIC. The server answers [MAGIC][version], the version both ends speak. A client which
+ * starts with anything else speaks the text protocol.
+ *
+ * Every request and response is a frame: [int length][body], the length counting the bytes of the body. Integers are
+ * big-endian, strings are [byte length][UTF-8 bytes]. Stocks are identified by their index in the ticker table, the
+ * list returned by GET_TICKERS_CMD, which clients fetch once after connecting.
+ *
+ * From version 2 (MULTIPLEXED_VERSION) every request body starts with an int request id chosen by the client, and the
+ * response to it starts with the same id: [int length][int request_id][body]. The client may send further requests
+ * without waiting for responses, which are sent as the commands complete and so may arrive out of order. With version
+ * 1 the client waits for each response before sending the next request.
+ *
+ * Request:  [GET_STATE_CMD]
+ * Response: [STATUS_OK][byte 1 if open, 0 if closed]
+ * -
+ * Request:  [GET_TICKERS_CMD]
+ * Response: [STATUS_OK][short count]symbol...
+ * -
+ * Request:  [GET_QUOTE_CMD][short ticker_index]
+ * Response: [STATUS_OK][int price]
+ * -
+ * Request:  [GET_QUOTES_CMD][short count][short ticker_index]...
+ * Response: [STATUS_OK][short count][int price]..., in the order requested, NO_PRICE for a stock with no quote
+ * -
+ * Request:  [GET_SNAPSHOT_CMD]
+ * Response: [STATUS_OK][long sequence][byte 1 if open, 0 if closed][short count]symbol...[int price]...
+ *           the prices in the order of the symbols, NO_PRICE for a stock with no quote
+ * -
+ * Request:  [GET_EVENTS_CMD][long from_sequence][long to_sequence]
+ * Response: [STATUS_OK][short count]event..., each event as multicast, preceded by its sequence number
+ * -
+ * Request:  [EXECUTE_TRADE_CMD][BUY_ORDER]|[SELL_ORDER][short ticker_index][int shares]account_id
+ * Response: [STATUS_OK][int execution_price]
+ *
+ * A command which can't be executed is answered with [STATUS_ERROR].
+ */
+public enum BinaryProtocol {
+    GET_STATE_CMD(1),
+    GET_TICKERS_CMD(2),
+    GET_QUOTE_CMD(3),
+    EXECUTE_TRADE_CMD(4),
+    GET_QUOTES_CMD(5),
+    GET_SNAPSHOT_CMD(6),
+    GET_EVENTS_CMD(7);
+
+    /** The first byte sent by a client selecting the binary protocol */
+    public static final byte MAGIC = 0;
+
+    /** The highest protocol version supported */
+    public static final byte VERSION = 2;
+
+    /** The first version tagging requests and responses with request ids */
+    public static final byte MULTIPLEXED_VERSION = 2;
+
+    /** The size of a frame's length prefix */
+    public static final int HEADER_SIZE = 4;
+
+    /** The size of the request id starting a frame's body from MULTIPLEXED_VERSION */
+    public static final int REQUEST_ID_SIZE = 4;
+
+    /** The response status of a command which was executed */
+    public static final byte STATUS_OK = 0;
+
+    /** The response status of a command which could not be executed */
+    public static final byte STATUS_ERROR = 1;
+
+    /** The side of a buy order */
+    public static final byte BUY_ORDER = 0;
+
+    /** The side of a sell order */
+    public static final byte SELL_ORDER = 1;
+
+    /** The price of a stock with no quote in a GET_QUOTES_CMD response */
+    public static final int NO_PRICE = -1;
+
+    /** The most tickers in a GET_QUOTES_CMD request, keeping the frame well below the server's limit */
+    public static final int MAX_QUOTES = 8 * 1024;
+
+    /** The encoding of strings */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /** The commands, by opcode */
+    private static final BinaryProtocol[] BY_OPCODE = new BinaryProtocol[GET_EVENTS_CMD.opcode + 1];
+
+    static {
+        for (final BinaryProtocol command : values()) {
+            BY_OPCODE[command.opcode] = command;
+        }
+    }
+
+
+    /** The command's opcode */
+    private final byte opcode;
+
+    private BinaryProtocol(final int opcode) {
+        this.opcode = (byte) opcode;
+    }
+
+
+    /**
+     * Gets the command's opcode.
+     * @return - the opcode
+     */
+    public byte getOpcode() {
+        return opcode;
+    }
+
+
+    /**
+     * Gets the command with an opcode.
+     * @param opcode - the opcode
+     * @return - the command, or null if the opcode isn't recognized
+     */
+    public static BinaryProtocol forOpcode(final byte opcode) {
+        return opcode > 0 && opcode < BY_OPCODE.length ? BY_OPCODE[opcode] : null;
+    }
+
+
+    /**
+     * Writes a string, ASCII strings are written without creating an intermediate array.
+     * @param buffer - the buffer to write to
+     * @param str - the string, at most 255 bytes once encoded
+     * @throws IllegalArgumentException - if the string is too long
+     */
+    public static void putString(final ByteBuffer buffer, final String str) {
+        final int length = str.length();
+        boolean ascii = length <= 0xFF;
+        for (int i = 0; ascii && i < length; i++) {
+            ascii = str.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            buffer.put((byte) length);
+            for (int i = 0; i < length; i++) {
+                buffer.put((byte) str.charAt(i));
+            }
+        } else {
+            final byte[] bytes = str.getBytes(CHARSET);
+            if (bytes.length > 0xFF) {
+                throw new IllegalArgumentException("String too long to encode: " + str);
+            }
+            buffer.put((byte) bytes.length).put(bytes);
+        }
+    }
+
+
+    /**
+     * Reads a string.
+     * @param buffer - the buffer to read from, backed by an array
+     * @return - the string
+     */
+    public static String getString(final ByteBuffer buffer) {
+        final int length = buffer.get() & 0xFF;
+        final int start = buffer.position();
+        buffer.position(start + length);
+        return new String(buffer.array(), buffer.arrayOffset() + start, length, CHARSET);
+    }
+}
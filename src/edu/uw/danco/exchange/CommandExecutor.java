@@ -0,0 +1,376 @@
+package edu.uw.danco.exchange;
+
+import edu.uw.ext.framework.exchange.StockExchange;
+import edu.uw.ext.framework.exchange.StockQuote;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.MarketSellOrder;
+import edu.uw.ext.framework.order.Order;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/20/13
+ * Time: 9:05 AM
+ *
+ * Executes the commands of the text and binary exchange protocols against the "real" exchange. Stateless, so a single
+ * executor is shared by all of the worker threads of a command server.
+ *
+ * The ticker table of the binary protocol is the exchange's tickers when the executor is created, it is encoded once
+ * and copied into each GET_TICKERS_CMD and GET_SNAPSHOT_CMD response.
+ */
+public final class CommandExecutor {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(CommandExecutor.class.getName());
+
+    /** The response sent for a command which could not be executed */
+    public static final String ERROR_RESPONSE = "";
+
+    /** The real exchange */
+    private final StockExchange exchange;
+
+    /** The ticker table, by index */
+    private final String[] tickers;
+
+    /** The encoded ticker table, the payload of a binary GET_TICKERS_CMD response */
+    private final byte[] tickerTable;
+
+    /** The events multicast, their sequence number is reported in snapshots and they are resent on request */
+    private final EventRing events;
+
+
+    /**
+     * Constructor, for an exchange whose events aren't numbered.
+     * @param exchange - the exchange used to service the commands
+     */
+    public CommandExecutor(final StockExchange exchange) {
+        this(exchange, new EventRing(1));
+    }
+
+
+    /**
+     * Constructor
+     * @param exchange - the exchange used to service the commands
+     * @param events - the events multicast
+     */
+    public CommandExecutor(final StockExchange exchange, final EventRing events) {
+        this.exchange = exchange;
+        this.events = events;
+        tickers = exchange.getTickers();
+
+        final ByteBuffer table = ByteBuffer.allocate(2 + tickers.length * 256);
+        table.putShort((short) tickers.length);
+        for (final String ticker : tickers) {
+            BinaryProtocol.putString(table, ticker);
+        }
+        tickerTable = new byte[table.position()];
+        table.flip();
+        table.get(tickerTable);
+    }
+
+
+    /**
+     * Executes a command.
+     * @param command - the command, without its line terminator
+     * @return - the response, without its line terminator, ERROR_RESPONSE if the command could not be executed
+     */
+    public String execute(final String command) {
+        try {
+            final Scanner scanner = new Scanner(command).useDelimiter(ProtocolConstants.ELEMENT_DELIMITER.toString());
+            final ProtocolConstants cmdName = ProtocolConstants.valueOf(scanner.next());
+
+            switch (cmdName) {
+                case GET_QUOTE_CMD:
+                    final StockQuote quote = exchange.getQuote(scanner.next());
+                    if (quote == null) {
+                        LOGGER.warning("Unknown ticker in command: " + command);
+                        return ERROR_RESPONSE;
+                    }
+                    return String.valueOf(quote.getPrice());
+
+                case GET_QUOTES_CMD:
+                    final StringBuilder prices = new StringBuilder();
+                    while (scanner.hasNext()) {
+                        final StockQuote price = exchange.getQuote(scanner.next());
+                        if (price != null) {
+                            prices.append(price.getPrice());
+                        }
+                        prices.append(ProtocolConstants.ELEMENT_DELIMITER.toString());
+                    }
+                    if (prices.length() > 0) {
+                        prices.setLength(prices.length() - 1);
+                    }
+                    return prices.toString();
+
+                case GET_TICKERS_CMD:
+                    final StringBuilder sb = new StringBuilder();
+                    for (final String symbol : exchange.getTickers()) {
+                        sb.append(symbol).append(ProtocolConstants.ELEMENT_DELIMITER.toString());
+                    }
+                    return sb.toString();
+
+                case GET_SNAPSHOT_CMD:
+                    // the sequence is read first, the state and prices may only be as new or newer
+                    final String delimiter = ProtocolConstants.ELEMENT_DELIMITER.toString();
+                    final StringBuilder snapshot = new StringBuilder();
+                    snapshot.append(events.getLastSequence()).append(delimiter);
+                    snapshot.append(exchange.isOpen() ? ProtocolConstants.OPEN_STATE : ProtocolConstants.CLOSED_STATE);
+                    for (final String symbol : exchange.getTickers()) {
+                        snapshot.append(delimiter).append(symbol).append(delimiter);
+                        final StockQuote last = exchange.getQuote(symbol);
+                        if (last != null) {
+                            snapshot.append(last.getPrice());
+                        }
+                    }
+                    return snapshot.toString();
+
+                case GET_EVENTS_CMD:
+                    final List<String> missed = events.get(scanner.nextLong(), scanner.nextLong());
+                    if (missed == null) {
+                        LOGGER.warning("Events no longer kept: " + command);
+                        return ERROR_RESPONSE;
+                    }
+                    final StringBuilder resent = new StringBuilder();
+                    for (final String event : missed) {
+                        if (resent.length() > 0) {
+                            resent.append(ProtocolConstants.EVENT_DELIMITER.toString());
+                        }
+                        resent.append(event);
+                    }
+                    return resent.toString();
+
+                case GET_STATE_CMD:
+                    return exchange.isOpen() ? ProtocolConstants.OPEN_STATE.toString()
+                                             : ProtocolConstants.CLOSED_STATE.toString();
+
+                case EXECUTE_TRADE_CMD:
+                    /*
+                     * Request:
+                     * [EXECUTE_TRADE_CMD][ELEMENT_DELIMITER]
+                     * [BUY_ORDER]|[SELL_ORDER][ELEMENT_DELIMITER]
+                     * account_id[ELEMENT_DELIMITER]
+                     * symbol[ELEMENT_DELIMITER]
+                     * shares
+                     * Response: execution_price
+                     */
+                    if (!exchange.isOpen()) {
+                        return "0";
+                    }
+                    final String orderType = scanner.next();
+                    final String accountId = scanner.next();
+                    final String symbol = scanner.next();
+                    final int numberOfShares = scanner.nextInt();
+
+                    final Order order;
+                    if (orderType.equals(ProtocolConstants.BUY_ORDER.toString())) {
+                        order = new MarketBuyOrder(accountId, numberOfShares, symbol);
+                    } else {
+                        order = new MarketSellOrder(accountId, numberOfShares, symbol);
+                    }
+                    return String.valueOf(exchange.executeTrade(order));
+
+                default:
+                    LOGGER.warning("Unable to determine command for: " + command);
+                    return ERROR_RESPONSE;
+            }
+        } catch (final NoSuchElementException e) {
+            LOGGER.warning("Malformed command: " + command);
+        } catch (final IllegalArgumentException e) {
+            LOGGER.warning("Unknown command: " + command);
+        }
+        return ERROR_RESPONSE;
+    }
+
+
+    /**
+     * Executes a binary command, encoding the response in the given buffer if it is large enough. No strings are
+     * created other than for the account id of a trade.
+     * @param request - the command's frame body, from the opcode to the end of the frame
+     * @param response - the buffer to encode the response frame in
+     * @return - the response frame, ready to be written, either the given buffer or a larger one
+     */
+    public ByteBuffer execute(final ByteBuffer request, final ByteBuffer response) {
+        response.clear();
+        response.position(BinaryProtocol.HEADER_SIZE);
+        return execute(request, response, BinaryProtocol.HEADER_SIZE);
+    }
+
+
+    /**
+     * Executes a binary command sent with a request id, the response is tagged with the same id.
+     * @param requestId - the request id
+     * @param request - the command's frame body, from the opcode to the end of the frame
+     * @param response - the buffer to encode the response frame in
+     * @return - the response frame, ready to be written, either the given buffer or a larger one
+     */
+    public ByteBuffer execute(final int requestId, final ByteBuffer request, final ByteBuffer response) {
+        response.clear();
+        response.position(BinaryProtocol.HEADER_SIZE);
+        response.putInt(requestId);
+        return execute(request, response, BinaryProtocol.HEADER_SIZE + BinaryProtocol.REQUEST_ID_SIZE);
+    }
+
+
+    /**
+     * Executes a binary command and completes its response frame.
+     * @param request - the command's frame body, from the opcode to the end of the frame
+     * @param response - the response frame, positioned at its status
+     * @param statusOffset - the position of the response's status
+     * @return - the response frame, ready to be written
+     */
+    private ByteBuffer execute(final ByteBuffer request, final ByteBuffer response, final int statusOffset) {
+        ByteBuffer frame = response;
+        try {
+            final BinaryProtocol command = BinaryProtocol.forOpcode(request.get());
+            if (command == null) {
+                LOGGER.warning("Unknown binary command opcode: " + request.get(request.position() - 1));
+                frame.put(BinaryProtocol.STATUS_ERROR);
+            } else {
+                frame = execute(command, request, frame);
+            }
+        } catch (final BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.warning("Malformed binary command");
+            frame.position(statusOffset);
+            frame.put(BinaryProtocol.STATUS_ERROR);
+        }
+        frame.putInt(0, frame.position() - BinaryProtocol.HEADER_SIZE);
+        frame.flip();
+        return frame;
+    }
+
+
+    /**
+     * Executes a decoded binary command.
+     * @param command - the command
+     * @param request - the command's arguments
+     * @param frame - the response frame, positioned at its status
+     * @return - the response frame, positioned after the response
+     */
+    private ByteBuffer execute(final BinaryProtocol command, final ByteBuffer request, final ByteBuffer frame) {
+        switch (command) {
+            case GET_STATE_CMD:
+                frame.put(BinaryProtocol.STATUS_OK).put(exchange.isOpen() ? (byte) 1 : (byte) 0);
+                return frame;
+
+            case GET_TICKERS_CMD:
+                final ByteBuffer table = ensureRemaining(frame, 1 + tickerTable.length);
+                table.put(BinaryProtocol.STATUS_OK).put(tickerTable);
+                return table;
+
+            case GET_QUOTE_CMD:
+                final String ticker = ticker(request.getShort());
+                final StockQuote quote = ticker == null ? null : exchange.getQuote(ticker);
+                if (quote == null) {
+                    frame.put(BinaryProtocol.STATUS_ERROR);
+                } else {
+                    frame.put(BinaryProtocol.STATUS_OK).putInt(quote.getPrice());
+                }
+                return frame;
+
+            case GET_QUOTES_CMD:
+                final int count = request.getShort();
+                if (count < 0 || request.remaining() < count * 2) {
+                    throw new BufferUnderflowException();
+                }
+                final ByteBuffer prices = ensureRemaining(frame, 3 + count * 4);
+                prices.put(BinaryProtocol.STATUS_OK).putShort((short) count);
+                for (int i = 0; i < count; i++) {
+                    // an unknown index is the client's way of asking for a ticker not in the table, not an error
+                    final short index = request.getShort();
+                    final StockQuote price = index < 0 || index >= tickers.length
+                            ? null : exchange.getQuote(tickers[index]);
+                    prices.putInt(price == null ? BinaryProtocol.NO_PRICE : price.getPrice());
+                }
+                return prices;
+
+            case GET_SNAPSHOT_CMD:
+                final long sequence = events.getLastSequence();
+                final ByteBuffer snapshot = ensureRemaining(frame, 10 + tickerTable.length + tickers.length * 4);
+                snapshot.put(BinaryProtocol.STATUS_OK).putLong(sequence).put(exchange.isOpen() ? (byte) 1 : (byte) 0);
+                snapshot.put(tickerTable);
+                for (final String symbol : tickers) {
+                    final StockQuote last = exchange.getQuote(symbol);
+                    snapshot.putInt(last == null ? BinaryProtocol.NO_PRICE : last.getPrice());
+                }
+                return snapshot;
+
+            case GET_EVENTS_CMD:
+                final List<String> missed = events.get(request.getLong(), request.getLong());
+                if (missed == null) {
+                    LOGGER.warning("Events no longer kept");
+                    frame.put(BinaryProtocol.STATUS_ERROR);
+                    return frame;
+                }
+                int size = 3;
+                for (final String event : missed) {
+                    // a char encodes to at most three bytes, and putString rejects strings over 255 bytes
+                    size += 1 + Math.min(0xFF, 3 * event.length());
+                }
+                final ByteBuffer resent = ensureRemaining(frame, size);
+                resent.put(BinaryProtocol.STATUS_OK).putShort((short) missed.size());
+                for (final String event : missed) {
+                    BinaryProtocol.putString(resent, event);
+                }
+                return resent;
+
+            case EXECUTE_TRADE_CMD:
+                final byte side = request.get();
+                final String tradeSymbol = ticker(request.getShort());
+                final int numberOfShares = request.getInt();
+                final String accountId = BinaryProtocol.getString(request);
+                if (tradeSymbol == null) {
+                    frame.put(BinaryProtocol.STATUS_ERROR);
+                } else if (!exchange.isOpen()) {
+                    frame.put(BinaryProtocol.STATUS_OK).putInt(0);
+                } else {
+                    final Order order = side == BinaryProtocol.BUY_ORDER
+                            ? new MarketBuyOrder(accountId, numberOfShares, tradeSymbol)
+                            : new MarketSellOrder(accountId, numberOfShares, tradeSymbol);
+                    frame.put(BinaryProtocol.STATUS_OK).putInt(exchange.executeTrade(order));
+                }
+                return frame;
+
+            default:
+                frame.put(BinaryProtocol.STATUS_ERROR);
+                return frame;
+        }
+    }
+
+
+    /**
+     * Makes room for a response, replacing the frame with a larger copy if it is too small.
+     * @param frame - the response frame
+     * @param size - the bytes still to be written
+     * @return - the frame, or a larger copy of it
+     */
+    private static ByteBuffer ensureRemaining(final ByteBuffer frame, final int size) {
+        if (frame.remaining() >= size) {
+            return frame;
+        }
+        final ByteBuffer larger = ByteBuffer.allocate(frame.position() + size);
+        frame.flip();
+        larger.put(frame);
+        return larger;
+    }
+
+
+    /**
+     * Looks up a ticker in the ticker table.
+     * @param index - the ticker's index
+     * @return - the ticker, or null if the index is out of range
+     */
+    private String ticker(final short index) {
+        if (index < 0 || index >= tickers.length) {
+            LOGGER.warning("Unknown ticker index: " + index);
+            return null;
+        }
+        return tickers[index];
+    }
+}
@@ -0,0 +1,849 @@
+package edu.uw.danco.exchange;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/20/13
+ * Time: 9:40 AM
+ *
+ * Serves the exchange's text command protocol with non-blocking IO, so thousands of clients can be served by a few
+ * threads rather than a thread per client.
+ *
+ * An acceptor thread accepts connections and hands them out in turn to a small set of reactor threads, each of which
+ * multiplexes its connections with a selector. A reactor frames the commands on each connection by line, in a buffer
+ * reused for the life of the connection, and hands them to a bounded pool of worker threads to be executed, since a
+ * trade may block on the exchange. When the pool's queue is full the reactor executes the command itself, which slows
+ * its clients down rather than queueing without bound. A connection has one command in flight at a time, so responses
+ * are written in the order the commands were sent, unless it speaks the multiplexed binary protocol, whose commands
+ * execute concurrently and are answered as they complete.
+ *
+ * A client may instead speak the binary protocol described in BinaryProtocol, selected by the first byte it sends.
+ *
+ * The live connections are kept in a registry, a connection is removed when its client disconnects, when it has been
+ * idle for longer than the idle timeout, or when the server is closed.
+ */
+public final class CommandServer {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(CommandServer.class.getName());
+
+    /** The encoding of commands and responses */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /** The initial size of a connection's buffers, enough for any command or response but the ticker list */
+    private static final int BUFFER_SIZE = 256;
+
+    /** The longest command accepted, a client sending a longer line is disconnected */
+    private static final int MAX_COMMAND_LENGTH = 64 * 1024;
+
+    /** The most commands a multiplexed connection may have in flight */
+    private static final int MAX_PIPELINE = 32;
+
+    /** The number of commands which may wait for a worker */
+    private static final int WORK_QUEUE_SIZE = 1024;
+
+    /** The default time a connection may be idle before it is closed */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(15L);
+
+    /** The longest a reactor waits between checks for idle connections */
+    private static final long REAP_INTERVAL_MILLIS = 1000L;
+
+    /** The longest close waits for each of the server's threads to stop */
+    private static final long CLOSE_WAIT_MILLIS = 1000L;
+
+    /** The command line terminator */
+    private static final byte LF = '\n';
+
+    /** Stripped from the end of a command, for clients terminating lines with CR LF */
+    private static final byte CR = '\r';
+
+    /** Executes the commands */
+    private final CommandExecutor executor;
+
+    /** The port commands are accepted on */
+    private final int commandPort;
+
+    /** Accepts connections */
+    private final ServerSocketChannel serverChannel;
+
+    /** The reactors the connections are shared between */
+    private final Reactor[] reactors;
+
+    /** Executes the commands handed off by the reactors */
+    private final ThreadPoolExecutor workers;
+
+    /** The thread accepting connections */
+    private final Thread acceptor;
+
+    /** The live connections */
+    private final Set<Connection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    /** The number of connections accepted, used to pick each connection's reactor */
+    private int accepted;
+
+    /** The time a connection may be idle before it is closed, in nanoseconds, 0 if idle connections are kept */
+    private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+    /** True once the server has been closed */
+    private volatile boolean closed;
+
+
+    /**
+     * Constructor, sizes the reactors and workers by the number of processors.
+     * @param executor - executes the commands
+     * @param commandPort - the port to accept commands on
+     * @throws IOException - if the port can't be bound
+     */
+    public CommandServer(final CommandExecutor executor, final int commandPort) throws IOException {
+        this(executor, commandPort, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+             Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+
+    /**
+     * Constructor
+     * @param executor - executes the commands
+     * @param commandPort - the port to accept commands on, 0 for any free port
+     * @param reactorCount - the number of reactor threads
+     * @param workerCount - the number of worker threads
+     * @throws IOException - if the port can't be bound
+     */
+    public CommandServer(final CommandExecutor executor, final int commandPort, final int reactorCount,
+                         final int workerCount) throws IOException {
+        this.executor = executor;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(commandPort));
+        this.commandPort = serverChannel.socket().getLocalPort();
+
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                                         new ArrayBlockingQueue<Runnable>(WORK_QUEUE_SIZE),
+                                         new NamedThreadFactory("CommandServer-worker-"),
+                                         new ThreadPoolExecutor.CallerRunsPolicy());
+
+        reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open(), "CommandServer-reactor-" + i);
+        }
+
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "CommandServer-acceptor");
+        acceptor.setDaemon(true);
+    }
+
+
+    /**
+     * Starts accepting and serving connections.
+     */
+    public void start() {
+        for (final Reactor reactor : reactors) {
+            reactor.thread.start();
+        }
+        acceptor.start();
+        LOGGER.info(String.format("Listening for commands on port %d with %d reactors and %d workers",
+                                  commandPort, reactors.length, workers.getCorePoolSize()));
+    }
+
+
+    /**
+     * Sets the time a connection may be idle, with no command executing, before it is closed. Clients which are still
+     * connected have to reconnect.
+     * @param millis - the timeout in milliseconds, 0 to keep idle connections open
+     */
+    public void setIdleTimeout(final long millis) {
+        if (millis < 0L) {
+            throw new IllegalArgumentException("Idle timeout can't be negative: " + millis);
+        }
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+
+    /**
+     * Gets the port the server accepts commands on.
+     * @return - the port
+     */
+    public int getPort() {
+        return commandPort;
+    }
+
+
+    /**
+     * Gets the number of live connections.
+     * @return - the connection count
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+
+    /**
+     * Stops accepting connections and closes every live connection, commands already handed to the workers are
+     * abandoned. Waits briefly for the server's threads to stop.
+     */
+    public void close() {
+        closed = true;
+        try {
+            serverChannel.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to close server socket", e);
+        }
+        for (final Connection connection : connections) {
+            closeQuietly(connection.channel);
+        }
+        connections.clear();
+        for (final Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+        workers.shutdownNow();
+        try {
+            acceptor.join(CLOSE_WAIT_MILLIS);
+            for (final Reactor reactor : reactors) {
+                reactor.thread.join(CLOSE_WAIT_MILLIS);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Accepts connections until the server is closed, each is registered with the next reactor in turn.
+     */
+    private void accept() {
+        try {
+            while (!closed) {
+                final SocketChannel channel = serverChannel.accept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                } catch (final IOException e) {
+                    LOGGER.log(Level.WARNING, "Unable to configure client connection", e);
+                    closeQuietly(channel);
+                    continue;
+                }
+                final Connection connection = new Connection(channel, reactors[accepted++ % reactors.length]);
+                connections.add(connection);
+                if (closed) {
+                    connection.close();
+                } else {
+                    connection.reactor.register(connection);
+                }
+            }
+        } catch (final ClosedChannelException e) {
+            // closed
+        } catch (final IOException e) {
+            if (!closed) {
+                LOGGER.log(Level.SEVERE, "Exception accepting on port = " + commandPort, e);
+            }
+        }
+    }
+
+
+    /**
+     * Closes a channel, logging rather than throwing any exception.
+     * @param channel - the channel
+     */
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            LOGGER.log(Level.FINE, "Exception closing client connection", e);
+        }
+    }
+
+
+    /**
+     * Names the pool's threads and makes them daemons, so an unclosed server doesn't keep the VM alive.
+     */
+    private static final class NamedThreadFactory implements ThreadFactory {
+        /** The prefix of the thread names */
+        private final String prefix;
+
+        /** The number of threads created */
+        private final AtomicInteger created = new AtomicInteger();
+
+
+        /**
+         * Constructor
+         * @param prefix - the prefix of the thread names
+         */
+        private NamedThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, prefix + created.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+
+    /**
+     * A selector thread serving a share of the connections. Registrations and completed commands are passed to the
+     * reactor as tasks, all of a connection's channel and buffer operations happen on its reactor's thread.
+     */
+    private final class Reactor implements Runnable {
+        /** Multiplexes the connections */
+        private final Selector selector;
+
+        /** The thread running the reactor */
+        private final Thread thread;
+
+        /** Tasks to be run on the reactor's thread */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+
+        /**
+         * Constructor
+         * @param selector - multiplexes the connections
+         * @param name - the thread's name
+         */
+        private Reactor(final Selector selector, final String name) {
+            this.selector = selector;
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+
+        /** The next time the reactor checks for idle connections, in nanoseconds */
+        private long nextReap;
+
+
+        /**
+         * Registers a new connection with this reactor.
+         * @param connection - the connection, its channel in non-blocking mode
+         */
+        private void register(final Connection connection) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                        connection.lastActive = System.nanoTime();
+                    } catch (final ClosedChannelException e) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+
+
+        /**
+         * Closes the reactor's connections which have been idle for longer than the idle timeout.
+         * @param now - the current time, in nanoseconds
+         */
+        private void reap(final long now) {
+            final long timeout = idleTimeoutNanos;
+            if (timeout == 0L) {
+                return;
+            }
+            for (final SelectionKey key : selector.keys()) {
+                final Connection connection = (Connection) key.attachment();
+                if (key.isValid() && !connection.isBusy() && now - connection.lastActive >= timeout) {
+                    LOGGER.info("Closing idle connection from " + connection.channel.socket().getRemoteSocketAddress());
+                    connection.close();
+                }
+            }
+        }
+
+
+        /**
+         * Runs a task on the reactor's thread.
+         * @param task - the task
+         */
+        private void execute(final Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                nextReap = System.nanoTime();
+                while (!closed) {
+                    selector.select(REAP_INTERVAL_MILLIS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        final Connection connection = (Connection) key.attachment();
+                        try {
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (key.isReadable()) {
+                                connection.read();
+                            } else if (key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (final IOException e) {
+                            LOGGER.log(Level.FINE, "Closing client connection", e);
+                            connection.close();
+                        } catch (final CancelledKeyException e) {
+                            // closed by another thread
+                            connection.close();
+                        }
+                    }
+                    final long now = System.nanoTime();
+                    if (now - nextReap >= 0L) {
+                        reap(now);
+                        nextReap = now + TimeUnit.MILLISECONDS.toNanos(REAP_INTERVAL_MILLIS);
+                    }
+                }
+            } catch (final IOException e) {
+                LOGGER.log(Level.SEVERE, "Exception selecting on port = " + commandPort, e);
+            } catch (final ClosedSelectorException e) {
+                // closed
+            } finally {
+                for (final SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (final IOException e) {
+                    LOGGER.log(Level.WARNING, "Unable to close selector", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The protocol spoken on a connection, decided by the first byte the client sends.
+     */
+    private enum Mode {
+        /** Nothing has been read yet */
+        UNKNOWN,
+
+        /** Line delimited text commands */
+        TEXT,
+
+        /** Length prefixed binary frames */
+        BINARY
+    }
+
+
+    /**
+     * A client connection. Commands are read into a buffer kept for the life of the connection and framed from it into
+     * requests, which are pooled by the connection and reused along with their buffers. A text or version 1 binary
+     * connection has one request in flight at a time, so its responses are written in the order the commands were
+     * sent. A multiplexed binary connection may have up to MAX_PIPELINE requests executing at once, their responses are
+     * written as they complete. While a connection has as many requests in flight as it may it isn't read, so a client
+     * sending more is held back by TCP flow control.
+     */
+    private final class Connection {
+        /** The connection's channel */
+        private final SocketChannel channel;
+
+        /** The reactor serving the connection */
+        private final Reactor reactor;
+
+        /** The connection's registration with its reactor */
+        private SelectionKey key;
+
+        /** The protocol spoken on the connection */
+        private Mode mode = Mode.UNKNOWN;
+
+        /** True if binary requests and responses are tagged with request ids */
+        private boolean multiplexed;
+
+        /** The most requests which may be in flight */
+        private int maxInFlight = 1;
+
+        /** The number of requests framed and not yet written */
+        private int inFlight;
+
+        /** Bytes read and not yet framed, in write mode */
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /** Requests available for reuse */
+        private final Deque<Request> free = new ArrayDeque<Request>();
+
+        /** Requests executed and waiting to be written */
+        private final Deque<Request> completed = new ArrayDeque<Request>();
+
+        /** The request whose response is being written */
+        private Request writing;
+
+        /** The time the connection last read a command or wrote a response, in nanoseconds */
+        private long lastActive;
+
+
+        /**
+         * A command framed from the connection and its response.
+         */
+        private final class Request implements Runnable {
+            /** The body of a binary command, in read mode while it executes */
+            private ByteBuffer body = ByteBuffer.allocate(BUFFER_SIZE);
+
+            /** A text command */
+            private String command;
+
+            /** The response, in read mode once the command has executed */
+            private ByteBuffer response = ByteBuffer.allocate(BUFFER_SIZE);
+
+            /** Queues the response to be written, on the reactor's thread */
+            private final Runnable completion = new Runnable() {
+                @Override
+                public void run() {
+                    complete(Request.this);
+                }
+            };
+
+
+            /**
+             * Executes the command on a worker thread. A command which fails is answered with an error, so the
+             * connection's responses always stay in step with its commands.
+             */
+            @Override
+            public void run() {
+                final int requestId = mode != Mode.TEXT && multiplexed ? body.getInt() : 0;
+                try {
+                    if (mode == Mode.TEXT) {
+                        final byte[] bytes = executor.execute(command).getBytes(CHARSET);
+                        response.clear();
+                        if (response.capacity() < bytes.length + 1) {
+                            response = ByteBuffer.allocate(bytes.length + 1);
+                        }
+                        response.put(bytes).put(LF).flip();
+                    } else if (multiplexed) {
+                        response = executor.execute(requestId, body, response);
+                    } else {
+                        response = executor.execute(body, response);
+                    }
+                } catch (final RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Unable to execute command", e);
+                    fail(requestId);
+                }
+                reactor.execute(completion);
+            }
+
+
+            /**
+             * Replaces the response with an error, ERROR_RESPONSE for a text command and STATUS_ERROR for a binary
+             * command.
+             * @param requestId - the request id of a multiplexed binary command
+             */
+            private void fail(final int requestId) {
+                response.clear();
+                if (mode == Mode.TEXT) {
+                    response.put(CommandExecutor.ERROR_RESPONSE.getBytes(CHARSET)).put(LF);
+                } else {
+                    response.position(BinaryProtocol.HEADER_SIZE);
+                    if (multiplexed) {
+                        response.putInt(requestId);
+                    }
+                    response.put(BinaryProtocol.STATUS_ERROR);
+                    response.putInt(0, response.position() - BinaryProtocol.HEADER_SIZE);
+                }
+                response.flip();
+            }
+        }
+
+
+        /**
+         * Constructor
+         * @param channel - the connection's channel
+         * @param reactor - the reactor serving the connection
+         */
+        private Connection(final SocketChannel channel, final Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+        }
+
+
+        /**
+         * Checks whether a command is in flight, a connection with one is never idle.
+         * @return - true if a command is executing or its response is being written
+         */
+        private boolean isBusy() {
+            return inFlight > 0;
+        }
+
+
+        /**
+         * Reads what the client has sent and starts executing the commands which have arrived.
+         * @throws IOException - if the channel can't be read or written
+         */
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            lastActive = System.nanoTime();
+            dispatch();
+            updateInterest();
+        }
+
+
+        /**
+         * Frames commands and hands them to the workers until no whole command is buffered or the connection has as
+         * many requests in flight as it may.
+         * @throws IOException - if the negotiation response can't be written
+         */
+        private void dispatch() throws IOException {
+            if (mode == Mode.UNKNOWN) {
+                negotiate();
+            }
+            while (mode != Mode.UNKNOWN && key.isValid() && inFlight < maxInFlight) {
+                final Request request = mode == Mode.TEXT ? frameText() : frameBinary();
+                if (request == null) {
+                    if (key.isValid() && !in.hasRemaining()) {
+                        if (in.capacity() >= MAX_COMMAND_LENGTH) {
+                            LOGGER.warning("Command exceeds maximum length, closing client connection");
+                            close();
+                            return;
+                        }
+                        in = grow(in, in.capacity() * 2);
+                    }
+                    return;
+                }
+                inFlight++;
+                workers.execute(request);
+            }
+        }
+
+
+        /**
+         * Decides the connection's protocol from the first bytes the client has sent. A binary client is answered with
+         * the protocol version to use.
+         * @throws IOException - if the response can't be written or the client's version isn't supported
+         */
+        private void negotiate() throws IOException {
+            if (in.position() == 0) {
+                return;
+            }
+            if (in.get(0) != BinaryProtocol.MAGIC) {
+                mode = Mode.TEXT;
+                return;
+            }
+            if (in.position() < 2) {
+                return;
+            }
+            final byte version = (byte) Math.min(in.get(1), BinaryProtocol.VERSION);
+            if (version < 1) {
+                throw new IOException("Unsupported binary protocol version: " + in.get(1));
+            }
+            mode = Mode.BINARY;
+            multiplexed = version >= BinaryProtocol.MULTIPLEXED_VERSION;
+            maxInFlight = multiplexed ? MAX_PIPELINE : 1;
+            in.flip().position(2);
+            in.compact();
+
+            final Request request = obtain();
+            request.response.clear();
+            request.response.put(BinaryProtocol.MAGIC).put(version).flip();
+            inFlight++;
+            completed.add(request);
+            flush();
+        }
+
+
+        /**
+         * Frames the next text command, removing it from the input buffer.
+         * @return - the request, or null if a whole command hasn't arrived
+         */
+        private Request frameText() {
+            final int end = in.position();
+            for (int i = 0; i < end; i++) {
+                if (in.get(i) == LF) {
+                    int length = i;
+                    if (length > 0 && in.get(length - 1) == CR) {
+                        length--;
+                    }
+                    final Request request = obtain();
+                    request.command = new String(in.array(), 0, length, CHARSET);
+                    in.limit(end).position(i + 1);
+                    in.compact();
+                    return request;
+                }
+            }
+            return null;
+        }
+
+
+        /**
+         * Frames the next binary command, copying its body to a request and removing it from the input buffer.
+         * @return - the request, or null if a whole frame hasn't arrived or its length is invalid
+         */
+        private Request frameBinary() {
+            final int end = in.position();
+            if (end < BinaryProtocol.HEADER_SIZE) {
+                return null;
+            }
+            final int length = in.getInt(0);
+            final int minLength = multiplexed ? BinaryProtocol.REQUEST_ID_SIZE + 1 : 1;
+            if (length < minLength || length > MAX_COMMAND_LENGTH - BinaryProtocol.HEADER_SIZE) {
+                LOGGER.warning("Invalid frame length " + length + ", closing client connection");
+                close();
+                return null;
+            }
+            final int frameEnd = BinaryProtocol.HEADER_SIZE + length;
+            if (end < frameEnd) {
+                return null;
+            }
+            final Request request = obtain();
+            if (request.body.capacity() < length) {
+                request.body = ByteBuffer.allocate(length);
+            }
+            request.body.clear();
+            request.body.put(in.array(), BinaryProtocol.HEADER_SIZE, length).flip();
+            in.limit(end).position(frameEnd);
+            in.compact();
+            return request;
+        }
+
+
+        /**
+         * Queues an executed request's response to be written, called on the reactor's thread.
+         * @param request - the request
+         */
+        private void complete(final Request request) {
+            if (!key.isValid()) {
+                return;
+            }
+            completed.add(request);
+            try {
+                flush();
+                dispatch();
+                updateInterest();
+            } catch (final IOException e) {
+                LOGGER.log(Level.FINE, "Closing client connection", e);
+                close();
+            } catch (final CancelledKeyException e) {
+                // closed by another thread
+                close();
+            }
+        }
+
+
+        /**
+         * Writes as much of the completed responses as the channel will take.
+         * @throws IOException - if the channel can't be written
+         */
+        private void write() throws IOException {
+            flush();
+            dispatch();
+            updateInterest();
+        }
+
+
+        /**
+         * Writes completed responses until they have all been written or the channel won't take any more, requests
+         * whose responses have been written are returned to the pool.
+         * @throws IOException - if the channel can't be written
+         */
+        private void flush() throws IOException {
+            while (true) {
+                if (writing == null) {
+                    writing = completed.poll();
+                    if (writing == null) {
+                        return;
+                    }
+                }
+                channel.write(writing.response);
+                if (writing.response.hasRemaining()) {
+                    return;
+                }
+                writing.command = null;
+                free.push(writing);
+                writing = null;
+                inFlight--;
+                lastActive = System.nanoTime();
+            }
+        }
+
+
+        /**
+         * Reads the connection while it may take more requests and waits to write while a response is partly written.
+         */
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (inFlight < maxInFlight) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (writing != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+
+        /**
+         * Takes a request from the pool.
+         * @return - the request
+         */
+        private Request obtain() {
+            final Request request = free.poll();
+            return request == null ? new Request() : request;
+        }
+
+
+        /**
+         * Closes the connection and removes it from the registry.
+         */
+        private void close() {
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+
+    /**
+     * Copies a buffer in write mode to a larger buffer.
+     * @param buffer - the buffer
+     * @param capacity - the new buffer's capacity
+     * @return - the new buffer, in write mode
+     */
+    private static ByteBuffer grow(final ByteBuffer buffer, final int capacity) {
+        buffer.flip();
+        return ByteBuffer.allocate(capacity).put(buffer);
+    }
+}
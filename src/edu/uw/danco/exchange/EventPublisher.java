@@ -0,0 +1,234 @@
+package edu.uw.danco.exchange;
+
+import edu.uw.ext.framework.exchange.ExchangeEvent;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/23/13
+ * Time: 10:20 AM
+ *
+ * Multicasts exchange events from a thread of its own, so the exchange's listener thread only queues each event and
+ * never waits on the network.
+ *
+ * The publisher packs as many events as fit into each datagram, separated by EVENT_DELIMITER, up to
+ * MAX_DATAGRAM_SIZE, which keeps a datagram within a single Ethernet frame. A datagram is sent once it is full, or
+ * once its first event has waited for the maximum delay, so a burst of price changes is sent in a few datagrams while
+ * a lone event is delayed by at most the maximum delay.
+ *
+ * Each event is numbered by the publisher's EventRing as it is packed, so the sequence numbers follow the order the
+ * events are sent in, and kept there for clients recovering missed events.
+ */
+public final class EventPublisher {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(EventPublisher.class.getName());
+
+    /** The largest datagram sent, an Ethernet MTU less the IP and UDP headers */
+    public static final int MAX_DATAGRAM_SIZE = 1500 - 20 - 8;
+
+    /** The default longest time an event waits for others to share its datagram, in microseconds */
+    public static final long DEFAULT_MAX_DELAY_MICROS = 1000L;
+
+    /** The encoding of events */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /** The time to wait for the publisher thread to finish when closing, in milliseconds */
+    private static final long CLOSE_WAIT_MILLIS = 1000L;
+
+    /** The socket the events are multicast on */
+    private final MulticastSocket socket;
+
+    /** Numbers and keeps the events sent */
+    private final EventRing ring;
+
+    /** The events waiting to be sent */
+    private final Queue<ExchangeEvent> queue = new ConcurrentLinkedQueue<ExchangeEvent>();
+
+    /** The datagram being filled, reused for every datagram */
+    private final ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+
+    /** The packet sending the datagram */
+    private final DatagramPacket packet;
+
+    /** The longest time an event waits for others to share its datagram, in nanoseconds */
+    private final long maxDelayNanos;
+
+    /** The thread sending the datagrams */
+    private final Thread thread;
+
+    /** The number of datagrams sent */
+    private final AtomicLong datagramCount = new AtomicLong();
+
+    /** The number of events sent */
+    private final AtomicLong eventCount = new AtomicLong();
+
+    /** True while the publisher thread is parked waiting for events */
+    private volatile boolean waiting;
+
+    /** True once the publisher has been closed */
+    private volatile boolean closed;
+
+
+    /**
+     * Constructor
+     * @param socket - the socket the events are multicast on
+     * @param group - the multicast group
+     * @param port - the multicast port
+     * @param ring - numbers and keeps the events sent
+     * @param maxDelay - the longest time an event waits for others to share its datagram
+     * @param unit - the unit of the delay
+     */
+    public EventPublisher(final MulticastSocket socket, final InetAddress group, final int port,
+                          final EventRing ring, final long maxDelay, final TimeUnit unit) {
+        if (maxDelay < 0L) {
+            throw new IllegalArgumentException("Maximum delay can't be negative: " + maxDelay);
+        }
+        this.socket = socket;
+        this.ring = ring;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        packet = new DatagramPacket(datagram.array(), 0, group, port);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        }, "EventPublisher");
+        thread.setDaemon(true);
+    }
+
+
+    /**
+     * Starts the publisher thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+
+    /**
+     * Queues an event to be multicast, never blocks.
+     * @param event - the event
+     */
+    public void publish(final ExchangeEvent event) {
+        queue.offer(event);
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    /**
+     * Gets the number of datagrams sent.
+     * @return - the datagram count
+     */
+    public long getDatagramCount() {
+        return datagramCount.get();
+    }
+
+
+    /**
+     * Gets the number of events sent.
+     * @return - the event count
+     */
+    public long getEventCount() {
+        return eventCount.get();
+    }
+
+
+    /**
+     * Sends the events already queued and stops the publisher thread, the socket is left open.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(CLOSE_WAIT_MILLIS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Packs the queued events into datagrams and sends them until the publisher is closed.
+     */
+    private void publish() {
+        long deadline = 0L;
+        int events = 0;
+        while (true) {
+            final ExchangeEvent event = queue.poll();
+            if (event == null) {
+                final long now = System.nanoTime();
+                if (events > 0 && (closed || now - deadline >= 0L)) {
+                    send(events);
+                    events = 0;
+                    continue;
+                }
+                if (closed) {
+                    return;
+                }
+                waiting = true;
+                if (queue.isEmpty()) {
+                    if (events > 0) {
+                        LockSupport.parkNanos(this, deadline - now);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                waiting = false;
+                continue;
+            }
+
+            final String sequenced = ring.append(NetEventProcessor.GetEventString(event));
+            final byte[] bytes = sequenced.getBytes(CHARSET);
+            final int needed = events == 0 ? bytes.length : bytes.length + 1;
+            if (events > 0 && needed > datagram.remaining()) {
+                send(events);
+                events = 0;
+            }
+            if (bytes.length > datagram.remaining()) {
+                LOGGER.warning("Event too large to multicast: " + sequenced);
+                continue;
+            }
+            if (events == 0) {
+                deadline = System.nanoTime() + maxDelayNanos;
+            } else {
+                datagram.put((byte) ProtocolConstants.EVENT_DELIMITER.toString().charAt(0));
+            }
+            datagram.put(bytes);
+            events++;
+        }
+    }
+
+
+    /**
+     * Sends the datagram and clears it for the next events.
+     * @param events - the number of events in the datagram
+     */
+    private void send(final int events) {
+        packet.setData(datagram.array(), 0, datagram.position());
+        try {
+            socket.send(packet);
+            datagramCount.incrementAndGet();
+            eventCount.addAndGet(events);
+        } catch (final IOException e) {
+            LOGGER.log(Level.SEVERE, String.format("Unable to multicast %d events", events), e);
+        }
+        datagram.clear();
+    }
+}
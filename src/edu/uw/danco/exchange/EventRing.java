@@ -0,0 +1,117 @@
+package edu.uw.danco.exchange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/23/13
+ * Time: 2:05 PM
+ *
+ * Numbers the events multicast by the exchange and keeps the most recent of them, so a client which has missed some
+ * can ask for them again with GET_EVENTS_CMD rather than taking a whole snapshot. Sequence numbers increase by one for
+ * every event. The ring holds a fixed number of events, the oldest are overwritten.
+ *
+ * By default the first event is numbered 1. An exchange which may be restarted numbers its first event from
+ * startOfEpoch instead, so the events of a restarted exchange are numbered above any of the previous run's: a client
+ * sees the restart as a gap it can't recover from the ring, and takes a snapshot, even if the first events after the
+ * restart are lost.
+ */
+public final class EventRing {
+
+    /** The default number of events kept */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /** The bits of a sequence number below the epoch's start time, room for about a million events a millisecond */
+    private static final int EPOCH_SHIFT = 20;
+
+    /** The events kept, each slot reused every capacity events */
+    private final String[] events;
+
+    /** The sequence number of the first event */
+    private final long firstSequence;
+
+    /** The sequence number of the last event, one less than the first before there are any */
+    private long lastSequence;
+
+
+    /**
+     * Constructor for a ring numbering its first event 1.
+     * @param capacity - the number of events kept
+     */
+    public EventRing(final int capacity) {
+        this(capacity, 1L);
+    }
+
+
+    /**
+     * Constructor
+     * @param capacity - the number of events kept
+     * @param firstSequence - the sequence number of the first event, at least 1
+     */
+    public EventRing(final int capacity, final long firstSequence) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least one: " + capacity);
+        }
+        if (firstSequence < 1L) {
+            throw new IllegalArgumentException("First sequence number must be at least one: " + firstSequence);
+        }
+        events = new String[capacity];
+        this.firstSequence = firstSequence;
+        lastSequence = firstSequence - 1L;
+    }
+
+
+    /**
+     * Gets a first sequence number above any used by an exchange started earlier, derived from the current time.
+     * @return - the sequence number
+     */
+    public static long startOfEpoch() {
+        return (System.currentTimeMillis() << EPOCH_SHIFT) + 1L;
+    }
+
+
+    /**
+     * Numbers an event and keeps it.
+     * @param event - string representation of the event
+     * @return - the event preceded by its sequence number, as it is multicast
+     */
+    public synchronized String append(final String event) {
+        lastSequence++;
+        final String sequenced = lastSequence + ProtocolConstants.ELEMENT_DELIMITER.toString() + event;
+        events[(int) (lastSequence % events.length)] = sequenced;
+        return sequenced;
+    }
+
+
+    /**
+     * Gets the sequence number of the last event.
+     * @return - the sequence number, one less than the first if there have been no events
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+
+    /**
+     * Gets a range of events.
+     * @param from - the sequence number of the first event
+     * @param to - the sequence number of the last event
+     * @return - the events preceded by their sequence numbers, in order, or null if any of them isn't kept or hasn't
+     *           occurred yet
+     */
+    public synchronized List<String> get(final long from, final long to) {
+        if (from > to) {
+            return new ArrayList<String>(0);
+        }
+        if (from < firstSequence || from <= lastSequence - events.length || to > lastSequence) {
+            return null;
+        }
+        final List<String> range = new ArrayList<String>((int) (to - from + 1));
+        for (long sequence = from; sequence <= to; sequence++) {
+            range.add(events[(int) (sequence % events.length)]);
+        }
+        return range;
+    }
+}
@@ -0,0 +1,26 @@
+package edu.uw.danco.exchange;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/22/13
+ * Time: 9:10 AM
+ *
+ * Receives the outcome of a command sent to the exchange. Callbacks are run by the thread completing the command,
+ * usually the thread reading the exchange's responses, so they must not block.
+ */
+public interface ExchangeCallback<V> {
+
+    /**
+     * The command succeeded.
+     * @param result - the command's result
+     */
+    void succeeded(V result);
+
+
+    /**
+     * The command failed.
+     * @param cause - the reason it failed
+     */
+    void failed(Throwable cause);
+}
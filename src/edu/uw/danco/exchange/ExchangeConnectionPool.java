@@ -0,0 +1,206 @@
+package edu.uw.danco.exchange;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/21/13
+ * Time: 3:30 PM
+ *
+ * A pool of persistent text protocol connections to the exchange. Each connection keeps its socket, writer and reader
+ * for its whole life, and is checked out by one caller at a time, so a response is always read by the reader which
+ * buffered it.
+ *
+ * Connections are opened as they are first needed, up to the pool's size, after which callers wait for one to be
+ * returned. A connection which fails is discarded and replaced by a new one when next needed. A connection left
+ * idle for longer than MAX_IDLE_MILLIS is closed rather than reused, well before the exchange's default idle timeout
+ * would close it from the other end.
+ */
+public final class ExchangeConnectionPool {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(ExchangeConnectionPool.class.getName());
+
+    /** The default number of connections */
+    public static final int DEFAULT_SIZE = 4;
+
+    /** The longest a connection may be idle and still be reused */
+    public static final long MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5L);
+
+    /** The encoding of commands and responses */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /** The exchange's host */
+    private final String host;
+
+    /** The exchange's command port */
+    private final int port;
+
+    /** Connections which are open and not checked out */
+    private final BlockingQueue<Connection> idle;
+
+    /** One permit for each connection which may be checked out */
+    private final Semaphore permits;
+
+    /** True once the pool has been closed */
+    private volatile boolean closed;
+
+
+    /**
+     * A persistent connection to the exchange.
+     */
+    public static final class Connection {
+        /** The socket */
+        private final Socket socket;
+
+        /** Writes commands */
+        private final Writer writer;
+
+        /** Reads responses */
+        private final BufferedReader reader;
+
+        /** The time the connection was last returned to the pool, in nanoseconds */
+        private long released;
+
+
+        /**
+         * Constructor, connects to the exchange.
+         * @param host - the exchange's host
+         * @param port - the exchange's command port
+         * @throws IOException - if the connection can't be made
+         */
+        private Connection(final String host, final int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            writer = new OutputStreamWriter(socket.getOutputStream(), CHARSET);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+        }
+
+
+        /**
+         * Sends a command and waits for its response.
+         * @param command - the command, without its line terminator
+         * @return - the response, without its line terminator
+         * @throws IOException - if the command can't be sent or the exchange closed the connection
+         */
+        public String call(final String command) throws IOException {
+            writer.write(command);
+            writer.write('\n');
+            writer.flush();
+            final String response = reader.readLine();
+            if (response == null) {
+                throw new EOFException("Exchange closed the connection");
+            }
+            return response;
+        }
+
+
+        /**
+         * Closes the connection.
+         */
+        private void close() {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                LOGGER.log(Level.FINE, "Exception closing exchange connection", e);
+            }
+        }
+    }
+
+
+    /**
+     * Constructor, no connections are opened until they are needed.
+     * @param host - the exchange's host
+     * @param port - the exchange's command port
+     * @param size - the most connections
+     */
+    public ExchangeConnectionPool(final String host, final int port, final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least one: " + size);
+        }
+        this.host = host;
+        this.port = port;
+        idle = new ArrayBlockingQueue<Connection>(size);
+        permits = new Semaphore(size);
+    }
+
+
+    /**
+     * Checks out a connection, opening one if none is idle and the pool isn't full, otherwise waiting for one to be
+     * returned.
+     * @return - the connection, to be returned with release or discard
+     * @throws IOException - if a connection can't be opened or the pool is closed
+     * @throws InterruptedException - if interrupted waiting for a connection
+     */
+    public Connection borrow() throws IOException, InterruptedException {
+        permits.acquire();
+        if (closed) {
+            permits.release();
+            throw new IOException("Connection pool closed");
+        }
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            if (System.nanoTime() - connection.released < TimeUnit.MILLISECONDS.toNanos(MAX_IDLE_MILLIS)) {
+                return connection;
+            }
+            connection.close();
+        }
+        try {
+            return new Connection(host, port);
+        } catch (final IOException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Returns a connection after a successful call.
+     * @param connection - the connection
+     */
+    public void release(final Connection connection) {
+        if (closed) {
+            connection.close();
+        } else {
+            connection.released = System.nanoTime();
+            idle.offer(connection);
+        }
+        permits.release();
+    }
+
+
+    /**
+     * Returns a connection which has failed, it is closed and will be replaced when needed.
+     * @param connection - the connection
+     */
+    public void discard(final Connection connection) {
+        connection.close();
+        permits.release();
+    }
+
+
+    /**
+     * Closes the idle connections, connections checked out are closed when they are returned.
+     */
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+}
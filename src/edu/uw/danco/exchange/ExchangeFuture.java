@@ -0,0 +1,193 @@
+package edu.uw.danco.exchange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/21/13
+ * Time: 10:05 AM
+ *
+ * The pending result of a command sent to the exchange, completed by the thread reading the exchange's responses. A
+ * command can't be recalled once it has been sent, so the future can't be cancelled.
+ *
+ * Rather than waiting for the result a caller may register callbacks, which are run when the command completes.
+ */
+public class ExchangeFuture<V> implements Future<V> {
+
+    /** Released once the command has completed */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /** The result, if the command succeeded */
+    private V value;
+
+    /** The failure, if the command failed */
+    private Throwable failure;
+
+    /** The callbacks waiting for the command to complete */
+    private List<ExchangeCallback<? super V>> callbacks;
+
+
+    /**
+     * Creates a future which has already succeeded.
+     * @param result - the result
+     * @return - the future
+     */
+    public static <V> ExchangeFuture<V> completed(final V result) {
+        final ExchangeFuture<V> future = new ExchangeFuture<V>();
+        future.complete(result);
+        return future;
+    }
+
+
+    /**
+     * Creates a future which has already failed.
+     * @param cause - the failure
+     * @return - the future
+     */
+    public static <V> ExchangeFuture<V> failed(final Throwable cause) {
+        final ExchangeFuture<V> future = new ExchangeFuture<V>();
+        future.fail(cause);
+        return future;
+    }
+
+
+    /**
+     * Completes the command successfully, only the first completion has any effect.
+     * @param result - the result
+     * @return - true if the command was completed by this call
+     */
+    public boolean complete(final V result) {
+        final List<ExchangeCallback<? super V>> waiting;
+        synchronized (done) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            value = result;
+            done.countDown();
+            waiting = takeCallbacks();
+        }
+        for (final ExchangeCallback<? super V> callback : waiting) {
+            callback.succeeded(result);
+        }
+        return true;
+    }
+
+
+    /**
+     * Fails the command, only the first completion has any effect.
+     * @param cause - the reason it failed
+     * @return - true if the command was completed by this call
+     */
+    public boolean fail(final Throwable cause) {
+        final List<ExchangeCallback<? super V>> waiting;
+        synchronized (done) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            failure = cause;
+            done.countDown();
+            waiting = takeCallbacks();
+        }
+        for (final ExchangeCallback<? super V> callback : waiting) {
+            callback.failed(cause);
+        }
+        return true;
+    }
+
+
+    /**
+     * Registers a callback to be run when the command completes, if it has already completed the callback is run at
+     * once by the calling thread.
+     * @param callback - the callback
+     */
+    public void addCallback(final ExchangeCallback<? super V> callback) {
+        synchronized (done) {
+            if (done.getCount() != 0) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<ExchangeCallback<? super V>>(2);
+                }
+                callbacks.add(callback);
+                return;
+            }
+        }
+        if (failure != null) {
+            callback.failed(failure);
+        } else {
+            callback.succeeded(value);
+        }
+    }
+
+
+    /**
+     * Removes the registered callbacks, called while holding the lock as the command completes.
+     * @return - the callbacks
+     */
+    private List<ExchangeCallback<? super V>> takeCallbacks() {
+        final List<ExchangeCallback<? super V>> waiting = callbacks;
+        callbacks = null;
+        return waiting == null ? Collections.<ExchangeCallback<? super V>>emptyList() : waiting;
+    }
+
+
+    /**
+     * Commands can't be cancelled once they have been sent.
+     * @param mayInterruptIfRunning - ignored
+     * @return - false
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+
+    @Override
+    public V get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("No response from the exchange");
+        }
+        return result();
+    }
+
+
+    /**
+     * Gets the outcome of a completed command.
+     * @return - the result
+     * @throws ExecutionException - if the command failed
+     */
+    private V result() throws ExecutionException {
+        synchronized (done) {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return value;
+        }
+    }
+}
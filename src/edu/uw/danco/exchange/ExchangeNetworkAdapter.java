@@ -3,14 +3,10 @@ package edu.uw.danco.exchange;
 import edu.uw.ext.framework.exchange.ExchangeAdapter;
 import edu.uw.ext.framework.exchange.ExchangeEvent;
 import edu.uw.ext.framework.exchange.StockExchange;
-import edu.uw.ext.framework.exchange.StockQuote;
-import edu.uw.ext.framework.order.MarketBuyOrder;
-import edu.uw.ext.framework.order.MarketSellOrder;
-import edu.uw.ext.framework.order.Order;
 
 import java.io.*;
 import java.net.*;
-import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,6 +25,10 @@ import java.util.logging.Logger;
  * with the "real" exchange. The listeners need to be implemented such that the events are converted to text messages
  * and then multicast to brokers. The adapter must also provide a text based custom protocol using TCP sockets to
  * access the isOpen, getQuote, getTickers and executeTrade operations of the exchange interface.
+ *
+ * The events are multicast by an EventPublisher, the exchange's listener thread only queues them. Every event carries
+ * a sequence number, and the most recent are kept in an EventRing for clients which missed them. The numbers start
+ * from the adapter's start time, so clients notice a restarted exchange.
  */
 public class ExchangeNetworkAdapter implements ExchangeAdapter {
 
@@ -50,8 +50,14 @@ public class ExchangeNetworkAdapter implements ExchangeAdapter {
     /** The multicast group */
     private InetAddress group = null;
 
-    /** Listens for commands to send to the exchange */
-    private CommandListener listener;
+    /** Multicasts the events */
+    private EventPublisher publisher;
+
+    /** Serves the commands sent to the exchange */
+    private CommandServer commandServer;
+
+    /** Numbers the events multicast and keeps the most recent */
+    private final EventRing events = new EventRing(EventRing.DEFAULT_CAPACITY, EventRing.startOfEpoch());
 
     /**
      * Server event processing consists of the ExchangeNetworkAdapter registering as an ExchangeListener
@@ -76,9 +82,12 @@ public class ExchangeNetworkAdapter implements ExchangeAdapter {
             group = InetAddress.getByName(multicastIp);
             multiSock = new MulticastSocket();
             multiSock.joinGroup(group);
+            publisher = new EventPublisher(multiSock, group, multicastPort, events,
+                                           EventPublisher.DEFAULT_MAX_DELAY_MICROS, TimeUnit.MICROSECONDS);
+            publisher.start();
 
-            listener = new CommandListener(exchange, commandPort);
-            listener.start();
+            commandServer = new CommandServer(new CommandExecutor(exchange, events), commandPort);
+            commandServer.start();
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Unable to open socket", e);
         }
@@ -95,8 +104,13 @@ public class ExchangeNetworkAdapter implements ExchangeAdapter {
         if (multiSock != null) {
             try {
                 exchange.removeExchangeListener(this);
+                if (publisher != null) {
+                    publisher.close();
+                }
                 multiSock.leaveGroup(InetAddress.getByName(multicastIp));
-                listener.close();
+                if (commandServer != null) {
+                    commandServer.close();
+                }
             } catch (IOException e) {
                 LOGGER.log(Level.WARNING, "Exception trying to leave multicast group", e);
             } finally {
@@ -105,6 +119,27 @@ public class ExchangeNetworkAdapter implements ExchangeAdapter {
         }
     }
 
+    /**
+     * Sets the time a command connection may be idle before it is closed, reclaiming the connections of brokers which
+     * have gone away without closing them.
+     * @param millis - the timeout in milliseconds, 0 to keep idle connections open
+     */
+    public void setIdleTimeout(final long millis) {
+        if (commandServer != null) {
+            commandServer.setIdleTimeout(millis);
+        }
+    }
+
+
+    /**
+     * Gets the number of open command connections.
+     * @return - the connection count
+     */
+    public int getConnectionCount() {
+        return commandServer == null ? 0 : commandServer.getConnectionCount();
+    }
+
+
     /**
      * the listener methods encode the events as text and multicast them.
      *
@@ -142,252 +177,13 @@ public class ExchangeNetworkAdapter implements ExchangeAdapter {
     }
 
 
-    private void multicastEvent(final ExchangeEvent event) {
-        // can move the datagram object to an instance member rather than local to decrease object creation
-        byte[] buf = new byte[1024];
-        final DatagramPacket packet = new DatagramPacket(buf, buf.length,
-                                                                group, multicastPort);
-        final String eventStr = NetEventProcessor.GetEventString(event);
-        // add the encoding type to the ProtocolConstants and reference it in the getBytes method
-        byte[] bytes = eventStr.getBytes();
-        packet.setData(bytes);
-        packet.setLength(bytes.length);
-        try {
-            multiSock.send(packet);
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, String.format("Unable to multicast %s event", event.getEventType()), e);
-        }
-    }
-
-
     /**
-     * Listen for operations commands sent on the network
-     */
-    private static class CommandListener extends Thread {
-
-        /** The logger */
-        private static final Logger logger = Logger.getLogger(CommandListener.class.getName());
-
-        /** The Socket used to listen for commands */
-        private ServerSocket serverSocket;
-
-        /** Reference to the real exchange */
-        private final StockExchange exchange;
-
-        /** The port to listen to commands on */
-        private final int commandPort;
-
-        /** The socket encapsulating a client connection. */
-        private Socket client;
-
-        /** Flag to determine listening state */
-        private boolean listening;
-
-        /**
-         * Constructor
-         * @param exchange
-         * @param commandPort
-         */
-        private CommandListener(StockExchange exchange, int commandPort) {
-            this.exchange = exchange;
-            this.commandPort = commandPort;
-
-            try {
-                serverSocket = new ServerSocket(commandPort);
-            } catch (IOException e) {
-                logger.log(Level.SEVERE, "Unable to open command port.", e);
-            }
-        }
-
-        @Override
-        public void run() {
-            listening = true;
-            CommandHandler handler = null;
-            logger.info("Listening for commands");
-            try {
-                while (listening) {
-                    client = serverSocket.accept();
-                    handler = new CommandHandler(exchange, client);
-                    final Thread handlerThread = new Thread(handler);
-                    handlerThread.start();
-                }
-            } catch (final SocketException e) {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    logger.log(Level.WARNING, "SocketException on server with port = " + commandPort, e);
-                }
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Exception listening on server with port = " + commandPort, e);
-            } finally {
-                handler.stopHandling();
-            }
-        }
-
-
-        /**
-         * Call to close the server socket and stop handling for commands
-         */
-        public void close() {
-            try {
-                listening = false;
-                client.close();
-                serverSocket.close();
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Unable to close server socket", e);
-            } finally {
-                client = null;
-                serverSocket = null;
-            }
-        }
-    }
-
-
-    /**
-     * Handle operations calls to the exchange
+     * Queues an event to be multicast.
+     * @param event - the event
      */
-    private static class CommandHandler implements Runnable {
-        /** The logger */
-        private static final Logger logger = Logger.getLogger(CommandHandler.class.getName());
-
-        /** The real exchange */
-        private final StockExchange exchange;
-
-        /** The socket encapsulating a client connection. */
-        private Socket socket;
-
-        /** Flag to determine handling state */
-        private boolean handling = false;
-
-        /**
-         * Constructor
-         * @param exchange
-         * @param socket
-         */
-        private CommandHandler(final StockExchange exchange, final Socket socket) {
-            this.exchange = exchange;
-            this.socket = socket;
-        }
-
-        @Override
-        public void run() {
-            handling = true;
-            InputStreamReader isr = null;
-            BufferedReader reader = null;
-            PrintWriter writer = null;
-            try {
-                isr = new InputStreamReader(socket.getInputStream());
-                reader = new BufferedReader(isr);
-                writer = new PrintWriter(socket.getOutputStream(), true);
-                while (handling) {
-                    final String command = reader.readLine();
-                    if (command == null) {
-                        continue;
-                    }
-                    final Scanner scanner =
-                            new Scanner(command).useDelimiter(ProtocolConstants.ELEMENT_DELIMITER.toString());
-                    final String name = scanner.next();
-                    final ProtocolConstants cmdName = ProtocolConstants.valueOf(name);
-
-                    // use a PrintWriter rather than a BufferedWriter and you get a println method on the writer,
-                    // and you can also pass a value to cause it to auto-flush.
-
-                    switch (cmdName) {
-                        case GET_QUOTE_CMD:
-                            scanner.skip(ProtocolConstants.ELEMENT_DELIMITER.toString());
-                            final String ticker = scanner.next();
-                            final StockQuote quote = exchange.getQuote(ticker);
-                            // handle invalid tickers
-                            writer.println(quote.getPrice());
-                            break;
-
-                        case GET_TICKERS_CMD:
-                            String[] tickers = exchange.getTickers();
-                            final StringBuilder sb = new StringBuilder();
-                            for (final String symbol : tickers) {
-                                sb.append(symbol).append(ProtocolConstants.ELEMENT_DELIMITER.toString());
-                            }
-                            writer.println(sb.toString());
-                            break;
-
-                        case GET_STATE_CMD:
-                            if (exchange.isOpen()) {
-                                writer.println(ProtocolConstants.OPEN_STATE.toString());
-                            } else {
-                                writer.println(ProtocolConstants.CLOSED_STATE.toString());
-                            }
-                            break;
-
-                        case EXECUTE_TRADE_CMD:
-                            /*
-                             * Request:
-                             * [EXECUTE_TRADE_CMD][ELEMENT_DELIMITER]
-                             * [BUY_ORDER]|[SELL_ORDER][ELEMENT_DELIMITER]
-                             * account_id[ELEMENT_DELIMITER]
-                             * symbol[ELEMENT_DELIMITER]
-                             * shares
-                             * Response: execution_price
-                             */
-                            if (exchange.isOpen()) {
-                                scanner.skip(ProtocolConstants.ELEMENT_DELIMITER.toString());
-                                final Order order;
-                                final String orderType = scanner.next();
-                                final String accountId = scanner.next();
-                                final String symbol = scanner.next();
-                                final int numberOfShares = scanner.nextInt();
-
-                                if (orderType.equals(ProtocolConstants.BUY_ORDER.toString())) {
-                                    order = new MarketBuyOrder(accountId, numberOfShares, symbol);
-                                } else {
-                                    order = new MarketSellOrder(accountId, numberOfShares, symbol);
-                                }
-                                final int executionPrice = exchange.executeTrade(order);
-                                writer.println(String.valueOf(executionPrice));
-                            } else {
-                                writer.println(0);
-                            }
-                            break;
-
-                        default:
-                            logger.log(Level.WARNING, "Unable to determine command for: " + cmdName);
-                            break;
-                    }
-                }
-                } catch (IOException e) {
-                    logger.log(Level.SEVERE, "Exception reading from input stream", e);
-                } finally {
-                    if (reader != null) {
-                        try {
-                            reader.close();
-                        } catch (IOException e) {
-                            logger.log(Level.WARNING, "Exception closing reader", e);
-                        }
-                    }
-                    if (isr != null) {
-                        try {
-                            isr.close();
-                        } catch (IOException e) {
-                            logger.log(Level.WARNING, "Exception closeing input stream", e);
-                        }
-                    }
-                    if (writer != null) {
-                        writer.close();
-                    }
-                    if (socket != null) {
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            logger.log(Level.WARNING, "Exception closing socket", e);
-                        }
-                    }
-
-                }
-        }
-
-
-        /**
-         * Convenience method to shut down handling for events
-         */
-        private void stopHandling() {
-            this.handling = false;
+    private void multicastEvent(final ExchangeEvent event) {
+        if (publisher != null) {
+            publisher.publish(event);
         }
     }
 }
@@ -1,11 +1,13 @@
 package edu.uw.danco.exchange;
 
 import edu.uw.danco.exchange.operations.ExecuteTrade;
+import edu.uw.danco.exchange.operations.GetEvents;
 import edu.uw.danco.exchange.operations.GetQuote;
+import edu.uw.danco.exchange.operations.GetQuotes;
+import edu.uw.danco.exchange.operations.GetSnapshot;
 import edu.uw.danco.exchange.operations.GetState;
 import edu.uw.danco.exchange.operations.GetTickers;
 import edu.uw.ext.framework.exchange.ExchangeListener;
-import edu.uw.ext.framework.exchange.StockExchange;
 import edu.uw.ext.framework.exchange.StockQuote;
 import edu.uw.ext.framework.order.Order;
 
@@ -13,9 +15,13 @@ import javax.swing.event.EventListenerList;
 import java.io.*;
 import java.net.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,10 +36,24 @@ import java.util.logging.Logger;
  * except the listener registration operations, will be implemented to make requests of the ExchangeNetworkAdapter
  * using the text based custom protocol.
  *
+ * The proxy may instead use the multiplexed binary protocol, see BinaryProtocol and MultiplexedConnection, which is
+ * negotiated when the proxy connects. Its commands are pipelined over the proxy's connections, so concurrent callers
+ * don't wait for each other's round trips. The connections are used in turn, and one which fails is reopened when it is
+ * next used.
+ *
+ * Text commands are sent over a pool of persistent connections, see ExchangeConnectionPool, each checked out by one
+ * caller for the duration of a command.
+ *
+ * The asynchronous operations of AsyncStockExchange return as soon as a binary command has been queued, a caller may
+ * have any number outstanding. With the text protocol a connection carries one command at a time, so they execute the
+ * command before returning and the future they return has already completed.
+ *
  * The proxy will receive multicast messages representing exchange events. These event messages will be transformed
- * into the appropriate event object and then propagated to registered listeners.
+ * into the appropriate event object and then propagated to registered listeners. Events missed from the multicast
+ * stream are fetched again with getEvents, see NetEventProcessor. Every event is numbered, see
+ * SequencedStockExchange, so a client can line a snapshot up with the events following it.
  */
-public class ExchangeNetworkProxy implements StockExchange {
+public class ExchangeNetworkProxy implements AsyncStockExchange, SequencedStockExchange {
 
     /** The logger */
     private static final Logger LOGGER = Logger.getLogger(ExchangeNetworkAdapter.class.getName());
@@ -53,31 +73,81 @@ public class ExchangeNetworkProxy implements StockExchange {
     /** Executor service for processing stock exchange events */
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
 
+    /** The address the exchange accepts requests on */
+    private final String cmdIpAddress;
+
+    /** The port the exchange accepts requests on */
+    private final int cmdPort;
+
+    /** The connections to the server when the text protocol is used */
+    private ExchangeConnectionPool pool;
+
+    /** True if the binary protocol is used */
+    private final boolean binary;
+
+    /** The connections to the server when the binary protocol is used */
+    private final MultiplexedConnection[] connections;
+
+    /** The number of binary commands sent, used to pick each command's connection */
+    private final AtomicInteger sent = new AtomicInteger();
+
+
     /**
-     * The socket with which to talk to the server
+     * Constructor, the text protocol is used.
+     * @param eventIpAddress - the multicast IP address to connect to
+     * @param eventPort - the multicastport to connect to
+     * @param cmdIpAddress - the address the exchange accepts requests on
+     * @param cmdPort - the port the exchange accepts requests on
      */
-    private Socket server;
+    public ExchangeNetworkProxy(final String eventIpAddress,
+                                final int eventPort,
+                                final String cmdIpAddress,
+                                final int cmdPort) {
+        this(eventIpAddress, eventPort, cmdIpAddress, cmdPort, false, ExchangeConnectionPool.DEFAULT_SIZE);
+    }
 
 
     /**
-     *
+     * Constructor
      * @param eventIpAddress - the multicast IP address to connect to
      * @param eventPort - the multicastport to connect to
      * @param cmdIpAddress - the address the exchange accepts requests on
      * @param cmdPort - the port the exchange accepts requests on
+     * @param binary - true to use the binary protocol
+     * @param poolSize - the number of connections to the server
      */
     public ExchangeNetworkProxy(final String eventIpAddress,
                                 final int eventPort,
                                 final String cmdIpAddress,
-                                final int cmdPort) {
+                                final int cmdPort,
+                                final boolean binary,
+                                final int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least one: " + poolSize);
+        }
+        this.cmdIpAddress = cmdIpAddress;
+        this.cmdPort = cmdPort;
+        this.binary = binary;
+        connections = new MultiplexedConnection[binary ? poolSize : 0];
         try {
             eventGroup = InetAddress.getByName(eventIpAddress);
 
             commandProcessor =
-                    new NetEventProcessor(eventPort, eventGroup, listenerList);
-
+                    new NetEventProcessor(eventPort, eventGroup, listenerList, this);
+
+            if (binary) {
+                for (int i = 0; i < connections.length; i++) {
+                    connections[i] = new MultiplexedConnection(cmdIpAddress, cmdPort);
+                }
+            } else {
+                pool = new ExchangeConnectionPool(cmdIpAddress, cmdPort, poolSize);
+                // opens the first connection now, so an unreachable exchange is reported at once
+                pool.release(pool.borrow());
+            }
+            // started once the commands it may send to recover missed events can be sent
             executor.execute(commandProcessor);
-            server = new Socket(cmdIpAddress, cmdPort);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Unable to connect to command socket.", e);
         } finally {
@@ -99,6 +169,9 @@ public class ExchangeNetworkProxy implements StockExchange {
         // sends the GET_STATE_CMD command, parses response
         boolean isOpen = false;
         try {
+            if (binary) {
+                return connection().isOpen().get();
+            }
             ExchangeOperation operation = call(new GetState());
             final Scanner scanner =
                     new Scanner(operation.getResult()).useDelimiter(ProtocolConstants.ELEMENT_DELIMITER.toString());
@@ -106,7 +179,7 @@ public class ExchangeNetworkProxy implements StockExchange {
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Exception trying to call the event processor", e);
         }
-        return true;
+        return isOpen;
     }
 
 
@@ -122,6 +195,9 @@ public class ExchangeNetworkProxy implements StockExchange {
         // send the GET_TICKERS_CMD command
         final ArrayList<String> tickers = new ArrayList<String>();
         try {
+            if (binary) {
+                return connection().getTickers().get();
+            }
             ExchangeOperation operation = call(new GetTickers());
             final Scanner scanner =
                     new Scanner(operation.getResult()).useDelimiter(ProtocolConstants.ELEMENT_DELIMITER.toString());
@@ -146,6 +222,9 @@ public class ExchangeNetworkProxy implements StockExchange {
         StockQuote quote = null;
 
         try {
+            if (binary) {
+                return new StockQuote(ticker, connection().getQuote(ticker).get());
+            }
             ExchangeOperation operation = call(new GetQuote(ticker));
             quote = new StockQuote(ticker, Integer.valueOf(operation.getResult()));
         } catch (Exception e) {
@@ -156,6 +235,117 @@ public class ExchangeNetworkProxy implements StockExchange {
     }
 
 
+    /**
+     * Gets the current prices of several stocks in a single request, rather than a round trip for each.
+     * @param tickers - the ticker symbols, at most BinaryProtocol.MAX_QUOTES with the binary protocol
+     * @return - the quotes, in the order of the tickers, null for a stock with no quote, or null if the quotes are
+     *           unavailable
+     */
+    public StockQuote[] getQuotes(final String... tickers) {
+        // send the GET_QUOTES_CMD command
+        StockQuote[] quotes = null;
+
+        try {
+            if (tickers.length == 0) {
+                return new StockQuote[0];
+            }
+            if (binary) {
+                return toQuotes(tickers, connection().getQuotes(tickers).get());
+            }
+            ExchangeOperation operation = call(new GetQuotes(tickers));
+            quotes = toQuotes(tickers, operation.getResult());
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Exception trying to call the event processor", e);
+        }
+
+        return quotes;
+    }
+
+
+    /**
+     * Gets the exchange's state, its tickers and their last prices in a single request, a client starting up needs
+     * nothing else from the exchange before following its events.
+     * @return - the snapshot, or null if it is unavailable
+     */
+    @Override
+    public ExchangeSnapshot getSnapshot() {
+        // send the GET_SNAPSHOT_CMD command
+        ExchangeSnapshot snapshot = null;
+
+        try {
+            if (binary) {
+                snapshot = connection().getSnapshot().get();
+            } else {
+                ExchangeOperation operation = call(new GetSnapshot());
+                final String[] elements =
+                        operation.getResult().split(ProtocolConstants.ELEMENT_DELIMITER.toString(), -1);
+                if (elements.length < 2 || elements.length % 2 != 0) {
+                    throw new IOException("Malformed snapshot: " + operation.getResult());
+                }
+                final String[] tickers = new String[elements.length / 2 - 1];
+                final int[] prices = new int[tickers.length];
+                for (int i = 0; i < tickers.length; i++) {
+                    tickers[i] = elements[2 + i * 2];
+                    final String price = elements[3 + i * 2];
+                    prices[i] = price.isEmpty() ? BinaryProtocol.NO_PRICE : Integer.parseInt(price);
+                }
+                snapshot = new ExchangeSnapshot(Long.parseLong(elements[0]),
+                                                elements[1].equals(ProtocolConstants.OPEN_STATE.toString()),
+                                                tickers, prices);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Exception trying to call the event processor", e);
+        }
+
+        if (snapshot != null && commandProcessor != null) {
+            commandProcessor.synchronize(snapshot.getSequence());
+        }
+        return snapshot;
+    }
+
+
+    /**
+     * Gets events the exchange has already multicast, to recover events missed from the multicast stream.
+     * @param from - the sequence number of the first event
+     * @param to - the sequence number of the last event
+     * @return - the events, as multicast, or null if the exchange no longer keeps them or they are unavailable
+     */
+    @Override
+    public List<String> getEvents(final long from, final long to) {
+        // send the GET_EVENTS_CMD command
+        List<String> events = null;
+
+        try {
+            if (from > to) {
+                return new ArrayList<String>(0);
+            }
+            if (binary) {
+                return Arrays.asList(connection().getEvents(from, to).get());
+            }
+            ExchangeOperation operation = call(new GetEvents(from, to));
+            if (!operation.getResult().isEmpty()) {
+                events = Arrays.asList(
+                        operation.getResult().split(Pattern.quote(ProtocolConstants.EVENT_DELIMITER.toString())));
+            }
+        } catch (Exception e) {
+            // the caller falls back to a snapshot, which is logged
+            LOGGER.log(Level.FINE, "Unable to get events " + from + " to " + to, e);
+        }
+
+        return events;
+    }
+
+
+    /**
+     * Gets the sequence number of the last event delivered to the listeners.
+     * @return - the sequence number, 0 before the first event
+     */
+    @Override
+    public long getEventSequence() {
+        return commandProcessor == null ? 0L : commandProcessor.getLastSequence();
+    }
+
+
     /**
      * The client registers the Broker as an ExchangeListener with the ExchangeNetworkProxy (the Exchange). The client
      * then receives the multicast messages, converts the message to the appropriate event and notifies the listeners.
@@ -189,6 +379,9 @@ public class ExchangeNetworkProxy implements StockExchange {
         //sends the EXECUTE_TRADE command
         int executionPrice = 0;
         try {
+            if (binary) {
+                return connection().executeTrade(order).get();
+            }
             ExchangeOperation operation = call(new ExecuteTrade(order));
             executionPrice = Integer.valueOf(operation.getResult());
         } catch (final Exception e) {
@@ -199,6 +392,113 @@ public class ExchangeNetworkProxy implements StockExchange {
     }
 
 
+    /**
+     * Starts getting the state of the exchange.
+     * @return - the pending state, true if the exchange is open
+     */
+    @Override
+    public ExchangeFuture<Boolean> isOpenAsync() {
+        if (!binary) {
+            return ExchangeFuture.completed(isOpen());
+        }
+        try {
+            return connection().isOpen();
+        } catch (final IOException e) {
+            return ExchangeFuture.failed(e);
+        }
+    }
+
+
+    /**
+     * Starts getting a stock's current price.
+     * @param ticker - the ticker symbol for the stock
+     * @return - the pending quote, fails if the quote is unavailable
+     */
+    @Override
+    public ExchangeFuture<StockQuote> getQuoteAsync(final String ticker) {
+        if (!binary) {
+            final StockQuote quote = getQuote(ticker);
+            return quote != null ? ExchangeFuture.completed(quote)
+                                 : ExchangeFuture.<StockQuote>failed(new IOException("Quote unavailable: " + ticker));
+        }
+        final ExchangeFuture<StockQuote> quote = new ExchangeFuture<StockQuote>();
+        try {
+            connection().getQuote(ticker).addCallback(new ExchangeCallback<Integer>() {
+                @Override
+                public void succeeded(final Integer price) {
+                    quote.complete(new StockQuote(ticker, price));
+                }
+
+                @Override
+                public void failed(final Throwable cause) {
+                    quote.fail(cause);
+                }
+            });
+        } catch (final IOException e) {
+            quote.fail(e);
+        }
+        return quote;
+    }
+
+
+    /**
+     * Starts getting the current prices of several stocks, in a single request.
+     * @param tickers - the ticker symbols, at most BinaryProtocol.MAX_QUOTES with the binary protocol
+     * @return - the pending quotes, in the order of the tickers, null for a stock with no quote
+     */
+    @Override
+    public ExchangeFuture<StockQuote[]> getQuotesAsync(final String... tickers) {
+        if (!binary || tickers.length == 0) {
+            final StockQuote[] quotes = getQuotes(tickers);
+            return quotes != null ? ExchangeFuture.completed(quotes)
+                                  : ExchangeFuture.<StockQuote[]>failed(new IOException("Quotes unavailable"));
+        }
+        final ExchangeFuture<StockQuote[]> quotes = new ExchangeFuture<StockQuote[]>();
+        try {
+            connection().getQuotes(tickers).addCallback(new ExchangeCallback<int[]>() {
+                @Override
+                public void succeeded(final int[] prices) {
+                    try {
+                        quotes.complete(toQuotes(tickers, prices));
+                    } catch (final IOException e) {
+                        quotes.fail(e);
+                    }
+                }
+
+                @Override
+                public void failed(final Throwable cause) {
+                    quotes.fail(cause);
+                }
+            });
+        } catch (final IOException e) {
+            quotes.fail(e);
+        }
+        return quotes;
+    }
+
+
+    /**
+     * Starts executing a trade.
+     * @param order - the order to execute
+     * @return - the pending execution price
+     */
+    @Override
+    public ExchangeFuture<Integer> executeTradeAsync(final Order order) {
+        if (!binary) {
+            try {
+                return ExchangeFuture.completed(Integer.valueOf(call(new ExecuteTrade(order)).getResult()));
+            } catch (final Exception e) {
+                return ExchangeFuture.failed(e);
+            }
+        }
+        try {
+            return connection().executeTrade(order);
+        } catch (final IOException e) {
+            return ExchangeFuture.failed(e);
+        }
+    }
+
+
     /**
      * Called to put the text-based commands on the wire to the exchange server
      * @param operation - the abstract representation of an exchange operation
@@ -206,16 +506,106 @@ public class ExchangeNetworkProxy implements StockExchange {
      * @throws Exception
      */
     public ExchangeOperation call(ExchangeOperation operation) throws Exception {
-        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(server.getOutputStream()));
-        writer.println(operation.getCommand());
-
-        final InputStreamReader isr = new InputStreamReader(server.getInputStream());
-        final BufferedReader reader = new BufferedReader(isr);
-        final String result = reader.readLine();
+        String result;
+        try {
+            result = call(operation.getCommand());
+        } catch (final EOFException e) {
+            // the exchange may have closed an idle connection, queries are safe to resend on a new one
+            if (operation instanceof ExecuteTrade) {
+                throw e;
+            }
+            result = call(operation.getCommand());
+        }
 
         operation.setResult(result);
 
         return operation;
     }
 
+
+    /**
+     * Sends a text command over a pooled connection, discarding the connection if the call fails.
+     * @param command - the command
+     * @return - the response
+     * @throws IOException - if the call fails
+     * @throws InterruptedException - if interrupted waiting for a connection
+     */
+    private String call(final String command) throws IOException, InterruptedException {
+        final ExchangeConnectionPool.Connection connection = pool.borrow();
+        final String result;
+        try {
+            result = connection.call(command);
+        } catch (final IOException e) {
+            pool.discard(connection);
+            throw e;
+        }
+        pool.release(connection);
+        return result;
+    }
+
+
+    /**
+     * Converts a binary GET_QUOTES_CMD response to quotes.
+     * @param tickers - the requested ticker symbols
+     * @param prices - the prices, in the order of the tickers
+     * @return - the quotes, null for a stock with no quote
+     * @throws IOException - if the response doesn't match the request
+     */
+    private static StockQuote[] toQuotes(final String[] tickers, final int[] prices) throws IOException {
+        if (prices.length != tickers.length) {
+            throw new IOException("Expected " + tickers.length + " quotes, received " + prices.length);
+        }
+        final StockQuote[] quotes = new StockQuote[tickers.length];
+        for (int i = 0; i < quotes.length; i++) {
+            if (prices[i] != BinaryProtocol.NO_PRICE) {
+                quotes[i] = new StockQuote(tickers[i], prices[i]);
+            }
+        }
+        return quotes;
+    }
+
+
+    /**
+     * Converts a text GET_QUOTES_CMD response to quotes.
+     * @param tickers - the requested ticker symbols
+     * @param result - the response
+     * @return - the quotes, null for a stock with no quote
+     * @throws IOException - if the response doesn't match the request
+     */
+    private static StockQuote[] toQuotes(final String[] tickers, final String result) throws IOException {
+        final String[] prices = result.split(ProtocolConstants.ELEMENT_DELIMITER.toString(), -1);
+        if (prices.length != tickers.length) {
+            throw new IOException("Expected " + tickers.length + " quotes, received " + prices.length);
+        }
+        final StockQuote[] quotes = new StockQuote[tickers.length];
+        for (int i = 0; i < quotes.length; i++) {
+            if (!prices[i].isEmpty()) {
+                quotes[i] = new StockQuote(tickers[i], Integer.parseInt(prices[i]));
+            }
+        }
+        return quotes;
+    }
+
+
+    /**
+     * Picks the connection for the next binary command, in turn, reopening it if it has failed.
+     * @return - the connection
+     * @throws IOException - if the connection has failed and can't be reopened
+     */
+    private MultiplexedConnection connection() throws IOException {
+        final int i = (sent.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+        MultiplexedConnection connection = connections[i];
+        if (connection != null && !connection.isClosed()) {
+            return connection;
+        }
+        synchronized (connections) {
+            connection = connections[i];
+            if (connection == null || connection.isClosed()) {
+                connection = new MultiplexedConnection(cmdIpAddress, cmdPort);
+                connections[i] = connection;
+            }
+            return connection;
+        }
+    }
+
 }
@@ -15,6 +15,35 @@ import edu.uw.ext.framework.exchange.StockExchange;
  */
 public class ExchangeNetworkProxyFactory implements NetworkExchangeProxyFactory {
 
+    /** True if the proxies use the binary protocol */
+    private boolean binaryProtocol;
+
+    /** The number of connections each proxy opens to the exchange */
+    private int connectionPoolSize = ExchangeConnectionPool.DEFAULT_SIZE;
+
+
+    /**
+     * Selects the protocol of the proxies created.
+     * @param binaryProtocol - true for the binary protocol, false for the text protocol
+     */
+    public void setBinaryProtocol(final boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+
+    /**
+     * Sets the number of connections each proxy opens to the exchange. With the text protocol each connection carries
+     * one command at a time, with the binary protocol the commands are spread over the connections.
+     * @param connectionPoolSize - the number of connections
+     */
+    public void setConnectionPoolSize(final int connectionPoolSize) {
+        if (connectionPoolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least one: " + connectionPoolSize);
+        }
+        this.connectionPoolSize = connectionPoolSize;
+    }
+
+
     /**
      * Instantiates a network enabled ExchangeNetworkProxy
      * @param multicastIP - the multicast ip address used to distribute events
@@ -27,7 +56,8 @@ public class ExchangeNetworkProxyFactory implements NetworkExchangeProxyFactory
     public StockExchange newProxy(final String multicastIP, final int multicastPort,
                                   final String commandIP, final int commandPort) {
         ExchangeNetworkProxy networkProxy =
-                new ExchangeNetworkProxy(multicastIP, multicastPort, commandIP, commandPort);
+                new ExchangeNetworkProxy(multicastIP, multicastPort, commandIP, commandPort, binaryProtocol,
+                                         connectionPoolSize);
 
         return networkProxy;
     }
@@ -0,0 +1,102 @@
+package edu.uw.danco.exchange;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/22/13
+ * Time: 3:15 PM
+ *
+ * The state of the market at one moment: whether the exchange is open, the tickers traded and their last prices,
+ * tagged with the sequence number of the last event the exchange had multicast when the snapshot was taken.
+ *
+ * The sequence number is read before the state and prices, so the snapshot may already reflect events following it.
+ * Events carry absolute prices and states, so applying those events to the snapshot again is harmless.
+ */
+public final class ExchangeSnapshot {
+
+    /** The sequence number of the last event multicast before the snapshot was taken */
+    private final long sequence;
+
+    /** True if the exchange was open */
+    private final boolean open;
+
+    /** The tickers, in the exchange's order */
+    private final String[] tickers;
+
+    /** The last price of each ticker which had a quote */
+    private final Map<String, Integer> prices;
+
+
+    /**
+     * Constructor
+     * @param sequence - the sequence number of the last event multicast before the snapshot was taken
+     * @param open - true if the exchange was open
+     * @param tickers - the tickers traded on the exchange
+     * @param prices - the last prices, in the order of the tickers, BinaryProtocol.NO_PRICE for a stock with no quote
+     */
+    public ExchangeSnapshot(final long sequence, final boolean open, final String[] tickers, final int[] prices) {
+        if (prices.length != tickers.length) {
+            throw new IllegalArgumentException("Expected " + tickers.length + " prices, received " + prices.length);
+        }
+        this.sequence = sequence;
+        this.open = open;
+        this.tickers = tickers.clone();
+        final Map<String, Integer> byTicker = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < tickers.length; i++) {
+            if (prices[i] != BinaryProtocol.NO_PRICE) {
+                byTicker.put(tickers[i], prices[i]);
+            }
+        }
+        this.prices = Collections.unmodifiableMap(byTicker);
+    }
+
+
+    /**
+     * Gets the sequence number of the last event multicast before the snapshot was taken.
+     * @return - the sequence number, 0 if no event had been multicast
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+
+    /**
+     * Gets the state of the exchange.
+     * @return - true if the exchange was open
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+
+    /**
+     * Gets the ticker symbols of the stocks traded on the exchange.
+     * @return - the tickers
+     */
+    public String[] getTickers() {
+        return tickers.clone();
+    }
+
+
+    /**
+     * Gets a stock's last price.
+     * @param ticker - the ticker symbol
+     * @return - the price, or null if the stock had no quote
+     */
+    public Integer getPrice(final String ticker) {
+        return prices.get(ticker);
+    }
+
+
+    /**
+     * Gets the last prices.
+     * @return - the price of each ticker which had a quote, in the exchange's order
+     */
+    public Map<String, Integer> getPrices() {
+        return prices;
+    }
+}
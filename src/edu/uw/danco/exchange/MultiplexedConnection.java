@@ -0,0 +1,510 @@
+package edu.uw.danco.exchange;
+
+import edu.uw.ext.framework.order.Order;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/21/13
+ * Time: 10:40 AM
+ *
+ * A connection to the exchange speaking the multiplexed binary protocol, shared by any number of calling threads.
+ *
+ * Callers queue commands and get a future for each. A single writer thread tags each command with a request id,
+ * encodes it in a reused buffer and writes the commands queued behind it before flushing, so commands from concurrent
+ * callers are pipelined rather than waiting for each other's round trips. A single reader thread decodes each
+ * response in a reused buffer and completes the future waiting for its request id, responses arrive in the order the
+ * exchange completes the commands.
+ *
+ * If the connection fails every pending command fails with it, and later commands fail immediately.
+ */
+public final class MultiplexedConnection {
+
+    /** The logger */
+    private static final Logger LOGGER = Logger.getLogger(MultiplexedConnection.class.getName());
+
+    /** The initial size of the encoding and decoding buffers */
+    private static final int BUFFER_SIZE = 512;
+
+    /** The socket connected to the exchange */
+    private final Socket socket;
+
+    /** Writes frames to the exchange */
+    private final OutputStream output;
+
+    /** Reads frames from the exchange */
+    private final DataInputStream input;
+
+    /** Commands waiting to be sent */
+    private final BlockingQueue<Request<?>> outbound = new LinkedBlockingQueue<Request<?>>();
+
+    /** Commands sent and waiting for a response, by request id */
+    private final Map<Integer, Request<?>> pending = new ConcurrentHashMap<Integer, Request<?>>();
+
+    /** The index of each ticker in the exchange's ticker table */
+    private final Map<String, Short> tickerIndex = new HashMap<String, Short>();
+
+    /** The thread sending commands */
+    private final Thread writer;
+
+    /** The thread reading responses */
+    private final Thread reader;
+
+    /** The reason the connection failed, null while it is usable */
+    private volatile IOException failure;
+
+
+    /**
+     * A command and its pending result.
+     * @param <V> - the type of the result
+     */
+    private abstract static class Request<V> extends ExchangeFuture<V> {
+        /**
+         * Encodes the command's body, following the request id.
+         * @param buffer - the buffer to encode into
+         */
+        abstract void encode(ByteBuffer buffer);
+
+
+        /**
+         * Decodes the result from a successful response.
+         * @param buffer - the response, positioned after the status
+         * @return - the result
+         */
+        abstract V decode(ByteBuffer buffer);
+    }
+
+
+    /**
+     * Constructor, connects and negotiates the protocol, then fetches the ticker table.
+     * @param host - the exchange's host
+     * @param port - the exchange's command port
+     * @throws IOException - if the connection can't be made or the exchange doesn't support the protocol
+     */
+    public MultiplexedConnection(final String host, final int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        output = new BufferedOutputStream(socket.getOutputStream());
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        output.write(new byte[] {BinaryProtocol.MAGIC, BinaryProtocol.MULTIPLEXED_VERSION});
+        output.flush();
+        if (input.readByte() != BinaryProtocol.MAGIC || input.readByte() < BinaryProtocol.MULTIPLEXED_VERSION) {
+            socket.close();
+            throw new IOException("Exchange doesn't support the multiplexed binary protocol");
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "MultiplexedConnection-writer");
+        writer.setDaemon(true);
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "MultiplexedConnection-reader");
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+
+        try {
+            final String[] tickers = getTickers().get();
+            for (short i = 0; i < tickers.length; i++) {
+                tickerIndex.put(tickers[i], i);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IOException("Interrupted fetching the ticker table", e);
+        } catch (final ExecutionException e) {
+            close();
+            throw new IOException("Unable to fetch the ticker table", e.getCause());
+        }
+    }
+
+
+    /**
+     * Gets the state of the exchange.
+     * @return - the pending state, true if the exchange is open
+     */
+    public ExchangeFuture<Boolean> isOpen() {
+        return submit(new Request<Boolean>() {
+            @Override
+            void encode(final ByteBuffer buffer) {
+                buffer.put(BinaryProtocol.GET_STATE_CMD.getOpcode());
+            }
+
+            @Override
+            Boolean decode(final ByteBuffer buffer) {
+                return buffer.get() != 0;
+            }
+        });
+    }
+
+
+    /**
+     * Gets the ticker symbols of the stocks traded on the exchange, in the order of the ticker table.
+     * @return - the pending tickers
+     */
+    public ExchangeFuture<String[]> getTickers() {
+        return submit(new Request<String[]>() {
+            @Override
+            void encode(final ByteBuffer buffer) {
+                buffer.put(BinaryProtocol.GET_TICKERS_CMD.getOpcode());
+            }
+
+            @Override
+            String[] decode(final ByteBuffer buffer) {
+                final String[] tickers = new String[buffer.getShort()];
+                for (int i = 0; i < tickers.length; i++) {
+                    tickers[i] = BinaryProtocol.getString(buffer);
+                }
+                return tickers;
+            }
+        });
+    }
+
+
+    /**
+     * Gets a stock's current price.
+     * @param ticker - the ticker symbol
+     * @return - the pending price
+     */
+    public ExchangeFuture<Integer> getQuote(final String ticker) {
+        final Short index = tickerIndex.get(ticker);
+        if (index == null) {
+            return ExchangeFuture.failed(new IOException("Unknown ticker: " + ticker));
+        }
+        return submit(new Request<Integer>() {
+            @Override
+            void encode(final ByteBuffer buffer) {
+                buffer.put(BinaryProtocol.GET_QUOTE_CMD.getOpcode()).putShort(index);
+            }
+
+            @Override
+            Integer decode(final ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        });
+    }
+
+
+    /**
+     * Gets the current prices of several stocks.
+     * @param tickers - the ticker symbols, at most BinaryProtocol.MAX_QUOTES
+     * @return - the pending prices, in the order of the tickers, BinaryProtocol.NO_PRICE for a stock with no quote
+     */
+    public ExchangeFuture<int[]> getQuotes(final String... tickers) {
+        if (tickers.length > BinaryProtocol.MAX_QUOTES) {
+            return ExchangeFuture.failed(new IllegalArgumentException("Too many tickers: " + tickers.length));
+        }
+        return submit(new Request<int[]>() {
+            @Override
+            void encode(final ByteBuffer buffer) {
+                buffer.put(BinaryProtocol.GET_QUOTES_CMD.getOpcode()).putShort((short) tickers.length);
+                for (final String ticker : tickers) {
+                    final Short index = tickerIndex.get(ticker);
+                    buffer.putShort(index == null ? -1 : index);
+                }
+            }
+
+            @Override
+            int[] decode(final ByteBuffer buffer) {
+                final int[] prices = new int[buffer.getShort()];
+                for (int i = 0; i < prices.length; i++) {
+                    prices[i] = buffer.getInt();
+                }
+                return prices;
+            }
+        });
+    }
+
+
+    /**
+     * Gets a snapshot of the market: the exchange's state, its tickers and their last prices.
+     * @return - the pending snapshot
+     */
+    public ExchangeFuture<ExchangeSnapshot> getSnapshot() {
+        return submit(new Request<ExchangeSnapshot>() {
+            @Override
+            void encode(final ByteBuffer buffer) {
+                buffer.put(BinaryProtocol.GET_SNAPSHOT_CMD.getOpcode());
+            }
+
+            @Override
+            ExchangeSnapshot decode(final ByteBuffer buffer) {
+                final long sequence = buffer.getLong();
+                final boolean open = buffer.get() != 0;
+                final String[] tickers = new String[buffer.getShort()];
+                for (int i = 0; i < tickers.length; i++) {
+                    tickers[i] = BinaryProtocol.getString(buffer);
+                }
+                final int[] prices = new int[tickers.length];
+                for (int i = 0; i < prices.length; i++) {
+                    prices[i] = buffer.getInt();
+                }
+                return new ExchangeSnapshot(sequence, open, tickers, prices);
+            }
+        });
+    }
+
+
+    /**
+     * Gets events the exchange has already multicast.
+     * @param from - the sequence number of the first event
+     * @param to - the sequence number of the last event
+     * @return - the pending events, as multicast, fails if the exchange no longer keeps them
+     */
+    public ExchangeFuture<String[]> getEvents(final long from, final long to) {
+        return submit(new Request<String[]>() {
+            @Override
+            void encode(final ByteBuffer buffer) {
+                buffer.put(BinaryProtocol.GET_EVENTS_CMD.getOpcode()).putLong(from).putLong(to);
+            }
+
+            @Override
+            String[] decode(final ByteBuffer buffer) {
+                final String[] events = new String[buffer.getShort()];
+                for (int i = 0; i < events.length; i++) {
+                    events[i] = BinaryProtocol.getString(buffer);
+                }
+                return events;
+            }
+        });
+    }
+
+
+    /**
+     * Executes a trade.
+     * @param order - the order to execute
+     * @return - the pending execution price, 0 if the exchange is closed
+     */
+    public ExchangeFuture<Integer> executeTrade(final Order order) {
+        final Short index = tickerIndex.get(order.getStockTicker());
+        if (index == null) {
+            return ExchangeFuture.failed(new IOException("Unknown ticker: " + order.getStockTicker()));
+        }
+        return submit(new Request<Integer>() {
+            @Override
+            void encode(final ByteBuffer buffer) {
+                buffer.put(BinaryProtocol.EXECUTE_TRADE_CMD.getOpcode())
+                      .put(order.isBuyOrder() ? BinaryProtocol.BUY_ORDER : BinaryProtocol.SELL_ORDER)
+                      .putShort(index)
+                      .putInt(order.getNumberOfShares());
+                BinaryProtocol.putString(buffer, order.getAccountId());
+            }
+
+            @Override
+            Integer decode(final ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        });
+    }
+
+
+    /**
+     * Checks whether the connection has failed or been closed.
+     * @return - true if commands can no longer be sent
+     */
+    public boolean isClosed() {
+        return failure != null;
+    }
+
+
+    /**
+     * Closes the connection, pending commands fail.
+     */
+    public void close() {
+        fail(new IOException("Connection closed"));
+    }
+
+
+    /**
+     * Queues a command to be sent.
+     * @param request - the command
+     * @return - the command's pending result
+     */
+    private <V> ExchangeFuture<V> submit(final Request<V> request) {
+        final IOException cause = failure;
+        if (cause != null) {
+            request.fail(cause);
+            return request;
+        }
+        outbound.add(request);
+        if (failure != null) {
+            drain(failure);
+        }
+        return request;
+    }
+
+
+    /**
+     * Sends queued commands until the connection fails, flushing whenever the queue is empty.
+     */
+    private void write() {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int nextId = 0;
+        IOException cause = null;
+        try {
+            while (failure == null) {
+                Request<?> request = outbound.take();
+                do {
+                    final int id = nextId++;
+                    try {
+                        buffer = encode(request, id, buffer);
+                    } catch (final RuntimeException e) {
+                        request.fail(e);
+                        continue;
+                    }
+                    buffer.putInt(0, buffer.position() - BinaryProtocol.HEADER_SIZE);
+                    pending.put(id, request);
+                    output.write(buffer.array(), 0, buffer.position());
+                } while ((request = outbound.poll()) != null);
+                output.flush();
+            }
+        } catch (final InterruptedException e) {
+            cause = new IOException("Writer interrupted");
+        } catch (final IOException e) {
+            cause = e;
+        }
+        // fails anything sent after the connection failed
+        fail(cause != null ? cause : failure);
+    }
+
+
+    /**
+     * Encodes a command's frame, growing the buffer until the command fits.
+     * @param request - the command
+     * @param id - the command's request id
+     * @param buffer - the buffer to encode into
+     * @return - the buffer holding the frame, positioned after it
+     */
+    private static ByteBuffer encode(final Request<?> request, final int id, final ByteBuffer buffer) {
+        ByteBuffer frame = buffer;
+        while (true) {
+            frame.clear();
+            frame.position(BinaryProtocol.HEADER_SIZE);
+            frame.putInt(id);
+            try {
+                request.encode(frame);
+                return frame;
+            } catch (final BufferOverflowException e) {
+                frame = ByteBuffer.allocate(frame.capacity() * 2);
+            }
+        }
+    }
+
+
+    /**
+     * Reads responses and completes their commands until the connection fails.
+     */
+    private void read() {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try {
+            while (failure == null) {
+                final int length = input.readInt();
+                if (buffer.capacity() < length) {
+                    buffer = ByteBuffer.allocate(length);
+                }
+                buffer.clear();
+                input.readFully(buffer.array(), 0, length);
+                buffer.limit(length);
+
+                final Request<?> request = pending.remove(buffer.getInt());
+                if (request == null) {
+                    LOGGER.warning("Response for unknown request id");
+                    continue;
+                }
+                if (buffer.get() != BinaryProtocol.STATUS_OK) {
+                    request.fail(new IOException("Exchange could not execute the command"));
+                    continue;
+                }
+                complete(request, buffer);
+            }
+        } catch (final EOFException e) {
+            fail(new IOException("Exchange closed the connection", e));
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+
+    /**
+     * Decodes a response and completes its command.
+     * @param request - the command
+     * @param buffer - the response, positioned after the status
+     */
+    private static <V> void complete(final Request<V> request, final ByteBuffer buffer) {
+        try {
+            request.complete(request.decode(buffer));
+        } catch (final RuntimeException e) {
+            request.fail(e);
+        }
+    }
+
+
+    /**
+     * Marks the connection as failed, closes the socket and fails every pending and queued command.
+     * @param cause - the reason the connection failed
+     */
+    private void fail(final IOException cause) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = cause;
+                if (!socket.isClosed()) {
+                    LOGGER.log(Level.FINE, "Exchange connection failed", cause);
+                }
+                try {
+                    socket.close();
+                } catch (final IOException e) {
+                    LOGGER.log(Level.FINE, "Exception closing exchange connection", e);
+                }
+                writer.interrupt();
+            }
+        }
+        final List<Integer> sent = new ArrayList<Integer>(pending.keySet());
+        for (final Integer id : sent) {
+            final Request<?> request = pending.remove(id);
+            if (request != null) {
+                request.fail(failure);
+            }
+        }
+        drain(failure);
+    }
+
+
+    /**
+     * Fails the commands waiting to be sent.
+     * @param cause - the reason the connection failed
+     */
+    private void drain(final IOException cause) {
+        Request<?> request;
+        while ((request = outbound.poll()) != null) {
+            request.fail(cause);
+        }
+    }
+}
@@ -10,9 +10,14 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.Socket;
+import java.nio.charset.Charset;
 import java.util.EventListener;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,17 +26,46 @@ import java.util.logging.Logger;
  * User: dcostinett
  * Date: 5/27/13
  * Time: 12:37 PM
+ *
+ * Receives the exchange's multicast events and notifies the listeners. A datagram may carry several events, they are
+ * delivered in order.
+ *
+ * Every event carries a sequence number, one more than the event before it. Duplicate and late events are dropped.
+ * When an event arrives after a gap, the missed events are fetched from the exchange and delivered first. If the
+ * exchange no longer keeps them, a snapshot is taken instead: the listeners are sent the exchange's state and every
+ * price, and events already reflected in the snapshot are dropped.
+ *
+ * A restarted exchange numbers its events above those it sent before, see EventRing, so the restart is a gap the
+ * exchange can't fill and the processor resynchronizes from a snapshot, whichever of the new events arrives first. An
+ * event numbered far below the last one delivered is taken as a restart of an exchange numbering its events from 1,
+ * and also resynchronizes from a snapshot.
  */
 public class NetEventProcessor implements Runnable {
     /** The logger */
     private static final Logger logger = Logger.getLogger(NetEventProcessor.class.getName());
 
+    /** Splits a datagram into its events */
+    private static final Pattern EVENT_SPLITTER =
+            Pattern.compile(Pattern.quote(ProtocolConstants.EVENT_DELIMITER.toString()));
+
+    /** The encoding of events */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /** How far an event may be numbered below the last one delivered and still be taken as a late duplicate */
+    private static final long RESTART_DISTANCE = EventRing.DEFAULT_CAPACITY;
+
     /** The multicast socket for events */
     private MulticastSocket eventMultiSock;
 
     /** The event listeners to notify of multicast events */
     private final EventListenerList listeners;
 
+    /** Fetches missed events from the exchange, may be null */
+    private final SequencedStockExchange exchange;
+
+    /** The sequence number of the last event delivered, 0 before the first */
+    private final AtomicLong lastSequence = new AtomicLong();
+
 
     /**
      * Constructor
@@ -41,7 +75,34 @@ public class NetEventProcessor implements Runnable {
     public NetEventProcessor(final int eventPort,
                              final InetAddress eventGroup,
                              final EventListenerList listeners) {
+        this(eventPort, eventGroup, listeners, null);
+    }
+
+
+    /**
+     * Constructor for a processor which doesn't receive the multicast events itself, the events are passed to deliver.
+     * @param listeners - the event listeners to notify
+     * @param exchange - fetches missed events from the exchange, null to only log gaps
+     */
+    public NetEventProcessor(final EventListenerList listeners, final SequencedStockExchange exchange) {
         this.listeners = listeners;
+        this.exchange = exchange;
+    }
+
+
+    /**
+     * Constructor
+     * @param eventPort - the multicast event port
+     * @param eventGroup - the multicast group
+     * @param listeners - the event listeners to notify
+     * @param exchange - fetches missed events from the exchange, null to only log gaps
+     */
+    public NetEventProcessor(final int eventPort,
+                             final InetAddress eventGroup,
+                             final EventListenerList listeners,
+                             final SequencedStockExchange exchange) {
+        this.listeners = listeners;
+        this.exchange = exchange;
         try {
             this.eventMultiSock = new MulticastSocket(eventPort);
             eventMultiSock.joinGroup(eventGroup);
@@ -75,6 +136,30 @@ public class NetEventProcessor implements Runnable {
     }
 
 
+    /**
+     * Method to parse an event string back into an exchange event
+     * @param source - the source of the event
+     * @param eventStr - string representation of the event, as produced by GetEventString
+     * @return - the exchange event, or null if the event type is not recognized
+     */
+    public static ExchangeEvent ParseEvent(final Object source, final String eventStr) {
+        final Scanner scanner = new Scanner(eventStr).useDelimiter(ProtocolConstants.ELEMENT_DELIMITER.toString());
+        if (!scanner.hasNext()) {
+            return null;
+        }
+
+        final String eventTypeStr = scanner.next();
+        if (eventTypeStr.equals(ProtocolConstants.PRICE_CHANGE_EVENT.toString())) {
+            return ExchangeEvent.newPriceChangedEvent(source, scanner.next(), scanner.nextInt());
+        } else if (eventTypeStr.equals(ProtocolConstants.CLOSED_EVENT.toString())) {
+            return ExchangeEvent.newClosedEvent(source);
+        } else if (eventTypeStr.equals(ProtocolConstants.OPEN_EVENT.toString())) {
+            return ExchangeEvent.newOpenedEvent(source);
+        }
+        return null;
+    }
+
+
     /**
      * Build string representation for the get quote command
      * @param ticker - the ticker symbol for which to get the quote
@@ -91,54 +176,192 @@ public class NetEventProcessor implements Runnable {
     }
 
 
+    /**
+     * Brings the processor up to date with a snapshot, events already reflected in it will be dropped.
+     * @param sequence - the sequence number of the snapshot
+     */
+    public void synchronize(final long sequence) {
+        long last = lastSequence.get();
+        while (last < sequence && !lastSequence.compareAndSet(last, sequence)) {
+            last = lastSequence.get();
+        }
+    }
+
+
+    /**
+     * Gets the sequence number of the last event delivered, or of the snapshot the processor was last brought up to
+     * date with if that is later.
+     * @return - the sequence number, 0 before the first event
+     */
+    public long getLastSequence() {
+        return lastSequence.get();
+    }
+
+
+    /**
+     * Delivers the events of a datagram to the listeners, in order.
+     * @param datagram - the events preceded by their sequence numbers, separated by EVENT_DELIMITER
+     */
+    public void deliver(final String datagram) {
+        for (final String eventStr : EVENT_SPLITTER.split(datagram)) {
+            receive(eventStr);
+        }
+    }
+
+
     @Override
     public void run() {
+        if (eventMultiSock == null) {
+            logger.severe("No multicast socket to receive events on");
+            return;
+        }
+        final byte[] receiveBuffer = new byte[EventPublisher.MAX_DATAGRAM_SIZE];
+        final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
         try {
             while (true) {
-                final byte[] receiveBuffer = new byte[128];
-                final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                receivePacket.setLength(receiveBuffer.length);
                 eventMultiSock.receive(receivePacket);
 
-                final String eventStr = new String(receivePacket.getData(), 0, receivePacket.getLength());
-
-                logger.info("Received event: " + eventStr);
-
-                final Scanner scanner =
-                        new Scanner(eventStr).useDelimiter(ProtocolConstants.ELEMENT_DELIMITER.toString());
-
-                final String eventTypeStr = scanner.next();
-                final ExchangeEvent.EventType eventType =
-                        eventTypeStr.equals(ProtocolConstants.PRICE_CHANGE_EVENT.toString()) ?
-                                ExchangeEvent.EventType.PRICE_CHANGED :
-                                eventTypeStr.equals(ProtocolConstants.CLOSED_EVENT.toString()) ?
-                                        ExchangeEvent.EventType.CLOSED :
-                                        ExchangeEvent.EventType.OPENED;
-
-                for (final ExchangeListener listener : listeners.getListeners(ExchangeListener.class)) {
-                    switch (eventType) {
-                        case PRICE_CHANGED:
-                            final ExchangeEvent priceChangedEvent =
-                                    ExchangeEvent.newPriceChangedEvent(this, scanner.next(), scanner.nextInt());
-                            listener.priceChanged(priceChangedEvent);
-                            break;
-
-                        case CLOSED:
-                            final ExchangeEvent closedEvent = ExchangeEvent.newClosedEvent(this);
-                            listener.exchangeClosed(closedEvent);
-                            break;
-
-                        case OPENED:
-                            final ExchangeEvent openedEvent = ExchangeEvent.newOpenedEvent(this);
-                            listener.exchangeOpened(openedEvent);
-                            break;
-
-                        default:
-                            logger.log(Level.WARNING, "Unable to determine event type from: " + eventTypeStr);
-                    }
+                final String datagram = new String(receivePacket.getData(), 0, receivePacket.getLength(), CHARSET);
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Received events: " + datagram);
                 }
+
+                deliver(datagram);
             }
         } catch (final IOException e) {
             logger.log(Level.SEVERE, "Exception reading from multisock", e);
         }
     }
+
+
+    /**
+     * Delivers an event in sequence, recovering any events missed before it.
+     * @param sequenced - the event preceded by its sequence number
+     */
+    private void receive(final String sequenced) {
+        final long sequence = sequenceOf(sequenced);
+        if (sequence < 1L) {
+            return;
+        }
+        final long last = lastSequence.get();
+        if (sequence + RESTART_DISTANCE < last) {
+            logger.warning(String.format("Exchange event sequence went back from %d to %d, the exchange restarted",
+                                         last, sequence));
+            lastSequence.set(0L);
+            resynchronize();
+            if (sequence <= lastSequence.get()) {
+                return;
+            }
+        } else if (sequence <= last) {
+            return;
+        } else if (last > 0L && sequence > last + 1L) {
+            recover(last + 1L, sequence - 1L);
+            if (sequence <= lastSequence.get()) {
+                return;
+            }
+        }
+        lastSequence.set(sequence);
+        dispatch(sequenced.substring(sequenced.indexOf(ProtocolConstants.ELEMENT_DELIMITER.toString()) + 1));
+    }
+
+
+    /**
+     * Delivers the events missed from the multicast stream, from the exchange's recent events or else a snapshot.
+     * @param from - the sequence number of the first missed event
+     * @param to - the sequence number of the last missed event
+     */
+    private void recover(final long from, final long to) {
+        logger.warning(String.format("Missed exchange events %d to %d", from, to));
+        if (exchange == null) {
+            return;
+        }
+        final List<String> missed = exchange.getEvents(from, to);
+        if (missed != null && missed.size() == to - from + 1) {
+            for (final String sequenced : missed) {
+                receive(sequenced);
+            }
+            return;
+        }
+
+        logger.warning("Missed exchange events are no longer available, the exchange may have restarted");
+        if (!resynchronize()) {
+            logger.severe(String.format("Unable to recover exchange events %d to %d", from, to));
+        }
+    }
+
+
+    /**
+     * Takes a snapshot of the exchange, sends the listeners its state and every price, and moves the last sequence
+     * number delivered up to the snapshot's.
+     * @return - true if a snapshot was taken
+     */
+    private boolean resynchronize() {
+        final ExchangeSnapshot snapshot = exchange == null ? null : exchange.getSnapshot();
+        if (snapshot == null) {
+            return false;
+        }
+        synchronize(snapshot.getSequence());
+        notifyListeners(snapshot.isOpen() ? ExchangeEvent.newOpenedEvent(this) : ExchangeEvent.newClosedEvent(this));
+        for (final Map.Entry<String, Integer> price : snapshot.getPrices().entrySet()) {
+            notifyListeners(ExchangeEvent.newPriceChangedEvent(this, price.getKey(), price.getValue()));
+        }
+        return true;
+    }
+
+
+    /**
+     * Gets the sequence number preceding an event.
+     * @param sequenced - the event preceded by its sequence number
+     * @return - the sequence number, or 0 if there is none
+     */
+    private static long sequenceOf(final String sequenced) {
+        final int end = sequenced.indexOf(ProtocolConstants.ELEMENT_DELIMITER.toString());
+        try {
+            return end < 0 ? 0L : Long.parseLong(sequenced.substring(0, end));
+        } catch (final NumberFormatException e) {
+            logger.log(Level.WARNING, "Event without a sequence number: " + sequenced);
+            return 0L;
+        }
+    }
+
+
+    /**
+     * Parses an event and notifies the listeners.
+     * @param eventStr - string representation of the event
+     */
+    private void dispatch(final String eventStr) {
+        final ExchangeEvent event = ParseEvent(this, eventStr);
+        if (event == null) {
+            logger.log(Level.WARNING, "Unable to determine event type from: " + eventStr);
+            return;
+        }
+        notifyListeners(event);
+    }
+
+
+    /**
+     * Notifies the listeners of an event.
+     * @param event - the event
+     */
+    private void notifyListeners(final ExchangeEvent event) {
+        for (final ExchangeListener listener : listeners.getListeners(ExchangeListener.class)) {
+            switch (event.getEventType()) {
+                case PRICE_CHANGED:
+                    listener.priceChanged(event);
+                    break;
+
+                case CLOSED:
+                    listener.exchangeClosed(event);
+                    break;
+
+                case OPENED:
+                    listener.exchangeOpened(event);
+                    break;
+
+                default:
+                    logger.log(Level.WARNING, "Unable to determine event type: " + event.getEventType());
+            }
+        }
+    }
 }
@@ -19,6 +19,11 @@ import java.security.PrivateKey;
  * -
  * Event: [PRICE_CHANGE_EVENT][ELEMENT_DELIMITER]symbol[ELEMENT_DELIMITER]price
  *
+ * Every event is multicast preceded by its sequence number: sequence[ELEMENT_DELIMITER]event. Sequence numbers
+ * increase by one for every event, so a client can tell when it has missed one. The first is derived from the time
+ * the exchange started, so the events of a restarted exchange are numbered above those it sent before. A datagram may
+ * carry several events, in order, separated by [EVENT_DELIMITER].
+ *
  *
  * Commands conform to a request/response model where requests are sent from a broker and the result is a response
  * sent to the requesting broker from the exchange.
@@ -33,10 +38,26 @@ import java.security.PrivateKey;
  * Request:  [GET_QUOTE_CMD][ELEMENT_DELIMITER]symbol
  * Response: price
  * -
+ * Request:  [GET_QUOTES_CMD][ELEMENT_DELIMITER]symbol[ELEMENT_DELIMITER]symbol...
+ * Response: price[ELEMENT_DELIMITER]price..., in the order requested, empty for a symbol with no quote
+ * -
+ * Request:  [GET_SNAPSHOT_CMD]
+ * Response: sequence[ELEMENT_DELIMITER][OPEN_STATE]|[CLOSED_STATE]
+ *           [ELEMENT_DELIMITER]symbol[ELEMENT_DELIMITER]price..., price empty for a symbol with no quote
+ * -
  * Request:  [EXECUTE_TRADE_CMD][ELEMENT_DELIMITER][BUY_ORDER]|[SELL_ORDER]
  *           [ELEMENT_DELIMITER]account_id[ELEMENT_DELIMITER] symbol[ELEMENT_DELIMITER]shares
  * Response: execution_price
-
+ *
+ * Request:  [GET_EVENTS_CMD][ELEMENT_DELIMITER]from_sequence[ELEMENT_DELIMITER]to_sequence
+ * Response: sequence[ELEMENT_DELIMITER]event[EVENT_DELIMITER]sequence[ELEMENT_DELIMITER]event...
+ * -
+ * The snapshot's sequence is that of the last event multicast by the exchange before it was taken, see
+ * ExchangeSnapshot.
+ * GET_EVENTS_CMD resends events as they were multicast, it fails if any of them is no longer kept by the exchange, see
+ * EventRing, in which case the client takes a snapshot instead.
+ *
+ * A command which can't be executed, such as a quote for an unknown symbol, is answered with an empty line.
  */
 public enum ProtocolConstants {
     OPEN_EVENT("OPEN_EVENT"),
@@ -45,8 +66,11 @@ public enum ProtocolConstants {
 
     EXECUTE_TRADE_CMD("EXECUTE_TRADE_CMD"),
     GET_QUOTE_CMD("GET_QUOTE_CMD"),
+    GET_QUOTES_CMD("GET_QUOTES_CMD"),
     GET_STATE_CMD("GET_STATE_CMD"),
     GET_TICKERS_CMD("GET_TICKERS_CMD"),
+    GET_SNAPSHOT_CMD("GET_SNAPSHOT_CMD"),
+    GET_EVENTS_CMD("GET_EVENTS_CMD"),
 
     OPEN_STATE("OPEN_STATE"),
     CLOSED_STATE("CLOSED_EVENT"),
@@ -54,7 +78,8 @@ public enum ProtocolConstants {
     BUY_ORDER("BUY_ORDER"),
     SELL_ORDER("SELL_ORDER"),
 
-    ELEMENT_DELIMITER(":");
+    ELEMENT_DELIMITER(":"),
+    EVENT_DELIMITER("|");
 
 
     private final String value;
@@ -0,0 +1,43 @@
+package edu.uw.danco.exchange;
+
+import edu.uw.ext.framework.exchange.StockExchange;
+
+import java.util.List;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/24/13
+ * Time: 8:40 AM
+ *
+ * A stock exchange whose events are numbered in the order they occur, so a client can line the exchange's state up
+ * with its events: take a snapshot of the market, then apply only the events numbered after it, and fetch again any
+ * events it has missed.
+ */
+public interface SequencedStockExchange extends StockExchange {
+
+    /**
+     * Gets the exchange's state, its tickers and their last prices in a single request. Events already reflected in
+     * the snapshot are not delivered to the listeners afterwards.
+     * @return - the snapshot, or null if it is unavailable
+     */
+    ExchangeSnapshot getSnapshot();
+
+
+    /**
+     * Gets events the exchange has already sent, to recover events missed by the listeners.
+     * @param from - the sequence number of the first event
+     * @param to - the sequence number of the last event
+     * @return - the events preceded by their sequence numbers, or null if the exchange no longer keeps them or they
+     *           are unavailable
+     */
+    List<String> getEvents(long from, long to);
+
+
+    /**
+     * Gets the sequence number of the last event delivered to the listeners, while a listener is being notified of an
+     * event it is the sequence number of that event or of a later snapshot which already reflects it.
+     * @return - the sequence number, 0 before the first event
+     */
+    long getEventSequence();
+}
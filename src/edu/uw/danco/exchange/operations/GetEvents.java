@@ -0,0 +1,24 @@
+package edu.uw.danco.exchange.operations;
+
+import edu.uw.danco.exchange.ExchangeOperation;
+import edu.uw.danco.exchange.ProtocolConstants;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/23/13
+ * Time: 2:40 PM
+ *
+ * Request:  [GET_EVENTS_CMD][ELEMENT_DELIMITER]from_sequence[ELEMENT_DELIMITER]to_sequence
+ * Response: sequence[ELEMENT_DELIMITER]event[EVENT_DELIMITER]sequence[ELEMENT_DELIMITER]event...
+ */
+public class GetEvents extends ExchangeOperation {
+    public GetEvents(final long from, final long to) {
+        super(ProtocolConstants.GET_EVENTS_CMD.toString() +
+                ProtocolConstants.ELEMENT_DELIMITER +
+                from +
+                ProtocolConstants.ELEMENT_DELIMITER +
+                to
+        );
+    }
+}
@@ -0,0 +1,34 @@
+package edu.uw.danco.exchange.operations;
+
+import edu.uw.danco.exchange.ExchangeOperation;
+import edu.uw.danco.exchange.ProtocolConstants;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/22/13
+ * Time: 1:40 PM
+ *
+ * Request:  [GET_QUOTES_CMD][ELEMENT_DELIMITER]symbol[ELEMENT_DELIMITER]symbol...
+ * Response: price[ELEMENT_DELIMITER]price...
+ */
+public class GetQuotes extends ExchangeOperation {
+
+    public GetQuotes(final String... tickers) {
+        super(command(tickers));
+    }
+
+
+    /**
+     * Builds the command for a list of tickers.
+     * @param tickers - the ticker symbols
+     * @return - the command
+     */
+    private static String command(final String[] tickers) {
+        final StringBuilder sb = new StringBuilder(ProtocolConstants.GET_QUOTES_CMD.toString());
+        for (final String ticker : tickers) {
+            sb.append(ProtocolConstants.ELEMENT_DELIMITER).append(ticker);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package edu.uw.danco.exchange.operations;
+
+import edu.uw.danco.exchange.ExchangeOperation;
+import edu.uw.danco.exchange.ProtocolConstants;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/22/13
+ * Time: 3:30 PM
+ *
+ * Request:  [GET_SNAPSHOT_CMD]
+ * Response: sequence[ELEMENT_DELIMITER][OPEN_STATE]|[CLOSED_STATE][ELEMENT_DELIMITER]symbol[ELEMENT_DELIMITER]price...
+ */
+public class GetSnapshot extends ExchangeOperation {
+    public GetSnapshot() {
+        super(ProtocolConstants.GET_SNAPSHOT_CMD.toString());
+    }
+}
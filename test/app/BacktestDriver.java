@@ -0,0 +1,213 @@
+package app;
+
+import edu.uw.danco.exchange.ProtocolConstants;
+import edu.uw.ext.framework.account.AccountManager;
+import edu.uw.ext.framework.account.AccountManagerFactory;
+import edu.uw.ext.framework.broker.Broker;
+import edu.uw.ext.framework.broker.BrokerFactory;
+import edu.uw.ext.framework.dao.AccountDao;
+import edu.uw.ext.framework.dao.DaoFactory;
+import edu.uw.ext.framework.exchange.ExchangeEvent;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/10/13
+ * Time: 8:20 PM
+ *
+ * Replays a recorded price series through a broker as fast as possible and reports the achieved throughput. The
+ * recording holds one event per line, in the same text form the ExchangeNetworkAdapter multicasts:
+ * <pre>
+ * OPEN_EVENT
+ * PRICE_CHANGE_EVENT:BA:3005
+ * CLOSED_EVENT
+ * </pre>
+ * The first price of each ticker seeds the simulated exchange. Before the replay a ladder of stop buy and stop sell
+ * orders is placed around the seed price of every ticker, these are executed as the replayed prices cross them. Each
+ * is filled at the price which triggered it, whichever tick the broker is at when it trades, so the fills, and the net
+ * proceeds reported, are the same on every run. The broker adjusts the account's balance at the quote it reads when it
+ * processes the order, so the balance still depends on how far the replay has moved on by then.
+ *
+ * Usage: BacktestDriver price-file [orders-per-side] [price-step]
+ */
+public final class BacktestDriver {
+    /** This class' logger. */
+    private static final Logger LOG = Logger.getLogger(BacktestDriver.class.getName());
+
+    /** Brokerage name. */
+    private static final String BROKERAGE_NAME = "Backtest";
+
+    /** Test account name. */
+    private static final String ACCOUNT_NAME = "backtester";
+
+    /** Test account password. */
+    private static final String ACCOUNT_PASSWORD = "password1";
+
+    /** Initial balance, ten million dollars in cents. */
+    private static final int INITIAL_BALANCE = 1000000000;
+
+    /** Default number of stop orders placed on each side of each ticker. */
+    private static final int DEFAULT_ORDERS_PER_SIDE = 100;
+
+    /** Default distance between the rungs of the order ladder. */
+    private static final int DEFAULT_PRICE_STEP = 5;
+
+    /** Shares per order. */
+    private static final int SHARES = 10;
+
+    /** How long the trade count must be stable before the broker is considered drained, in milliseconds. */
+    private static final long QUIET_PERIOD = 200L;
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private BacktestDriver() {
+    }
+
+    /**
+     * Runs the backtest.
+     *
+     * @param args price file, optional orders per side and price step
+     *
+     * @throws Exception if any exceptions are raised
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: BacktestDriver price-file [orders-per-side] [price-step]");
+            return;
+        }
+        final int ordersPerSide = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ORDERS_PER_SIDE;
+        final int priceStep = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PRICE_STEP;
+
+        final Map<String, Integer> seedPrices = new LinkedHashMap<String, Integer>();
+        final List<ExchangeEvent> events = load(args[0], seedPrices);
+        final SimulatedExchange exchange = new SimulatedExchange(seedPrices);
+        exchange.setFillAtTrigger(true);
+        LOG.info("Loaded " + events.size() + " events for " + seedPrices.size() + " tickers.");
+
+        BeanFactory beanfactory = new FileSystemXmlApplicationContext("context.xml");
+        AccountManagerFactory accountManagerFactory =
+                beanfactory.getBean("AccountManagerFactory", AccountManagerFactory.class);
+        BrokerFactory brokerFactory = beanfactory.getBean("BrokerFactory", BrokerFactory.class);
+        DaoFactory daoFact = beanfactory.getBean("DaoFactory", DaoFactory.class);
+        AccountDao dao = daoFact.getAccountDao();
+        dao.reset();
+        AccountManager accountManager = accountManagerFactory.newAccountManager(dao);
+
+        final Broker broker = brokerFactory.newBroker(BROKERAGE_NAME, accountManager, exchange);
+        broker.createAccount(ACCOUNT_NAME, ACCOUNT_PASSWORD, INITIAL_BALANCE);
+
+        int orderCount = 0;
+        for (final Map.Entry<String, Integer> seed : seedPrices.entrySet()) {
+            for (int i = 1; i <= ordersPerSide; i++) {
+                broker.placeOrder(new StopBuyOrder(ACCOUNT_NAME, SHARES, seed.getKey(),
+                                                   seed.getValue() + i * priceStep));
+                broker.placeOrder(new StopSellOrder(ACCOUNT_NAME, SHARES, seed.getKey(),
+                                                    seed.getValue() - i * priceStep));
+                orderCount += 2;
+            }
+        }
+        LOG.info("Placed " + orderCount + " stop orders.");
+
+        final long start = System.nanoTime();
+        for (final ExchangeEvent event : events) {
+            exchange.replay(event);
+        }
+        final long replayed = System.nanoTime();
+        final long trades = awaitDrained(exchange);
+
+        final double replaySeconds = (replayed - start) / 1e9;
+        final double totalSeconds = (Math.max(exchange.getLastTradeTime(), replayed) - start) / 1e9;
+        System.out.println("#");
+        System.out.println(String.format("# Events replayed:  %d in %.3f s (%.0f ticks/s)",
+                                         events.size(), replaySeconds, events.size() / replaySeconds));
+        System.out.println(String.format("# Trades executed:  %d of %d orders in %.3f s (%.0f orders/s)",
+                                         trades, orderCount, totalSeconds, trades / totalSeconds));
+        System.out.println(String.format("# Net proceeds:     %.2f", exchange.getNetProceeds() / 100.0));
+        System.out.println("#");
+
+        broker.close();
+        System.exit(0);
+    }
+
+    /**
+     * Reads the recorded events, recording the first price of each ticker as its seed price.
+     *
+     * @param fileName the recording
+     * @param seedPrices receives the seed price of each ticker
+     *
+     * @return the events in the order recorded
+     *
+     * @throws IOException if the recording can't be read
+     */
+    private static List<ExchangeEvent> load(final String fileName, final Map<String, Integer> seedPrices)
+            throws IOException {
+        final Object source = BacktestDriver.class;
+        final List<ExchangeEvent> events = new ArrayList<ExchangeEvent>();
+        final BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final Scanner scanner =
+                        new Scanner(line).useDelimiter(ProtocolConstants.ELEMENT_DELIMITER.toString());
+                final String eventType = scanner.next();
+                if (eventType.equals(ProtocolConstants.PRICE_CHANGE_EVENT.toString())) {
+                    final String ticker = scanner.next();
+                    final int price = scanner.nextInt();
+                    if (!seedPrices.containsKey(ticker)) {
+                        seedPrices.put(ticker, price);
+                    }
+                    events.add(ExchangeEvent.newPriceChangedEvent(source, ticker, price));
+                } else if (eventType.equals(ProtocolConstants.OPEN_EVENT.toString())) {
+                    events.add(ExchangeEvent.newOpenedEvent(source));
+                } else if (eventType.equals(ProtocolConstants.CLOSED_EVENT.toString())) {
+                    events.add(ExchangeEvent.newClosedEvent(source));
+                } else {
+                    LOG.warning("Skipping unrecognized event: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return events;
+    }
+
+    /**
+     * Waits for the broker to finish executing the triggered orders, that is for the trade count to stop changing.
+     *
+     * @param exchange the exchange the broker trades on
+     *
+     * @return the number of trades executed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static long awaitDrained(final SimulatedExchange exchange) throws InterruptedException {
+        long trades = exchange.getTradeCount();
+        while (true) {
+            Thread.sleep(QUIET_PERIOD);
+            final long current = exchange.getTradeCount();
+            if (current == trades) {
+                return current;
+            }
+            trades = current;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package app;
+
+import edu.uw.ext.framework.account.AccountManager;
+import edu.uw.ext.framework.account.AccountManagerFactory;
+import edu.uw.ext.framework.broker.Broker;
+import edu.uw.ext.framework.broker.BrokerException;
+import edu.uw.ext.framework.broker.BrokerFactory;
+import edu.uw.ext.framework.broker.OrderProcessor;
+import edu.uw.ext.framework.dao.AccountDao;
+import edu.uw.ext.framework.dao.DaoFactory;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.MarketSellOrder;
+import edu.uw.ext.framework.order.Order;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/11/13
+ * Time: 9:05 PM
+ *
+ * Generates a synthetic order flow against a broker trading on a SimulatedExchange, used to find the broker's
+ * saturation point. The generator creates a set of accounts, then for the configured duration submits a mix of market
+ * and stop orders at a target rate while a second thread drives random walk price changes. Ticker popularity, for both
+ * orders and price changes, follows a Zipf distribution.
+ *
+ * Orders are submitted open loop, market order latency is measured from the time the order was scheduled to be
+ * submitted to its execution, so a backed up broker is not hidden by a slowed down generator. Stop order latency is
+ * measured from the price change which last moved the stock to the execution of the order (tick to trade).
+ *
+ * Configured through system properties, e.g. -Dloadgen.rate=5000:
+ * <pre>
+ * loadgen.accounts        number of accounts (100)
+ * loadgen.tickers         number of tickers (50)
+ * loadgen.rate            target orders per second (1000)
+ * loadgen.tickRate        target price changes per second (500)
+ * loadgen.duration        duration of the run in seconds (30)
+ * loadgen.marketPercent   percentage of orders that are market orders (50)
+ * loadgen.skew            Zipf exponent of ticker popularity (1.0)
+ * </pre>
+ */
+public final class BrokerLoadGenerator {
+    /** This class' logger. */
+    private static final Logger LOG = Logger.getLogger(BrokerLoadGenerator.class.getName());
+
+    /** Brokerage name. */
+    private static final String BROKERAGE_NAME = "LoadGen";
+
+    /** Account name prefix, padded to satisfy the minimum account name length. */
+    private static final String ACCOUNT_PREFIX = "loadgen";
+
+    /** Account password. */
+    private static final String ACCOUNT_PASSWORD = "password1";
+
+    /** Initial balance of each account, one million dollars in cents. */
+    private static final int INITIAL_BALANCE = 100000000;
+
+    /** Initial price of each stock. */
+    private static final int INITIAL_PRICE = 5000;
+
+    /** Largest single price change. */
+    private static final int MAX_PRICE_STEP = 10;
+
+    /** Largest distance of a stop order's price from the current price. */
+    private static final int MAX_STOP_DISTANCE = 20;
+
+    /** Largest order size. */
+    private static final int MAX_SHARES = 100;
+
+    /** How long the trade count must be stable before the broker is considered drained, in milliseconds. */
+    private static final long QUIET_PERIOD = 500L;
+
+    /** Number of accounts. */
+    private final int accountCount = Integer.getInteger("loadgen.accounts", 100);
+
+    /** Number of tickers. */
+    private final int tickerCount = Integer.getInteger("loadgen.tickers", 50);
+
+    /** Target order rate. */
+    private final int orderRate = Integer.getInteger("loadgen.rate", 1000);
+
+    /** Target price change rate. */
+    private final int tickRate = Integer.getInteger("loadgen.tickRate", 500);
+
+    /** Duration in seconds. */
+    private final int duration = Integer.getInteger("loadgen.duration", 30);
+
+    /** Percentage of market orders. */
+    private final int marketPercent = Integer.getInteger("loadgen.marketPercent", 50);
+
+    /** Zipf exponent. */
+    private final double skew = Double.parseDouble(System.getProperty("loadgen.skew", "1.0"));
+
+    /** The ticker symbols, most popular first. */
+    private final String[] tickers = new String[tickerCount];
+
+    /** Cumulative Zipf distribution over the tickers. */
+    private final double[] popularity = new double[tickerCount];
+
+    /** The current price of each ticker, as driven by the generator. */
+    private final AtomicLongArray prices = new AtomicLongArray(tickerCount);
+
+    /** The System.nanoTime of the most recent price change of each ticker. */
+    private final AtomicLongArray priceChangeTimes = new AtomicLongArray(tickerCount);
+
+    /** Ticker symbol to index. */
+    private final Map<String, Integer> tickerIndex = new HashMap<String, Integer>();
+
+    /** Intended submission time of the outstanding market orders, by order id. */
+    private final Map<Integer, Long> marketSubmitTimes = new ConcurrentHashMap<Integer, Long>();
+
+    /** Market order latencies. */
+    private final LatencyRecorder marketLatency = new LatencyRecorder();
+
+    /** Stop order (tick to trade) latencies. */
+    private final LatencyRecorder stopLatency = new LatencyRecorder();
+
+    /** The exchange. */
+    private final SimulatedExchange exchange;
+
+    /**
+     * Constructor, builds the ticker universe and its popularity distribution.
+     */
+    private BrokerLoadGenerator() {
+        final Map<String, Integer> initialPrices = new HashMap<String, Integer>();
+        double total = 0.0;
+        for (int i = 0; i < tickerCount; i++) {
+            tickers[i] = "T" + i;
+            tickerIndex.put(tickers[i], i);
+            initialPrices.put(tickers[i], INITIAL_PRICE);
+            prices.set(i, INITIAL_PRICE);
+            total += 1.0 / Math.pow(i + 1, skew);
+            popularity[i] = total;
+        }
+        for (int i = 0; i < tickerCount; i++) {
+            popularity[i] /= total;
+        }
+        exchange = new SimulatedExchange(initialPrices);
+    }
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args (not used)
+     *
+     * @throws Exception if any exceptions are raised
+     */
+    public static void main(final String[] args) throws Exception {
+        new BrokerLoadGenerator().run();
+        System.exit(0);
+    }
+
+    /**
+     * Creates the broker and accounts, generates the load and reports the results.
+     *
+     * @throws Exception if any exceptions are raised
+     */
+    private void run() throws Exception {
+        BeanFactory beanfactory = new FileSystemXmlApplicationContext("context.xml");
+        AccountManagerFactory accountManagerFactory =
+                beanfactory.getBean("AccountManagerFactory", AccountManagerFactory.class);
+        BrokerFactory brokerFactory = beanfactory.getBean("BrokerFactory", BrokerFactory.class);
+        DaoFactory daoFact = beanfactory.getBean("DaoFactory", DaoFactory.class);
+        AccountDao dao = daoFact.getAccountDao();
+        dao.reset();
+        AccountManager accountManager = accountManagerFactory.newAccountManager(dao);
+
+        final Broker broker = brokerFactory.newBroker(BROKERAGE_NAME, accountManager, exchange);
+        for (int i = 0; i < accountCount; i++) {
+            broker.createAccount(accountName(i), ACCOUNT_PASSWORD, INITIAL_BALANCE);
+        }
+        LOG.info("Created " + accountCount + " accounts.");
+
+        exchange.setTradeObserver(new OrderProcessor() {
+            @Override
+            public void process(final Order order) {
+                recordExecution(order);
+            }
+        });
+        exchange.open();
+
+        final long start = System.nanoTime();
+        final long end = start + duration * 1000000000L;
+
+        final long[] ticks = new long[1];
+        final Thread priceDriver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ticks[0] = drivePrices(start, end);
+            }
+        }, "PriceDriver");
+        priceDriver.start();
+
+        final long[] sent = generateOrders(broker, start, end);
+        final long generated = System.nanoTime();
+        priceDriver.join();
+
+        final long trades = awaitDrained();
+        final double seconds = (generated - start) / 1e9;
+
+        System.out.println("#");
+        System.out.println(String.format("# Orders:  %d market, %d stop in %.1f s, %.0f orders/s (target %d)",
+                                         sent[0], sent[1], seconds, (sent[0] + sent[1]) / seconds, orderRate));
+        System.out.println(String.format("# Ticks:   %d, %.0f ticks/s (target %d)",
+                                         ticks[0], ticks[0] / seconds, tickRate));
+        System.out.println(String.format("# Trades:  %d, %.0f trades/s", trades, trades / seconds));
+        System.out.println("# Market order latency: " + marketLatency.summary());
+        System.out.println("# Stop order tick to trade latency: " + stopLatency.summary());
+        System.out.println("#");
+
+        broker.close();
+    }
+
+    /**
+     * Submits orders at the target rate until the end time.
+     *
+     * @param broker the broker to submit to
+     * @param start the System.nanoTime the run started
+     * @param end the System.nanoTime the run ends
+     *
+     * @return the number of market and stop orders submitted
+     */
+    private long[] generateOrders(final Broker broker, final long start, final long end) {
+        final Random random = new Random();
+        final long interval = 1000000000L / Math.max(1, orderRate);
+        final long[] sent = new long[2];
+        long scheduled = start;
+        while (scheduled < end) {
+            pause(scheduled);
+
+            final int ticker = pickTicker(random);
+            final String account = accountName(random.nextInt(accountCount));
+            final int shares = 1 + random.nextInt(MAX_SHARES);
+            final boolean buy = random.nextBoolean();
+            try {
+                if (random.nextInt(100) < marketPercent) {
+                    final Order order = buy ? new MarketBuyOrder(account, shares, tickers[ticker])
+                                            : new MarketSellOrder(account, shares, tickers[ticker]);
+                    marketSubmitTimes.put(order.getOrderId(), scheduled);
+                    if (buy) {
+                        broker.placeOrder((MarketBuyOrder) order);
+                    } else {
+                        broker.placeOrder((MarketSellOrder) order);
+                    }
+                    sent[0]++;
+                } else {
+                    final int distance = 1 + random.nextInt(MAX_STOP_DISTANCE);
+                    final int price = (int) prices.get(ticker);
+                    if (buy) {
+                        broker.placeOrder(new StopBuyOrder(account, shares, tickers[ticker], price + distance));
+                    } else {
+                        broker.placeOrder(new StopSellOrder(account, shares, tickers[ticker], price - distance));
+                    }
+                    sent[1]++;
+                }
+            } catch (final BrokerException e) {
+                LOG.log(Level.WARNING, "Unable to place order", e);
+            }
+            scheduled += interval;
+        }
+        return sent;
+    }
+
+    /**
+     * Drives random walk price changes at the target rate until the end time.
+     *
+     * @param start the System.nanoTime the run started
+     * @param end the System.nanoTime the run ends
+     *
+     * @return the number of price changes
+     */
+    private long drivePrices(final long start, final long end) {
+        final Random random = new Random();
+        final long interval = 1000000000L / Math.max(1, tickRate);
+        long count = 0;
+        long scheduled = start;
+        while (scheduled < end) {
+            pause(scheduled);
+
+            final int ticker = pickTicker(random);
+            final int step = random.nextInt(2 * MAX_PRICE_STEP + 1) - MAX_PRICE_STEP;
+            final int price = (int) Math.max(1, prices.get(ticker) + step);
+            prices.set(ticker, price);
+            priceChangeTimes.set(ticker, System.nanoTime());
+            exchange.adjustPrice(tickers[ticker], price);
+            count++;
+            scheduled += interval;
+        }
+        return count;
+    }
+
+    /**
+     * Records the latency of an executed order.
+     *
+     * @param order the executed order
+     */
+    private void recordExecution(final Order order) {
+        final long now = System.nanoTime();
+        final Long submitted = marketSubmitTimes.remove(order.getOrderId());
+        if (submitted != null) {
+            marketLatency.record(now - submitted);
+        } else {
+            final Integer ticker = tickerIndex.get(order.getStockTicker());
+            if (ticker != null) {
+                stopLatency.record(now - priceChangeTimes.get(ticker));
+            }
+        }
+    }
+
+    /**
+     * Waits for the broker to finish executing the submitted orders, that is for the trade count to stop changing.
+     *
+     * @return the number of trades executed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private long awaitDrained() throws InterruptedException {
+        long trades = exchange.getTradeCount();
+        while (true) {
+            Thread.sleep(QUIET_PERIOD);
+            final long current = exchange.getTradeCount();
+            if (current == trades) {
+                return current;
+            }
+            trades = current;
+        }
+    }
+
+    /**
+     * Picks a ticker according to the popularity distribution.
+     *
+     * @param random the random number source
+     *
+     * @return the index of the ticker
+     */
+    private int pickTicker(final Random random) {
+        final int index = Arrays.binarySearch(popularity, random.nextDouble());
+        return Math.min(tickerCount - 1, index >= 0 ? index : -index - 1);
+    }
+
+    /**
+     * Gets the name of an account.
+     *
+     * @param index the account index
+     *
+     * @return the account name
+     */
+    private static String accountName(final int index) {
+        return ACCOUNT_PREFIX + String.format("%05d", index);
+    }
+
+    /**
+     * Waits until the specified time.
+     *
+     * @param until the System.nanoTime to wait for
+     */
+    private static void pause(final long until) {
+        long remaining;
+        while ((remaining = until - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Collects latency samples and reports their percentiles.
+     */
+    private static final class LatencyRecorder {
+        /** The samples, in nanoseconds. */
+        private long[] samples = new long[1024];
+
+        /** The number of samples. */
+        private int count;
+
+        /**
+         * Records a sample.
+         *
+         * @param nanos the latency in nanoseconds
+         */
+        private synchronized void record(final long nanos) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+        }
+
+        /**
+         * Summarizes the samples.
+         *
+         * @return the sample count and latency percentiles in microseconds
+         */
+        private synchronized String summary() {
+            if (count == 0) {
+                return "no samples";
+            }
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return String.format("n=%d p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus", count,
+                                 percentile(sorted, 50.0), percentile(sorted, 90.0), percentile(sorted, 99.0),
+                                 percentile(sorted, 99.9), sorted[count - 1] / 1000);
+        }
+
+        /**
+         * Gets a percentile of sorted samples.
+         *
+         * @param sorted the sorted samples
+         * @param percent the percentile
+         *
+         * @return the percentile in microseconds
+         */
+        private static long percentile(final long[] sorted, final double percent) {
+            final int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1000;
+        }
+    }
+}
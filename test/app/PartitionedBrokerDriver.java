@@ -0,0 +1,190 @@
+package app;
+
+import edu.uw.danco.broker.BrokerPartitionServer;
+import edu.uw.danco.broker.PartitionedBrokerRouter;
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountManager;
+import edu.uw.ext.framework.account.AccountManagerFactory;
+import edu.uw.ext.framework.broker.Broker;
+import edu.uw.ext.framework.broker.BrokerFactory;
+import edu.uw.ext.framework.dao.DaoFactory;
+import edu.uw.ext.framework.exchange.NetworkExchangeProxyFactory;
+import edu.uw.ext.framework.exchange.StockExchange;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/17/13
+ * Time: 9:10 PM
+ *
+ * Runs a brokerage partitioned across several JVMs on this host. Each partition process runs a broker connected to
+ * the network exchange (see NetExchangeDriver), with a BrokerPartitionServer on its own loopback port. The launcher
+ * starts the partition processes, routes a set of accounts and orders through a PartitionedBrokerRouter, reports which
+ * partition owns each account, then stops the partitions.
+ *
+ * Usage: PartitionedBrokerDriver [partitions] [base-port]
+ *        PartitionedBrokerDriver partition port
+ */
+public final class PartitionedBrokerDriver {
+    /** This class' logger. */
+    private static final Logger LOG = Logger.getLogger(PartitionedBrokerDriver.class.getName());
+
+    /** Brokerage name. */
+    private static final String BROKERAGE_NAME = "PartitionedTrade";
+
+    /** Default number of partitions. */
+    private static final int DEFAULT_PARTITIONS = 3;
+
+    /** Default port of the first partition, the others follow it. */
+    private static final int DEFAULT_BASE_PORT = 6100;
+
+    /** The number of demonstration accounts. */
+    private static final int ACCOUNTS = 12;
+
+    /** The demonstration accounts' password. */
+    private static final String ACCOUNT_PASSWORD = "password1";
+
+    /** The demonstration accounts' initial balance, ten thousand dollars in cents. */
+    private static final int INITIAL_BALANCE = 1000000;
+
+    /** How long to wait for a partition to start listening, in milliseconds. */
+    private static final long STARTUP_TIMEOUT = 30000L;
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private PartitionedBrokerDriver() {
+    }
+
+    /**
+     * Runs the launcher, or a single partition.
+     *
+     * @param args the number of partitions and base port, or "partition" and the port to serve
+     *
+     * @throws Exception if any exceptions are raised
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("partition")) {
+            runPartition(Integer.parseInt(args[1]));
+            return;
+        }
+
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PARTITIONS;
+        final int basePort = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BASE_PORT;
+
+        final List<Process> processes = new ArrayList<Process>();
+        final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        try {
+            final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            for (int i = 0; i < count; i++) {
+                final int port = basePort + i;
+                final ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        PartitionedBrokerDriver.class.getName(), "partition", Integer.toString(port));
+                builder.redirectErrorStream(true);
+                builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                processes.add(builder.start());
+                addresses.add(new InetSocketAddress(InetAddress.getByName(null), port));
+            }
+            for (final InetSocketAddress address : addresses) {
+                awaitListening(address);
+            }
+            LOG.info("Started " + count + " partitions.");
+
+            final PartitionedBrokerRouter router = new PartitionedBrokerRouter(BROKERAGE_NAME, addresses);
+            for (int i = 0; i < ACCOUNTS; i++) {
+                final String name = "account" + i;
+                router.createAccount(name, ACCOUNT_PASSWORD, INITIAL_BALANCE);
+                router.placeOrder(new MarketBuyOrder(name, 10, "BA"));
+                router.placeOrder(new StopSellOrder(name, 10, "BA", router.requestQuote("BA").getPrice() - 50));
+            }
+
+            Thread.sleep(1000L);
+            for (int i = 0; i < ACCOUNTS; i++) {
+                final String name = "account" + i;
+                final Account account = router.getAccount(name, ACCOUNT_PASSWORD);
+                System.out.println(String.format("%-10s partition %d balance %d",
+                                                 name, router.partitionOf(name), account.getBalance()));
+            }
+            router.close();
+        } finally {
+            for (final Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Runs one partition: a broker on the network exchange, served on a loopback port until the process is killed.
+     *
+     * @param port the loopback port to serve
+     *
+     * @throws Exception if any exceptions are raised
+     */
+    private static void runPartition(final int port) throws Exception {
+        final Preferences prefs = Preferences.userNodeForPackage(ExchangeProxyDriver.class);
+        final String eventIp = prefs.get(NetExchangeTestConstants.EVENT_IP_PREF,
+                                         NetExchangeTestConstants.EVENT_IP_DEFAULT);
+        final int eventPort = prefs.getInt(NetExchangeTestConstants.EVENT_PORT_PREF,
+                                           NetExchangeTestConstants.EVENT_PORT_DEFAULT);
+        final String cmdIp = prefs.get(NetExchangeTestConstants.COMMAND_IP_PREF,
+                                       NetExchangeTestConstants.COMMAND_IP_DEFAULT);
+        final int cmdPort = prefs.getInt(NetExchangeTestConstants.COMMAND_PORT_PREF,
+                                         NetExchangeTestConstants.COMMAND_PORT_DEFAULT);
+
+        BeanFactory beanfactory = new FileSystemXmlApplicationContext("context.xml");
+        AccountManagerFactory accountManagerFactory =
+                beanfactory.getBean("AccountManagerFactory", AccountManagerFactory.class);
+        BrokerFactory brokerFactory = beanfactory.getBean("BrokerFactory", BrokerFactory.class);
+        DaoFactory daoFact = beanfactory.getBean("DaoFactory", DaoFactory.class);
+        NetworkExchangeProxyFactory proxyFact =
+                beanfactory.getBean("NetworkExchangeProxyFactory", NetworkExchangeProxyFactory.class);
+
+        final StockExchange exchange = proxyFact.newProxy(eventIp, eventPort, cmdIp, cmdPort);
+        final AccountManager accountManager = accountManagerFactory.newAccountManager(daoFact.getAccountDao());
+        final Broker broker = brokerFactory.newBroker(BROKERAGE_NAME + "-" + port, accountManager, exchange);
+
+        final BrokerPartitionServer server = new BrokerPartitionServer(broker, port);
+        server.start();
+        LOG.info("Partition serving on port " + port);
+
+        synchronized (PartitionedBrokerDriver.class) {
+            PartitionedBrokerDriver.class.wait();
+        }
+    }
+
+    /**
+     * Waits for a partition to accept connections.
+     *
+     * @param address the partition's address
+     *
+     * @throws Exception if the partition doesn't start listening in time
+     */
+    private static void awaitListening(final InetSocketAddress address) throws Exception {
+        final long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (true) {
+            try {
+                new Socket(address.getAddress(), address.getPort()).close();
+                return;
+            } catch (final IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Partition " + address + " did not start", e);
+                }
+                Thread.sleep(100L);
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package app;
+
+import edu.uw.ext.framework.broker.OrderProcessor;
+import edu.uw.ext.framework.exchange.ExchangeEvent;
+import edu.uw.ext.framework.exchange.ExchangeListener;
+import edu.uw.ext.framework.exchange.StockExchange;
+import edu.uw.ext.framework.exchange.StockQuote;
+import edu.uw.ext.framework.order.Order;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+
+import java.util.Arrays;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/10/13
+ * Time: 7:45 PM
+ *
+ * An in-process StockExchange used to drive a broker without a live exchange. Events are delivered to the listeners
+ * synchronously on the thread that raises them, trades are filled at the current price.
+ *
+ * The broker executes trades on its dispatcher threads, so by the time a triggered stop order is filled the price may
+ * have moved on by a number of ticks which varies from run to run. With fills at the trigger, a stop order is instead
+ * filled at the first price since the exchange was created which reached its stop price, the price in effect when
+ * the order triggered, so the fills of a replay are the same on every run. This requires the stop orders to be
+ * placed before the prices which trigger them, as the BacktestDriver's are, market orders are still filled at the
+ * current price.
+ */
+public final class SimulatedExchange implements StockExchange {
+
+    /** The current price of each stock */
+    private final Map<String, Integer> prices = new ConcurrentHashMap<String, Integer>();
+
+    /** The registered listeners */
+    private final List<ExchangeListener> listeners = new CopyOnWriteArrayList<ExchangeListener>();
+
+    /** The number of trades executed */
+    private final AtomicLong tradeCount = new AtomicLong();
+
+    /** The proceeds of the sell trades less the cost of the buy trades, in cents */
+    private final AtomicLong netProceeds = new AtomicLong();
+
+    /** The System.nanoTime of the most recent trade */
+    private volatile long lastTradeTime;
+
+    /** Notified of each executed order, may be null */
+    private volatile OrderProcessor tradeObserver;
+
+    /** The state of the exchange */
+    private volatile boolean open;
+
+    /** True if stop orders are filled at the price which triggered them, rather than the current price */
+    private volatile boolean fillAtTrigger;
+
+    /** The prices each stock has been traded at, by ticker */
+    private final ConcurrentMap<String, PriceHistory> histories = new ConcurrentHashMap<String, PriceHistory>();
+
+
+    /**
+     * Constructor
+     * @param initialPrices - the initial price of each stock traded on the exchange
+     */
+    public SimulatedExchange(final Map<String, Integer> initialPrices) {
+        prices.putAll(initialPrices);
+        for (final Map.Entry<String, Integer> price : initialPrices.entrySet()) {
+            history(price.getKey()).add(price.getValue());
+        }
+    }
+
+
+    /**
+     * Applies an event to the exchange state and delivers it to the listeners.
+     * @param event - the event
+     */
+    public void replay(final ExchangeEvent event) {
+        switch (event.getEventType()) {
+            case OPENED:
+                open = true;
+                for (final ExchangeListener listener : listeners) {
+                    listener.exchangeOpened(event);
+                }
+                break;
+
+            case CLOSED:
+                open = false;
+                for (final ExchangeListener listener : listeners) {
+                    listener.exchangeClosed(event);
+                }
+                break;
+
+            case PRICE_CHANGED:
+                history(event.getTicker()).add(event.getPrice());
+                prices.put(event.getTicker(), event.getPrice());
+                for (final ExchangeListener listener : listeners) {
+                    listener.priceChanged(event);
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * Opens the exchange.
+     */
+    public void open() {
+        replay(ExchangeEvent.newOpenedEvent(this));
+    }
+
+
+    /**
+     * Closes the exchange.
+     */
+    public void close() {
+        replay(ExchangeEvent.newClosedEvent(this));
+    }
+
+
+    /**
+     * Changes the price of a stock.
+     * @param ticker - the stock symbol
+     * @param price - the new price
+     */
+    public void adjustPrice(final String ticker, final int price) {
+        replay(ExchangeEvent.newPriceChangedEvent(this, ticker, price));
+    }
+
+
+    /**
+     * Gets the number of trades executed.
+     * @return - the number of trades executed
+     */
+    public long getTradeCount() {
+        return tradeCount.get();
+    }
+
+
+    /**
+     * Gets the proceeds of the sell trades less the cost of the buy trades, at the prices they were filled at.
+     * @return - the net proceeds, in cents
+     */
+    public long getNetProceeds() {
+        return netProceeds.get();
+    }
+
+
+    /**
+     * Gets the time of the most recent trade.
+     * @return - the System.nanoTime of the most recent trade, 0 if no trades have been executed
+     */
+    public long getLastTradeTime() {
+        return lastTradeTime;
+    }
+
+
+    /**
+     * Chooses whether stop orders are filled at the price which triggered them or at the current price.
+     * @param fillAtTrigger - true to fill stop orders at the price which triggered them
+     */
+    public void setFillAtTrigger(final boolean fillAtTrigger) {
+        this.fillAtTrigger = fillAtTrigger;
+    }
+
+
+    /**
+     * Sets the processor to be passed each order as it is executed, used to measure order latency.
+     * @param tradeObserver - the observer, or null
+     */
+    public void setTradeObserver(final OrderProcessor tradeObserver) {
+        this.tradeObserver = tradeObserver;
+    }
+
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+
+    @Override
+    public String[] getTickers() {
+        return prices.keySet().toArray(new String[0]);
+    }
+
+
+    @Override
+    public StockQuote getQuote(final String ticker) {
+        final Integer price = prices.get(ticker);
+        return price == null ? null : new StockQuote(ticker, price);
+    }
+
+
+    @Override
+    public void addExchangeListener(final ExchangeListener l) {
+        listeners.add(l);
+    }
+
+
+    @Override
+    public void removeExchangeListener(final ExchangeListener l) {
+        listeners.remove(l);
+    }
+
+
+    /**
+     * Fills the order at the current price, or a stop order at the price which triggered it if so configured.
+     * @param order - the order to execute
+     * @return - the execution price, or 0 if the exchange is closed or the stock is not traded
+     */
+    @Override
+    public int executeTrade(final Order order) {
+        Integer price = prices.get(order.getStockTicker());
+        if (!open || price == null) {
+            return 0;
+        }
+        if (fillAtTrigger) {
+            final PriceHistory history = histories.get(order.getStockTicker());
+            if (order instanceof StopBuyOrder) {
+                price = history.firstAtOrAbove(((StopBuyOrder) order).getPrice(), price);
+            } else if (order instanceof StopSellOrder) {
+                price = history.firstAtOrBelow(((StopSellOrder) order).getPrice(), price);
+            }
+        }
+        tradeCount.incrementAndGet();
+        final long value = (long) price * order.getNumberOfShares();
+        netProceeds.addAndGet(order.isBuyOrder() ? -value : value);
+        lastTradeTime = System.nanoTime();
+        final OrderProcessor observer = tradeObserver;
+        if (observer != null) {
+            observer.process(order);
+        }
+        return price;
+    }
+
+
+    /**
+     * Gets the price history of a stock, creating it for a stock not traded before.
+     * @param ticker - the stock symbol
+     * @return - the price history
+     */
+    private PriceHistory history(final String ticker) {
+        PriceHistory history = histories.get(ticker);
+        if (history == null) {
+            history = new PriceHistory();
+            final PriceHistory existing = histories.putIfAbsent(ticker, history);
+            if (existing != null) {
+                history = existing;
+            }
+        }
+        return history;
+    }
+
+
+    /**
+     * The prices of a stock in the order they were set, with the highest and lowest so far at each price, so the first
+     * price to reach a stop price is found with a binary search.
+     */
+    private static final class PriceHistory {
+
+        /** The prices, in the order they were set */
+        private int[] prices = new int[16];
+
+        /** The highest price up to and including each price */
+        private int[] highs = new int[16];
+
+        /** The lowest price up to and including each price */
+        private int[] lows = new int[16];
+
+        /** The number of prices */
+        private int size;
+
+
+        /**
+         * Adds the next price.
+         * @param price - the price
+         */
+        synchronized void add(final int price) {
+            if (size == prices.length) {
+                prices = Arrays.copyOf(prices, 2 * size);
+                highs = Arrays.copyOf(highs, 2 * size);
+                lows = Arrays.copyOf(lows, 2 * size);
+            }
+            prices[size] = price;
+            highs[size] = size == 0 ? price : Math.max(highs[size - 1], price);
+            lows[size] = size == 0 ? price : Math.min(lows[size - 1], price);
+            size++;
+        }
+
+
+        /**
+         * Gets the first price at or above a stop price.
+         * @param stopPrice - the stop price
+         * @param current - returned if no price has reached the stop price
+         * @return - the first price at or above the stop price
+         */
+        synchronized int firstAtOrAbove(final int stopPrice, final int current) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (highs[mid] >= stopPrice) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low < size ? prices[low] : current;
+        }
+
+
+        /**
+         * Gets the first price at or below a stop price.
+         * @param stopPrice - the stop price
+         * @param current - returned if no price has reached the stop price
+         * @return - the first price at or below the stop price
+         */
+        synchronized int firstAtOrBelow(final int stopPrice, final int current) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (lows[mid] <= stopPrice) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low < size ? prices[low] : current;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package edu.uw.danco;
+
+import edu.uw.danco.account.AccountImpl;
+import edu.uw.danco.broker.AccountCache;
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountException;
+import edu.uw.ext.framework.account.AccountManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/25/13
+ * Time: 2:45 PM
+ *
+ * Tests that the account cache hands out a prefetched account only while its version is unchanged and its time to
+ * live hasn't passed, and only once.
+ */
+public class AccountCacheTest {
+
+    /** The name of the account used by the tests */
+    private static final String ACCOUNT_NAME = "fflintstone";
+
+    /** The time to live of a cached account, in milliseconds */
+    private static final long TTL_MILLIS = 100L;
+
+    /** The background fetches, run only when the test calls runFetches */
+    private List<Runnable> fetches;
+
+    /** The number of accounts fetched from the account manager */
+    private AtomicInteger fetchCount;
+
+    /** Run during the next fetch, between reading the account and returning it, if not null */
+    private Runnable duringFetch;
+
+    /** The cache under test */
+    private AccountCache cache;
+
+
+    @Before
+    public void setUp() throws Exception {
+        fetches = new ArrayList<Runnable>();
+        fetchCount = new AtomicInteger();
+        duringFetch = null;
+        cache = new AccountCache(new FetchingAccountManager(), new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                fetches.add(command);
+            }
+        }, TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+
+    @Test
+    public void testPrefetchedAccountIsHandedOutOnce() throws Exception {
+        cache.prefetch(ACCOUNT_NAME);
+        runFetches();
+
+        final Account first = cache.take(ACCOUNT_NAME);
+        assertEquals("Expected the prefetched account to be handed out", 1L, cache.getHitCount());
+        final Account second = cache.take(ACCOUNT_NAME);
+        assertEquals("Expected the second take to fetch the account", 1L, cache.getMissCount());
+        assertNotSame("Expected a fresh copy on the second take", first, second);
+        assertEquals("Expected one prefetch and one fetch on demand", 2, fetchCount.get());
+    }
+
+
+    @Test
+    public void testPrefetchSkipsUsableCopy() throws Exception {
+        cache.prefetch(ACCOUNT_NAME);
+        cache.prefetch(ACCOUNT_NAME);
+        assertEquals("Expected a single fetch while one is in progress", 1, fetches.size());
+        runFetches();
+
+        cache.prefetch(ACCOUNT_NAME);
+        assertEquals("Expected no fetch while a usable copy is cached", 0, fetches.size());
+    }
+
+
+    @Test
+    public void testInvalidateDiscardsCachedCopy() throws Exception {
+        cache.prefetch(ACCOUNT_NAME);
+        runFetches();
+        cache.invalidate(ACCOUNT_NAME);
+
+        cache.take(ACCOUNT_NAME);
+        assertEquals("Expected the invalidated copy not to be handed out", 0L, cache.getHitCount());
+        assertEquals("Expected the account to be fetched on demand", 1L, cache.getMissCount());
+    }
+
+
+    @Test
+    public void testChangeDuringFetchIsNotCached() throws Exception {
+        duringFetch = new Runnable() {
+            @Override
+            public void run() {
+                cache.invalidate(ACCOUNT_NAME);
+            }
+        };
+        cache.prefetch(ACCOUNT_NAME);
+        runFetches();
+
+        cache.take(ACCOUNT_NAME);
+        assertEquals("Expected a copy fetched before the change not to be handed out", 0L, cache.getHitCount());
+
+        // the next prefetch begins after the change, so its copy is current
+        cache.prefetch(ACCOUNT_NAME);
+        runFetches();
+        cache.take(ACCOUNT_NAME);
+        assertEquals("Expected a copy fetched after the change to be handed out", 1L, cache.getHitCount());
+    }
+
+
+    @Test
+    public void testInvalidateOfUncachedAccount() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            cache.invalidate(ACCOUNT_NAME + i);
+        }
+        cache.prefetch(ACCOUNT_NAME + 7);
+        runFetches();
+
+        cache.take(ACCOUNT_NAME + 7);
+        assertEquals("Expected a copy fetched after a dropped version to be handed out", 1L, cache.getHitCount());
+    }
+
+
+    @Test
+    public void testExpiredCopyIsNotHandedOut() throws Exception {
+        cache.prefetch(ACCOUNT_NAME);
+        runFetches();
+        Thread.sleep(2L * TTL_MILLIS);
+
+        cache.take(ACCOUNT_NAME);
+        assertEquals("Expected the expired copy not to be handed out", 0L, cache.getHitCount());
+        assertEquals("Expected the account to be fetched on demand", 1L, cache.getMissCount());
+    }
+
+
+    @Test
+    public void testUnknownAccount() throws Exception {
+        cache.prefetch("nobody");
+        runFetches();
+
+        assertNull("Expected no account", cache.take("nobody"));
+        assertEquals("Expected no account to be handed out from the cache", 0L, cache.getHitCount());
+    }
+
+
+    /**
+     * Runs the background fetches requested so far.
+     */
+    private void runFetches() {
+        final List<Runnable> requested = new ArrayList<Runnable>(fetches);
+        fetches.clear();
+        for (final Runnable fetch : requested) {
+            fetch.run();
+        }
+    }
+
+
+    /**
+     * An account manager which fetches a new copy of the account each time, and knows of no account named nobody.
+     */
+    private final class FetchingAccountManager implements AccountManager {
+        @Override
+        public Account getAccount(final String accountName) throws AccountException {
+            if ("nobody".equals(accountName)) {
+                return null;
+            }
+            fetchCount.incrementAndGet();
+            final AccountImpl account = new AccountImpl();
+            account.setBalance(100000);
+            if (duringFetch != null) {
+                final Runnable change = duringFetch;
+                duringFetch = null;
+                change.run();
+            }
+            return account;
+        }
+
+
+        @Override
+        public void persist(final Account account) throws AccountException {
+        }
+
+
+        @Override
+        public void deleteAccount(final String accountName) throws AccountException {
+        }
+
+
+        @Override
+        public Account createAccount(final String accountName, final String password, final int balance)
+                throws AccountException {
+            throw new AccountException("Not supported");
+        }
+
+
+        @Override
+        public boolean validateLogin(final String accountName, final String password) throws AccountException {
+            return false;
+        }
+
+
+        @Override
+        public void close() throws AccountException {
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package edu.uw.danco;
+
+import edu.uw.danco.broker.AdaptiveDispatcher;
+import edu.uw.danco.broker.MarketDispatchFilter;
+import edu.uw.danco.broker.OrderQueueImpl;
+import edu.uw.ext.framework.broker.OrderProcessor;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.Order;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/25/13
+ * Time: 1:30 PM
+ *
+ * Tests the sizing of the adaptive dispatcher: it grows within its bounds while tasks or orders are waiting for a
+ * thread, and shrinks back to its lower bound once idle.
+ */
+public class AdaptiveDispatcherTest {
+
+    /** The interval between load samples, in milliseconds */
+    private static final long SAMPLE_MILLIS = 20L;
+
+    /** How long to wait for the dispatcher to resize, in milliseconds */
+    private static final long RESIZE_TIMEOUT_MILLIS = 5000L;
+
+    /** The dispatcher under test */
+    private AdaptiveDispatcher dispatcher;
+
+
+    @After
+    public void tearDown() throws Exception {
+        if (dispatcher != null) {
+            dispatcher.shutdownNow();
+            dispatcher.awaitTermination(1L, TimeUnit.SECONDS);
+        }
+    }
+
+
+    @Test
+    public void testGrowsWithTaskBacklogAndShrinksWhenIdle() throws Exception {
+        dispatcher = new AdaptiveDispatcher(2, 8, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals("Expected the dispatcher to start at its lower bound", 2, dispatcher.getTargetThreads());
+
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            dispatcher.execute(block(release));
+        }
+        assertTrue("Dispatcher didn't grow", awaitTarget(8));
+        assertTrue("Expected at least one grow decision", dispatcher.getGrowCount() > 0);
+        assertTrue("Expected waiting tasks to be sampled", dispatcher.getLastTaskBacklog() > 0);
+
+        release.countDown();
+        assertTrue("Dispatcher didn't shrink", awaitTarget(2));
+        assertTrue("Expected at least one shrink decision", dispatcher.getShrinkCount() > 0);
+    }
+
+
+    @Test
+    public void testGrowsWithOrderBacklog() throws Exception {
+        dispatcher = new AdaptiveDispatcher(1, 4, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final OrderQueueImpl<Order> queue = new OrderQueueImpl<Order>(new MarketDispatchFilter(true), dispatcher);
+        queue.setOrderProcessor(new OrderProcessor() {
+            @Override
+            public void process(final Order order) {
+                block(release).run();
+            }
+        });
+        dispatcher.monitor(queue);
+
+        final List<Order> orders = new ArrayList<Order>();
+        for (int i = 0; i < 50; i++) {
+            orders.add(new MarketBuyOrder("fred", 10, "BA"));
+        }
+        queue.enqueueAll(orders);
+
+        assertTrue("Dispatcher didn't grow", awaitTarget(2));
+        assertTrue("Expected waiting orders to be sampled", dispatcher.getLastOrderBacklog() > 0);
+        assertEquals("Expected no waiting tasks, the queue is a single task", 0, dispatcher.getLastTaskBacklog());
+        release.countDown();
+    }
+
+
+    @Test
+    public void testStaysWithinBounds() throws Exception {
+        dispatcher = new AdaptiveDispatcher(2, 3, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            dispatcher.execute(block(release));
+        }
+        assertTrue("Dispatcher didn't grow", awaitTarget(3));
+        Thread.sleep(10L * SAMPLE_MILLIS);
+        assertEquals("Dispatcher grew past its upper bound", 3, dispatcher.getTargetThreads());
+        release.countDown();
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLowerBoundMustBePositive() throws Exception {
+        new AdaptiveDispatcher(0, 4, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpperBoundMustNotBeBelowLowerBound() throws Exception {
+        new AdaptiveDispatcher(4, 2, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSampleIntervalMustBePositive() throws Exception {
+        new AdaptiveDispatcher(1, 4, 0L, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Waits for the dispatcher's target number of threads to reach a value.
+     * @param target - the expected number of threads
+     * @return - true if the target was reached before the timeout
+     */
+    private boolean awaitTarget(final int target) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + RESIZE_TIMEOUT_MILLIS;
+        while (dispatcher.getTargetThreads() != target) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(SAMPLE_MILLIS);
+        }
+        return true;
+    }
+
+
+    /**
+     * Creates a task which blocks, as a task waiting on the exchange does, until released.
+     * @param release - releases the task
+     * @return - the task
+     */
+    private static Runnable block(final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,106 @@
+package edu.uw.danco;
+
+import edu.uw.danco.exchange.EventRing;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/24/13
+ * Time: 9:30 AM
+ *
+ * Tests the numbering of exchange events and the ranges of them kept for recovery.
+ */
+public class EventRingTest {
+
+    @Test
+    public void testAppendNumbersEvents() throws Exception {
+        final EventRing ring = new EventRing(4);
+        assertEquals("Didn't expect any events", 0L, ring.getLastSequence());
+
+        assertEquals("Didn't get expected first event", "1:OPEN_EVENT", ring.append("OPEN_EVENT"));
+        assertEquals("Didn't get expected second event", "2:CLOSED_EVENT", ring.append("CLOSED_EVENT"));
+        assertEquals("Didn't get expected last sequence", 2L, ring.getLastSequence());
+    }
+
+
+    @Test
+    public void testGetRange() throws Exception {
+        final EventRing ring = new EventRing(4);
+        ring.append("a");
+        ring.append("b");
+        ring.append("c");
+
+        assertEquals("Didn't get expected range", Arrays.asList("1:a", "2:b", "3:c"), ring.get(1L, 3L));
+        assertEquals("Didn't get expected single event", Arrays.asList("2:b"), ring.get(2L, 2L));
+        assertTrue("Expected an empty range", ring.get(3L, 2L).isEmpty());
+    }
+
+
+    @Test
+    public void testGetUnknownRange() throws Exception {
+        final EventRing ring = new EventRing(4);
+        ring.append("a");
+        ring.append("b");
+
+        assertNull("Events before the first don't exist", ring.get(0L, 1L));
+        assertNull("Events after the last haven't occurred", ring.get(2L, 3L));
+    }
+
+
+    @Test
+    public void testEviction() throws Exception {
+        final EventRing ring = new EventRing(3);
+        for (final String event : new String[] {"a", "b", "c", "d", "e"}) {
+            ring.append(event);
+        }
+
+        assertNull("Evicted events aren't kept", ring.get(1L, 5L));
+        assertNull("Evicted events aren't kept", ring.get(2L, 3L));
+        assertEquals("Didn't get the events kept", Arrays.asList("3:c", "4:d", "5:e"), ring.get(3L, 5L));
+    }
+
+
+    @Test
+    public void testFirstSequence() throws Exception {
+        final EventRing ring = new EventRing(4, 100L);
+        assertEquals("Didn't expect any events", 99L, ring.getLastSequence());
+        ring.append("a");
+        ring.append("b");
+
+        assertEquals("Didn't get expected range", Arrays.asList("100:a", "101:b"), ring.get(100L, 101L));
+        assertNull("Events before the first don't exist", ring.get(99L, 101L));
+    }
+
+
+    @Test
+    public void testEpochIsAboveEarlierRun() throws Exception {
+        final EventRing earlier = new EventRing(4, EventRing.startOfEpoch());
+        for (int i = 0; i < 1000; i++) {
+            earlier.append("a");
+        }
+        Thread.sleep(2L);
+
+        final EventRing restarted = new EventRing(4, EventRing.startOfEpoch());
+        assertTrue("Restarted events must be numbered above the earlier run's",
+                   restarted.getLastSequence() >= earlier.getLastSequence());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoFirstSequence() throws Exception {
+        new EventRing(4, 0L);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoCapacity() throws Exception {
+        new EventRing(0);
+    }
+}
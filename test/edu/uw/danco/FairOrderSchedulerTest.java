@@ -0,0 +1,175 @@
+package edu.uw.danco;
+
+import edu.uw.danco.broker.FairOrderScheduler;
+import edu.uw.danco.broker.MarketDispatchFilter;
+import edu.uw.danco.broker.OrderQueueImpl;
+import edu.uw.ext.framework.broker.OrderProcessor;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.Order;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/25/13
+ * Time: 11:20 AM
+ *
+ * Tests the sharing of a dispatcher thread between order queues by the fair scheduler: busy queues are served in
+ * proportion to their weights, and a queue which becomes busy isn't held up until a busier queue has drained.
+ */
+public class FairOrderSchedulerTest {
+
+    /** The processing time of each order, in nanoseconds */
+    private static final long ORDER_NANOS = TimeUnit.MICROSECONDS.toNanos(50L);
+
+    /** The single thread shared by the queues */
+    private ExecutorService workers;
+
+    /** The scheduler under test */
+    private FairOrderScheduler scheduler;
+
+    /** The name of the queue each order was processed from, in processing order */
+    private List<String> served;
+
+
+    @Before
+    public void setUp() throws Exception {
+        workers = Executors.newSingleThreadExecutor();
+        scheduler = new FairOrderScheduler(workers, 500L, TimeUnit.MICROSECONDS);
+        served = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        workers.shutdownNow();
+    }
+
+
+    @Test
+    public void testWeightedShares() throws Exception {
+        final CountDownLatch done = new CountDownLatch(2 * 1000);
+        final OrderQueueImpl<Order> light = createQueue("light", 1, done);
+        final OrderQueueImpl<Order> heavy = createQueue("heavy", 4, done);
+
+        // hold the thread so both queues are waiting for a turn before either is served
+        final CountDownLatch start = new CountDownLatch(1);
+        workers.execute(await(start));
+        fill(light, 1000);
+        fill(heavy, 1000);
+        start.countDown();
+        assertTrue("Orders weren't processed", done.await(30L, TimeUnit.SECONDS));
+
+        // only count the orders served while both queues still had orders
+        final int window = 1000;
+        int lightCount = 0;
+        int heavyCount = 0;
+        for (final String name : served.subList(0, window)) {
+            if ("light".equals(name)) {
+                lightCount++;
+            } else {
+                heavyCount++;
+            }
+        }
+        final double ratio = (double) heavyCount / Math.max(1, lightCount);
+        assertTrue("Expected the heavy queue to get about four times the share, got " + heavyCount + " to "
+                   + lightCount, ratio > 2.5 && ratio < 6.5);
+    }
+
+
+    @Test
+    public void testNewlyBusyQueueIsServedPromptly() throws Exception {
+        final CountDownLatch done = new CountDownLatch(2000 + 1);
+        final OrderQueueImpl<Order> busy = createQueue("busy", 1, done);
+        final OrderQueueImpl<Order> quiet = createQueue("quiet", 1, done);
+
+        fill(busy, 2000);
+        quiet.enqueue(new MarketBuyOrder("fred", 10, "BA"));
+        assertTrue("Orders weren't processed", done.await(30L, TimeUnit.SECONDS));
+
+        final int position = served.indexOf("quiet");
+        assertTrue("Quiet queue's order waited for the busy queue, served at " + position, position < 200);
+    }
+
+
+    @Test
+    public void testQueueIsNotServedAfterShutdown() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final OrderQueueImpl<Order> queue = createQueue("late", 1, done);
+        workers.shutdown();
+
+        queue.enqueue(new MarketBuyOrder("fred", 10, "BA"));
+        assertFalse("Expected the order not to be processed after shutdown", done.await(100L, TimeUnit.MILLISECONDS));
+    }
+
+
+    /**
+     * Creates a queue on the scheduler whose orders are all dispatchable.
+     * @param name - the name recorded for each order processed from the queue
+     * @param weight - the queue's weight
+     * @param done - counted down as each order is processed
+     * @return - the queue
+     */
+    private OrderQueueImpl<Order> createQueue(final String name, final int weight, final CountDownLatch done) {
+        final OrderQueueImpl<Order> queue = new OrderQueueImpl<Order>(new MarketDispatchFilter(true), workers);
+        queue.setScheduler(scheduler, weight);
+        queue.setOrderProcessor(new OrderProcessor() {
+            @Override
+            public void process(final Order order) {
+                final long start = System.nanoTime();
+                while (System.nanoTime() - start < ORDER_NANOS) {
+                    // simulates the processing time of the order
+                }
+                served.add(name);
+                done.countDown();
+            }
+        });
+        return queue;
+    }
+
+
+    /**
+     * Adds orders to a queue.
+     * @param queue - the queue
+     * @param count - the number of orders
+     */
+    private static void fill(final OrderQueueImpl<Order> queue, final int count) {
+        final List<Order> orders = new ArrayList<Order>();
+        for (int i = 0; i < count; i++) {
+            orders.add(new MarketBuyOrder("fred", 10, "BA"));
+        }
+        queue.enqueueAll(orders);
+    }
+
+
+    /**
+     * Creates a task which holds the thread until released.
+     * @param latch - releases the task
+     * @return - the task
+     */
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
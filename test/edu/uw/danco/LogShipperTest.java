@@ -0,0 +1,451 @@
+package edu.uw.danco;
+
+import app.SimulatedExchange;
+import edu.uw.danco.account.AccountImpl;
+import edu.uw.danco.broker.BrokerImpl;
+import edu.uw.danco.broker.LogShipper;
+import edu.uw.danco.broker.ReplicationProtocol;
+import edu.uw.danco.broker.StandbyBroker;
+import edu.uw.ext.framework.account.Account;
+import edu.uw.ext.framework.account.AccountException;
+import edu.uw.ext.framework.account.AccountManager;
+import edu.uw.ext.framework.order.Order;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import edu.uw.ext.framework.order.StopSellOrder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/25/13
+ * Time: 4:10 PM
+ *
+ * Tests the shipping of the replication log from a LogShipper to a StandbyBroker: the log is applied as it arrives, an
+ * unacknowledged batch is resent after reconnecting, records already applied are skipped, and a standby which has
+ * fallen behind is reset to the primary's open orders.
+ */
+public class LogShipperTest {
+
+    /** The name of the account used by the tests */
+    private static final String ACCOUNT_NAME = "fflintstone";
+
+    /** The initial balance of the account */
+    private static final int BALANCE = 100000;
+
+    /** How long to wait for the log to be shipped, in milliseconds */
+    private static final long TIMEOUT_MILLIS = 10000L;
+
+    /** The exchange the standby's broker trades on */
+    private SimulatedExchange exchange;
+
+    /** The standby's accounts */
+    private InMemoryAccountManager accounts;
+
+    /** The port the standby listens on */
+    private int port;
+
+    /** The shipper under test, or null */
+    private LogShipper shipper;
+
+    /** The standbys started by the test */
+    private List<StandbyBroker> standbys;
+
+    /** The brokers of the standbys */
+    private List<BrokerImpl> brokers;
+
+
+    @Before
+    public void setUp() throws Exception {
+        final Map<String, Integer> prices = new ConcurrentHashMap<String, Integer>();
+        prices.put("BA", 3000);
+        exchange = new SimulatedExchange(prices);
+        exchange.open();
+        accounts = new InMemoryAccountManager();
+        port = freePort();
+        standbys = new ArrayList<StandbyBroker>();
+        brokers = new ArrayList<BrokerImpl>();
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        if (shipper != null) {
+            shipper.close();
+        }
+        for (final StandbyBroker standby : standbys) {
+            standby.close();
+        }
+        for (final BrokerImpl broker : brokers) {
+            broker.close();
+        }
+    }
+
+
+    @Test
+    public void testShipsToStandby() throws Exception {
+        final StandbyBroker standby = startStandby();
+        shipper = new LogShipper(new InetSocketAddress(InetAddress.getByName(null), port));
+        shipper.start();
+
+        final Order kept = new StopBuyOrder(ACCOUNT_NAME, 10, "BA", 3100);
+        final Order closed = new StopSellOrder(ACCOUNT_NAME, 10, "BA", 2900);
+        shipper.orderPlaced(kept, 0L, 0);
+        shipper.orderPlaced(closed, 0L, 0);
+        shipper.orderClosed(closed);
+        shipper.balanceChanged(ACCOUNT_NAME, -500);
+
+        awaitAcknowledged(4L);
+        assertEquals("Expected the standby to apply every record", 4L, standby.getAppliedSequence());
+        assertEquals("Expected the standby to hold the open order", 1, standby.getOpenOrderCount());
+        assertEquals("Expected the balance change to be applied", BALANCE - 500,
+                     accounts.getAccount(ACCOUNT_NAME).getBalance());
+    }
+
+
+    @Test
+    public void testConnectsToStandbyStartedLater() throws Exception {
+        shipper = new LogShipper(new InetSocketAddress(InetAddress.getByName(null), port));
+        shipper.start();
+        for (int i = 0; i < 10; i++) {
+            shipper.orderPlaced(new StopBuyOrder(ACCOUNT_NAME, 10, "BA", 3100 + i), 0L, 0);
+        }
+        Thread.sleep(200L);
+        assertEquals("Expected nothing to be acknowledged without a standby", 0L, shipper.getAcknowledged());
+
+        final StandbyBroker standby = startStandby();
+        awaitAcknowledged(10L);
+        assertEquals("Expected the held changes to be applied", 10, standby.getOpenOrderCount());
+    }
+
+
+    @Test
+    public void testResendsUnacknowledgedBatch() throws Exception {
+        final ServerSocket fakeStandby = new ServerSocket(port, 1, InetAddress.getByName(null));
+        fakeStandby.setSoTimeout((int) TIMEOUT_MILLIS);
+        try {
+            shipper = new LogShipper(new InetSocketAddress(InetAddress.getByName(null), port));
+            shipper.orderPlaced(new StopBuyOrder(ACCOUNT_NAME, 10, "BA", 3100), 0L, 0);
+            shipper.balanceChanged(ACCOUNT_NAME, 250);
+            shipper.start();
+
+            // the first connection fails before the batch is acknowledged
+            final List<String> first;
+            Socket socket = fakeStandby.accept();
+            try {
+                first = readBatch(socket, 0L);
+            } finally {
+                socket.close();
+            }
+            assertEquals("Expected both records in the batch", 2, first.size());
+            assertEquals("Expected nothing to be acknowledged", 0L, shipper.getAcknowledged());
+
+            socket = fakeStandby.accept();
+            try {
+                final List<String> second = readBatch(socket, 0L);
+                assertEquals("Expected the same batch to be resent", first, second);
+                acknowledge(socket, 2L);
+                awaitAcknowledged(2L);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            fakeStandby.close();
+        }
+    }
+
+
+    @Test
+    public void testStandbySkipsAppliedRecords() throws Exception {
+        final StandbyBroker standby = startStandby();
+        final Socket socket = new Socket(InetAddress.getByName(null), port);
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            assertEquals("Expected a new standby to have applied nothing", message(ReplicationProtocol.HELLO, 0L),
+                         in.readLine());
+
+            send(out, record(1L, ReplicationProtocol.BALANCE_CHANGED, ACCOUNT_NAME, "100"));
+            assertEquals("Expected the batch to be acknowledged", message(ReplicationProtocol.ACK, 1L), in.readLine());
+
+            // a resent batch overlapping the records already applied
+            send(out, record(1L, ReplicationProtocol.BALANCE_CHANGED, ACCOUNT_NAME, "100"),
+                 record(2L, ReplicationProtocol.BALANCE_CHANGED, ACCOUNT_NAME, "50"));
+            assertEquals("Expected the batch to be acknowledged", message(ReplicationProtocol.ACK, 2L), in.readLine());
+            assertEquals("Expected each balance change to be applied once", BALANCE + 150,
+                         accounts.getAccount(ACCOUNT_NAME).getBalance());
+            assertEquals("Expected the standby to have applied up to the last record", 2L,
+                         standby.getAppliedSequence());
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    @Test
+    public void testStandbyAppliesReset() throws Exception {
+        final StandbyBroker standby = startStandby();
+        final Socket socket = new Socket(InetAddress.getByName(null), port);
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            in.readLine();
+
+            send(out, placed(1L, 11, 3100), placed(2L, 12, 3200), placed(3L, 13, 3300));
+            assertEquals("Expected the batch to be acknowledged", message(ReplicationProtocol.ACK, 3L), in.readLine());
+            assertEquals("Expected three open orders", 3, standby.getOpenOrderCount());
+
+            // a restarted primary resets the standby at a sequence number it has already passed
+            send(out, record(1L, ReplicationProtocol.RESET), placed(1L, 21, 3100));
+            assertEquals("Expected the reset to be acknowledged at its sequence number",
+                         message(ReplicationProtocol.ACK, 1L), in.readLine());
+            assertEquals("Expected the reset to replace the open orders", 1, standby.getOpenOrderCount());
+            assertEquals("Expected the standby to resume from the reset", 1L, standby.getAppliedSequence());
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    @Test
+    public void testResetsRestartedStandby() throws Exception {
+        final StandbyBroker first = startStandby();
+        shipper = new LogShipper(new InetSocketAddress(InetAddress.getByName(null), port));
+        shipper.start();
+
+        final List<Order> orders = new ArrayList<Order>();
+        for (int i = 0; i < 10; i++) {
+            final Order order = new StopBuyOrder(ACCOUNT_NAME, 10, "BA", 3100 + i);
+            orders.add(order);
+            shipper.orderPlaced(order, 0L, 0);
+        }
+        awaitAcknowledged(10L);
+        assertEquals("Expected the first standby to hold the open orders", 10, first.getOpenOrderCount());
+
+        // the standby is restarted, losing what it had applied, while the primary carries on
+        first.close();
+        for (int i = 0; i < 5; i++) {
+            shipper.orderClosed(orders.get(i));
+        }
+        shipper.orderPlaced(new StopSellOrder(ACCOUNT_NAME, 10, "BA", 2900), 0L, 0);
+        final StandbyBroker second = startStandby();
+
+        awaitAcknowledged(16L);
+        assertEquals("Expected the restarted standby to be reset to the open orders", 6, second.getOpenOrderCount());
+        assertEquals("Expected the restarted standby to resume from the primary's sequence", 16L,
+                     second.getAppliedSequence());
+    }
+
+
+    /**
+     * Starts a standby listening on the test's port.
+     * @return - the standby
+     * @throws IOException - if the port can't be bound
+     */
+    private StandbyBroker startStandby() throws IOException {
+        final BrokerImpl broker = new BrokerImpl("standby", accounts, exchange);
+        brokers.add(broker);
+        final StandbyBroker standby = new StandbyBroker(broker, accounts, port);
+        standbys.add(standby);
+        standby.start();
+        return standby;
+    }
+
+
+    /**
+     * Waits for the standby to acknowledge the log up to a sequence number.
+     * @param sequence - the sequence number
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    private void awaitAcknowledged(final long sequence) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (shipper.getAcknowledged() < sequence && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals("Standby didn't acknowledge the log", sequence, shipper.getAcknowledged());
+    }
+
+
+    /**
+     * Greets a shipper as a standby and reads the batch it sends.
+     * @param socket - the shipper's connection
+     * @param applied - the last sequence number the standby claims to have applied
+     * @return - the records of the batch
+     * @throws IOException - if the connection fails
+     */
+    private static List<String> readBatch(final Socket socket, final long applied) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+        out.println(message(ReplicationProtocol.HELLO, applied));
+
+        final List<String> batch = new ArrayList<String>();
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(ReplicationProtocol.END.toString())) {
+            batch.add(line);
+        }
+        return batch;
+    }
+
+
+    /**
+     * Acknowledges a batch as a standby.
+     * @param socket - the shipper's connection
+     * @param applied - the last sequence number applied
+     * @throws IOException - if the connection fails
+     */
+    private static void acknowledge(final Socket socket, final long applied) throws IOException {
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+        out.println(message(ReplicationProtocol.ACK, applied));
+    }
+
+
+    /**
+     * Sends a batch of records to a standby, as a shipper.
+     * @param out - the standby's connection
+     * @param records - the encoded records
+     */
+    private static void send(final PrintWriter out, final String... records) {
+        for (final String record : records) {
+            out.println(record);
+        }
+        out.println(ReplicationProtocol.END);
+    }
+
+
+    /**
+     * Encodes a message sent by the standby.
+     * @param type - the message type
+     * @param sequence - the sequence number
+     * @return - the message
+     */
+    private static String message(final ReplicationProtocol type, final long sequence) {
+        return type.toString() + ReplicationProtocol.ELEMENT_DELIMITER + sequence;
+    }
+
+
+    /**
+     * Encodes a record.
+     * @param sequence - the sequence number
+     * @param type - the record type
+     * @param fields - the record's fields
+     * @return - the record
+     */
+    private static String record(final long sequence, final ReplicationProtocol type, final String... fields) {
+        final List<String> elements = new ArrayList<String>();
+        elements.add(Long.toString(sequence));
+        elements.add(type.toString());
+        elements.addAll(Arrays.asList(fields));
+        final StringBuilder sb = new StringBuilder();
+        for (final String element : elements) {
+            if (sb.length() > 0) {
+                sb.append(ReplicationProtocol.ELEMENT_DELIMITER);
+            }
+            sb.append(element);
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Encodes an order placed record for a stop buy order which doesn't expire.
+     * @param sequence - the sequence number
+     * @param orderId - the primary's order id
+     * @param price - the stop price
+     * @return - the record
+     */
+    private static String placed(final long sequence, final int orderId, final int price) {
+        return record(sequence, ReplicationProtocol.ORDER_PLACED, Integer.toString(orderId),
+                      ReplicationProtocol.STOP_BUY.toString(), ACCOUNT_NAME, "BA", "10", Integer.toString(price), "0",
+                      "0");
+    }
+
+
+    /**
+     * Finds a loopback port no one is listening on.
+     * @return - the port
+     * @throws IOException - if no port can be bound
+     */
+    private static int freePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(null));
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    /**
+     * Holds the standby's accounts in memory, starting with a single account.
+     */
+    private static final class InMemoryAccountManager implements AccountManager {
+        /** The accounts, by name */
+        private final Map<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+
+
+        /**
+         * Constructor, creates the test account.
+         */
+        private InMemoryAccountManager() {
+            final AccountImpl account = new AccountImpl();
+            account.setBalance(BALANCE);
+            accounts.put(ACCOUNT_NAME, account);
+        }
+
+
+        @Override
+        public Account getAccount(final String accountName) throws AccountException {
+            return accounts.get(accountName);
+        }
+
+
+        @Override
+        public void persist(final Account account) throws AccountException {
+        }
+
+
+        @Override
+        public void deleteAccount(final String accountName) throws AccountException {
+            accounts.remove(accountName);
+        }
+
+
+        @Override
+        public Account createAccount(final String accountName, final String password, final int balance)
+                throws AccountException {
+            final AccountImpl account = new AccountImpl();
+            account.setBalance(balance);
+            accounts.put(accountName, account);
+            return account;
+        }
+
+
+        @Override
+        public boolean validateLogin(final String accountName, final String password) throws AccountException {
+            return accounts.containsKey(accountName);
+        }
+
+
+        @Override
+        public void close() throws AccountException {
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package edu.uw.danco;
+
+import edu.uw.danco.exchange.EventRing;
+import edu.uw.danco.exchange.ExchangeSnapshot;
+import edu.uw.danco.exchange.NetEventProcessor;
+import edu.uw.danco.exchange.ProtocolConstants;
+import edu.uw.danco.exchange.SequencedStockExchange;
+import edu.uw.ext.framework.exchange.ExchangeEvent;
+import edu.uw.ext.framework.exchange.ExchangeListener;
+import edu.uw.ext.framework.exchange.StockQuote;
+import edu.uw.ext.framework.order.Order;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.swing.event.EventListenerList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/24/13
+ * Time: 10:05 AM
+ *
+ * Tests the delivery of sequenced exchange events: duplicates and late events are dropped, gaps are recovered from the
+ * exchange's recent events or else from a snapshot, and a restarted exchange is resynchronized from a snapshot.
+ */
+public class NetEventProcessorTest {
+
+    /** The exchange the events come from, numbers them and keeps the recent ones */
+    private TestExchange exchange;
+
+    /** The processor under test */
+    private NetEventProcessor processor;
+
+    /** The events delivered to the listener */
+    private List<String> delivered;
+
+
+    @Before
+    public void setUp() throws Exception {
+        delivered = new ArrayList<String>();
+        exchange = new TestExchange(EventRing.DEFAULT_CAPACITY);
+        processor = new NetEventProcessor(listenerList(), exchange);
+        exchange.processor = processor;
+    }
+
+
+    @Test
+    public void testDeliversInOrder() throws Exception {
+        processor.deliver(datagram(exchange.opened(), exchange.price("BA", 100), exchange.price("BA", 101)));
+
+        assertEquals("Didn't get expected events", Arrays.asList("OPEN", "BA=100", "BA=101"), delivered);
+        assertEquals("Didn't get expected last sequence", 3L, processor.getLastSequence());
+    }
+
+
+    @Test
+    public void testDropsDuplicates() throws Exception {
+        final String opened = exchange.opened();
+        final String first = exchange.price("BA", 100);
+        final String second = exchange.price("BA", 101);
+        processor.deliver(datagram(opened, first, second));
+        processor.deliver(datagram(second));
+        processor.deliver(datagram(first, second));
+
+        assertEquals("Duplicate events were delivered", Arrays.asList("OPEN", "BA=100", "BA=101"), delivered);
+        assertEquals("Didn't expect a recovery", 0, exchange.eventRequests);
+    }
+
+
+    @Test
+    public void testRecoversGapFromExchange() throws Exception {
+        processor.deliver(datagram(exchange.opened()));
+        exchange.price("BA", 100);
+        exchange.price("BA", 101);
+        processor.deliver(datagram(exchange.price("BA", 102)));
+
+        assertEquals("Missed events weren't delivered in order",
+                     Arrays.asList("OPEN", "BA=100", "BA=101", "BA=102"), delivered);
+        assertEquals("Expected one recovery", 1, exchange.eventRequests);
+        assertEquals("Didn't expect a snapshot", 0, exchange.snapshotRequests);
+    }
+
+
+    @Test
+    public void testRecoversGapFromSnapshot() throws Exception {
+        exchange = new TestExchange(2);
+        exchange.processor = processor = new NetEventProcessor(listenerList(), exchange);
+
+        processor.deliver(datagram(exchange.opened()));
+        exchange.price("BA", 100);
+        exchange.price("BA", 101);
+        exchange.price("BA", 102);
+        final String late = exchange.price("BA", 103);
+        final String stale = exchange.price("BA", 104);
+        exchange.snapshot = new ExchangeSnapshot(6L, true, new String[] {"BA"}, new int[] {104});
+
+        // events 2 to 4 are no longer kept, the snapshot already reflects event 5 and the event after it
+        processor.deliver(datagram(late));
+        processor.deliver(datagram(stale));
+        processor.deliver(datagram(exchange.price("BA", 105)));
+
+        assertEquals("Expected one failed recovery", 1, exchange.eventRequests);
+        assertEquals("Expected one snapshot", 1, exchange.snapshotRequests);
+        assertEquals("Events reflected in the snapshot were delivered",
+                     Arrays.asList("OPEN", "OPEN", "BA=104", "BA=105"), delivered);
+        assertEquals("Didn't get expected last sequence", 7L, processor.getLastSequence());
+    }
+
+
+    @Test
+    public void testResynchronizesAfterRestart() throws Exception {
+        processor.deliver(datagram(exchange.opened(), exchange.price("BA", 100), exchange.price("BA", 101)));
+
+        // the exchange restarts, numbering its events above the earlier ones, and its first event is lost
+        exchange.ring = new EventRing(EventRing.DEFAULT_CAPACITY, 1000L);
+        exchange.closed();
+        exchange.snapshot = new ExchangeSnapshot(1000L, false, new String[] {"BA"}, new int[] {150});
+        processor.deliver(datagram(exchange.price("BA", 200)));
+
+        assertEquals("Expected one failed recovery", 1, exchange.eventRequests);
+        assertEquals("Expected one snapshot", 1, exchange.snapshotRequests);
+        assertEquals("Restarted exchange wasn't resynchronized",
+                     Arrays.asList("OPEN", "BA=100", "BA=101", "CLOSED", "BA=150", "BA=200"), delivered);
+        assertEquals("Didn't get expected last sequence", 1001L, processor.getLastSequence());
+    }
+
+
+    @Test
+    public void testResynchronizesAfterRestartFromOne() throws Exception {
+        exchange.ring = new EventRing(EventRing.DEFAULT_CAPACITY, 10000L);
+        processor.deliver(datagram(exchange.opened(), exchange.price("BA", 100)));
+
+        // the exchange restarts numbering its events from 1, and its first event is lost
+        exchange.ring = new EventRing(EventRing.DEFAULT_CAPACITY);
+        exchange.closed();
+        exchange.snapshot = new ExchangeSnapshot(1L, false, new String[] {"BA"}, new int[] {150});
+        processor.deliver(datagram(exchange.price("BA", 200)));
+
+        assertEquals("Didn't expect a recovery", 0, exchange.eventRequests);
+        assertEquals("Expected one snapshot", 1, exchange.snapshotRequests);
+        assertEquals("Restarted exchange wasn't resynchronized",
+                     Arrays.asList("OPEN", "BA=100", "CLOSED", "BA=150", "BA=200"), delivered);
+        assertEquals("Didn't get expected last sequence", 2L, processor.getLastSequence());
+    }
+
+
+    /**
+     * Builds the listener list for a processor, with the test's listener.
+     * @return - the listener list
+     */
+    private EventListenerList listenerList() {
+        final EventListenerList listeners = new EventListenerList();
+        listeners.add(ExchangeListener.class, new ExchangeListener() {
+            @Override
+            public void exchangeOpened(final ExchangeEvent event) {
+                delivered.add("OPEN");
+            }
+
+            @Override
+            public void exchangeClosed(final ExchangeEvent event) {
+                delivered.add("CLOSED");
+            }
+
+            @Override
+            public void priceChanged(final ExchangeEvent event) {
+                delivered.add(event.getTicker() + "=" + event.getPrice());
+            }
+        });
+        return listeners;
+    }
+
+
+    /**
+     * Packs events into a datagram, as the exchange multicasts them.
+     * @param events - the events preceded by their sequence numbers
+     * @return - the datagram
+     */
+    private static String datagram(final String... events) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String event : events) {
+            if (sb.length() > 0) {
+                sb.append(ProtocolConstants.EVENT_DELIMITER);
+            }
+            sb.append(event);
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * An exchange which numbers the events the test sends and keeps the recent ones, and answers with a snapshot set
+     * by the test.
+     */
+    private static final class TestExchange implements SequencedStockExchange {
+
+        /** Numbers and keeps the events */
+        private EventRing ring;
+
+        /** The processor receiving the events, synchronized with the snapshots taken */
+        private NetEventProcessor processor;
+
+        /** The snapshot returned, may be null */
+        private ExchangeSnapshot snapshot;
+
+        /** The number of requests for missed events */
+        private int eventRequests;
+
+        /** The number of snapshots taken */
+        private int snapshotRequests;
+
+
+        /**
+         * Constructor
+         * @param capacity - the number of events kept
+         */
+        TestExchange(final int capacity) {
+            ring = new EventRing(capacity);
+        }
+
+
+        /**
+         * Numbers an exchange opened event.
+         * @return - the event preceded by its sequence number
+         */
+        String opened() {
+            return ring.append(NetEventProcessor.GetEventString(ExchangeEvent.newOpenedEvent(this)));
+        }
+
+
+        /**
+         * Numbers an exchange closed event.
+         * @return - the event preceded by its sequence number
+         */
+        String closed() {
+            return ring.append(NetEventProcessor.GetEventString(ExchangeEvent.newClosedEvent(this)));
+        }
+
+
+        /**
+         * Numbers a price changed event.
+         * @param ticker - the stock symbol
+         * @param price - the new price
+         * @return - the event preceded by its sequence number
+         */
+        String price(final String ticker, final int price) {
+            return ring.append(NetEventProcessor.GetEventString(
+                    ExchangeEvent.newPriceChangedEvent(this, ticker, price)));
+        }
+
+
+        @Override
+        public ExchangeSnapshot getSnapshot() {
+            snapshotRequests++;
+            if (snapshot != null) {
+                processor.synchronize(snapshot.getSequence());
+            }
+            return snapshot;
+        }
+
+
+        @Override
+        public List<String> getEvents(final long from, final long to) {
+            eventRequests++;
+            return ring.get(from, to);
+        }
+
+
+        @Override
+        public long getEventSequence() {
+            return processor.getLastSequence();
+        }
+
+
+        @Override
+        public boolean isOpen() {
+            return snapshot != null && snapshot.isOpen();
+        }
+
+
+        @Override
+        public String[] getTickers() {
+            return new String[0];
+        }
+
+
+        @Override
+        public StockQuote getQuote(final String ticker) {
+            return null;
+        }
+
+
+        @Override
+        public void addExchangeListener(final ExchangeListener l) {
+        }
+
+
+        @Override
+        public void removeExchangeListener(final ExchangeListener l) {
+        }
+
+
+        @Override
+        public int executeTrade(final Order order) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package edu.uw.danco;
+
+import edu.uw.danco.broker.OrderExpiryWheel;
+import edu.uw.ext.framework.broker.OrderProcessor;
+import edu.uw.ext.framework.order.Order;
+import edu.uw.ext.framework.order.StopBuyOrder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/25/13
+ * Time: 9:10 AM
+ *
+ * Tests the expiration of orders by the timing wheel, on the lowest wheel, after cascading down from a higher wheel,
+ * and once cancelled.
+ */
+public class OrderExpiryWheelTest {
+
+    /** The resolution of the wheel under test, in milliseconds */
+    private static final long TICK_MILLIS = 2L;
+
+    /** How late, in milliseconds, an order may expire on a busy machine */
+    private static final long TOLERANCE_MILLIS = 250L;
+
+    /** The wheel under test */
+    private OrderExpiryWheel wheel;
+
+    /** The time each order expired, by order id */
+    private Map<Integer, Long> expiredAt;
+
+    /** The orders, in the order they expired */
+    private List<Order> expired;
+
+    /** Counted down as each order expires */
+    private CountDownLatch latch;
+
+    /** Records each expiration */
+    private final OrderProcessor recorder = new OrderProcessor() {
+        @Override
+        public void process(final Order order) {
+            expiredAt.put(order.getOrderId(), System.currentTimeMillis());
+            expired.add(order);
+            latch.countDown();
+        }
+    };
+
+
+    @Before
+    public void setUp() throws Exception {
+        wheel = new OrderExpiryWheel(TICK_MILLIS);
+        expiredAt = new ConcurrentHashMap<Integer, Long>();
+        expired = Collections.synchronizedList(new ArrayList<Order>());
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        wheel.close();
+    }
+
+
+    @Test
+    public void testExpiresOnLowestWheel() throws Exception {
+        latch = new CountDownLatch(1);
+        final Order order = new StopBuyOrder("fred", 10, "BA", 3000);
+        final long expiresAt = System.currentTimeMillis() + 40L;
+        wheel.schedule(order, expiresAt, recorder);
+        assertEquals("Expected one scheduled expiration", 1, wheel.size());
+
+        assertTrue("Order didn't expire", latch.await(expiresAt + TOLERANCE_MILLIS - System.currentTimeMillis(),
+                                                       TimeUnit.MILLISECONDS));
+        assertExpiredOnTime(order, expiresAt);
+        assertEquals("Expected no scheduled expirations", 0, wheel.size());
+    }
+
+
+    @Test
+    public void testExpiresAfterCascade() throws Exception {
+        latch = new CountDownLatch(3);
+        final long now = System.currentTimeMillis();
+        // 64 ticks fill the lowest wheel, the later orders start on the second wheel and must be cascaded down
+        final Order late = new StopBuyOrder("fred", 10, "BA", 3000);
+        final Order later = new StopBuyOrder("fred", 10, "BA", 3001);
+        final Order early = new StopBuyOrder("fred", 10, "BA", 3002);
+        wheel.schedule(later, now + 400L, recorder);
+        wheel.schedule(late, now + 200L, recorder);
+        wheel.schedule(early, now + 30L, recorder);
+        assertEquals("Expected three scheduled expirations", 3, wheel.size());
+
+        assertTrue("Orders didn't expire", latch.await(400L + TOLERANCE_MILLIS, TimeUnit.MILLISECONDS));
+        assertExpiredOnTime(early, now + 30L);
+        assertExpiredOnTime(late, now + 200L);
+        assertExpiredOnTime(later, now + 400L);
+        assertEquals("Orders didn't expire in deadline order", early, expired.get(0));
+        assertEquals("Orders didn't expire in deadline order", late, expired.get(1));
+        assertEquals("Orders didn't expire in deadline order", later, expired.get(2));
+        assertEquals("Expected no scheduled expirations", 0, wheel.size());
+    }
+
+
+    @Test
+    public void testPastDeadlineExpiresOnNextTick() throws Exception {
+        latch = new CountDownLatch(1);
+        final Order order = new StopBuyOrder("fred", 10, "BA", 3000);
+        wheel.schedule(order, System.currentTimeMillis() - 1000L, recorder);
+
+        assertTrue("Order past its deadline didn't expire", latch.await(TOLERANCE_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals("Expected no scheduled expirations", 0, wheel.size());
+    }
+
+
+    @Test
+    public void testCancel() throws Exception {
+        latch = new CountDownLatch(1);
+        final Order cancelled = new StopBuyOrder("fred", 10, "BA", 3000);
+        final Order kept = new StopBuyOrder("fred", 10, "BA", 3001);
+        final long now = System.currentTimeMillis();
+        final OrderExpiryWheel.Timeout timeout = wheel.schedule(cancelled, now + 150L, recorder);
+        wheel.schedule(kept, now + 200L, recorder);
+
+        assertTrue("Expected the expiration to be cancelled", timeout.cancel());
+        assertFalse("Expected a second cancel to fail", timeout.cancel());
+        assertEquals("Expected one scheduled expiration", 1, wheel.size());
+
+        assertTrue("Order didn't expire", latch.await(200L + TOLERANCE_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse("Cancelled order expired", expiredAt.containsKey(cancelled.getOrderId()));
+        assertExpiredOnTime(kept, now + 200L);
+        assertFalse("Expected a cancel after expiry to fail", timeout.cancel());
+    }
+
+
+    /**
+     * Checks that an order expired no earlier than its expiration time, and not long after it.
+     * @param order - the order
+     * @param expiresAt - the order's expiration time
+     */
+    private void assertExpiredOnTime(final Order order, final long expiresAt) {
+        final Long at = expiredAt.get(order.getOrderId());
+        assertTrue("Order didn't expire", at != null);
+        assertTrue("Order expired early by " + (expiresAt - at) + " ms", at >= expiresAt);
+        assertTrue("Order expired late by " + (at - expiresAt) + " ms", at < expiresAt + TOLERANCE_MILLIS);
+    }
+}
@@ -0,0 +1,123 @@
+package edu.uw.danco;
+
+import edu.uw.danco.broker.TrailingStopBook;
+import edu.uw.ext.framework.order.MarketBuyOrder;
+import edu.uw.ext.framework.order.MarketSellOrder;
+import edu.uw.ext.framework.order.Order;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created with IntelliJ IDEA.
+ * User: dcostinett
+ * Date: 6/25/13
+ * Time: 10:05 AM
+ *
+ * Tests the water marks of trailing stop orders and the prices at which they trigger, on both sides of the book.
+ */
+public class TrailingStopBookTest {
+
+    @Test
+    public void testSellTriggersOffsetBelowHigh() throws Exception {
+        final TrailingStopBook book = new TrailingStopBook(true, 100);
+        final Order order = new MarketSellOrder("fred", 10, "BA");
+        book.add(order, 5);
+
+        assertTrue("Rise shouldn't trigger", book.adjustPrice(103).isEmpty());
+        assertTrue("Retrace short of the offset shouldn't trigger", book.adjustPrice(99).isEmpty());
+        assertEquals("Expected the order to still be held", 1, book.size());
+        assertEquals("Retrace of the offset from the high should trigger", Collections.singletonList(order),
+                     book.adjustPrice(98));
+        assertEquals("Expected the book to be empty", 0, book.size());
+    }
+
+
+    @Test
+    public void testBuyTriggersOffsetAboveLow() throws Exception {
+        final TrailingStopBook book = new TrailingStopBook(false, 100);
+        final Order order = new MarketBuyOrder("fred", 10, "BA");
+        book.add(order, 5);
+
+        assertTrue("Fall shouldn't trigger", book.adjustPrice(97).isEmpty());
+        assertTrue("Retrace short of the offset shouldn't trigger", book.adjustPrice(101).isEmpty());
+        assertEquals("Retrace of the offset from the low should trigger", Collections.singletonList(order),
+                     book.adjustPrice(102));
+        assertEquals("Expected the book to be empty", 0, book.size());
+    }
+
+
+    @Test
+    public void testWaterMarkNeverRetreats() throws Exception {
+        final TrailingStopBook book = new TrailingStopBook(true, 100);
+        final Order order = new MarketSellOrder("fred", 10, "BA");
+        book.add(order, 10);
+
+        assertTrue("Rise shouldn't trigger", book.adjustPrice(120).isEmpty());
+        assertTrue("Retrace short of the offset shouldn't trigger", book.adjustPrice(115).isEmpty());
+        assertTrue("A lower high shouldn't move the mark", book.adjustPrice(118).isEmpty());
+        assertEquals("Trigger should be measured from the highest price seen", Collections.singletonList(order),
+                     book.adjustPrice(110));
+    }
+
+
+    @Test
+    public void testOrderStartsAtCurrentPrice() throws Exception {
+        final TrailingStopBook book = new TrailingStopBook(true, 100);
+        final Order first = new MarketSellOrder("fred", 10, "BA");
+        final Order second = new MarketSellOrder("fred", 10, "BA");
+        book.add(first, 15);
+        assertTrue("Retrace short of the offset shouldn't trigger", book.adjustPrice(92).isEmpty());
+        // the second order's mark starts at 92, not at the first order's high of 100
+        book.add(second, 5);
+
+        assertTrue("Neither trigger has been crossed", book.adjustPrice(88).isEmpty());
+        assertEquals("Second order should trigger 5 below its own mark", Collections.singletonList(second),
+                     book.adjustPrice(87));
+        assertEquals("First order should trigger 15 below its own mark", Collections.singletonList(first),
+                     book.adjustPrice(85));
+    }
+
+
+    @Test
+    public void testCohortsMergeOnNewHigh() throws Exception {
+        final TrailingStopBook book = new TrailingStopBook(true, 100);
+        final Order wide = new MarketSellOrder("fred", 10, "BA");
+        final Order narrow = new MarketSellOrder("fred", 10, "BA");
+        book.add(wide, 10);
+        assertTrue("Rise shouldn't trigger", book.adjustPrice(110).isEmpty());
+        book.add(narrow, 3);
+
+        // both marks move to the new high, merging the cohorts
+        assertTrue("Rise shouldn't trigger", book.adjustPrice(120).isEmpty());
+        assertEquals("Narrow order should trigger 3 below the shared high", Collections.singletonList(narrow),
+                     book.adjustPrice(117));
+        assertEquals("Wide order should trigger 10 below the shared high", Collections.singletonList(wide),
+                     book.adjustPrice(110));
+    }
+
+
+    @Test
+    public void testTriggersInPriority() throws Exception {
+        final TrailingStopBook book = new TrailingStopBook(true, 100);
+        final Order wide = new MarketSellOrder("fred", 10, "BA");
+        final Order narrow = new MarketSellOrder("fred", 10, "BA");
+        final Order narrowLater = new MarketSellOrder("fred", 10, "BA");
+        book.add(wide, 20);
+        book.add(narrow, 5);
+        book.add(narrowLater, 5);
+
+        assertEquals("Orders should trigger smallest offset first, then by arrival",
+                     Arrays.asList(narrow, narrowLater, wide), book.adjustPrice(50));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOffsetMustBePositive() throws Exception {
+        new TrailingStopBook(true, 100).add(new MarketSellOrder("fred", 10, "BA"), 0);
+    }
+}